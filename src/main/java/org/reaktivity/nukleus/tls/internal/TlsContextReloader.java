@@ -0,0 +1,202 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLContext;
+
+import org.agrona.LangUtil;
+import org.agrona.concurrent.ManyToOneConcurrentLinkedQueue;
+import org.agrona.concurrent.status.AtomicCounter;
+import org.reaktivity.nukleus.Nukleus;
+
+final class TlsContextReloader implements Nukleus
+{
+    private static final long QUIET_PERIOD_MILLIS = 100L;
+
+    private final Supplier<SSLContext> newContext;
+    private final Consumer<SSLContext> onReload;
+    private final Set<Path> paths;
+    private final Queue<SSLContext> reloads;
+
+    private final AtomicCounter reloadsCount;
+    private final AtomicCounter reloadFailures;
+    private final AtomicCounter reloadMicros;
+
+    private final WatchService watcher;
+    private final Thread thread;
+
+    private SSLContext context;
+
+    TlsContextReloader(
+        SSLContext context,
+        Supplier<SSLContext> newContext,
+        Consumer<SSLContext> onReload,
+        Set<Path> paths,
+        boolean watch,
+        TlsCounters counters)
+    {
+        this.context = context;
+        this.newContext = newContext;
+        this.onReload = onReload;
+        this.paths = paths;
+        this.reloads = new ManyToOneConcurrentLinkedQueue<>();
+
+        this.reloadsCount = counters.counter("context.reloads");
+        this.reloadFailures = counters.counter("context.reload.failures");
+        this.reloadMicros = counters.counter("context.reload.micros");
+
+        WatchService watcher = null;
+
+        if (watch)
+        {
+            try
+            {
+                watcher = FileSystems.getDefault().newWatchService();
+
+                final Set<Path> directories = new HashSet<>();
+                for (Path path : paths)
+                {
+                    final Path directory = path.getParent();
+                    if (Files.isDirectory(directory) && directories.add(directory))
+                    {
+                        directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+                    }
+                }
+            }
+            catch (IOException ex)
+            {
+                LangUtil.rethrowUnchecked(ex);
+            }
+        }
+
+        this.watcher = watcher;
+        this.thread = watcher != null ? new Thread(this::watch, "tls-reload") : null;
+
+        // started only once the watcher is assigned, as the thread reads it from the field
+        if (thread != null)
+        {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public SSLContext context()
+    {
+        return context;
+    }
+
+    @Override
+    public int process()
+    {
+        int workCount = 0;
+
+        for (SSLContext newContext = reloads.poll();
+                newContext != null;
+                newContext = reloads.poll())
+        {
+            // streams created from now on use the new context, existing engines keep their own
+            context = newContext;
+            onReload.accept(newContext);
+            workCount++;
+        }
+
+        return workCount;
+    }
+
+    @Override
+    public void close() throws Exception
+    {
+        if (watcher != null)
+        {
+            watcher.close();
+            thread.join();
+        }
+    }
+
+    private void watch()
+    {
+        try
+        {
+            for (;;)
+            {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+
+                // coalesce the burst of events from one file update into a single reload
+                while (key != null)
+                {
+                    final Path directory = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents())
+                    {
+                        changed |= event.kind() == OVERFLOW || paths.contains(directory.resolve((Path) event.context()));
+                    }
+                    key.reset();
+
+                    key = watcher.poll(QUIET_PERIOD_MILLIS, MILLISECONDS);
+                }
+
+                if (changed)
+                {
+                    reload();
+                }
+            }
+        }
+        catch (ClosedWatchServiceException | InterruptedException ex)
+        {
+            // closed
+        }
+    }
+
+    private void reload()
+    {
+        final long startedAt = System.nanoTime();
+
+        try
+        {
+            reloads.offer(newContext.get());
+            reloadsCount.increment();
+        }
+        catch (Exception ex)
+        {
+            // keep serving with the current context until the next change
+            reloadFailures.increment();
+        }
+        finally
+        {
+            reloadMicros.add(NANOSECONDS.toMicros(System.nanoTime() - startedAt));
+        }
+    }
+}
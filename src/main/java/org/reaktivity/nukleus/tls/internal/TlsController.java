@@ -31,6 +31,7 @@ import org.reaktivity.nukleus.function.MessagePredicate;
 import org.reaktivity.nukleus.tls.internal.types.Flyweight;
 import org.reaktivity.nukleus.tls.internal.types.control.Role;
 import org.reaktivity.nukleus.tls.internal.types.control.RouteFW;
+import org.reaktivity.nukleus.tls.internal.types.control.TlsRecordSizingExFW;
 import org.reaktivity.nukleus.tls.internal.types.control.UnrouteFW;
 import org.reaktivity.nukleus.tls.internal.types.control.TlsRouteExFW;
 
@@ -43,6 +44,7 @@ public final class TlsController implements Controller
     private final UnrouteFW.Builder unrouteRW = new UnrouteFW.Builder();
 
     private final TlsRouteExFW.Builder routeExRW = new TlsRouteExFW.Builder();
+    private final TlsRecordSizingExFW.Builder recordSizingExRW = new TlsRecordSizingExFW.Builder();
 
     private final ControllerSpi controllerSpi;
     private final MutableDirectBuffer writeBuffer;
@@ -98,6 +100,31 @@ public final class TlsController implements Controller
         String target,
         long targetRef,
         String hostname)
+    {
+        return routeServer(source, sourceRef, target, targetRef, hostname, null);
+    }
+
+    public CompletableFuture<Long> routeServer(
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname,
+        String applicationProtocol)
+    {
+        return routeServer(source, sourceRef, target, targetRef, hostname, applicationProtocol, 0, 0L, 0L);
+    }
+
+    public CompletableFuture<Long> routeServer(
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname,
+        String applicationProtocol,
+        int recordInitialLength,
+        long recordRampBytes,
+        long recordIdleMillis)
     {
         long correlationId = controllerSpi.nextCorrelationId();
 
@@ -108,7 +135,41 @@ public final class TlsController implements Controller
                 .sourceRef(sourceRef)
                 .target(target)
                 .targetRef(targetRef)
-                .extension(b -> b.set(visitRouteEx(hostname)))
+                .extension(b -> b.set(visitRouteEx(hostname, applicationProtocol,
+                        recordInitialLength, recordRampBytes, recordIdleMillis)))
+                .build();
+
+        return controllerSpi.doRoute(route.typeId(), route.buffer(), route.offset(), route.sizeof());
+    }
+
+    public CompletableFuture<Long> routeServerPassthrough(
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname)
+    {
+        return routeServerPassthrough(source, sourceRef, target, targetRef, hostname, null);
+    }
+
+    public CompletableFuture<Long> routeServerPassthrough(
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname,
+        String applicationProtocol)
+    {
+        long correlationId = controllerSpi.nextCorrelationId();
+
+        RouteFW route = routeRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .correlationId(correlationId)
+                .role(b -> b.set(Role.PROXY))
+                .source(source)
+                .sourceRef(sourceRef)
+                .target(target)
+                .targetRef(targetRef)
+                .extension(b -> b.set(visitRouteEx(hostname, applicationProtocol)))
                 .build();
 
         return controllerSpi.doRoute(route.typeId(), route.buffer(), route.offset(), route.sizeof());
@@ -120,6 +181,31 @@ public final class TlsController implements Controller
         String target,
         long targetRef,
         String hostname)
+    {
+        return routeClient(source, sourceRef, target, targetRef, hostname, null);
+    }
+
+    public CompletableFuture<Long> routeClient(
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname,
+        String applicationProtocol)
+    {
+        return routeClient(source, sourceRef, target, targetRef, hostname, applicationProtocol, 0, 0L, 0L);
+    }
+
+    public CompletableFuture<Long> routeClient(
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname,
+        String applicationProtocol,
+        int recordInitialLength,
+        long recordRampBytes,
+        long recordIdleMillis)
     {
         long correlationId = controllerSpi.nextCorrelationId();
 
@@ -130,7 +216,8 @@ public final class TlsController implements Controller
                 .sourceRef(sourceRef)
                 .target(target)
                 .targetRef(targetRef)
-                .extension(b -> b.set(visitRouteEx(hostname)))
+                .extension(b -> b.set(visitRouteEx(hostname, applicationProtocol,
+                        recordInitialLength, recordRampBytes, recordIdleMillis)))
                 .build();
 
         return controllerSpi.doRoute(route.typeId(), route.buffer(), route.offset(), route.sizeof());
@@ -142,6 +229,31 @@ public final class TlsController implements Controller
         String target,
         long targetRef,
         String hostname)
+    {
+        return unrouteServer(source, sourceRef, target, targetRef, hostname, null);
+    }
+
+    public CompletableFuture<Void> unrouteServer(
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname,
+        String applicationProtocol)
+    {
+        return unrouteServer(source, sourceRef, target, targetRef, hostname, applicationProtocol, 0, 0L, 0L);
+    }
+
+    public CompletableFuture<Void> unrouteServer(
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname,
+        String applicationProtocol,
+        int recordInitialLength,
+        long recordRampBytes,
+        long recordIdleMillis)
     {
         long correlationId = controllerSpi.nextCorrelationId();
 
@@ -152,7 +264,41 @@ public final class TlsController implements Controller
                                      .sourceRef(sourceRef)
                                      .target(target)
                                      .targetRef(targetRef)
-                                     .extension(b -> b.set(visitRouteEx(hostname)))
+                                     .extension(b -> b.set(visitRouteEx(hostname, applicationProtocol,
+                        recordInitialLength, recordRampBytes, recordIdleMillis)))
+                                     .build();
+
+        return controllerSpi.doUnroute(unroute.typeId(), unroute.buffer(), unroute.offset(), unroute.sizeof());
+    }
+
+    public CompletableFuture<Void> unrouteServerPassthrough(
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname)
+    {
+        return unrouteServerPassthrough(source, sourceRef, target, targetRef, hostname, null);
+    }
+
+    public CompletableFuture<Void> unrouteServerPassthrough(
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname,
+        String applicationProtocol)
+    {
+        long correlationId = controllerSpi.nextCorrelationId();
+
+        UnrouteFW unroute = unrouteRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                                     .correlationId(correlationId)
+                                     .role(b -> b.set(Role.PROXY))
+                                     .source(source)
+                                     .sourceRef(sourceRef)
+                                     .target(target)
+                                     .targetRef(targetRef)
+                                     .extension(b -> b.set(visitRouteEx(hostname, applicationProtocol)))
                                      .build();
 
         return controllerSpi.doUnroute(unroute.typeId(), unroute.buffer(), unroute.offset(), unroute.sizeof());
@@ -164,6 +310,31 @@ public final class TlsController implements Controller
         String target,
         long targetRef,
         String hostname)
+    {
+        return unrouteClient(source, sourceRef, target, targetRef, hostname, null);
+    }
+
+    public CompletableFuture<Void> unrouteClient(
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname,
+        String applicationProtocol)
+    {
+        return unrouteClient(source, sourceRef, target, targetRef, hostname, applicationProtocol, 0, 0L, 0L);
+    }
+
+    public CompletableFuture<Void> unrouteClient(
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname,
+        String applicationProtocol,
+        int recordInitialLength,
+        long recordRampBytes,
+        long recordIdleMillis)
     {
         long correlationId = controllerSpi.nextCorrelationId();
 
@@ -174,7 +345,8 @@ public final class TlsController implements Controller
                                      .sourceRef(sourceRef)
                                      .target(target)
                                      .targetRef(targetRef)
-                                     .extension(b -> b.set(visitRouteEx(hostname)))
+                                     .extension(b -> b.set(visitRouteEx(hostname, applicationProtocol,
+                        recordInitialLength, recordRampBytes, recordIdleMillis)))
                                      .build();
 
         return controllerSpi.doUnroute(unroute.typeId(), unroute.buffer(), unroute.offset(), unroute.sizeof());
@@ -182,12 +354,55 @@ public final class TlsController implements Controller
 
 
     private Flyweight.Builder.Visitor visitRouteEx(
-        String hostname)
+        String hostname,
+        String applicationProtocol)
     {
+        return visitRouteEx(hostname, applicationProtocol, 0, 0L, 0L);
+    }
+
+    private Flyweight.Builder.Visitor visitRouteEx(
+        String hostname,
+        String applicationProtocol,
+        int recordInitialLength,
+        long recordRampBytes,
+        long recordIdleMillis)
+    {
+        final boolean recordSizing = recordInitialLength != 0 || recordRampBytes != 0L || recordIdleMillis != 0L;
+
         return (buffer, offset, limit) ->
-            routeExRW.wrap(buffer, offset, limit)
-                     .hostname(hostname)
-                     .build()
-                     .sizeof();
+        {
+            final TlsRouteExFW.Builder routeEx = routeExRW.wrap(buffer, offset, limit);
+
+            if (recordSizing)
+            {
+                // strings written empty when absent, so the record sizing can follow them
+                routeEx.hostname(hostname != null ? hostname : "")
+                       .applicationProtocol(applicationProtocol != null ? applicationProtocol : "");
+            }
+            else if (applicationProtocol != null)
+            {
+                // hostname written empty when absent, only a trailing string may be omitted
+                routeEx.hostname(hostname != null ? hostname : "")
+                       .applicationProtocol(applicationProtocol);
+            }
+            else
+            {
+                routeEx.hostname(hostname);
+            }
+
+            int sizeof = routeEx.build().sizeof();
+
+            if (recordSizing)
+            {
+                sizeof += recordSizingExRW.wrap(buffer, offset + sizeof, limit)
+                                          .initialLength(recordInitialLength)
+                                          .rampBytes(recordRampBytes)
+                                          .idleMillis(recordIdleMillis)
+                                          .build()
+                                          .sizeof();
+            }
+
+            return sizeof;
+        };
     }
 }
@@ -0,0 +1,370 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.agrona.concurrent.status.CountersReader.COUNTER_LENGTH;
+import static org.agrona.concurrent.status.CountersReader.MAX_LABEL_LENGTH;
+import static org.agrona.concurrent.status.CountersReader.METADATA_LENGTH;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableArrayBuffer;
+import org.agrona.IoUtil;
+import org.agrona.LangUtil;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.agrona.concurrent.status.AtomicCounter;
+import org.agrona.concurrent.status.CountersManager;
+import org.reaktivity.nukleus.route.RouteHandler;
+import org.reaktivity.nukleus.tls.internal.types.Flyweight;
+import org.reaktivity.nukleus.tls.internal.types.control.RouteFW;
+import org.reaktivity.nukleus.tls.internal.types.control.TlsRouteExFW;
+
+public final class TlsCounters implements AutoCloseable
+{
+    // context reload and session cache counters, besides the route counter sets
+    private static final int NUKLEUS_COUNTERS = 8;
+
+    // handshake histograms of each role, server and client, for routes without histograms of their own
+    private static final int HANDSHAKE_ROLES = 2;
+
+    // unrouted and overflow route counter sets are always allocated
+    private static final int RESERVED_ROUTES = 2;
+
+    // leaves room in each label for the longest route counter or histogram name
+    private static final int ROUTE_PREFIX_LENGTH_MAX =
+            MAX_LABEL_LENGTH - Math.max(TlsRouteCounters.NAME_LENGTH_MAX, TlsHandshakeHistograms.NAME_LENGTH_MAX);
+
+    private final MappedByteBuffer mapped;
+    private final CountersManager manager;
+    private final Map<String, AtomicCounter> counters;
+    private final Map<String, TlsHandshakeHistograms> handshakeHistogramsByRole;
+    private final Map<String, TlsRouteCounters> routeCountersByPrefix;
+    private final Map<DirectBuffer, TlsRouteCounters> routeCountersByKey;
+    private final Set<DirectBuffer> routedKeys;
+    private final RouteFW routeRO = new RouteFW();
+    private final TlsRouteExFW tlsRouteExRO = new TlsRouteExFW();
+    private final MutableDirectBuffer routeKeyBuffer = new ExpandableArrayBuffer();
+    private final UnsafeBuffer routeKeyRO = new UnsafeBuffer(new byte[0]);
+    private final int routeCountersMax;
+    private final int handshakeHistogramsMax;
+    private final TlsRouteCounters overflowCounters;
+
+    private int routeCountersCount;
+    private int handshakeHistogramsCount;
+
+    public TlsCounters(
+        Path path,
+        int routes,
+        int histogramRoutes)
+    {
+        final int capacity = NUKLEUS_COUNTERS + (HANDSHAKE_ROLES + histogramRoutes) * TlsHandshakeHistograms.COUNTERS +
+                (routes + RESERVED_ROUTES) * TlsRouteCounters.COUNTERS;
+        final int metaDataLength = capacity * METADATA_LENGTH;
+        final int valuesLength = capacity * COUNTER_LENGTH;
+
+        MappedByteBuffer mapped = null;
+
+        try
+        {
+            final Path directory = Files.createDirectories(path.toAbsolutePath().getParent());
+            final Path newPath = Files.createTempFile(directory, path.getFileName().toString(), ".new");
+
+            try (FileChannel channel = FileChannel.open(newPath, READ, WRITE))
+            {
+                mapped = channel.map(READ_WRITE, 0, metaDataLength + valuesLength);
+            }
+
+            // replaced rather than truncated, so tools still mapping a previous file keep reading its last values
+            Files.move(newPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+        catch (IOException ex)
+        {
+            LangUtil.rethrowUnchecked(ex);
+        }
+
+        this.mapped = mapped;
+        this.manager = new CountersManager(new UnsafeBuffer(mapped, 0, metaDataLength),
+                                           new UnsafeBuffer(mapped, metaDataLength, valuesLength));
+        this.routeCountersMax = routes + RESERVED_ROUTES;
+        this.handshakeHistogramsMax = histogramRoutes;
+        this.counters = new HashMap<>();
+        this.handshakeHistogramsByRole = new HashMap<>();
+        this.routeCountersByPrefix = new HashMap<>();
+        this.routeCountersByKey = new HashMap<>();
+        this.routedKeys = new HashSet<>();
+        this.overflowCounters = new TlsRouteCounters(this, "routes.overflow");
+        this.routeCountersCount = 1;
+    }
+
+    public AtomicCounter counter(
+        String name)
+    {
+        return counters.computeIfAbsent(name, this::newCounter);
+    }
+
+    public TlsHandshakeHistograms handshakeHistograms(
+        String role)
+    {
+        return handshakeHistogramsByRole.computeIfAbsent(role, r -> new TlsHandshakeHistograms(this, r));
+    }
+
+    public TlsHandshakeHistograms handshakeHistograms(
+        String role,
+        TlsRouteCounters routeCounters)
+    {
+        TlsHandshakeHistograms handshakeHistograms = routeCounters.handshakeHistograms;
+
+        if (handshakeHistograms == null)
+        {
+            handshakeHistograms = handshakeHistograms(role);
+
+            // routes get histograms of their own on their first handshake while there is room,
+            // the others share the histograms of their role
+            if (routeCounters.routed && handshakeHistogramsCount < handshakeHistogramsMax)
+            {
+                try
+                {
+                    handshakeHistograms = new TlsHandshakeHistograms(this, routeCounters.prefix);
+                    routeCounters.handshakeHistograms = handshakeHistograms;
+                    handshakeHistogramsCount++;
+                }
+                catch (IllegalArgumentException | IllegalStateException ex)
+                {
+                    handshakeHistograms = handshakeHistograms(role);
+                }
+            }
+        }
+
+        return handshakeHistograms;
+    }
+
+    public TlsRouteCounters routeCounters(
+        String prefix)
+    {
+        return routeCountersByPrefix.computeIfAbsent(prefix, this::newRouteCounters);
+    }
+
+    public TlsRouteCounters routeCounters(
+        String role,
+        RouteFW route,
+        RouteHandler router)
+    {
+        TlsRouteCounters routeCounters = routeCountersByKey.get(routeKey(route));
+
+        if (routeCounters == null)
+        {
+            final DirectBuffer routeKey = copyOf(routeKeyRO);
+
+            // counters of removed routes are reclaimed only once they are needed for another route
+            if (routeCountersCount >= routeCountersMax)
+            {
+                reclaimRouteCounters(router);
+            }
+
+            routeCounters = newRouteCounters(routePrefix(role, route, routeKey));
+            routeCounters.routed = routeCounters != overflowCounters;
+            routeCountersByKey.put(routeKey, routeCounters);
+        }
+
+        return routeCounters;
+    }
+
+    @Override
+    public void close()
+    {
+        IoUtil.unmap(mapped);
+    }
+
+    AtomicCounter newCounter(
+        String name)
+    {
+        final AtomicCounter counter = manager.newCounter(name);
+
+        // freed counters are reused by later allocations, so start again from zero
+        counter.setOrdered(0L);
+
+        return counter;
+    }
+
+    private TlsRouteCounters newRouteCounters(
+        String prefix)
+    {
+        TlsRouteCounters routeCounters = overflowCounters;
+
+        // routes beyond the sized capacity share the overflow counters rather than fail their streams
+        if (routeCountersCount < routeCountersMax)
+        {
+            try
+            {
+                routeCounters = new TlsRouteCounters(this, prefix);
+                routeCountersCount++;
+            }
+            catch (IllegalArgumentException | IllegalStateException ex)
+            {
+                routeCounters = overflowCounters;
+            }
+        }
+
+        return routeCounters;
+    }
+
+    private void reclaimRouteCounters(
+        RouteHandler router)
+    {
+        final Set<DirectBuffer> routed = routedKeys;
+
+        // routes are not announced to the nukleus when removed, so find those the router still has
+        routed.clear();
+        router.resolve(
+            (t, b, i, l) ->
+            {
+                routed.add(copyOf(routeKey(routeRO.wrap(b, i, i + l))));
+                return false;
+            },
+            (t, b, i, l) -> null);
+
+        boolean reclaimed = false;
+        for (Iterator<Map.Entry<DirectBuffer, TlsRouteCounters>> entries = routeCountersByKey.entrySet().iterator();
+                entries.hasNext();)
+        {
+            final Map.Entry<DirectBuffer, TlsRouteCounters> entry = entries.next();
+            final TlsRouteCounters routeCounters = entry.getValue();
+
+            // streams still counting against a removed route keep its counters until they are done
+            if (!routed.contains(entry.getKey()) && (routeCounters == overflowCounters || routeCounters.isIdle()))
+            {
+                if (routeCounters != overflowCounters)
+                {
+                    if (routeCounters.handshakeHistograms != null)
+                    {
+                        routeCounters.handshakeHistograms.close();
+                        handshakeHistogramsCount--;
+                    }
+
+                    routeCounters.close();
+                    routeCountersCount--;
+                    reclaimed = true;
+                }
+                entries.remove();
+            }
+        }
+
+        // routes left on the overflow counters get their own once resolved again
+        if (reclaimed)
+        {
+            routeCountersByKey.values().removeIf(c -> c == overflowCounters);
+        }
+
+        routed.clear();
+    }
+
+    private DirectBuffer routeKey(
+        RouteFW route)
+    {
+        final TlsRouteExFW routeEx = route.extension().get(tlsRouteExRO::wrap);
+
+        // exactly what tells one route apart from another, so no two routes share counters
+        int length = putFlyweight(0, route.role());
+        length += putFlyweight(length, route.source());
+        routeKeyBuffer.putLong(length, route.sourceRef());
+        length += Long.BYTES;
+        length += putFlyweight(length, route.target());
+        routeKeyBuffer.putLong(length, route.targetRef());
+        length += Long.BYTES;
+        length += putFlyweight(length, routeEx.hostname());
+        length += putFlyweight(length, routeEx.applicationProtocol());
+
+        routeKeyRO.wrap(routeKeyBuffer, 0, length);
+
+        return routeKeyRO;
+    }
+
+    private int putFlyweight(
+        int index,
+        Flyweight flyweight)
+    {
+        routeKeyBuffer.putBytes(index, flyweight.buffer(), flyweight.offset(), flyweight.sizeof());
+        return flyweight.sizeof();
+    }
+
+    private static DirectBuffer copyOf(
+        DirectBuffer buffer)
+    {
+        final UnsafeBuffer copy = new UnsafeBuffer(new byte[buffer.capacity()]);
+        copy.putBytes(0, buffer, 0, buffer.capacity());
+        return copy;
+    }
+
+    private String routePrefix(
+        String role,
+        RouteFW route,
+        DirectBuffer routeKey)
+    {
+        final TlsRouteExFW routeEx = route.extension().get(tlsRouteExRO::wrap);
+        final StringBuilder prefix = new StringBuilder(role)
+                .append('.').append(route.source().asString()).append('.').append(route.sourceRef())
+                .append('.').append(route.target().asString()).append('.').append(route.targetRef());
+
+        // routes sharing source and target are told apart by hostname and application protocol
+        if (routeEx.hostname().sizeof() > 1)
+        {
+            prefix.append('.').append(routeEx.hostname().asString());
+        }
+
+        if (routeEx.applicationProtocol().sizeof() > 1)
+        {
+            prefix.append('.').append(routeEx.applicationProtocol().asString());
+        }
+
+        String routePrefix = prefix.toString();
+        final byte[] routePrefixBytes = routePrefix.getBytes(UTF_8);
+
+        // long hostnames are truncated so every label still fits the counters metadata, and a hash of the
+        // route key keeps apart routes that differ only beyond the cut
+        if (routePrefixBytes.length > ROUTE_PREFIX_LENGTH_MAX)
+        {
+            final String suffix = String.format("~%08x", routeKey.hashCode());
+
+            int length = ROUTE_PREFIX_LENGTH_MAX - suffix.length();
+            while ((routePrefixBytes[length] & 0xc0) == 0x80)
+            {
+                // never cut through a multibyte character
+                length--;
+            }
+
+            routePrefix = new String(routePrefixBytes, 0, length, UTF_8) + suffix;
+        }
+
+        return routePrefix;
+    }
+}
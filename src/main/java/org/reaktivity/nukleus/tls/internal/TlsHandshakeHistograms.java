@@ -0,0 +1,45 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal;
+
+public final class TlsHandshakeHistograms
+{
+    static final int COUNTERS = 4 * TlsHistogram.BUCKETS;
+    static final int NAME_LENGTH_MAX = ".handshake.network.micros".length() + TlsHistogram.NAME_LENGTH_MAX;
+
+    public final TlsHistogram handshakeMicros;
+    public final TlsHistogram handshakeHelloMicros;
+    public final TlsHistogram handshakeNetworkMicros;
+    public final TlsHistogram handshakeTasksMicros;
+
+    TlsHandshakeHistograms(
+        TlsCounters counters,
+        String prefix)
+    {
+        this.handshakeMicros = new TlsHistogram(counters, prefix + ".handshake.micros");
+        this.handshakeHelloMicros = new TlsHistogram(counters, prefix + ".handshake.hello.micros");
+        this.handshakeNetworkMicros = new TlsHistogram(counters, prefix + ".handshake.network.micros");
+        this.handshakeTasksMicros = new TlsHistogram(counters, prefix + ".handshake.tasks.micros");
+    }
+
+    void close()
+    {
+        handshakeMicros.close();
+        handshakeHelloMicros.close();
+        handshakeNetworkMicros.close();
+        handshakeTasksMicros.close();
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal;
+
+import org.agrona.concurrent.status.AtomicCounter;
+
+public final class TlsHistogram
+{
+    static final int BUCKETS = 16;
+
+    private static final int MIN_MICROS_SHIFT = 6;
+
+    static final int NAME_LENGTH_MAX = ("." + (1L << (MIN_MICROS_SHIFT + BUCKETS - 2))).length();
+
+    private final AtomicCounter[] buckets;
+
+    TlsHistogram(
+        TlsCounters counters,
+        String name)
+    {
+        final AtomicCounter[] buckets = new AtomicCounter[BUCKETS];
+
+        // each bucket counts values up to twice the bound of the one before, the last one has no bound
+        for (int i = 0; i < BUCKETS - 1; i++)
+        {
+            buckets[i] = counters.newCounter(name + "." + (1L << (MIN_MICROS_SHIFT + i)));
+        }
+        buckets[BUCKETS - 1] = counters.newCounter(name + ".max");
+
+        this.buckets = buckets;
+    }
+
+    public void record(
+        long micros)
+    {
+        final long scaled = Math.max(micros - 1L, 0L) >> MIN_MICROS_SHIFT;
+        final int index = Math.min(Long.SIZE - Long.numberOfLeadingZeros(scaled), BUCKETS - 1);
+
+        buckets[index].orderedIncrement();
+    }
+
+    void close()
+    {
+        for (AtomicCounter bucket : buckets)
+        {
+            bucket.close();
+        }
+    }
+}
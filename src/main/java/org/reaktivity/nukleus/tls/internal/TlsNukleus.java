@@ -0,0 +1,58 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal;
+
+import org.reaktivity.nukleus.Nukleus;
+import org.reaktivity.nukleus.tls.internal.util.DelegatedTaskExecutor;
+import org.reaktivity.nukleus.tls.internal.util.WindowCoalescer;
+import org.reaktivity.nukleus.tls.internal.util.WriteCoalescer;
+
+final class TlsNukleus extends Nukleus.Composite
+{
+    private final String name;
+    private final TlsCounters counters;
+
+    TlsNukleus(
+        Nukleus streams,
+        DelegatedTaskExecutor executor,
+        WindowCoalescer windowCoalescer,
+        WriteCoalescer writeCoalescer,
+        TlsContextReloader contextReloader,
+        TlsCounters counters)
+    {
+        super(streams, executor, windowCoalescer, writeCoalescer, contextReloader);
+        this.name = streams.name();
+        this.counters = counters;
+    }
+
+    public TlsCounters counters()
+    {
+        return counters;
+    }
+
+    @Override
+    public String name()
+    {
+        return name;
+    }
+
+    @Override
+    public void close() throws Exception
+    {
+        super.close();
+        counters.close();
+    }
+}
@@ -15,29 +15,49 @@
  */
 package org.reaktivity.nukleus.tls.internal;
 
+import static java.lang.Boolean.parseBoolean;
+import static java.lang.Integer.getInteger;
+import static java.lang.Long.getLong;
 import static java.lang.System.getProperty;
+import static java.util.Arrays.asList;
 import static org.reaktivity.nukleus.route.RouteKind.CLIENT;
+import static org.reaktivity.nukleus.route.RouteKind.PROXY;
 import static org.reaktivity.nukleus.route.RouteKind.SERVER;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.MAX_RECORD_LENGTH;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.security.KeyStore;
 import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
 
 import org.agrona.LangUtil;
 import org.reaktivity.nukleus.Configuration;
 import org.reaktivity.nukleus.Nukleus;
 import org.reaktivity.nukleus.NukleusBuilder;
 import org.reaktivity.nukleus.NukleusFactorySpi;
+import org.reaktivity.nukleus.tls.internal.stream.ClientSessionCache;
 import org.reaktivity.nukleus.tls.internal.stream.ClientStreamFactoryBuilder;
+import org.reaktivity.nukleus.tls.internal.stream.ProxyStreamFactoryBuilder;
+import org.reaktivity.nukleus.tls.internal.stream.ServerSessionCache;
 import org.reaktivity.nukleus.tls.internal.stream.ServerStreamFactoryBuilder;
+import org.reaktivity.nukleus.tls.internal.util.BufferPool;
+import org.reaktivity.nukleus.tls.internal.util.DelegatedTaskExecutor;
+import org.reaktivity.nukleus.tls.internal.util.RecordSizing;
+import org.reaktivity.nukleus.tls.internal.util.SniKeyManager;
+import org.reaktivity.nukleus.tls.internal.util.WindowBudget;
+import org.reaktivity.nukleus.tls.internal.util.WindowCoalescer;
+import org.reaktivity.nukleus.tls.internal.util.WriteCoalescer;
 
 public final class TlsNukleusFactorySpi implements NukleusFactorySpi
 {
@@ -45,11 +65,49 @@ public final class TlsNukleusFactorySpi implements NukleusFactorySpi
     private static final String PROPERTY_TLS_KEYSTORE_PASSWORD = "tls.keystore.password";
     private static final String PROPERTY_TLS_TRUSTSTORE = "tls.truststore";
     private static final String PROPERTY_TLS_TRUSTSTORE_PASSWORD = "tls.truststore.password";
+    private static final String PROPERTY_TLS_HANDSHAKE_PARALLELISM = "tls.handshake.parallelism";
+    private static final String PROPERTY_TLS_BUFFER_SLOT_CAPACITY = "tls.buffer.slot.capacity";
+    private static final String PROPERTY_TLS_BUFFER_SLOTS = "tls.buffer.slots";
+    private static final String PROPERTY_TLS_SESSION_CACHE_CAPACITY = "tls.session.cache.capacity";
+    private static final String PROPERTY_TLS_SESSION_TIMEOUT = "tls.session.timeout";
+    private static final String PROPERTY_TLS_COUNTERS_ROUTES = "tls.counters.routes";
+    private static final String PROPERTY_TLS_COUNTERS_HISTOGRAM_ROUTES = "tls.counters.histogram.routes";
+    private static final String PROPERTY_TLS_CONTEXT_RELOAD = "tls.context.reload";
+    private static final String PROPERTY_TLS_WINDOW_INITIAL = "tls.window.initial";
+    private static final String PROPERTY_TLS_WINDOW_ADAPTIVE = "tls.window.adaptive";
+    private static final String PROPERTY_TLS_WINDOW_MAX = "tls.window.max";
+    private static final String PROPERTY_TLS_WINDOW_BUDGET = "tls.window.budget";
+    private static final String PROPERTY_TLS_WINDOW_THRESHOLD = "tls.window.threshold";
+    private static final String PROPERTY_TLS_COALESCE_WRITES = "tls.coalesce.writes";
+    private static final String PROPERTY_TLS_COALESCE_MICROS = "tls.coalesce.micros";
+    private static final String PROPERTY_TLS_RECORD_DYNAMIC = "tls.record.dynamic";
+    private static final String PROPERTY_TLS_RECORD_INITIAL = "tls.record.initial";
+    private static final String PROPERTY_TLS_RECORD_RAMP_BYTES = "tls.record.ramp.bytes";
+    private static final String PROPERTY_TLS_RECORD_IDLE_MILLIS = "tls.record.idle.millis";
 
     private static final String DEFAULT_TLS_KEYSTORE = "keys";
     private static final String DEFAULT_TLS_KEYSTORE_PASSWORD = "generated";
     private static final String DEFAULT_TLS_TRUSTSTORE = "trust";
     private static final String DEFAULT_TLS_TRUSTSTORE_PASSWORD = "generated";
+    private static final int DEFAULT_TLS_HANDSHAKE_PARALLELISM = 1;
+    private static final int DEFAULT_TLS_BUFFER_SLOT_CAPACITY = 0x8000;
+    private static final int DEFAULT_TLS_BUFFER_SLOTS = 256;
+    private static final int DEFAULT_TLS_SESSION_CACHE_CAPACITY = 20480;
+    private static final int DEFAULT_TLS_SESSION_TIMEOUT = 86400;
+    private static final int DEFAULT_TLS_COUNTERS_ROUTES = 64;
+    private static final int DEFAULT_TLS_COUNTERS_HISTOGRAM_ROUTES = 16;
+    private static final boolean DEFAULT_TLS_CONTEXT_RELOAD = true;
+    private static final int DEFAULT_TLS_WINDOW_INITIAL = 8192;
+    private static final boolean DEFAULT_TLS_WINDOW_ADAPTIVE = false;
+    private static final int DEFAULT_TLS_WINDOW_MAX = 65536;
+    private static final long DEFAULT_TLS_WINDOW_BUDGET = 0x1000000L;
+    private static final int DEFAULT_TLS_WINDOW_THRESHOLD = 0;
+    private static final boolean DEFAULT_TLS_COALESCE_WRITES = false;
+    private static final long DEFAULT_TLS_COALESCE_MICROS = 0L;
+    private static final boolean DEFAULT_TLS_RECORD_DYNAMIC = false;
+    private static final int DEFAULT_TLS_RECORD_INITIAL = 1400;
+    private static final long DEFAULT_TLS_RECORD_RAMP_BYTES = 0x100000L;
+    private static final long DEFAULT_TLS_RECORD_IDLE_MILLIS = 1000L;
 
     @Override
     public String name()
@@ -62,44 +120,137 @@ public final class TlsNukleusFactorySpi implements NukleusFactorySpi
         Configuration config,
         NukleusBuilder builder)
     {
-        final Path directory = config.directory();
-        final SSLContext context = initContext(directory);
+        final Path tlsDirectory = config.directory().resolve("tls");
+        final Path keyStorePath = tlsDirectory.resolve(getProperty(PROPERTY_TLS_KEYSTORE, DEFAULT_TLS_KEYSTORE));
+        final Path trustStorePath = tlsDirectory.resolve(getProperty(PROPERTY_TLS_TRUSTSTORE, DEFAULT_TLS_TRUSTSTORE));
+        final SSLContext context = initContext(keyStorePath, trustStorePath);
 
-        return builder.streamFactory(SERVER, new ServerStreamFactoryBuilder(context))
-                      .streamFactory(CLIENT, new ClientStreamFactoryBuilder(context))
-                      .build();
+        final int countersRoutes = getInteger(PROPERTY_TLS_COUNTERS_ROUTES, DEFAULT_TLS_COUNTERS_ROUTES);
+        final int histogramRoutes = getInteger(PROPERTY_TLS_COUNTERS_HISTOGRAM_ROUTES, DEFAULT_TLS_COUNTERS_HISTOGRAM_ROUTES);
+        final TlsCounters counters = new TlsCounters(tlsDirectory.resolve("counters"), countersRoutes, histogramRoutes);
+
+        final int parallelism = getInteger(PROPERTY_TLS_HANDSHAKE_PARALLELISM, DEFAULT_TLS_HANDSHAKE_PARALLELISM);
+        final DelegatedTaskExecutor executor = new DelegatedTaskExecutor(parallelism);
+
+        final int slotCapacity = getInteger(PROPERTY_TLS_BUFFER_SLOT_CAPACITY, DEFAULT_TLS_BUFFER_SLOT_CAPACITY);
+        final int slots = getInteger(PROPERTY_TLS_BUFFER_SLOTS, DEFAULT_TLS_BUFFER_SLOTS);
+        final BufferPool bufferPool = new BufferPool(slotCapacity, slots);
+
+        // ciphertext read ahead of application credit is held in the stream buffer slot behind at most one record
+        final int windowLimit = slotCapacity - MAX_RECORD_LENGTH;
+        if (windowLimit <= 0)
+        {
+            throw new IllegalArgumentException(String.format("%s %d cannot hold more than one TLS record",
+                    PROPERTY_TLS_BUFFER_SLOT_CAPACITY, slotCapacity));
+        }
+
+        final int windowInitial = Math.min(getInteger(PROPERTY_TLS_WINDOW_INITIAL, DEFAULT_TLS_WINDOW_INITIAL), windowLimit);
+        final String adaptiveProperty = getProperty(PROPERTY_TLS_WINDOW_ADAPTIVE, Boolean.toString(DEFAULT_TLS_WINDOW_ADAPTIVE));
+        final boolean windowAdaptive = parseBoolean(adaptiveProperty);
+        final long windowBudgetBytes = getLong(PROPERTY_TLS_WINDOW_BUDGET, DEFAULT_TLS_WINDOW_BUDGET);
+
+        final int windowMax = windowAdaptive
+                ? Math.min(getInteger(PROPERTY_TLS_WINDOW_MAX, DEFAULT_TLS_WINDOW_MAX), windowLimit)
+                : windowInitial;
+        final WindowBudget windowBudget = new WindowBudget(windowInitial, windowMax, windowBudgetBytes);
+
+        final int windowThreshold = getInteger(PROPERTY_TLS_WINDOW_THRESHOLD, DEFAULT_TLS_WINDOW_THRESHOLD);
+        final WindowCoalescer windowCoalescer = new WindowCoalescer(windowThreshold);
+
+        final String coalesceProperty = getProperty(PROPERTY_TLS_COALESCE_WRITES, Boolean.toString(DEFAULT_TLS_COALESCE_WRITES));
+        final boolean coalesceWrites = parseBoolean(coalesceProperty);
+        final long coalesceMicros = getLong(PROPERTY_TLS_COALESCE_MICROS, DEFAULT_TLS_COALESCE_MICROS);
+        final WriteCoalescer writeCoalescer = new WriteCoalescer(coalesceWrites, coalesceMicros);
+
+        final String dynamicProperty = getProperty(PROPERTY_TLS_RECORD_DYNAMIC, Boolean.toString(DEFAULT_TLS_RECORD_DYNAMIC));
+        final boolean recordDynamic = parseBoolean(dynamicProperty);
+        final int recordInitial = getInteger(PROPERTY_TLS_RECORD_INITIAL, DEFAULT_TLS_RECORD_INITIAL);
+        final long recordRampBytes = getLong(PROPERTY_TLS_RECORD_RAMP_BYTES, DEFAULT_TLS_RECORD_RAMP_BYTES);
+        final long recordIdleMillis = getLong(PROPERTY_TLS_RECORD_IDLE_MILLIS, DEFAULT_TLS_RECORD_IDLE_MILLIS);
+        final RecordSizing recordSizing = new RecordSizing(recordDynamic, recordInitial, recordRampBytes, recordIdleMillis);
+
+        final int sessionCacheCapacity = getInteger(PROPERTY_TLS_SESSION_CACHE_CAPACITY, DEFAULT_TLS_SESSION_CACHE_CAPACITY);
+        final int sessionTimeout = getInteger(PROPERTY_TLS_SESSION_TIMEOUT, DEFAULT_TLS_SESSION_TIMEOUT);
+        final ServerSessionCache serverSessionCache =
+                new ServerSessionCache(context.getServerSessionContext(), sessionCacheCapacity, sessionTimeout, counters);
+        final ClientSessionCache clientSessionCache =
+                new ClientSessionCache(context.getClientSessionContext(), sessionCacheCapacity, sessionTimeout, counters);
+
+        final String reloadProperty = getProperty(PROPERTY_TLS_CONTEXT_RELOAD, Boolean.toString(DEFAULT_TLS_CONTEXT_RELOAD));
+        final boolean reload = parseBoolean(reloadProperty);
+        final Set<Path> contextPaths = new HashSet<>(asList(keyStorePath, trustStorePath));
+        final TlsContextReloader contextReloader = new TlsContextReloader(
+                context,
+                () -> initContext(keyStorePath, trustStorePath),
+                c ->
+                {
+                    serverSessionCache.setSessionContext(c.getServerSessionContext());
+                    clientSessionCache.setSessionContext(c.getClientSessionContext());
+                },
+                contextPaths,
+                reload,
+                counters);
+
+        final ServerStreamFactoryBuilder serverStreams =
+                new ServerStreamFactoryBuilder(contextReloader::context, executor, bufferPool, windowBudget,
+                        windowCoalescer, writeCoalescer, recordSizing, serverSessionCache, counters);
+        final ClientStreamFactoryBuilder clientStreams =
+                new ClientStreamFactoryBuilder(contextReloader::context, executor, bufferPool, windowBudget,
+                        windowCoalescer, writeCoalescer, recordSizing, clientSessionCache, counters);
+        final ProxyStreamFactoryBuilder proxyStreams =
+                new ProxyStreamFactoryBuilder(bufferPool, windowBudget);
+
+        final Nukleus streams = builder.streamFactory(SERVER, serverStreams)
+                                       .streamFactory(CLIENT, clientStreams)
+                                       .streamFactory(PROXY, proxyStreams)
+                                       .build();
+
+        return new TlsNukleus(streams, executor, windowCoalescer, writeCoalescer, contextReloader, counters);
     }
 
     private SSLContext initContext(
-        Path directory)
+        Path keyStorePath,
+        Path trustStorePath)
     {
         SSLContext context = null;
 
         try
         {
             String keyStorePassword = getProperty(PROPERTY_TLS_KEYSTORE_PASSWORD, DEFAULT_TLS_KEYSTORE_PASSWORD);
-            String keyStoreFilename = getProperty(PROPERTY_TLS_KEYSTORE, DEFAULT_TLS_KEYSTORE);
-            File keyStoreFile = directory.resolve("tls").resolve(keyStoreFilename).toFile();
+            File keyStoreFile = keyStorePath.toFile();
 
             KeyManager[] keyManagers = null;
             if (keyStoreFile.exists())
             {
                 KeyStore keyStore = KeyStore.getInstance("JKS");
-                keyStore.load(new FileInputStream(keyStoreFile), keyStorePassword.toCharArray());
+                try (InputStream input = new FileInputStream(keyStoreFile))
+                {
+                    keyStore.load(input, keyStorePassword.toCharArray());
+                }
                 KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
                 keyManagerFactory.init(keyStore, keyStorePassword.toCharArray());
                 keyManagers = keyManagerFactory.getKeyManagers();
+
+                for (int i = 0; i < keyManagers.length; i++)
+                {
+                    if (keyManagers[i] instanceof X509ExtendedKeyManager)
+                    {
+                        keyManagers[i] = new SniKeyManager(keyStore, (X509ExtendedKeyManager) keyManagers[i]);
+                    }
+                }
             }
 
             String trustStorePassword = getProperty(PROPERTY_TLS_TRUSTSTORE_PASSWORD, DEFAULT_TLS_TRUSTSTORE_PASSWORD);
-            String trustStoreFilename = System.getProperty(PROPERTY_TLS_TRUSTSTORE, DEFAULT_TLS_TRUSTSTORE);
-            File trustStoreFile = directory.resolve("tls").resolve(trustStoreFilename).toFile();
+            File trustStoreFile = trustStorePath.toFile();
 
             TrustManager[] trustManagers = null;
             if (trustStoreFile.exists())
             {
                 KeyStore trustStore = KeyStore.getInstance("JKS");
-                trustStore.load(new FileInputStream(trustStoreFile), trustStorePassword.toCharArray());
+                try (InputStream input = new FileInputStream(trustStoreFile))
+                {
+                    trustStore.load(input, trustStorePassword.toCharArray());
+                }
                 // TODO: TLS Alert Record, code 112 / scope trustStore to match routes?
                 TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
                 trustManagerFactory.init(trustStore);
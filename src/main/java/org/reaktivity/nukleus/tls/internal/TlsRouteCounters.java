@@ -0,0 +1,87 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal;
+
+import org.agrona.concurrent.status.AtomicCounter;
+
+public final class TlsRouteCounters
+{
+    static final int COUNTERS = 13;
+    static final int NAME_LENGTH_MAX = ".ciphertext.bytes.out".length();
+
+    public final AtomicCounter handshakesStarted;
+    public final AtomicCounter handshakesFinished;
+    public final AtomicCounter handshakesFailed;
+    public final AtomicCounter handshakesResumed;
+    public final AtomicCounter handshakesFull;
+    public final AtomicCounter ciphertextBytesIn;
+    public final AtomicCounter ciphertextBytesOut;
+    public final AtomicCounter plaintextBytesIn;
+    public final AtomicCounter plaintextBytesOut;
+    public final AtomicCounter recordsIn;
+    public final AtomicCounter recordsOut;
+    public final AtomicCounter resets;
+    public final AtomicCounter streamsActive;
+
+    final String prefix;
+
+    boolean routed;
+    TlsHandshakeHistograms handshakeHistograms;
+
+    TlsRouteCounters(
+        TlsCounters counters,
+        String prefix)
+    {
+        this.prefix = prefix;
+        this.handshakesStarted = counters.newCounter(prefix + ".handshakes.started");
+        this.handshakesFinished = counters.newCounter(prefix + ".handshakes.finished");
+        this.handshakesFailed = counters.newCounter(prefix + ".handshakes.failed");
+        this.handshakesResumed = counters.newCounter(prefix + ".handshakes.resumed");
+        this.handshakesFull = counters.newCounter(prefix + ".handshakes.full");
+        this.ciphertextBytesIn = counters.newCounter(prefix + ".ciphertext.bytes.in");
+        this.ciphertextBytesOut = counters.newCounter(prefix + ".ciphertext.bytes.out");
+        this.plaintextBytesIn = counters.newCounter(prefix + ".plaintext.bytes.in");
+        this.plaintextBytesOut = counters.newCounter(prefix + ".plaintext.bytes.out");
+        this.recordsIn = counters.newCounter(prefix + ".records.in");
+        this.recordsOut = counters.newCounter(prefix + ".records.out");
+        this.resets = counters.newCounter(prefix + ".resets");
+        this.streamsActive = counters.newCounter(prefix + ".streams.active");
+    }
+
+    boolean isIdle()
+    {
+        // no established streams and every handshake started on the route has ended
+        return streamsActive.get() == 0L &&
+                handshakesStarted.get() <= handshakesFinished.get() + handshakesFailed.get();
+    }
+
+    void close()
+    {
+        handshakesStarted.close();
+        handshakesFinished.close();
+        handshakesFailed.close();
+        handshakesResumed.close();
+        handshakesFull.close();
+        ciphertextBytesIn.close();
+        ciphertextBytesOut.close();
+        plaintextBytesIn.close();
+        plaintextBytesOut.close();
+        recordsIn.close();
+        recordsOut.close();
+        resets.close();
+        streamsActive.close();
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.stream;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import org.agrona.concurrent.status.AtomicCounter;
+import org.reaktivity.nukleus.tls.internal.TlsCounters;
+
+public final class ClientSessionCache
+{
+    private final int capacity;
+    private final int timeout;
+    private final Map<PeerKey, PeerSession> peerSessions;
+    private final PeerKey peerKey;
+
+    private final AtomicCounter hits;
+    private final AtomicCounter misses;
+    private final AtomicCounter evictions;
+
+    private int nextPeerPort;
+
+    public ClientSessionCache(
+        SSLSessionContext sessionContext,
+        int capacity,
+        int timeout,
+        TlsCounters counters)
+    {
+        this.capacity = capacity;
+        this.timeout = timeout;
+        this.peerSessions = new LinkedHashMap<>(16, 0.75f, true);
+        this.peerKey = new PeerKey();
+
+        this.hits = counters.counter("client.sessions.hits");
+        this.misses = counters.counter("client.sessions.misses");
+        this.evictions = counters.counter("client.sessions.evictions");
+
+        setSessionContext(sessionContext);
+    }
+
+    public void setSessionContext(
+        SSLSessionContext sessionContext)
+    {
+        sessionContext.setSessionCacheSize(capacity);
+        sessionContext.setSessionTimeout(timeout);
+    }
+
+    PeerSession supplyPeerSession(
+        String target,
+        long targetRef,
+        String hostname)
+    {
+        // SSLEngine client sessions are cached by peer host and port, so each
+        // (target, targetRef, hostname) is given its own distinct peer port
+        PeerSession peerSession = peerSessions.get(peerKey.wrap(target, targetRef, hostname));
+        if (peerSession == null)
+        {
+            final int peerPort;
+
+            if (capacity != 0 && peerSessions.size() >= capacity)
+            {
+                // a port is only reused once the session cached under it is gone
+                final Iterator<PeerSession> eldest = peerSessions.values().iterator();
+                final PeerSession evicted = eldest.next();
+                eldest.remove();
+                evicted.evict();
+                evictions.orderedIncrement();
+
+                peerPort = evicted.peerPort;
+            }
+            else
+            {
+                peerPort = ++nextPeerPort;
+            }
+
+            peerSession = new PeerSession(peerPort);
+            peerSessions.put(new PeerKey().wrap(target, targetRef, hostname), peerSession);
+        }
+
+        return peerSession;
+    }
+
+    void onHandshakeFinished(
+        PeerSession peerSession,
+        SSLSession session,
+        boolean resumed)
+    {
+        if (resumed)
+        {
+            hits.orderedIncrement();
+        }
+        else
+        {
+            misses.orderedIncrement();
+        }
+
+        peerSession.onHandshakeFinished(session);
+    }
+
+    static final class PeerSession
+    {
+        private final int peerPort;
+
+        private SSLSession session;
+        private boolean evicted;
+
+        private PeerSession(
+            int peerPort)
+        {
+            this.peerPort = peerPort;
+        }
+
+        int peerPort()
+        {
+            return peerPort;
+        }
+
+        private void onHandshakeFinished(
+            SSLSession session)
+        {
+            if (evicted)
+            {
+                // port already handed to another target, which must not resume this session
+                session.invalidate();
+            }
+            else
+            {
+                this.session = session;
+            }
+        }
+
+        private void evict()
+        {
+            if (session != null)
+            {
+                session.invalidate();
+                session = null;
+            }
+
+            evicted = true;
+        }
+    }
+
+    private static final class PeerKey
+    {
+        private String target;
+        private long targetRef;
+        private String hostname;
+
+        private PeerKey wrap(
+            String target,
+            long targetRef,
+            String hostname)
+        {
+            this.target = target;
+            this.targetRef = targetRef;
+            this.hostname = hostname;
+            return this;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = target.hashCode();
+            result = 31 * result + Long.hashCode(targetRef);
+            result = 31 * result + Objects.hashCode(hostname);
+            return result;
+        }
+
+        @Override
+        public boolean equals(
+            Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+
+            if (!(obj instanceof PeerKey))
+            {
+                return false;
+            }
+
+            final PeerKey that = (PeerKey) obj;
+            return this.targetRef == that.targetRef &&
+                    Objects.equals(this.target, that.target) &&
+                    Objects.equals(this.hostname, that.hostname);
+        }
+    }
+}
@@ -17,12 +17,21 @@ package org.reaktivity.nukleus.tls.internal.stream;
 
 import static java.nio.ByteBuffer.allocateDirect;
 import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_WRAP;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+import static org.reaktivity.nukleus.tls.internal.stream.RouteMatcher.asString;
+import static org.reaktivity.nukleus.tls.internal.stream.RouteMatcher.isWildcard;
+import static org.reaktivity.nukleus.tls.internal.util.BufferPool.NO_SLOT;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.MAX_PLAINTEXT_LENGTH;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.ciphertextLength;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.frames;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.plaintextLength;
 
 import java.nio.ByteBuffer;
-import java.util.Objects;
 import java.util.function.Consumer;
-import java.util.function.IntConsumer;
 import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 import javax.net.ssl.SNIHostName;
 import javax.net.ssl.SSLContext;
@@ -31,19 +40,24 @@ import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
 
 import org.agrona.DirectBuffer;
 import org.agrona.LangUtil;
 import org.agrona.MutableDirectBuffer;
 import org.agrona.collections.Long2ObjectHashMap;
-import org.agrona.concurrent.UnsafeBuffer;
 import org.reaktivity.nukleus.function.MessageConsumer;
-import org.reaktivity.nukleus.function.MessagePredicate;
+import org.reaktivity.nukleus.function.MessageFunction;
 import org.reaktivity.nukleus.route.RouteHandler;
 import org.reaktivity.nukleus.stream.StreamFactory;
+import org.reaktivity.nukleus.tls.internal.TlsCounters;
+import org.reaktivity.nukleus.tls.internal.TlsHandshakeHistograms;
+import org.reaktivity.nukleus.tls.internal.TlsRouteCounters;
+import org.reaktivity.nukleus.tls.internal.stream.ClientSessionCache.PeerSession;
 import org.reaktivity.nukleus.tls.internal.types.Flyweight;
 import org.reaktivity.nukleus.tls.internal.types.OctetsFW;
 import org.reaktivity.nukleus.tls.internal.types.control.RouteFW;
+import org.reaktivity.nukleus.tls.internal.types.control.TlsRecordSizingExFW;
 import org.reaktivity.nukleus.tls.internal.types.control.TlsRouteExFW;
 import org.reaktivity.nukleus.tls.internal.types.stream.BeginFW;
 import org.reaktivity.nukleus.tls.internal.types.stream.DataFW;
@@ -51,6 +65,15 @@ import org.reaktivity.nukleus.tls.internal.types.stream.EndFW;
 import org.reaktivity.nukleus.tls.internal.types.stream.ResetFW;
 import org.reaktivity.nukleus.tls.internal.types.stream.TlsBeginExFW;
 import org.reaktivity.nukleus.tls.internal.types.stream.WindowFW;
+import org.reaktivity.nukleus.tls.internal.util.BufferPool;
+import org.reaktivity.nukleus.tls.internal.util.ByteBufferView;
+import org.reaktivity.nukleus.tls.internal.util.DelegatedTaskExecutor;
+import org.reaktivity.nukleus.tls.internal.util.RecordSizing;
+import org.reaktivity.nukleus.tls.internal.util.ServerHello;
+import org.reaktivity.nukleus.tls.internal.util.TlsRecord;
+import org.reaktivity.nukleus.tls.internal.util.WindowBudget;
+import org.reaktivity.nukleus.tls.internal.util.WindowCoalescer;
+import org.reaktivity.nukleus.tls.internal.util.WriteCoalescer;
 import org.reaktivity.nukleus.tls.internal.util.function.ObjectLongBiFunction;
 
 public final class ClientStreamFactory implements StreamFactory
@@ -59,6 +82,7 @@ public final class ClientStreamFactory implements StreamFactory
 
     private final RouteFW routeRO = new RouteFW();
     private final TlsRouteExFW tlsRouteExRO = new TlsRouteExFW();
+    private final TlsRecordSizingExFW tlsRecordSizingExRO = new TlsRecordSizingExFW();
 
     private final BeginFW beginRO = new BeginFW();
     private final DataFW dataRO = new DataFW();
@@ -74,47 +98,68 @@ public final class ClientStreamFactory implements StreamFactory
     private final TlsBeginExFW tlsBeginExRO = new TlsBeginExFW();
     private final TlsBeginExFW.Builder tlsBeginExRW = new TlsBeginExFW.Builder();
 
-    private final OctetsFW outNetOctetsRO = new OctetsFW();
-    private final OctetsFW outAppOctetsRO = new OctetsFW();
-
     private final WindowFW.Builder windowRW = new WindowFW.Builder();
     private final ResetFW.Builder resetRW = new ResetFW.Builder();
 
-    private final SSLContext context;
+    private final Supplier<SSLContext> supplyContext;
+    private final DelegatedTaskExecutor executor;
+    private final BufferPool bufferPool;
+    private final WindowBudget windowBudget;
+    private final WindowCoalescer windowCoalescer;
+    private final WriteCoalescer writeCoalescer;
+    private final RecordSizing recordSizing;
+    private final ClientSessionCache sessionCache;
+    private final TlsCounters counters;
+    private final RouteMatcher routeMatcher = new RouteMatcher();
+    private final ServerHello serverHello = new ServerHello();
     private final RouteHandler router;
     private final MutableDirectBuffer writeBuffer;
     private final LongSupplier supplyStreamId;
     private final LongSupplier supplyCorrelationId;
 
     private final Long2ObjectHashMap<ClientHandshake> correlations;
+    private final MessageFunction<RouteFW> wrapRoute;
     private final ByteBuffer inAppByteBuffer;
-    private final ByteBuffer inNetByteBuffer;
-    private final ByteBuffer outAppByteBuffer;
-    private final ByteBuffer outNetByteBuffer;
-    private final DirectBuffer outAppBuffer;
-    private final DirectBuffer outNetBuffer;
+    private final ByteBufferView inNetByteBufferView;
+    private final ByteBufferView outAppByteBufferView;
+    private final ByteBufferView outNetByteBufferView;
 
     public ClientStreamFactory(
-        SSLContext context,
+        Supplier<SSLContext> supplyContext,
+        DelegatedTaskExecutor executor,
+        BufferPool bufferPool,
+        WindowBudget windowBudget,
+        WindowCoalescer windowCoalescer,
+        WriteCoalescer writeCoalescer,
+        RecordSizing recordSizing,
+        ClientSessionCache sessionCache,
+        TlsCounters counters,
         RouteHandler router,
         MutableDirectBuffer writeBuffer,
         LongSupplier supplyStreamId,
         LongSupplier supplyCorrelationId,
         Long2ObjectHashMap<ClientHandshake> correlations)
     {
-        this.context = context;
+        this.supplyContext = supplyContext;
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+        this.windowBudget = windowBudget;
+        this.windowCoalescer = windowCoalescer;
+        this.writeCoalescer = writeCoalescer;
+        this.recordSizing = recordSizing;
+        this.sessionCache = sessionCache;
+        this.counters = counters;
         this.router = router;
         this.writeBuffer = writeBuffer;
         this.supplyStreamId = supplyStreamId;
         this.supplyCorrelationId = supplyCorrelationId;
 
         this.correlations = correlations;
+        this.wrapRoute = this::wrapRoute;
         this.inAppByteBuffer = allocateDirect(writeBuffer.capacity());
-        this.inNetByteBuffer = allocateDirect(writeBuffer.capacity());
-        this.outAppByteBuffer = allocateDirect(writeBuffer.capacity());
-        this.outAppBuffer = new UnsafeBuffer(outAppByteBuffer);
-        this.outNetByteBuffer = allocateDirect(writeBuffer.capacity());
-        this.outNetBuffer = new UnsafeBuffer(outNetByteBuffer);
+        this.inNetByteBufferView = new ByteBufferView(allocateDirect(writeBuffer.capacity()));
+        this.outAppByteBufferView = new ByteBufferView(allocateDirect(writeBuffer.capacity()));
+        this.outNetByteBufferView = new ByteBufferView(allocateDirect(writeBuffer.capacity()));
     }
 
     @Override
@@ -151,29 +196,33 @@ public final class ClientStreamFactory implements StreamFactory
         final OctetsFW extension = begin.extension();
         final TlsBeginExFW tlsBeginEx = extension.get(tlsBeginExRO::wrap);
 
-        final MessagePredicate filter = (t, b, o, l) ->
-        {
-            final RouteFW route = routeRO.wrap(b, o, l);
-            final TlsRouteExFW routeEx = route.extension().get(tlsRouteExRO::wrap);
-            final String hostname = routeEx.hostname().asString();
-            final String tlsHostname = tlsBeginEx.hostname().asString();
+        final String requestedHostname = asString(tlsBeginEx.hostname());
 
-            return applicationRef == route.sourceRef() &&
-                    applicationName.equals(route.source().asString()) &&
-                    (tlsHostname == null || Objects.equals(tlsHostname, hostname));
-        };
+        final RouteMatcher matcher = requestedHostname != null
+                ? routeMatcher.source(applicationName, applicationRef).hostname(requestedHostname)
+                : routeMatcher.source(applicationName, applicationRef);
 
-        final RouteFW route = router.resolve(filter, this::wrapRoute);
+        final RouteFW route = matcher.resolve(router, wrapRoute);
 
         MessageConsumer newStream = null;
 
         if (route != null)
         {
-            String tlsHostname = tlsBeginEx.hostname().asString();
+            final TlsRouteExFW routeEx = route.extension().get(tlsRouteExRO::wrap);
+
+            String tlsHostname = requestedHostname;
             if (tlsHostname == null)
             {
-                final TlsRouteExFW routeEx = route.extension().get(tlsRouteExRO::wrap);
-                tlsHostname = routeEx.hostname().asString();
+                final String hostname = asString(routeEx.hostname());
+
+                // wildcard routes name no concrete server
+                tlsHostname = isWildcard(hostname) ? null : hostname;
+            }
+
+            String tlsApplicationProtocol = asString(tlsBeginEx.applicationProtocol());
+            if (tlsApplicationProtocol == null)
+            {
+                tlsApplicationProtocol = asString(routeEx.applicationProtocol());
             }
 
             final String networkName = route.target().asString();
@@ -181,8 +230,11 @@ public final class ClientStreamFactory implements StreamFactory
 
             final long applicationId = begin.streamId();
 
-            newStream = new ClientAcceptStream(tlsHostname, applicationThrottle, applicationId,
-                                               networkName, networkRef)::handleStream;
+            final TlsRouteCounters routeCounters = counters.routeCounters("client", route, router);
+            final RecordSizing recordSizing = resolveRecordSizing(route, routeEx);
+
+            newStream = new ClientAcceptStream(tlsHostname, tlsApplicationProtocol, applicationThrottle, applicationId,
+                                               networkName, networkRef, routeCounters, recordSizing)::handleStream;
         }
 
         return newStream;
@@ -206,9 +258,29 @@ public final class ClientStreamFactory implements StreamFactory
         return routeRO.wrap(buffer, index, index + length);
     }
 
+    private RecordSizing resolveRecordSizing(
+        RouteFW route,
+        TlsRouteExFW tlsRouteEx)
+    {
+        final OctetsFW extension = route.extension();
+        RecordSizing routeRecordSizing = recordSizing;
+
+        // record sizing trails the route extension only when set for the route
+        if (tlsRouteEx.limit() < extension.limit())
+        {
+            final TlsRecordSizingExFW recordSizingEx =
+                    tlsRecordSizingExRO.wrap(extension.buffer(), tlsRouteEx.limit(), extension.limit());
+            routeRecordSizing = recordSizing.route(recordSizingEx.initialLength(), recordSizingEx.rampBytes(),
+                                                   recordSizingEx.idleMillis());
+        }
+
+        return routeRecordSizing;
+    }
+
     private final class ClientAcceptStream
     {
         private final String tlsHostname;
+        private final String tlsApplicationProtocol;
 
         private final MessageConsumer applicationThrottle;
         private final long applicationId;
@@ -216,25 +288,43 @@ public final class ClientStreamFactory implements StreamFactory
         private final String networkName;
         private final MessageConsumer networkTarget;
         private final long networkRef;
+        private final TlsRouteCounters routeCounters;
+        private final RecordSizing recordSizing;
+        private final Runnable flushApplication;
 
         private SSLEngine tlsEngine;
+        private ClientHandshake handshake;
         private MessageConsumer streamState;
+        private int recordOverhead;
 
-        private long networkId;
+        private int applicationBytes;
+        private int applicationFrames;
+        private int applicationFrameLength = MAX_PLAINTEXT_LENGTH;
+        private int applicationSlot = NO_SLOT;
+        private boolean flushScheduled;
+        private long recordBytes;
+        private long recordWrittenAt;
 
         private ClientAcceptStream(
             String tlsHostname,
+            String tlsApplicationProtocol,
             MessageConsumer applicationThrottle,
             long applicationId,
             String networkName,
-            long networkRef)
+            long networkRef,
+            TlsRouteCounters routeCounters,
+            RecordSizing recordSizing)
         {
             this.tlsHostname = tlsHostname;
+            this.tlsApplicationProtocol = tlsApplicationProtocol;
             this.applicationThrottle = applicationThrottle;
             this.applicationId = applicationId;
             this.networkName = networkName;
             this.networkTarget = router.supplyTarget(networkName);
             this.networkRef = networkRef;
+            this.routeCounters = routeCounters;
+            this.recordSizing = recordSizing;
+            this.flushApplication = this::flushApplication;
             this.streamState = this::beforeBegin;
         }
 
@@ -297,7 +387,8 @@ public final class ClientStreamFactory implements StreamFactory
                 final long newNetworkId = supplyStreamId.getAsLong();
                 final long newCorrelationId = supplyCorrelationId.getAsLong();
 
-                final SSLEngine tlsEngine = context.createSSLEngine(tlsHostname, -1);
+                final PeerSession peerSession = sessionCache.supplyPeerSession(networkName, networkRef, tlsHostname);
+                final SSLEngine tlsEngine = supplyContext.get().createSSLEngine(tlsHostname, peerSession.peerPort());
                 tlsEngine.setUseClientMode(true);
 
                 final SSLParameters tlsParameters = tlsEngine.getSSLParameters();
@@ -306,10 +397,15 @@ public final class ClientStreamFactory implements StreamFactory
                 {
                     tlsParameters.setServerNames(asList(new SNIHostName(tlsHostname)));
                 }
+                if (tlsApplicationProtocol != null)
+                {
+                    tlsParameters.setApplicationProtocols(new String[] { tlsApplicationProtocol });
+                }
                 tlsEngine.setSSLParameters(tlsParameters);
 
-                final ClientHandshake newHandshake = new ClientHandshake(tlsEngine, networkName, newNetworkId,
-                        applicationName, applicationCorrelationId, this::handleThrottle);
+                final ClientHandshake newHandshake = new ClientHandshake(tlsEngine, peerSession, routeCounters, networkName,
+                        newNetworkId, applicationName, applicationCorrelationId, this::handleThrottle, this::handleFinished,
+                        this::resetApplication);
 
                 correlations.put(newCorrelationId, newHandshake);
 
@@ -317,13 +413,15 @@ public final class ClientStreamFactory implements StreamFactory
                 router.setThrottle(networkName, newNetworkId, newHandshake::handleThrottle);
 
                 this.tlsEngine = tlsEngine;
-                this.networkId = newNetworkId;
+                this.handshake = newHandshake;
                 this.streamState = this::afterBegin;
 
+                routeCounters.handshakesStarted.orderedIncrement();
                 tlsEngine.beginHandshake();
             }
             catch (SSLException ex)
             {
+                routeCounters.handshakesFailed.orderedIncrement();
                 doReset(applicationThrottle, applicationId);
                 LangUtil.rethrowUnchecked(ex);
             }
@@ -336,40 +434,188 @@ public final class ClientStreamFactory implements StreamFactory
             {
                 final OctetsFW payload = data.payload();
 
-                // Note: inAppBuffer is emptied by SslEngine.wrap(...)
-                //       so should be able to eliminate allocation+copy (stateless)
-                inAppByteBuffer.clear();
-                payload.buffer().getBytes(payload.offset(), inAppByteBuffer, payload.sizeof());
-                inAppByteBuffer.flip();
+                applicationBytes -= data.length();
+                applicationFrames--;
+                applicationFrameLength = (applicationFrameLength * 7 + Math.max(data.length(), 1)) >> 3;
 
-                while (inAppByteBuffer.hasRemaining())
+                if (!holdApplication(payload))
                 {
-                    outNetByteBuffer.rewind();
-                    SSLEngineResult result = tlsEngine.wrap(inAppByteBuffer, outNetByteBuffer);
-                    flushNetwork(tlsEngine, result.bytesProduced(), networkTarget, networkId);
+                    // Note: inAppBuffer is emptied by SslEngine.wrap(...)
+                    //       so should be able to eliminate allocation+copy (stateless)
+                    inAppByteBuffer.clear();
+                    payload.buffer().getBytes(payload.offset(), inAppByteBuffer, payload.sizeof());
+                    inAppByteBuffer.flip();
+
+                    wrapApplication(inAppByteBuffer);
                 }
 
-                // TODO: delta between windows
+                updateApplicationWindow();
             }
             catch (SSLException ex)
             {
+                releaseApplicationSlot();
+                handshake.handleFailure();
                 doReset(applicationThrottle, applicationId);
                 LangUtil.rethrowUnchecked(ex);
             }
         }
 
+        private boolean holdApplication(
+            OctetsFW payload) throws SSLException
+        {
+            final int length = payload.sizeof();
+
+            if (applicationSlot == NO_SLOT && writeCoalescer.enabled() && length < MAX_PLAINTEXT_LENGTH)
+            {
+                applicationSlot = bufferPool.acquire();
+            }
+
+            if (applicationSlot != NO_SLOT)
+            {
+                final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(applicationSlot);
+
+                if (length > slotByteBuffer.remaining())
+                {
+                    // held plaintext goes first, to keep the order
+                    slotByteBuffer.flip();
+                    wrapApplication(slotByteBuffer);
+                    slotByteBuffer.clear();
+                }
+
+                if (length > slotByteBuffer.remaining())
+                {
+                    releaseApplicationSlot();
+                }
+                else
+                {
+                    payload.buffer().getBytes(payload.offset(), slotByteBuffer, length);
+                    wrapApplicationRecords(slotByteBuffer);
+
+                    if (!flushScheduled)
+                    {
+                        writeCoalescer.schedule(flushApplication);
+                        flushScheduled = true;
+                    }
+                }
+            }
+
+            return applicationSlot != NO_SLOT;
+        }
+
+        private void wrapApplicationRecords(
+            ByteBuffer slotByteBuffer) throws SSLException
+        {
+            final int heldBytes = slotByteBuffer.position() % MAX_PLAINTEXT_LENGTH;
+
+            if (slotByteBuffer.position() != heldBytes)
+            {
+                // full records gain nothing from waiting, only the remainder is held
+                slotByteBuffer.flip();
+                slotByteBuffer.limit(slotByteBuffer.limit() - heldBytes);
+                wrapApplication(slotByteBuffer);
+                slotByteBuffer.limit(slotByteBuffer.limit() + heldBytes);
+                slotByteBuffer.compact();
+            }
+        }
+
+        private void wrapApplication(
+            ByteBuffer inAppByteBuffer) throws SSLException
+        {
+            if (recordSizing.dynamic())
+            {
+                final long now = System.nanoTime();
+                if (recordSizing.idle(recordWrittenAt, now))
+                {
+                    recordBytes = 0L;
+                }
+                recordWrittenAt = now;
+            }
+
+            final int limit = inAppByteBuffer.limit();
+            final int recordsLimit = writeBuffer.capacity() - DataFW.FIELD_OFFSET_PAYLOAD - handshake.packetBufferSize;
+
+            while (inAppByteBuffer.hasRemaining())
+            {
+                // records wrapped together go out in a single network frame
+                SSLEngineResult result;
+                int recordsBytes = 0;
+
+                do
+                {
+                    final int recordLength = recordSizing.recordLength(recordBytes);
+                    inAppByteBuffer.limit(Math.min(inAppByteBuffer.position() + recordLength, limit));
+
+                    final ByteBuffer netByteBuffer = reserveData(outNetByteBufferView, recordsBytes);
+                    result = tlsEngine.wrap(inAppByteBuffer, netByteBuffer);
+                    inAppByteBuffer.limit(limit);
+                    outNetByteBufferView.commit(result.bytesProduced());
+                    recordsBytes += result.bytesProduced();
+                    recordBytes += result.bytesConsumed();
+
+                    if (result.bytesProduced() > 0)
+                    {
+                        routeCounters.recordsOut.orderedIncrement();
+                        routeCounters.plaintextBytesOut.addOrdered(result.bytesConsumed());
+                        routeCounters.ciphertextBytesOut.addOrdered(result.bytesProduced());
+                    }
+                }
+                while (inAppByteBuffer.hasRemaining() && recordsBytes < recordsLimit &&
+                        result.getHandshakeStatus() == NOT_HANDSHAKING);
+
+                handshake.flushNetwork(recordsBytes);
+            }
+        }
+
+        private void flushApplication()
+        {
+            flushScheduled = false;
+
+            if (applicationSlot != NO_SLOT)
+            {
+                try
+                {
+                    final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(applicationSlot);
+                    slotByteBuffer.flip();
+                    wrapApplication(slotByteBuffer);
+                    releaseApplicationSlot();
+
+                    updateApplicationWindow();
+                }
+                catch (SSLException ex)
+                {
+                    releaseApplicationSlot();
+                    handshake.handleFailure();
+                    doReset(applicationThrottle, applicationId);
+                    LangUtil.rethrowUnchecked(ex);
+                }
+            }
+        }
+
+        private void releaseApplicationSlot()
+        {
+            if (applicationSlot != NO_SLOT)
+            {
+                bufferPool.release(applicationSlot);
+                applicationSlot = NO_SLOT;
+            }
+        }
+
         private void handleEnd(
             EndFW end)
         {
             try
             {
+                flushApplication();
                 tlsEngine.closeOutbound();
-                outNetByteBuffer.rewind();
-                SSLEngineResult result = tlsEngine.wrap(inAppByteBuffer, outNetByteBuffer);
-                flushNetwork(tlsEngine, result.bytesProduced(), networkTarget, networkId);
+                final ByteBuffer netByteBuffer = reserveData(outNetByteBufferView);
+                SSLEngineResult result = tlsEngine.wrap(inAppByteBuffer, netByteBuffer);
+                outNetByteBufferView.commit(result.bytesProduced());
+                handshake.flushNetwork(result.bytesProduced());
+                handshake.closeApplication();
             }
             catch (SSLException ex)
             {
+                handshake.handleFailure();
                 doReset(applicationThrottle, applicationId);
                 LangUtil.rethrowUnchecked(ex);
             }
@@ -400,17 +646,67 @@ public final class ClientStreamFactory implements StreamFactory
         private void handleWindow(
             final WindowFW window)
         {
-            final int writableBytes = window.update();
-            final int writableFrames = window.frames();
-            final int newWritableBytes = writableBytes;   // TODO: consider TLS Record padding
-            final int newWritableFrames = writableFrames; // TODO: consider TLS Record frames
+            handshake.handleWindow(window);
+
+            updateApplicationWindow();
+        }
+
+        private void handleFinished()
+        {
+            // network credit stays with the handshake, shared with this stream once the handshake has finished
+            recordOverhead = TlsRecord.overhead(tlsEngine.getSession());
+
+            updateApplicationWindow();
+        }
+
+        private void updateApplicationWindow()
+        {
+            // credit assumes the smallest records, so it holds however far the record size has ramped
+            final int recordLength = recordSizing.minimumLength();
+
+            // plaintext held for coalescing still takes the network credit of its records
+            final int heldBytes = applicationSlot != NO_SLOT ? bufferPool.byteBuffer(applicationSlot).position() : 0;
+            final int networkBytes = handshake.networkBytes - ciphertextLength(heldBytes, recordLength, recordOverhead);
+            final int networkFrames = handshake.networkFrames - (heldBytes != 0 ? 1 : 0);
+
+            // records split at the plaintext limit must still fit the network frames
+            final int networkFramesMax = networkFrames - networkBytes / MAX_PLAINTEXT_LENGTH;
 
-            doWindow(applicationThrottle, applicationId, newWritableBytes, newWritableFrames);
+            // each frame costs at least one record overhead, so only plan for the frames likely to be used
+            final int framesWanted = Math.min(networkBytes / (applicationFrameLength + recordOverhead) + 1, networkFramesMax);
+            final int framesPlanned = Math.max(framesWanted, applicationFrames);
+
+            final int applicationBytesMax = Math.max(plaintextLength(networkBytes, framesPlanned, recordLength, recordOverhead),
+                                                     applicationBytes);
+            final int applicationFramesMax = Math.max(Math.min(framesWanted,
+                                                               frames(networkBytes, applicationBytesMax, recordLength,
+                                                                      recordOverhead)),
+                                                      applicationFrames);
+
+            final int applicationBytesDelta = applicationBytesMax - applicationBytes;
+            final int applicationFramesDelta = applicationFramesMax - applicationFrames;
+
+            if (applicationBytesDelta > 0 || applicationFramesDelta > 0)
+            {
+                applicationBytes = applicationBytesMax;
+                applicationFrames = applicationFramesMax;
+
+                doWindow(applicationThrottle, applicationId, applicationBytesDelta, applicationFramesDelta);
+            }
         }
 
         private void handleReset(
             ResetFW reset)
         {
+            routeCounters.resets.orderedIncrement();
+            resetApplication();
+        }
+
+        private void resetApplication()
+        {
+            releaseApplicationSlot();
+            handshake.releaseNetworkSlot();
+            handshake.closeApplication();
             doReset(applicationThrottle, applicationId);
         }
     }
@@ -418,6 +714,8 @@ public final class ClientStreamFactory implements StreamFactory
     public final class ClientHandshake
     {
         private final SSLEngine tlsEngine;
+        private final PeerSession peerSession;
+        private final TlsRouteCounters routeCounters;
 
         private final String networkName;
         private final MessageConsumer networkTarget;
@@ -426,34 +724,59 @@ public final class ClientStreamFactory implements StreamFactory
         private final String applicationName;
         private final long applicationCorrelationId;
         private final MessageConsumer networkThrottle;
+        private final Runnable finishedHandler;
+        private final Runnable resetHandler;
+        private final long handshakeBeganAt;
+        private final int packetBufferSize;
+        private final int applicationBufferSize;
 
         private Consumer<WindowFW> windowHandler;
 
         private MessageConsumer networkReplyThrottle;
         private long networkReplyId;
 
-        private IntConsumer flushHandler;
+        private Consumer<DataFW> dataHandler;
         private Consumer<HandshakeStatus> statusHandler;
+        private Runnable networkWindowHandler;
+        private Runnable endHandler;
+        private Runnable failureHandler;
 
         private int networkBytes;
         private int networkFrames;
+        private int networkSlot = NO_SLOT;
+        private boolean finished;
+        private boolean closed;
 
         private ClientHandshake(
             SSLEngine tlsEngine,
+            PeerSession peerSession,
+            TlsRouteCounters routeCounters,
             String networkName,
             long networkId,
             String applicationName,
             long applicationCorrelationId,
-            MessageConsumer applicationThrottle)
+            MessageConsumer applicationThrottle,
+            Runnable finishedHandler,
+            Runnable resetHandler)
         {
             this.tlsEngine = tlsEngine;
+            this.peerSession = peerSession;
+            this.routeCounters = routeCounters;
             this.networkName = networkName;
             this.networkTarget = router.supplyTarget(networkName);
             this.networkId = networkId;
             this.applicationName = applicationName;
             this.applicationCorrelationId = applicationCorrelationId;
             this.networkThrottle = applicationThrottle;
+            this.finishedHandler = finishedHandler;
+            this.resetHandler = resetHandler;
+            this.handshakeBeganAt = System.nanoTime();
             this.windowHandler = this::beforeNetworkReply;
+
+            // sizes of a new engine are the maximum, read once since the engine is locked while tasks run
+            final SSLSession tlsSession = tlsEngine.getSession();
+            this.packetBufferSize = tlsSession.getPacketBufferSize();
+            this.applicationBufferSize = tlsSession.getApplicationBufferSize();
         }
 
         @Override
@@ -465,13 +788,19 @@ public final class ClientStreamFactory implements StreamFactory
         private void onNetworkReply(
             MessageConsumer networkReplyThrottle,
             long networkReplyId,
-            IntConsumer flushHandler,
-            Consumer<HandshakeStatus> statusHandler)
+            Consumer<DataFW> dataHandler,
+            Consumer<HandshakeStatus> statusHandler,
+            Runnable networkWindowHandler,
+            Runnable endHandler,
+            Runnable failureHandler)
         {
             this.networkReplyThrottle = networkReplyThrottle;
             this.networkReplyId = networkReplyId;
-            this.flushHandler = flushHandler;
+            this.dataHandler = dataHandler;
             this.statusHandler = statusHandler;
+            this.networkWindowHandler = networkWindowHandler;
+            this.endHandler = endHandler;
+            this.failureHandler = failureHandler;
             this.windowHandler = this::afterNetworkReply;
 
             statusHandler.accept(tlsEngine.getHandshakeStatus());
@@ -484,18 +813,154 @@ public final class ClientStreamFactory implements StreamFactory
             final String applicationReplyName = applicationName;
             final String peerHost = tlsEngine.getPeerHost();
 
+            // empty when the server negotiated no application protocol
+            final String applicationProtocol = tlsEngine.getApplicationProtocol();
+            final String tlsApplicationProtocol = applicationProtocol != null && !applicationProtocol.isEmpty()
+                    ? applicationProtocol : null;
+
             final MessageConsumer applicationReply = router.supplyTarget(applicationReplyName);
 
-            doTlsBegin(applicationReply, applicationReplyId, 0L, applicationCorrelationId, peerHost);
+            doTlsBegin(applicationReply, applicationReplyId, 0L, applicationCorrelationId, peerHost, tlsApplicationProtocol);
             router.setThrottle(applicationReplyName, applicationReplyId, applicationThrottle);
 
             router.setThrottle(networkName, networkId, networkThrottle);
 
-            doWindow(networkThrottle, networkId, networkBytes, networkFrames);
+            this.finished = true;
+
+            // active once the handshake has finished, the same as server streams
+            if (!closed)
+            {
+                routeCounters.streamsActive.orderedIncrement();
+            }
+
+            finishedHandler.run();
 
             return applicationReply;
         }
 
+        private void handleFailure()
+        {
+            if (!finished)
+            {
+                routeCounters.handshakesFailed.orderedIncrement();
+            }
+
+            closeApplication();
+        }
+
+        private void closeApplication()
+        {
+            if (!closed)
+            {
+                closed = true;
+
+                if (finished)
+                {
+                    routeCounters.streamsActive.addOrdered(-1L);
+                }
+            }
+        }
+
+        private boolean isNetworkWritable()
+        {
+            return networkSlot == NO_SLOT && networkLimit() > 0 && networkFrames > 0;
+        }
+
+        private int networkLimit()
+        {
+            // without a free slot to hold any excess, wrap only while another whole record is sure to fit
+            return bufferPool.availableSlots() > 0 ? networkBytes : networkBytes - packetBufferSize + 1;
+        }
+
+        private void flushNetwork(
+            int bytesProduced) throws SSLException
+        {
+            if (bytesProduced > 0)
+            {
+                if (networkSlot == NO_SLOT && bytesProduced <= networkBytes && networkFrames > 0)
+                {
+                    doData(networkTarget, networkId, bytesProduced);
+
+                    networkBytes -= bytesProduced;
+                    networkFrames--;
+                }
+                else
+                {
+                    holdNetwork(bytesProduced);
+                    flushNetworkSlot();
+                }
+            }
+
+            if (networkSlot == NO_SLOT && tlsEngine.isOutboundDone())
+            {
+                doEnd(networkTarget, networkId);
+            }
+        }
+
+        private void holdNetwork(
+            int length) throws SSLException
+        {
+            if (networkSlot == NO_SLOT)
+            {
+                networkSlot = bufferPool.acquire();
+
+                if (networkSlot == NO_SLOT)
+                {
+                    throw new SSLException("no buffer slot available for pending network data");
+                }
+            }
+
+            final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(networkSlot);
+
+            if (length > slotByteBuffer.remaining())
+            {
+                throw new SSLException("pending network data exceeds buffer slot capacity");
+            }
+
+            writeBuffer.getBytes(DataFW.FIELD_OFFSET_PAYLOAD, slotByteBuffer, length);
+        }
+
+        private void flushNetworkSlot()
+        {
+            if (networkSlot != NO_SLOT)
+            {
+                final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(networkSlot);
+                final int length = Math.min(slotByteBuffer.position(), networkBytes);
+
+                if (length > 0 && networkFrames > 0)
+                {
+                    writeBuffer.putBytes(DataFW.FIELD_OFFSET_PAYLOAD, slotByteBuffer, 0, length);
+                    doData(networkTarget, networkId, length);
+
+                    networkBytes -= length;
+                    networkFrames--;
+
+                    slotByteBuffer.flip();
+                    slotByteBuffer.position(length);
+                    slotByteBuffer.compact();
+                }
+
+                if (slotByteBuffer.position() == 0)
+                {
+                    releaseNetworkSlot();
+
+                    if (tlsEngine.isOutboundDone())
+                    {
+                        doEnd(networkTarget, networkId);
+                    }
+                }
+            }
+        }
+
+        private void releaseNetworkSlot()
+        {
+            if (networkSlot != NO_SLOT)
+            {
+                bufferPool.release(networkSlot);
+                networkSlot = NO_SLOT;
+            }
+        }
+
         private void handleThrottle(
             int msgTypeId,
             DirectBuffer buffer,
@@ -506,7 +971,7 @@ public final class ClientStreamFactory implements StreamFactory
             {
             case WindowFW.TYPE_ID:
                 final WindowFW window = windowRO.wrap(buffer, index, index + length);
-                windowHandler.accept(window);
+                handleWindow(window);
                 break;
             case ResetFW.TYPE_ID:
                 final ResetFW reset = resetRO.wrap(buffer, index, index + length);
@@ -518,6 +983,12 @@ public final class ClientStreamFactory implements StreamFactory
             }
         }
 
+        private void handleWindow(
+            WindowFW window)
+        {
+            windowHandler.accept(window);
+        }
+
         private void beforeNetworkReply(
             WindowFW window)
         {
@@ -531,12 +1002,13 @@ public final class ClientStreamFactory implements StreamFactory
             this.networkBytes += window.update();
             this.networkFrames += window.frames();
 
-            statusHandler.accept(tlsEngine.getHandshakeStatus());
+            networkWindowHandler.run();
         }
 
         private void handleReset(
             ResetFW reset)
         {
+            releaseNetworkSlot();
             networkThrottle.accept(reset.typeId(), reset.buffer(), reset.offset(), reset.sizeof());
         }
 
@@ -557,7 +1029,7 @@ public final class ClientStreamFactory implements StreamFactory
                 handleEnd(end);
                 break;
             default:
-                doReset(networkReplyThrottle, networkReplyId);
+                failureHandler.run();
                 break;
             }
         }
@@ -565,32 +1037,7 @@ public final class ClientStreamFactory implements StreamFactory
         private void handleData(
             DataFW data)
         {
-            try
-            {
-                final OctetsFW payload = data.payload();
-
-                // Note: inNetByteBuffer is emptied by SslEngine.unwrap(...)
-                //       so should be able to eliminate copy (stateless)
-                inNetByteBuffer.clear();
-                payload.buffer().getBytes(payload.offset(), inNetByteBuffer, payload.sizeof());
-                inNetByteBuffer.flip();
-
-                while (inNetByteBuffer.hasRemaining())
-                {
-                    outAppByteBuffer.rewind();
-                    SSLEngineResult result = tlsEngine.unwrap(inNetByteBuffer, outAppByteBuffer);
-
-                    flushHandler.accept(result.bytesProduced());
-                    statusHandler.accept(result.getHandshakeStatus());
-                }
-            }
-            catch (SSLException ex)
-            {
-                doReset(networkReplyThrottle, networkReplyId);
-                LangUtil.rethrowUnchecked(ex);
-            }
-
-            doWindow(networkReplyThrottle, networkReplyId, data.length(), 1);
+            dataHandler.accept(data);
         }
 
         private void handleEnd(
@@ -599,15 +1046,20 @@ public final class ClientStreamFactory implements StreamFactory
             try
             {
                 tlsEngine.closeOutbound();
-                outNetByteBuffer.rewind();
-                SSLEngineResult result = tlsEngine.wrap(inAppByteBuffer, outNetByteBuffer);
-                flushNetwork(tlsEngine, result.bytesProduced(), networkTarget, networkId);
+                final ByteBuffer netByteBuffer = reserveData(outNetByteBufferView);
+                SSLEngineResult result = tlsEngine.wrap(inAppByteBuffer, netByteBuffer);
+                outNetByteBufferView.commit(result.bytesProduced());
+                flushNetwork(result.bytesProduced());
             }
             catch (SSLException ex)
             {
                 doReset(networkReplyThrottle, networkReplyId);
                 LangUtil.rethrowUnchecked(ex);
             }
+            finally
+            {
+                endHandler.run();
+            }
         }
     }
 
@@ -615,24 +1067,49 @@ public final class ClientStreamFactory implements StreamFactory
     {
         private final MessageConsumer networkReplyThrottle;
         private final long networkReplyId;
+        private final Runnable flushNetworkReplyWindow;
 
         private SSLEngine tlsEngine;
+        private PeerSession peerSession;
+        private TlsRouteCounters routeCounters;
+        private int recordOverhead;
+        private int recordOverheadMin;
 
         private MessageConsumer applicationReply;
         private long applicationReplyId;
         private ObjectLongBiFunction<MessageConsumer, MessageConsumer> doBeginApplicationReply;
 
-        private MessageConsumer networkTarget;
-        private long networkId;
+        private ClientHandshake handshake;
 
         private MessageConsumer streamState;
 
+        private boolean awaitingTask;
+        private boolean pendingEnd;
+        private int networkSlot = NO_SLOT;
+        private int serverHelloStatus = ServerHello.INCOMPLETE;
+
+        private int window;
+        private boolean windowScheduled;
+        private int networkReplyBytes;
+        private int networkReplyFrames;
+        private int applicationReplyBytes;
+        private int applicationReplyBytesMax;
+        private int applicationReplyFrames;
+        private boolean applicationReplyBlocked;
+        private boolean aborted;
+
+        private long helloReceivedAt;
+        private long taskStartedAt;
+        private long taskNanos;
+
         private ClientConnectReplyStream(
             MessageConsumer networkReplyThrottle,
             long networkReplyId)
         {
             this.networkReplyThrottle = networkReplyThrottle;
             this.networkReplyId = networkReplyId;
+            this.window = windowBudget.initialWindow();
+            this.flushNetworkReplyWindow = this::flushNetworkReplyWindow;
             this.streamState = this::beforeHandshake;
         }
 
@@ -679,7 +1156,7 @@ public final class ClientStreamFactory implements StreamFactory
                 handleEnd(end);
                 break;
             default:
-                doReset(networkReplyThrottle, networkReplyId);
+                handleFailure();
                 break;
             }
         }
@@ -694,13 +1171,15 @@ public final class ClientStreamFactory implements StreamFactory
             if (handshake != null)
             {
                 this.tlsEngine = handshake.tlsEngine;
-                this.networkTarget = handshake.networkTarget;
-                this.networkId = handshake.networkId;
+                this.routeCounters = handshake.routeCounters;
+                this.peerSession = handshake.peerSession;
+                this.handshake = handshake;
                 this.doBeginApplicationReply = handshake::doBeginApplicationReply;
                 this.streamState = handshake::afterBegin;
 
-                handshake.onNetworkReply(networkReplyThrottle, networkReplyId, this::handleFlush, this::handleStatus);
-                doWindow(networkReplyThrottle, networkReplyId, 8192, 8192);
+                handshake.onNetworkReply(networkReplyThrottle, networkReplyId, this::handleData, this::handleNetworkStatus,
+                        this::handleNetworkWindow, this::handleHandshakeEnd, this::handleFailure);
+                updateNetworkReplyWindow();
             }
             else
             {
@@ -715,50 +1194,318 @@ public final class ClientStreamFactory implements StreamFactory
             {
                 final OctetsFW payload = data.payload();
 
-                // Note: inNetByteBuffer is emptied by SslEngine.unwrap(...)
-                //       so should be able to eliminate copy (stateless)
-                inNetByteBuffer.clear();
-                payload.buffer().getBytes(payload.offset(), inNetByteBuffer, payload.sizeof());
-                inNetByteBuffer.flip();
-
-                while (inNetByteBuffer.hasRemaining())
+                if (helloReceivedAt == 0L)
                 {
-                    outAppByteBuffer.rewind();
-                    SSLEngineResult result = tlsEngine.unwrap(inNetByteBuffer, outAppByteBuffer);
+                    helloReceivedAt = System.nanoTime();
+                }
 
-                    handleFlush(result.bytesProduced());
-                    handleStatus(result.getHandshakeStatus());
+                networkReplyBytes -= data.length();
+                networkReplyFrames--;
+
+                if (networkReplyBytes <= 0)
+                {
+                    // peer sends faster than credit returns
+                    window = windowBudget.grow(window);
                 }
 
-                if (tlsEngine.isInboundDone())
+                if (awaitingTask)
+                {
+                    // engine stays locked while the delegated task runs, unwrapped once the task completes
+                    holdNetwork(inNetByteBufferView.wrap(payload.buffer(), payload.offset(), payload.sizeof()));
+                    updateNetworkReplyWindow();
+                }
+                else
                 {
-                    doEnd(applicationReply, applicationReplyId);
+                    final ByteBuffer netByteBuffer;
+
+                    if (networkSlot == NO_SLOT)
+                    {
+                        netByteBuffer = inNetByteBufferView.wrap(payload.buffer(), payload.offset(), payload.sizeof());
+                    }
+                    else
+                    {
+                        netByteBuffer = bufferPool.byteBuffer(networkSlot);
+
+                        if (payload.sizeof() > netByteBuffer.remaining())
+                        {
+                            throw new SSLException("partial network data exceeds buffer slot capacity");
+                        }
+
+                        payload.buffer().getBytes(payload.offset(), netByteBuffer, payload.sizeof());
+                        netByteBuffer.flip();
+                    }
+
+                    handleUnwrap(netByteBuffer);
                 }
             }
             catch (SSLException ex)
             {
-                doReset(networkReplyThrottle, networkReplyId);
+                handleFailure();
                 LangUtil.rethrowUnchecked(ex);
             }
         }
 
+        private void handleUnwrap(
+            ByteBuffer netByteBuffer) throws SSLException
+        {
+            applicationReplyBlocked = false;
+
+            // plaintext of all records unwrapped here goes out together in a single application frame
+            final int flushLimit = writeBuffer.capacity() - DataFW.FIELD_OFFSET_PAYLOAD - handshake.applicationBufferSize;
+            int flushBytes = 0;
+
+            loop:
+            while (netByteBuffer.hasRemaining() && !awaitingTask && !aborted)
+            {
+                if (applicationReply != null && !isApplicationReplyWritable(netByteBuffer, flushBytes))
+                {
+                    // hold remaining records as ciphertext until the application grants more credit
+                    applicationReplyBlocked = true;
+                    break;
+                }
+
+                if (flushBytes > flushLimit)
+                {
+                    handleFlush(flushBytes);
+                    flushBytes = 0;
+                }
+
+                final int recordsOffset = netByteBuffer.position();
+                final ByteBuffer appByteBuffer = reserveData(outAppByteBufferView, flushBytes);
+                SSLEngineResult result = tlsEngine.unwrap(netByteBuffer, appByteBuffer);
+                outAppByteBufferView.commit(result.bytesProduced());
+                flushBytes += result.bytesProduced();
+
+                if (result.bytesConsumed() > 0)
+                {
+                    routeCounters.recordsIn.orderedIncrement();
+                    routeCounters.ciphertextBytesIn.addOrdered(result.bytesConsumed());
+                    routeCounters.plaintextBytesIn.addOrdered(result.bytesProduced());
+
+                    if (doBeginApplicationReply != null)
+                    {
+                        serverHelloStatus = serverHello.parse(netByteBuffer, recordsOffset,
+                                recordsOffset + result.bytesConsumed(), serverHelloStatus);
+                    }
+                }
+
+                switch (result.getStatus())
+                {
+                case BUFFER_UNDERFLOW:
+                    break loop;
+                case CLOSED:
+                    handleFlush(flushBytes);
+                    flushBytes = 0;
+                    handleStatus(result.getHandshakeStatus());
+                    netByteBuffer.position(netByteBuffer.limit());
+                    break loop;
+                default:
+                    if (result.getHandshakeStatus() != NOT_HANDSHAKING)
+                    {
+                        // handshake records are written through the same buffer as the pending plaintext
+                        handleFlush(flushBytes);
+                        flushBytes = 0;
+                    }
+
+                    if (handleStatus(result.getHandshakeStatus()) == NEED_WRAP)
+                    {
+                        // engine unwraps no further until the pending wrap gets network credit
+                        break loop;
+                    }
+                    break;
+                }
+            }
+
+            handleFlush(flushBytes);
+
+            if (aborted)
+            {
+                releaseNetworkSlot();
+                return;
+            }
+
+            if (netByteBuffer.hasRemaining())
+            {
+                holdNetwork(netByteBuffer);
+            }
+            else
+            {
+                releaseNetworkSlot();
+            }
+
+            if (!awaitingTask && applicationReply != null && tlsEngine.isInboundDone())
+            {
+                releaseWindow();
+                doEnd(applicationReply, applicationReplyId);
+            }
+            else
+            {
+                updateNetworkReplyWindow();
+            }
+        }
+
+        private boolean isApplicationReplyWritable(
+            ByteBuffer netByteBuffer,
+            int flushBytes)
+        {
+            final int recordLength = TlsRecord.length(netByteBuffer);
+            final int writableBytes = applicationReplyBytes - flushBytes;
+
+            // incomplete records are left to the engine to report underflow,
+            // records larger than the application window are delivered once all of it is available
+            return recordLength == 0 || recordLength > netByteBuffer.remaining() ||
+                    applicationReplyFrames > 0 && writableBytes > 0 &&
+                    writableBytes >= Math.min(recordLength - recordOverheadMin, applicationReplyBytesMax);
+        }
+
         private void handleEnd(
             EndFW end)
+        {
+            if (awaitingTask || applicationReplyBlocked)
+            {
+                pendingEnd = true;
+            }
+            else
+            {
+                try
+                {
+                    releaseNetworkSlot();
+                    releaseWindow();
+                    tlsEngine.closeInbound();
+                    handleStatus(tlsEngine.getHandshakeStatus());
+                }
+                catch (SSLException ex)
+                {
+                    handleFailure();
+                    LangUtil.rethrowUnchecked(ex);
+                }
+            }
+        }
+
+        private void holdNetwork(
+            ByteBuffer netByteBuffer) throws SSLException
+        {
+            if (networkSlot == NO_SLOT)
+            {
+                networkSlot = bufferPool.acquire();
+
+                if (networkSlot == NO_SLOT)
+                {
+                    throw new SSLException("no buffer slot available for partial network data");
+                }
+            }
+
+            final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(networkSlot);
+
+            if (netByteBuffer == slotByteBuffer)
+            {
+                slotByteBuffer.compact();
+            }
+            else if (netByteBuffer.remaining() > slotByteBuffer.remaining())
+            {
+                throw new SSLException("partial network data exceeds buffer slot capacity");
+            }
+            else
+            {
+                slotByteBuffer.put(netByteBuffer);
+            }
+        }
+
+        private void releaseNetworkSlot()
+        {
+            if (networkSlot != NO_SLOT)
+            {
+                bufferPool.release(networkSlot);
+                networkSlot = NO_SLOT;
+            }
+        }
+
+        private void handleTaskComplete(
+            RuntimeException failure)
+        {
+            taskNanos += System.nanoTime() - taskStartedAt;
+            awaitingTask = false;
+
+            // stream may have been reset while the task was running
+            if (!aborted)
+            {
+                if (failure != null)
+                {
+                    handleFailure();
+                    return;
+                }
+
+                try
+                {
+                    // network credit granted while the task was running
+                    handshake.flushNetworkSlot();
+                    handleStatus(tlsEngine.getHandshakeStatus());
+                }
+                catch (SSLException ex)
+                {
+                    handleFailure();
+                    LangUtil.rethrowUnchecked(ex);
+                }
+
+                handleNetworkSlot();
+            }
+        }
+
+        private void handleNetworkSlot()
+        {
+            if (!awaitingTask && networkSlot != NO_SLOT)
+            {
+                try
+                {
+                    final ByteBuffer netByteBuffer = bufferPool.byteBuffer(networkSlot);
+                    netByteBuffer.flip();
+
+                    handleUnwrap(netByteBuffer);
+                }
+                catch (SSLException ex)
+                {
+                    handleFailure();
+                    LangUtil.rethrowUnchecked(ex);
+                }
+            }
+
+            if (!awaitingTask && !applicationReplyBlocked && pendingEnd)
+            {
+                pendingEnd = false;
+                handleEnd(null);
+            }
+        }
+
+        private void handleNetworkWindow()
+        {
+            // engine stays locked while a delegated task runs, so the new credit is used once the task completes
+            if (!awaitingTask)
+            {
+                handshake.flushNetworkSlot();
+                handleNetworkStatus(tlsEngine.getHandshakeStatus());
+            }
+        }
+
+        private void handleNetworkStatus(
+            HandshakeStatus status)
         {
             try
             {
-                tlsEngine.closeInbound();
-                handleStatus(tlsEngine.getHandshakeStatus());
+                if (handleStatus(status) != NEED_WRAP)
+                {
+                    // records held back while the wrap awaited network credit
+                    handleNetworkSlot();
+                }
             }
             catch (SSLException ex)
             {
-                doReset(networkReplyThrottle, networkReplyId);
+                handleFailure();
                 LangUtil.rethrowUnchecked(ex);
             }
         }
 
         private HandshakeStatus handleStatus(
-            HandshakeStatus status)
+            HandshakeStatus status) throws SSLException
         {
             loop:
             for (;;)
@@ -766,28 +1513,42 @@ public final class ClientStreamFactory implements StreamFactory
                 switch (status)
                 {
                 case NEED_TASK:
-                    for (Runnable runnable = tlsEngine.getDelegatedTask();
-                            runnable != null;
-                            runnable = tlsEngine.getDelegatedTask())
+                    if (!awaitingTask)
                     {
-                        runnable.run();
+                        awaitingTask = true;
+                        taskStartedAt = System.nanoTime();
+                        executor.execute(tlsEngine, this::handleTaskComplete);
                     }
-
-                    status = tlsEngine.getHandshakeStatus();
-                    break;
+                    break loop;
                 case NEED_WRAP:
-                    try
+                    if (!handshake.isNetworkWritable())
                     {
-                        // TODO: limit outNetByteBuffer by networkBytes and networkFrames
-                        outNetByteBuffer.rewind();
-                        SSLEngineResult result = tlsEngine.wrap(EMPTY_BYTE_BUFFER, outNetByteBuffer);
-                        flushNetwork(tlsEngine, result.bytesProduced(), networkTarget, networkId);
-                        status = result.getHandshakeStatus();
+                        // resumed by the network window
+                        break loop;
                     }
-                    catch (SSLException ex)
+
+                    // records of one handshake flight go out together in a single network frame
+                    final int flightLimit = Math.min(handshake.networkLimit(), writeBuffer.capacity() -
+                            DataFW.FIELD_OFFSET_PAYLOAD - handshake.packetBufferSize);
+                    int flightBytes = 0;
+
+                    do
                     {
-                        LangUtil.rethrowUnchecked(ex);
+                        final ByteBuffer netByteBuffer = reserveData(outNetByteBufferView, flightBytes);
+                        SSLEngineResult result = tlsEngine.wrap(EMPTY_BYTE_BUFFER, netByteBuffer);
+                        outNetByteBufferView.commit(result.bytesProduced());
+                        flightBytes += result.bytesProduced();
+                        status = result.getHandshakeStatus();
+
+                        if (result.bytesProduced() > 0)
+                        {
+                            routeCounters.recordsOut.orderedIncrement();
+                            routeCounters.ciphertextBytesOut.addOrdered(result.bytesProduced());
+                        }
                     }
+                    while (status == NEED_WRAP && flightBytes < flightLimit);
+
+                    handshake.flushNetwork(flightBytes);
                     break;
                 case FINISHED:
                     handleFinished();
@@ -803,12 +1564,37 @@ public final class ClientStreamFactory implements StreamFactory
 
         private void handleFinished()
         {
-            final long newApplicationReplyId = supplyStreamId.getAsLong();
-            this.applicationReply = this.doBeginApplicationReply.apply(this::handleThrottle, newApplicationReplyId);
-            this.applicationReplyId = newApplicationReplyId;
+            // post-handshake messages, such as TLS 1.3 NewSessionTicket, also report FINISHED
+            if (doBeginApplicationReply != null)
+            {
+                final boolean resumed = serverHelloStatus == ServerHello.RESUMED;
+                sessionCache.onHandshakeFinished(peerSession, tlsEngine.getSession(), resumed);
+
+                routeCounters.handshakesFinished.orderedIncrement();
+                (resumed ? routeCounters.handshakesResumed : routeCounters.handshakesFull).orderedIncrement();
+                recordHandshakeTimes();
 
-            this.streamState = this::afterHandshake;
-            this.doBeginApplicationReply = null;
+                final long newApplicationReplyId = supplyStreamId.getAsLong();
+                this.applicationReply = this.doBeginApplicationReply.apply(this::handleThrottle, newApplicationReplyId);
+                this.applicationReplyId = newApplicationReplyId;
+                this.recordOverhead = TlsRecord.overhead(tlsEngine.getSession());
+                this.recordOverheadMin = TlsRecord.minimumOverhead(tlsEngine.getSession());
+
+                this.streamState = this::afterHandshake;
+                this.doBeginApplicationReply = null;
+            }
+        }
+
+        private void recordHandshakeTimes()
+        {
+            // whatever the handshake did not spend in delegated tasks was spent waiting on the peer
+            final long handshakeNanos = System.nanoTime() - handshake.handshakeBeganAt;
+            final TlsHandshakeHistograms handshakeHistograms = counters.handshakeHistograms("client", routeCounters);
+
+            handshakeHistograms.handshakeMicros.record(NANOSECONDS.toMicros(handshakeNanos));
+            handshakeHistograms.handshakeHelloMicros.record(NANOSECONDS.toMicros(helloReceivedAt - handshake.handshakeBeganAt));
+            handshakeHistograms.handshakeNetworkMicros.record(NANOSECONDS.toMicros(handshakeNanos - taskNanos));
+            handshakeHistograms.handshakeTasksMicros.record(NANOSECONDS.toMicros(taskNanos));
         }
 
         private void handleFlush(
@@ -816,9 +1602,10 @@ public final class ClientStreamFactory implements StreamFactory
         {
             if (bytesProduced > 0)
             {
-                final OctetsFW outAppOctets = outAppOctetsRO.wrap(outAppBuffer, 0, bytesProduced);
+                doData(applicationReply, applicationReplyId, bytesProduced);
 
-                doData(applicationReply, applicationReplyId, outAppOctets);
+                applicationReplyBytes -= bytesProduced;
+                applicationReplyFrames--;
             }
         }
 
@@ -847,39 +1634,150 @@ public final class ClientStreamFactory implements StreamFactory
         private void handleWindow(
             WindowFW window)
         {
-            final int writableBytes = window.update();
-            final int writableFrames = window.frames();
+            applicationReplyBytes += window.update();
+            applicationReplyBytesMax = Math.max(applicationReplyBytesMax, applicationReplyBytes);
+            applicationReplyFrames += window.frames();
 
-            // sizeof(payload) -> sizeof(payload + MAC + padding)
-            final int newWritableBytes = writableBytes;   // TODO: consider TLS Record padding
-            final int newWritableFrames = writableFrames; // TODO: consider TLS Record frames
+            if (applicationReplyBlocked)
+            {
+                handleNetworkSlot();
+            }
 
-            doWindow(networkReplyThrottle, networkReplyId, newWritableBytes, newWritableFrames);
+            updateNetworkReplyWindow();
+        }
+
+        private void updateNetworkReplyWindow()
+        {
+            updateNetworkReplyWindow(true);
+        }
+
+        private void updateNetworkReplyWindow(
+            boolean deferrable)
+        {
+            if (networkSlot == NO_SLOT && bufferPool.availableSlots() == 0)
+            {
+                // partial records could not be held, so no more credit until a slot is free again
+                if (!windowScheduled)
+                {
+                    windowCoalescer.schedule(flushNetworkReplyWindow);
+                    windowScheduled = true;
+                }
+                return;
+            }
+
+            int networkReplyBytesMax = window;
+            int networkReplyFramesMax = window;
+
+            if (applicationReply != null)
+            {
+                // full size records deliver exactly the plaintext credit, smaller records deliver less,
+                // anything beyond that is read ahead into the network slot up to the window
+                int heldBytes = 0;
+                networkReplyBytesMax = ciphertextLength(applicationReplyBytes, recordOverhead) + window;
+
+                if (networkSlot != NO_SLOT)
+                {
+                    // held ciphertext has already used up credit, but the held record must still be able to complete
+                    final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(networkSlot);
+                    heldBytes = slotByteBuffer.position();
+                    final int heldRecordLength = TlsRecord.length(slotByteBuffer, 0, heldBytes);
+                    networkReplyBytesMax = Math.max(networkReplyBytesMax, heldRecordLength) - heldBytes;
+                }
+
+                // anything received may need to be held, so never grant beyond the network slot
+                networkReplyBytesMax = Math.min(networkReplyBytesMax, bufferPool.slotCapacity() - heldBytes);
+                networkReplyFramesMax = applicationReplyFrames + window;
+            }
+
+            final int networkReplyBytesDelta = Math.max(networkReplyBytesMax - networkReplyBytes, 0);
+            final int networkReplyFramesDelta = Math.max(networkReplyFramesMax - networkReplyFrames, 0);
+
+            if (networkReplyBytesDelta > 0 || networkReplyFramesDelta > 0)
+            {
+                if (deferrable && networkReplyBytes > 0 && networkReplyFrames > 0 &&
+                        windowCoalescer.deferred(networkReplyBytesDelta, networkReplyBytesMax))
+                {
+                    // small updates wait for the end of the duty cycle while the peer still has credit
+                    if (!windowScheduled)
+                    {
+                        windowCoalescer.schedule(flushNetworkReplyWindow);
+                        windowScheduled = true;
+                    }
+                }
+                else
+                {
+                    windowScheduled = false;
+                    networkReplyBytes += networkReplyBytesDelta;
+                    networkReplyFrames += networkReplyFramesDelta;
+
+                    doWindow(networkReplyThrottle, networkReplyId, networkReplyBytesDelta, networkReplyFramesDelta);
+                }
+            }
+        }
+
+        private void flushNetworkReplyWindow()
+        {
+            if (windowScheduled)
+            {
+                windowScheduled = false;
+                updateNetworkReplyWindow(false);
+            }
+        }
+
+        private void releaseWindow()
+        {
+            // deferred window updates are dropped once the stream is done
+            windowScheduled = false;
+            window = windowBudget.release(window);
+        }
+
+        private void handleHandshakeEnd()
+        {
+            // network reply ended before the handshake completed
+            releaseNetworkSlot();
+            releaseWindow();
+        }
+
+        private void handleFailure()
+        {
+            releaseNetworkSlot();
+            releaseWindow();
+
+            if (applicationReply != null && (awaitingTask || !tlsEngine.isInboundDone()))
+            {
+                doEnd(applicationReply, applicationReplyId);
+            }
+
+            handshake.handleFailure();
+            handshake.resetHandler.run();
+
+            aborted = true;
+            doReset(networkReplyThrottle, networkReplyId);
         }
 
         private void handleReset(
             ResetFW reset)
         {
+            releaseNetworkSlot();
+            releaseWindow();
+            routeCounters.resets.orderedIncrement();
+            aborted = true;
             doReset(networkReplyThrottle, networkReplyId);
         }
     }
 
-    private void flushNetwork(
-        SSLEngine tlsEngine,
-        int bytesProduced,
-        MessageConsumer networkTarget,
-        long networkId)
+    private ByteBuffer reserveData(
+        ByteBufferView view)
     {
-        if (bytesProduced > 0)
-        {
-            final OctetsFW outNetOctets = outNetOctetsRO.wrap(outNetBuffer, 0, bytesProduced);
-            doData(networkTarget, networkId, outNetOctets);
-        }
+        return reserveData(view, 0);
+    }
 
-        if (tlsEngine.isOutboundDone())
-        {
-            doEnd(networkTarget, networkId);
-        }
+    private ByteBuffer reserveData(
+        ByteBufferView view,
+        int offset)
+    {
+        final int payloadOffset = DataFW.FIELD_OFFSET_PAYLOAD + offset;
+        return view.reserve(writeBuffer, payloadOffset, writeBuffer.capacity() - payloadOffset);
     }
 
     private void doTlsBegin(
@@ -887,27 +1785,41 @@ public final class ClientStreamFactory implements StreamFactory
         long targetId,
         long targetRef,
         long correlationId,
-        String hostname)
+        String hostname,
+        String applicationProtocol)
     {
         final BeginFW begin = beginRW.wrap(writeBuffer, 0, writeBuffer.capacity())
                                      .streamId(targetId)
                                      .source("tls")
                                      .sourceRef(targetRef)
                                      .correlationId(correlationId)
-                                     .extension(e -> e.set(visitTlsBeginEx(hostname)))
+                                     .extension(e -> e.set(visitTlsBeginEx(hostname, applicationProtocol)))
                                      .build();
 
         target.accept(begin.typeId(), begin.buffer(), begin.offset(), begin.sizeof());
     }
 
     private Flyweight.Builder.Visitor visitTlsBeginEx(
-        String hostname)
+        String hostname,
+        String applicationProtocol)
     {
         return (buffer, offset, limit) ->
-            tlsBeginExRW.wrap(buffer, offset, limit)
-                       .hostname(hostname)
-                       .build()
-                       .sizeof();
+        {
+            final TlsBeginExFW.Builder tlsBeginEx = tlsBeginExRW.wrap(buffer, offset, limit);
+
+            if (applicationProtocol != null)
+            {
+                // hostname written empty when absent, only a trailing string may be omitted
+                tlsBeginEx.hostname(hostname != null ? hostname : "")
+                          .applicationProtocol(applicationProtocol);
+            }
+            else
+            {
+                tlsBeginEx.hostname(hostname);
+            }
+
+            return tlsBeginEx.build().sizeof();
+        };
     }
 
     private void doBegin(
@@ -930,11 +1842,12 @@ public final class ClientStreamFactory implements StreamFactory
     private void doData(
         final MessageConsumer target,
         final long targetId,
-        final OctetsFW payload)
+        final int payloadSize)
     {
+        // payload already written in place by SSLEngine, see reserveData
         final DataFW data = dataRW.wrap(writeBuffer, 0, writeBuffer.capacity())
                 .streamId(targetId)
-                .payload(p -> p.set(payload.buffer(), payload.offset(), payload.sizeof()))
+                .payload(p -> p.set((b, o, l) -> payloadSize))
                 .extension(e -> e.reset())
                 .build();
 
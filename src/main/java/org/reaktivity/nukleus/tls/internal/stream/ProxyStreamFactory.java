@@ -0,0 +1,881 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.stream;
+
+import static java.nio.ByteBuffer.allocateDirect;
+import static org.reaktivity.nukleus.tls.internal.util.BufferPool.NO_SLOT;
+import static org.reaktivity.nukleus.tls.internal.util.ClientHello.INCOMPLETE;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongSupplier;
+
+import org.agrona.DirectBuffer;
+import org.agrona.LangUtil;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.collections.Long2ObjectHashMap;
+import org.reaktivity.nukleus.function.MessageConsumer;
+import org.reaktivity.nukleus.function.MessageFunction;
+import org.reaktivity.nukleus.route.RouteHandler;
+import org.reaktivity.nukleus.stream.StreamFactory;
+import org.reaktivity.nukleus.tls.internal.types.OctetsFW;
+import org.reaktivity.nukleus.tls.internal.types.control.RouteFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.BeginFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.DataFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.EndFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.ResetFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.WindowFW;
+import org.reaktivity.nukleus.tls.internal.util.BufferPool;
+import org.reaktivity.nukleus.tls.internal.util.ByteBufferView;
+import org.reaktivity.nukleus.tls.internal.util.ClientHello;
+import org.reaktivity.nukleus.tls.internal.util.WindowBudget;
+
+public final class ProxyStreamFactory implements StreamFactory
+{
+    // fatal unrecognized_name alert record, sent in the clear before any handshake
+    private static final byte[] UNRECOGNIZED_NAME_ALERT = { 0x15, 0x03, 0x03, 0x00, 0x02, 0x02, 0x70 };
+
+    private final RouteFW routeRO = new RouteFW();
+
+    private final BeginFW beginRO = new BeginFW();
+    private final DataFW dataRO = new DataFW();
+    private final EndFW endRO = new EndFW();
+
+    private final BeginFW.Builder beginRW = new BeginFW.Builder();
+    private final DataFW.Builder dataRW = new DataFW.Builder();
+    private final EndFW.Builder endRW = new EndFW.Builder();
+
+    private final WindowFW windowRO = new WindowFW();
+    private final ResetFW resetRO = new ResetFW();
+
+    private final WindowFW.Builder windowRW = new WindowFW.Builder();
+    private final ResetFW.Builder resetRW = new ResetFW.Builder();
+
+    private final ClientHello clientHello = new ClientHello();
+
+    private final BufferPool bufferPool;
+    private final WindowBudget windowBudget;
+    private final RouteMatcher routeMatcher = new RouteMatcher();
+    private final RouteHandler router;
+    private final MutableDirectBuffer writeBuffer;
+    private final LongSupplier supplyStreamId;
+    private final LongSupplier supplyCorrelationId;
+
+    private final Long2ObjectHashMap<ProxyAcceptStream> correlations;
+    private final MessageFunction<RouteFW> wrapRoute;
+    private final ByteBufferView inNetByteBufferView;
+
+    public ProxyStreamFactory(
+        BufferPool bufferPool,
+        WindowBudget windowBudget,
+        RouteHandler router,
+        MutableDirectBuffer writeBuffer,
+        LongSupplier supplyStreamId,
+        LongSupplier supplyCorrelationId,
+        Long2ObjectHashMap<ProxyAcceptStream> correlations)
+    {
+        this.bufferPool = bufferPool;
+        this.windowBudget = windowBudget;
+        this.router = router;
+        this.writeBuffer = writeBuffer;
+        this.supplyStreamId = supplyStreamId;
+        this.supplyCorrelationId = supplyCorrelationId;
+
+        this.correlations = correlations;
+        this.wrapRoute = this::wrapRoute;
+        this.inNetByteBufferView = new ByteBufferView(allocateDirect(writeBuffer.capacity()));
+    }
+
+    @Override
+    public MessageConsumer newStream(
+        int msgTypeId,
+        DirectBuffer buffer,
+        int index,
+        int length,
+        MessageConsumer throttle)
+    {
+        final BeginFW begin = beginRO.wrap(buffer, index, index + length);
+        final long sourceRef = begin.sourceRef();
+
+        MessageConsumer newStream = null;
+
+        if (sourceRef == 0L)
+        {
+            newStream = newConnectReplyStream(begin, throttle);
+        }
+        else
+        {
+            newStream = newAcceptStream(begin, throttle);
+        }
+
+        return newStream;
+    }
+
+    private MessageConsumer newAcceptStream(
+        final BeginFW begin,
+        final MessageConsumer networkThrottle)
+    {
+        final long networkRef = begin.sourceRef();
+        final String acceptName = begin.source().asString();
+
+        final RouteFW route = routeMatcher.source(acceptName, networkRef).resolve(router, wrapRoute);
+
+        MessageConsumer newStream = null;
+
+        if (route != null)
+        {
+            final long networkId = begin.streamId();
+
+            newStream = new ProxyAcceptStream(networkThrottle, networkId, networkRef)::handleStream;
+        }
+
+        return newStream;
+    }
+
+    private MessageConsumer newConnectReplyStream(
+        final BeginFW begin,
+        final MessageConsumer throttle)
+    {
+        final long throttleId = begin.streamId();
+
+        return new ProxyConnectReplyStream(throttle, throttleId)::handleStream;
+    }
+
+    private RouteFW wrapRoute(
+        int msgTypeId,
+        DirectBuffer buffer,
+        int index,
+        int length)
+    {
+        return routeRO.wrap(buffer, index, index + length);
+    }
+
+    public final class ProxyAcceptStream
+    {
+        private final MessageConsumer networkThrottle;
+        private final long networkId;
+        private final long networkRef;
+
+        private String networkReplyName;
+        private MessageConsumer networkReply;
+        private long networkReplyId;
+
+        private MessageConsumer target;
+        private long targetId;
+        private long targetCorrelationId;
+
+        private MessageConsumer targetReplyThrottle;
+        private long targetReplyId;
+
+        private MessageConsumer streamState;
+
+        private int window;
+        private int networkBytes;
+        private int networkFrames;
+        private int targetBytes;
+        private int targetFrames;
+        private int networkReplyBytes;
+        private int networkReplyFrames;
+        private boolean networkReplyReset;
+        private boolean networkReplyClosed;
+        private boolean pendingAlert;
+
+        private boolean pendingEnd;
+        private int networkSlot = NO_SLOT;
+
+        private ProxyAcceptStream(
+            MessageConsumer networkThrottle,
+            long networkId,
+            long networkRef)
+        {
+            this.networkThrottle = networkThrottle;
+            this.networkId = networkId;
+            this.networkRef = networkRef;
+            // everything read before routing may be held in the buffer slot until the target grants credit
+            this.window = Math.min(windowBudget.initialWindow(), bufferPool.slotCapacity());
+            this.streamState = this::beforeBegin;
+        }
+
+        private void handleStream(
+            int msgTypeId,
+            DirectBuffer buffer,
+            int index,
+            int length)
+        {
+            streamState.accept(msgTypeId, buffer, index, length);
+        }
+
+        private void beforeBegin(
+            int msgTypeId,
+            DirectBuffer buffer,
+            int index,
+            int length)
+        {
+            if (msgTypeId == BeginFW.TYPE_ID)
+            {
+                final BeginFW begin = beginRO.wrap(buffer, index, index + length);
+                handleBegin(begin);
+            }
+            else
+            {
+                doReset(networkThrottle, networkId);
+            }
+        }
+
+        private void afterBegin(
+            int msgTypeId,
+            DirectBuffer buffer,
+            int index,
+            int length)
+        {
+            switch (msgTypeId)
+            {
+            case DataFW.TYPE_ID:
+                final DataFW data = dataRO.wrap(buffer, index, index + length);
+                handleData(data);
+                break;
+            case EndFW.TYPE_ID:
+                final EndFW end = endRO.wrap(buffer, index, index + length);
+                handleEnd(end);
+                break;
+            default:
+                doReset(networkThrottle, networkId);
+                break;
+            }
+        }
+
+        private void afterReject(
+            int msgTypeId,
+            DirectBuffer buffer,
+            int index,
+            int length)
+        {
+            // ignore frames in flight before reset
+        }
+
+        private void handleBegin(
+            BeginFW begin)
+        {
+            final String networkReplyName = begin.source().asString();
+            final long networkCorrelationId = begin.correlationId();
+
+            final MessageConsumer networkReply = router.supplyTarget(networkReplyName);
+            final long newNetworkReplyId = supplyStreamId.getAsLong();
+
+            doBegin(networkReply, newNetworkReplyId, 0L, networkCorrelationId);
+            router.setThrottle(networkReplyName, newNetworkReplyId, this::handleNetworkReplyThrottle);
+
+            this.streamState = this::afterBegin;
+            this.networkReplyName = networkReplyName;
+            this.networkReply = networkReply;
+            this.networkReplyId = newNetworkReplyId;
+
+            // enough credit to peek at the client hello before any target is chosen
+            updateNetworkWindow();
+        }
+
+        private void handleData(
+            DataFW data)
+        {
+            final OctetsFW payload = data.payload();
+
+            networkBytes -= data.length();
+            networkFrames--;
+
+            try
+            {
+                if (target == null)
+                {
+                    handleClientHello(payload);
+                }
+                else if (networkSlot == NO_SLOT && payload.sizeof() <= targetBytes && targetFrames > 0)
+                {
+                    // ciphertext is relayed as is, without an engine
+                    doData(target, targetId, payload.buffer(), payload.offset(), payload.sizeof());
+
+                    targetBytes -= payload.sizeof();
+                    targetFrames--;
+
+                    updateNetworkWindow();
+                }
+                else
+                {
+                    // beyond target credit, so held and relayed as the target catches up
+                    holdNetwork(payload);
+                    flushNetworkSlot();
+                    updateNetworkWindow();
+                }
+            }
+            catch (IllegalStateException ex)
+            {
+                if (target != null)
+                {
+                    doEnd(target, targetId);
+                }
+                doAbort();
+                LangUtil.rethrowUnchecked(ex);
+            }
+        }
+
+        private void handleClientHello(
+            OctetsFW payload)
+        {
+            ByteBuffer netByteBuffer;
+
+            if (networkSlot == NO_SLOT)
+            {
+                netByteBuffer = inNetByteBufferView.wrap(payload.buffer(), payload.offset(), payload.sizeof());
+            }
+            else
+            {
+                holdNetwork(payload);
+                netByteBuffer = bufferPool.byteBuffer(networkSlot);
+                netByteBuffer.flip();
+            }
+
+            final int clientHelloStatus = clientHello.parse(netByteBuffer);
+
+            RouteFW route = null;
+
+            if (clientHelloStatus != INCOMPLETE)
+            {
+                final RouteMatcher matcher = routeMatcher.source(networkReplyName, networkRef);
+
+                // malformed hellos carry no server name, so they can only take the default route
+                if (clientHello.hasServerName())
+                {
+                    final int serverNameOffset = clientHello.serverNameOffset();
+                    final int serverNameLength = clientHello.serverNameLength();
+                    matcher.hostnameOrDefault(netByteBuffer, serverNameOffset, serverNameLength);
+                }
+                else
+                {
+                    matcher.hostnameOrDefault((String) null);
+                }
+
+                matcher.applicationProtocols(clientHello, netByteBuffer);
+
+                route = matcher.resolve(router, wrapRoute);
+            }
+
+            // the client hello is held until the target grants credit
+            if (networkSlot == NO_SLOT)
+            {
+                holdNetwork(payload);
+            }
+            else
+            {
+                netByteBuffer.position(netByteBuffer.limit());
+                netByteBuffer.limit(netByteBuffer.capacity());
+            }
+
+            if (clientHelloStatus == INCOMPLETE)
+            {
+                updateNetworkWindow();
+            }
+            else if (route != null)
+            {
+                final String targetName = route.target().asString();
+                final MessageConsumer target = router.supplyTarget(targetName);
+                final long targetRef = route.targetRef();
+                final long newTargetId = supplyStreamId.getAsLong();
+                final long newCorrelationId = supplyCorrelationId.getAsLong();
+
+                correlations.put(newCorrelationId, this);
+
+                doBegin(target, newTargetId, targetRef, newCorrelationId);
+                router.setThrottle(targetName, newTargetId, this::handleTargetThrottle);
+
+                this.target = target;
+                this.targetId = newTargetId;
+                this.targetCorrelationId = newCorrelationId;
+            }
+            else
+            {
+                releaseNetworkSlot();
+                this.streamState = this::afterReject;
+                this.pendingAlert = true;
+                flushAlert();
+            }
+        }
+
+        private void flushAlert()
+        {
+            // the alert waits for network reply credit, the network is reset once it is written
+            if (networkReplyBytes >= UNRECOGNIZED_NAME_ALERT.length && networkReplyFrames > 0)
+            {
+                pendingAlert = false;
+
+                writeBuffer.putBytes(DataFW.FIELD_OFFSET_PAYLOAD, UNRECOGNIZED_NAME_ALERT);
+                doData(networkReply, networkReplyId, UNRECOGNIZED_NAME_ALERT.length);
+
+                networkReplyBytes -= UNRECOGNIZED_NAME_ALERT.length;
+                networkReplyFrames--;
+
+                doNetworkReplyEnd();
+                doReset(networkThrottle, networkId);
+            }
+        }
+
+        private void handleEnd(
+            EndFW end)
+        {
+            if (target == null)
+            {
+                releaseNetworkSlot();
+                doNetworkReplyEnd();
+            }
+            else if (networkSlot != NO_SLOT)
+            {
+                pendingEnd = true;
+            }
+            else
+            {
+                doEnd(target, targetId);
+            }
+        }
+
+        private void holdNetwork(
+            OctetsFW payload)
+        {
+            if (networkSlot == NO_SLOT)
+            {
+                networkSlot = bufferPool.acquire();
+
+                if (networkSlot == NO_SLOT)
+                {
+                    throw new IllegalStateException("no buffer slot available for pending network data");
+                }
+            }
+
+            final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(networkSlot);
+
+            if (payload.sizeof() > slotByteBuffer.remaining())
+            {
+                throw new IllegalStateException("pending network data exceeds buffer slot capacity");
+            }
+
+            payload.buffer().getBytes(payload.offset(), slotByteBuffer, payload.sizeof());
+        }
+
+        private void flushNetworkSlot()
+        {
+            if (networkSlot != NO_SLOT && targetBytes > 0 && targetFrames > 0)
+            {
+                final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(networkSlot);
+                final int length = Math.min(slotByteBuffer.position(), targetBytes);
+
+                slotByteBuffer.flip();
+                writeBuffer.putBytes(DataFW.FIELD_OFFSET_PAYLOAD, slotByteBuffer, 0, length);
+                doData(target, targetId, length);
+
+                targetBytes -= length;
+                targetFrames--;
+
+                slotByteBuffer.position(length);
+                slotByteBuffer.compact();
+
+                if (slotByteBuffer.position() == 0)
+                {
+                    releaseNetworkSlot();
+
+                    if (pendingEnd)
+                    {
+                        pendingEnd = false;
+                        doEnd(target, targetId);
+                    }
+                }
+            }
+        }
+
+        private void releaseNetworkSlot()
+        {
+            if (networkSlot != NO_SLOT)
+            {
+                bufferPool.release(networkSlot);
+                networkSlot = NO_SLOT;
+            }
+        }
+
+        private void handleTargetThrottle(
+            int msgTypeId,
+            DirectBuffer buffer,
+            int index,
+            int length)
+        {
+            switch (msgTypeId)
+            {
+            case WindowFW.TYPE_ID:
+                final WindowFW window = windowRO.wrap(buffer, index, index + length);
+                handleTargetWindow(window);
+                break;
+            case ResetFW.TYPE_ID:
+                final ResetFW reset = resetRO.wrap(buffer, index, index + length);
+                handleTargetReset(reset);
+                break;
+            default:
+                // ignore
+                break;
+            }
+        }
+
+        private void handleTargetWindow(
+            WindowFW window)
+        {
+            targetBytes += window.update();
+            targetFrames += window.frames();
+
+            flushNetworkSlot();
+            updateNetworkWindow();
+        }
+
+        private void handleTargetReset(
+            ResetFW reset)
+        {
+            doAbort();
+        }
+
+        private void doAbort()
+        {
+            releaseNetworkSlot();
+            doReset(networkThrottle, networkId);
+            this.streamState = this::afterReject;
+
+            // the network reply is already open toward the client, so the target reply goes with it
+            if (targetReplyThrottle != null)
+            {
+                doReset(targetReplyThrottle, targetReplyId);
+            }
+            else if (target != null)
+            {
+                correlations.remove(targetCorrelationId);
+            }
+
+            doNetworkReplyEnd();
+        }
+
+        private void doNetworkReplyEnd()
+        {
+            if (!networkReplyClosed)
+            {
+                networkReplyClosed = true;
+                doEnd(networkReply, networkReplyId);
+            }
+        }
+
+        private void updateNetworkWindow()
+        {
+            int networkBytesMax = window;
+            int networkFramesMax = window;
+
+            if (target != null)
+            {
+                // once routed, the network is credited exactly what the target accepts,
+                // apart from the initial window already granted to peek at the client hello
+                networkBytesMax = networkSlot == NO_SLOT ? targetBytes : 0;
+                networkFramesMax = networkSlot == NO_SLOT ? targetFrames : 0;
+            }
+
+            final int networkBytesDelta = Math.max(networkBytesMax - networkBytes, 0);
+            final int networkFramesDelta = Math.max(networkFramesMax - networkFrames, 0);
+
+            if (networkBytesDelta > 0 || networkFramesDelta > 0)
+            {
+                networkBytes += networkBytesDelta;
+                networkFrames += networkFramesDelta;
+
+                doWindow(networkThrottle, networkId, networkBytesDelta, networkFramesDelta);
+            }
+        }
+
+        private void handleNetworkReplyThrottle(
+            int msgTypeId,
+            DirectBuffer buffer,
+            int index,
+            int length)
+        {
+            switch (msgTypeId)
+            {
+            case WindowFW.TYPE_ID:
+                final WindowFW window = windowRO.wrap(buffer, index, index + length);
+                handleNetworkReplyWindow(window);
+                break;
+            case ResetFW.TYPE_ID:
+                final ResetFW reset = resetRO.wrap(buffer, index, index + length);
+                handleNetworkReplyReset(reset);
+                break;
+            default:
+                // ignore
+                break;
+            }
+        }
+
+        private void handleNetworkReplyWindow(
+            WindowFW window)
+        {
+            if (targetReplyThrottle != null)
+            {
+                doWindow(targetReplyThrottle, targetReplyId, window.update(), window.frames());
+            }
+            else
+            {
+                // credited to the target reply once it begins
+                networkReplyBytes += window.update();
+                networkReplyFrames += window.frames();
+
+                if (pendingAlert)
+                {
+                    flushAlert();
+                }
+            }
+        }
+
+        private void handleNetworkReplyReset(
+            ResetFW reset)
+        {
+            networkReplyClosed = true;
+
+            if (targetReplyThrottle != null)
+            {
+                doReset(targetReplyThrottle, targetReplyId);
+            }
+            else if (pendingAlert)
+            {
+                pendingAlert = false;
+                doReset(networkThrottle, networkId);
+            }
+            else
+            {
+                networkReplyReset = true;
+            }
+        }
+
+        private void setTargetReplyThrottle(
+            MessageConsumer targetReplyThrottle,
+            long targetReplyId)
+        {
+            this.targetReplyThrottle = targetReplyThrottle;
+            this.targetReplyId = targetReplyId;
+
+            if (networkReplyReset)
+            {
+                doReset(targetReplyThrottle, targetReplyId);
+            }
+            else if (networkReplyBytes > 0 || networkReplyFrames > 0)
+            {
+                doWindow(targetReplyThrottle, targetReplyId, networkReplyBytes, networkReplyFrames);
+            }
+        }
+
+        private void handleTargetReplyData(
+            OctetsFW payload)
+        {
+            // dropped once the network reply has been ended or reset
+            if (!networkReplyClosed)
+            {
+                doData(networkReply, networkReplyId, payload.buffer(), payload.offset(), payload.sizeof());
+            }
+        }
+
+        private void handleTargetReplyEnd()
+        {
+            doNetworkReplyEnd();
+        }
+    }
+
+    private final class ProxyConnectReplyStream
+    {
+        private final MessageConsumer targetReplyThrottle;
+        private final long targetReplyId;
+
+        private MessageConsumer streamState;
+        private ProxyAcceptStream acceptStream;
+
+        private ProxyConnectReplyStream(
+            MessageConsumer targetReplyThrottle,
+            long targetReplyId)
+        {
+            this.targetReplyThrottle = targetReplyThrottle;
+            this.targetReplyId = targetReplyId;
+            this.streamState = this::beforeBegin;
+        }
+
+        private void handleStream(
+            int msgTypeId,
+            DirectBuffer buffer,
+            int index,
+            int length)
+        {
+            streamState.accept(msgTypeId, buffer, index, length);
+        }
+
+        private void beforeBegin(
+            int msgTypeId,
+            DirectBuffer buffer,
+            int index,
+            int length)
+        {
+            if (msgTypeId == BeginFW.TYPE_ID)
+            {
+                final BeginFW begin = beginRO.wrap(buffer, index, index + length);
+                handleBegin(begin);
+            }
+            else
+            {
+                doReset(targetReplyThrottle, targetReplyId);
+            }
+        }
+
+        private void afterBegin(
+            int msgTypeId,
+            DirectBuffer buffer,
+            int index,
+            int length)
+        {
+            switch (msgTypeId)
+            {
+            case DataFW.TYPE_ID:
+                final DataFW data = dataRO.wrap(buffer, index, index + length);
+                handleData(data);
+                break;
+            case EndFW.TYPE_ID:
+                final EndFW end = endRO.wrap(buffer, index, index + length);
+                handleEnd(end);
+                break;
+            default:
+                doReset(targetReplyThrottle, targetReplyId);
+                break;
+            }
+        }
+
+        private void handleBegin(
+            BeginFW begin)
+        {
+            final long sourceRef = begin.sourceRef();
+            final long correlationId = begin.correlationId();
+
+            final ProxyAcceptStream acceptStream = sourceRef == 0L ? correlations.remove(correlationId) : null;
+            if (acceptStream != null)
+            {
+                this.streamState = this::afterBegin;
+                this.acceptStream = acceptStream;
+
+                acceptStream.setTargetReplyThrottle(targetReplyThrottle, targetReplyId);
+            }
+            else
+            {
+                doReset(targetReplyThrottle, targetReplyId);
+            }
+        }
+
+        private void handleData(
+            DataFW data)
+        {
+            acceptStream.handleTargetReplyData(data.payload());
+        }
+
+        private void handleEnd(
+            EndFW end)
+        {
+            acceptStream.handleTargetReplyEnd();
+        }
+    }
+
+    private void doBegin(
+        final MessageConsumer target,
+        final long targetId,
+        final long targetRef,
+        final long correlationId)
+    {
+        final BeginFW begin = beginRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(targetId)
+                .source("tls")
+                .sourceRef(targetRef)
+                .correlationId(correlationId)
+                .extension(e -> e.reset())
+                .build();
+
+        target.accept(begin.typeId(), begin.buffer(), begin.offset(), begin.sizeof());
+    }
+
+    private void doData(
+        final MessageConsumer target,
+        final long targetId,
+        final DirectBuffer payload,
+        final int offset,
+        final int length)
+    {
+        final DataFW data = dataRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(targetId)
+                .payload(payload, offset, length)
+                .extension(e -> e.reset())
+                .build();
+
+        target.accept(data.typeId(), data.buffer(), data.offset(), data.sizeof());
+    }
+
+    private void doData(
+        final MessageConsumer target,
+        final long targetId,
+        final int payloadSize)
+    {
+        // payload already written in place
+        final DataFW data = dataRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(targetId)
+                .payload(p -> p.set((b, o, l) -> payloadSize))
+                .extension(e -> e.reset())
+                .build();
+
+        target.accept(data.typeId(), data.buffer(), data.offset(), data.sizeof());
+    }
+
+    private void doEnd(
+        final MessageConsumer target,
+        final long targetId)
+    {
+        final EndFW end = endRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(targetId)
+                .extension(e -> e.reset())
+                .build();
+
+        target.accept(end.typeId(), end.buffer(), end.offset(), end.sizeof());
+    }
+
+    private void doWindow(
+        final MessageConsumer throttle,
+        final long throttleId,
+        final int writableBytes,
+        final int writableFrames)
+    {
+        final WindowFW window = windowRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(throttleId)
+                .update(writableBytes)
+                .frames(writableFrames)
+                .build();
+
+        throttle.accept(window.typeId(), window.buffer(), window.offset(), window.sizeof());
+    }
+
+    private void doReset(
+        final MessageConsumer throttle,
+        final long throttleId)
+    {
+        final ResetFW reset = resetRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+               .streamId(throttleId)
+               .build();
+
+        throttle.accept(reset.typeId(), reset.buffer(), reset.offset(), reset.sizeof());
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.stream;
+
+import java.util.function.LongSupplier;
+
+import org.agrona.MutableDirectBuffer;
+import org.agrona.collections.Long2ObjectHashMap;
+import org.reaktivity.nukleus.route.RouteHandler;
+import org.reaktivity.nukleus.stream.StreamFactory;
+import org.reaktivity.nukleus.stream.StreamFactoryBuilder;
+import org.reaktivity.nukleus.tls.internal.stream.ProxyStreamFactory.ProxyAcceptStream;
+import org.reaktivity.nukleus.tls.internal.util.BufferPool;
+import org.reaktivity.nukleus.tls.internal.util.WindowBudget;
+
+public final class ProxyStreamFactoryBuilder implements StreamFactoryBuilder
+{
+    private final BufferPool bufferPool;
+    private final WindowBudget windowBudget;
+    private final Long2ObjectHashMap<ProxyAcceptStream> correlations;
+
+    private RouteHandler router;
+    private MutableDirectBuffer writeBuffer;
+    private LongSupplier supplyStreamId;
+    private LongSupplier supplyCorrelationId;
+
+    public ProxyStreamFactoryBuilder(
+        BufferPool bufferPool,
+        WindowBudget windowBudget)
+    {
+        this.bufferPool = bufferPool;
+        this.windowBudget = windowBudget;
+        this.correlations = new Long2ObjectHashMap<>();
+    }
+
+    @Override
+    public ProxyStreamFactoryBuilder setRouteHandler(
+        RouteHandler router)
+    {
+        this.router = router;
+        return this;
+    }
+
+    @Override
+    public ProxyStreamFactoryBuilder setWriteBuffer(
+        MutableDirectBuffer writeBuffer)
+    {
+        this.writeBuffer = writeBuffer;
+        return this;
+    }
+
+    @Override
+    public ProxyStreamFactoryBuilder setStreamIdSupplier(
+        LongSupplier supplyStreamId)
+    {
+        this.supplyStreamId = supplyStreamId;
+        return this;
+    }
+
+    @Override
+    public ProxyStreamFactoryBuilder setCorrelationIdSupplier(
+        LongSupplier supplyCorrelationId)
+    {
+        this.supplyCorrelationId = supplyCorrelationId;
+        return this;
+    }
+
+    @Override
+    public StreamFactory build()
+    {
+        return new ProxyStreamFactory(bufferPool, windowBudget, router, writeBuffer, supplyStreamId, supplyCorrelationId,
+                correlations);
+    }
+}
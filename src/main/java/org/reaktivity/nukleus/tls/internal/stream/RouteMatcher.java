@@ -0,0 +1,313 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.stream;
+
+import java.nio.ByteBuffer;
+
+import org.agrona.DirectBuffer;
+import org.reaktivity.nukleus.function.MessageFunction;
+import org.reaktivity.nukleus.function.MessagePredicate;
+import org.reaktivity.nukleus.route.RouteHandler;
+import org.reaktivity.nukleus.tls.internal.types.Flyweight;
+import org.reaktivity.nukleus.tls.internal.types.StringFW;
+import org.reaktivity.nukleus.tls.internal.types.control.RouteFW;
+import org.reaktivity.nukleus.tls.internal.types.control.TlsRouteExFW;
+import org.reaktivity.nukleus.tls.internal.util.ClientHello;
+
+public final class RouteMatcher implements MessagePredicate
+{
+    private static final int HOSTNAME_ANY = 0;
+    private static final int HOSTNAME_EXACT = 1;
+    private static final int HOSTNAME_EXACT_OR_DEFAULT = 2;
+
+    private static final int CANDIDATE_NONE = 0;
+    private static final int CANDIDATE_DEFAULT = 1;
+    private static final int CANDIDATE_WILDCARD = 2;
+    private static final int CANDIDATE_EXACT = 3;
+
+    private final RouteFW routeRO = new RouteFW();
+    private final TlsRouteExFW tlsRouteExRO = new TlsRouteExFW();
+    private final Flyweight.Visitor<TlsRouteExFW> wrapRouteEx = tlsRouteExRO::wrap;
+
+    private String source;
+    private long sourceRef;
+
+    private int hostnameKind;
+    private String hostname;
+    private ByteBuffer hostnameBuffer;
+    private int hostnameOffset;
+    private int hostnameLength;
+
+    private boolean protocolsKind;
+    private ClientHello clientHello;
+    private ByteBuffer clientHelloBuffer;
+
+    private int candidateKind;
+    private DirectBuffer candidateBuffer;
+    private int candidateIndex;
+    private int candidateLength;
+
+    public RouteMatcher source(
+        String source,
+        long sourceRef)
+    {
+        this.source = source;
+        this.sourceRef = sourceRef;
+        this.hostnameKind = HOSTNAME_ANY;
+        this.hostname = null;
+        this.hostnameBuffer = null;
+        this.protocolsKind = false;
+        this.clientHello = null;
+        this.clientHelloBuffer = null;
+        return this;
+    }
+
+    public RouteMatcher hostname(
+        String hostname)
+    {
+        this.hostnameKind = HOSTNAME_EXACT;
+        this.hostname = hostname;
+        this.hostnameBuffer = null;
+        this.hostnameLength = hostname != null ? hostname.length() : -1;
+        return this;
+    }
+
+    public RouteMatcher hostnameOrDefault(
+        String hostname)
+    {
+        this.hostnameKind = HOSTNAME_EXACT_OR_DEFAULT;
+        this.hostname = hostname;
+        this.hostnameBuffer = null;
+        this.hostnameLength = hostname != null ? hostname.length() : -1;
+        return this;
+    }
+
+    public RouteMatcher hostnameOrDefault(
+        ByteBuffer buffer,
+        int offset,
+        int length)
+    {
+        this.hostnameKind = HOSTNAME_EXACT_OR_DEFAULT;
+        this.hostname = null;
+        this.hostnameBuffer = buffer;
+        this.hostnameOffset = offset;
+        this.hostnameLength = length;
+        return this;
+    }
+
+    public RouteMatcher applicationProtocols(
+        ClientHello clientHello,
+        ByteBuffer buffer)
+    {
+        this.protocolsKind = true;
+        this.clientHello = clientHello != null && clientHello.hasProtocols() ? clientHello : null;
+        this.clientHelloBuffer = buffer;
+        return this;
+    }
+
+    public <R> R resolve(
+        RouteHandler router,
+        MessageFunction<R> wrapRoute)
+    {
+        this.candidateBuffer = null;
+        this.candidateKind = CANDIDATE_NONE;
+
+        R route = router.resolve(this, wrapRoute);
+
+        if (route == null && candidateBuffer != null)
+        {
+            // no exact hostname match, fall back to first wildcard or default route
+            route = wrapRoute.apply(RouteFW.TYPE_ID, candidateBuffer, candidateIndex, candidateLength);
+        }
+
+        this.candidateBuffer = null;
+
+        return route;
+    }
+
+    @Override
+    public boolean test(
+        int msgTypeId,
+        DirectBuffer buffer,
+        int index,
+        int length)
+    {
+        final RouteFW route = routeRO.wrap(buffer, index, index + length);
+
+        // cheapest comparison first, most candidate routes differ by source reference
+        if (sourceRef != route.sourceRef() || !matchesSource(route.source()))
+        {
+            return false;
+        }
+
+        if (hostnameKind == HOSTNAME_ANY)
+        {
+            return true;
+        }
+
+        final TlsRouteExFW routeEx = route.extension().get(wrapRouteEx);
+        final StringFW routeHostname = routeEx.hostname();
+        final StringFW routeProtocol = routeEx.applicationProtocol();
+
+        // routes for an application protocol only match clients offering it
+        final boolean protocolRoute = protocolsKind && !isEmpty(routeProtocol);
+        if (protocolRoute && !matchesProtocol(routeProtocol))
+        {
+            return false;
+        }
+
+        int candidateKind;
+        if (isEmpty(routeHostname))
+        {
+            candidateKind = hostnameKind == HOSTNAME_EXACT_OR_DEFAULT ? CANDIDATE_DEFAULT : CANDIDATE_NONE;
+        }
+        else if (matchesHostname(routeHostname))
+        {
+            if (protocolRoute || clientHello == null)
+            {
+                return true;
+            }
+
+            candidateKind = CANDIDATE_EXACT;
+        }
+        else
+        {
+            candidateKind = matchesWildcard(routeHostname) ? CANDIDATE_WILDCARD : CANDIDATE_NONE;
+        }
+
+        // at the same hostname precedence, a route for an offered protocol wins over one for any protocol
+        candidateKind = candidateKind != CANDIDATE_NONE ? candidateKind << 1 | (protocolRoute ? 1 : 0) : CANDIDATE_NONE;
+
+        if (candidateKind > this.candidateKind)
+        {
+            this.candidateKind = candidateKind;
+            this.candidateBuffer = buffer;
+            this.candidateIndex = index;
+            this.candidateLength = length;
+        }
+
+        return false;
+    }
+
+    private boolean matchesSource(
+        StringFW routeSource)
+    {
+        final DirectBuffer buffer = routeSource.buffer();
+        final int offset = routeSource.offset() + 1;
+        final int length = routeSource.sizeof() - 1;
+
+        boolean matches = length == source.length();
+
+        // nukleus names are ASCII, compared without decoding
+        for (int i = 0; matches && i < length; i++)
+        {
+            matches = buffer.getByte(offset + i) == source.charAt(i);
+        }
+
+        return matches;
+    }
+
+    private boolean matchesProtocol(
+        StringFW routeProtocol)
+    {
+        final DirectBuffer buffer = routeProtocol.buffer();
+        final int offset = routeProtocol.offset() + 1;
+        final int length = routeProtocol.sizeof() - 1;
+
+        return clientHello != null && clientHello.protocolOffered(clientHelloBuffer, buffer, offset, length);
+    }
+
+    private boolean matchesHostname(
+        StringFW routeHostname)
+    {
+        final DirectBuffer buffer = routeHostname.buffer();
+        final int offset = routeHostname.offset() + 1;
+        final int length = routeHostname.sizeof() - 1;
+
+        return length == hostnameLength && matchesHostname(buffer, offset, 0, length);
+    }
+
+    private boolean matchesWildcard(
+        StringFW routeHostname)
+    {
+        final DirectBuffer buffer = routeHostname.buffer();
+        final int offset = routeHostname.offset() + 1;
+        final int length = routeHostname.sizeof() - 1;
+
+        if (length < 3 || buffer.getByte(offset) != '*' || buffer.getByte(offset + 1) != '.')
+        {
+            return false;
+        }
+
+        // wildcard covers exactly one leftmost label, compared from the parent domain backwards
+        final int suffixLength = length - 1;
+        final int labelLength = hostnameLength - suffixLength;
+
+        boolean matches = labelLength > 0 && matchesHostname(buffer, offset + 1, labelLength, suffixLength);
+        for (int i = 0; matches && i < labelLength; i++)
+        {
+            matches = hostnameByte(i) != '.';
+        }
+
+        return matches;
+    }
+
+    private boolean matchesHostname(
+        DirectBuffer buffer,
+        int offset,
+        int hostnameIndex,
+        int length)
+    {
+        boolean matches = true;
+        for (int i = length - 1; matches && i >= 0; i--)
+        {
+            matches = lowerCase(buffer.getByte(offset + i)) == lowerCase(hostnameByte(hostnameIndex + i));
+        }
+
+        return matches;
+    }
+
+    private int hostnameByte(
+        int index)
+    {
+        return hostnameBuffer != null ? hostnameBuffer.get(hostnameOffset + index) : hostname.charAt(index);
+    }
+
+    public static String asString(
+        StringFW value)
+    {
+        // hostname is written empty rather than absent when an application protocol follows it
+        return isEmpty(value) ? null : value.asString();
+    }
+
+    public static boolean isWildcard(
+        String hostname)
+    {
+        return hostname != null && hostname.startsWith("*.");
+    }
+
+    private static boolean isEmpty(
+        StringFW value)
+    {
+        return value.sizeof() <= 1;
+    }
+
+    private static int lowerCase(
+        int ch)
+    {
+        return ch >= 'A' && ch <= 'Z' ? ch + ('a' - 'A') : ch;
+    }
+}
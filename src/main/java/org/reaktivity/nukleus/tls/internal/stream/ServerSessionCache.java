@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.stream;
+
+import javax.net.ssl.SSLSessionContext;
+
+import org.agrona.concurrent.status.AtomicCounter;
+import org.reaktivity.nukleus.tls.internal.TlsCounters;
+
+public final class ServerSessionCache
+{
+    private final int capacity;
+    private final int timeout;
+
+    private final AtomicCounter hits;
+    private final AtomicCounter misses;
+
+    public ServerSessionCache(
+        SSLSessionContext sessionContext,
+        int capacity,
+        int timeout,
+        TlsCounters counters)
+    {
+        this.capacity = capacity;
+        this.timeout = timeout;
+
+        this.hits = counters.counter("server.sessions.hits");
+        this.misses = counters.counter("server.sessions.misses");
+
+        setSessionContext(sessionContext);
+    }
+
+    public void setSessionContext(
+        SSLSessionContext sessionContext)
+    {
+        sessionContext.setSessionCacheSize(capacity);
+        sessionContext.setSessionTimeout(timeout);
+    }
+
+    void onHandshakeFinished(
+        boolean resumed)
+    {
+        if (resumed)
+        {
+            hits.orderedIncrement();
+        }
+        else
+        {
+            misses.orderedIncrement();
+        }
+    }
+}
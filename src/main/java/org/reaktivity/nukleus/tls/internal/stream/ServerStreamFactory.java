@@ -16,13 +16,24 @@
 package org.reaktivity.nukleus.tls.internal.stream;
 
 import static java.nio.ByteBuffer.allocateDirect;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_WRAP;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+import static org.reaktivity.nukleus.tls.internal.stream.RouteMatcher.asString;
+import static org.reaktivity.nukleus.tls.internal.stream.RouteMatcher.isWildcard;
+import static org.reaktivity.nukleus.tls.internal.util.BufferPool.NO_SLOT;
+import static org.reaktivity.nukleus.tls.internal.util.ClientHello.COMPLETE;
+import static org.reaktivity.nukleus.tls.internal.util.ClientHello.INCOMPLETE;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.MAX_PLAINTEXT_LENGTH;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.ciphertextLength;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.frames;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.plaintextLength;
 
 import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.Objects;
 import java.util.function.Consumer;
-import java.util.function.IntConsumer;
 import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 import javax.net.ssl.ExtendedSSLSession;
 import javax.net.ssl.SNIHostName;
@@ -32,20 +43,24 @@ import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
 
 import org.agrona.DirectBuffer;
 import org.agrona.LangUtil;
 import org.agrona.MutableDirectBuffer;
 import org.agrona.collections.Long2ObjectHashMap;
-import org.agrona.concurrent.UnsafeBuffer;
 import org.reaktivity.nukleus.function.MessageConsumer;
 import org.reaktivity.nukleus.function.MessageFunction;
-import org.reaktivity.nukleus.function.MessagePredicate;
 import org.reaktivity.nukleus.route.RouteHandler;
 import org.reaktivity.nukleus.stream.StreamFactory;
+import org.reaktivity.nukleus.tls.internal.TlsCounters;
+import org.reaktivity.nukleus.tls.internal.TlsHandshakeHistograms;
+import org.reaktivity.nukleus.tls.internal.TlsRouteCounters;
 import org.reaktivity.nukleus.tls.internal.types.Flyweight;
 import org.reaktivity.nukleus.tls.internal.types.OctetsFW;
 import org.reaktivity.nukleus.tls.internal.types.control.RouteFW;
+import org.reaktivity.nukleus.tls.internal.types.control.TlsRecordSizingExFW;
 import org.reaktivity.nukleus.tls.internal.types.control.TlsRouteExFW;
 import org.reaktivity.nukleus.tls.internal.types.stream.BeginFW;
 import org.reaktivity.nukleus.tls.internal.types.stream.DataFW;
@@ -53,13 +68,27 @@ import org.reaktivity.nukleus.tls.internal.types.stream.EndFW;
 import org.reaktivity.nukleus.tls.internal.types.stream.ResetFW;
 import org.reaktivity.nukleus.tls.internal.types.stream.TlsBeginExFW;
 import org.reaktivity.nukleus.tls.internal.types.stream.WindowFW;
+import org.reaktivity.nukleus.tls.internal.util.BufferPool;
+import org.reaktivity.nukleus.tls.internal.util.ByteBufferView;
+import org.reaktivity.nukleus.tls.internal.util.ClientHello;
+import org.reaktivity.nukleus.tls.internal.util.DelegatedTaskExecutor;
+import org.reaktivity.nukleus.tls.internal.util.RecordSizing;
+import org.reaktivity.nukleus.tls.internal.util.ServerHello;
+import org.reaktivity.nukleus.tls.internal.util.TlsRecord;
+import org.reaktivity.nukleus.tls.internal.util.WindowBudget;
+import org.reaktivity.nukleus.tls.internal.util.WindowCoalescer;
+import org.reaktivity.nukleus.tls.internal.util.WriteCoalescer;
 
 public final class ServerStreamFactory implements StreamFactory
 {
     private static final ByteBuffer EMPTY_BYTE_BUFFER = ByteBuffer.allocate(0);
 
+    // fatal unrecognized_name alert record, sent in the clear before any handshake
+    private static final byte[] UNRECOGNIZED_NAME_ALERT = { 0x15, 0x03, 0x03, 0x00, 0x02, 0x02, 0x70 };
+
     private final RouteFW routeRO = new RouteFW();
     private final TlsRouteExFW tlsRouteExRO = new TlsRouteExFW();
+    private final TlsRecordSizingExFW tlsRecordSizingExRO = new TlsRecordSizingExFW();
 
     private final BeginFW beginRO = new BeginFW();
     private final DataFW dataRO = new DataFW();
@@ -74,13 +103,22 @@ public final class ServerStreamFactory implements StreamFactory
 
     private final TlsBeginExFW.Builder tlsBeginExRW = new TlsBeginExFW.Builder();
 
-    private final OctetsFW outNetOctetsRO = new OctetsFW();
-    private final OctetsFW outAppOctetsRO = new OctetsFW();
-
     private final WindowFW.Builder windowRW = new WindowFW.Builder();
     private final ResetFW.Builder resetRW = new ResetFW.Builder();
 
-    private final SSLContext context;
+    private final Supplier<SSLContext> supplyContext;
+    private final DelegatedTaskExecutor executor;
+    private final BufferPool bufferPool;
+    private final WindowBudget windowBudget;
+    private final WindowCoalescer windowCoalescer;
+    private final WriteCoalescer writeCoalescer;
+    private final RecordSizing recordSizing;
+    private final ServerSessionCache sessionCache;
+    private final TlsCounters counters;
+    private final TlsRouteCounters unroutedCounters;
+    private final ClientHello clientHello = new ClientHello();
+    private final ServerHello serverHello = new ServerHello();
+    private final RouteMatcher routeMatcher = new RouteMatcher();
     private final RouteHandler router;
     private final MutableDirectBuffer writeBuffer;
     private final LongSupplier supplyStreamId;
@@ -89,21 +127,36 @@ public final class ServerStreamFactory implements StreamFactory
     private final Long2ObjectHashMap<ServerHandshake> correlations;
     private final MessageFunction<RouteFW> wrapRoute;
     private final ByteBuffer inAppByteBuffer;
-    private final ByteBuffer inNetByteBuffer;
-    private final ByteBuffer outAppByteBuffer;
-    private final ByteBuffer outNetByteBuffer;
-    private final DirectBuffer outAppBuffer;
-    private final DirectBuffer outNetBuffer;
+    private final ByteBufferView inNetByteBufferView;
+    private final ByteBufferView outAppByteBufferView;
+    private final ByteBufferView outNetByteBufferView;
 
     public ServerStreamFactory(
-        SSLContext context,
+        Supplier<SSLContext> supplyContext,
+        DelegatedTaskExecutor executor,
+        BufferPool bufferPool,
+        WindowBudget windowBudget,
+        WindowCoalescer windowCoalescer,
+        WriteCoalescer writeCoalescer,
+        RecordSizing recordSizing,
+        ServerSessionCache sessionCache,
+        TlsCounters counters,
         RouteHandler router,
         MutableDirectBuffer writeBuffer,
         LongSupplier supplyStreamId,
         LongSupplier supplyCorrelationId,
         Long2ObjectHashMap<ServerHandshake> correlations)
     {
-        this.context = context;
+        this.supplyContext = supplyContext;
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+        this.windowBudget = windowBudget;
+        this.windowCoalescer = windowCoalescer;
+        this.writeCoalescer = writeCoalescer;
+        this.recordSizing = recordSizing;
+        this.sessionCache = sessionCache;
+        this.counters = counters;
+        this.unroutedCounters = counters.routeCounters("server.unrouted");
         this.router = router;
         this.writeBuffer = writeBuffer;
         this.supplyStreamId = supplyStreamId;
@@ -112,11 +165,9 @@ public final class ServerStreamFactory implements StreamFactory
         this.correlations = correlations;
         this.wrapRoute = this::wrapRoute;
         this.inAppByteBuffer = allocateDirect(writeBuffer.capacity());
-        this.inNetByteBuffer = allocateDirect(writeBuffer.capacity());
-        this.outAppByteBuffer = allocateDirect(writeBuffer.capacity());
-        this.outAppBuffer = new UnsafeBuffer(outAppByteBuffer);
-        this.outNetByteBuffer = allocateDirect(writeBuffer.capacity());
-        this.outNetBuffer = new UnsafeBuffer(outNetByteBuffer);
+        this.inNetByteBufferView = new ByteBufferView(allocateDirect(writeBuffer.capacity()));
+        this.outAppByteBufferView = new ByteBufferView(allocateDirect(writeBuffer.capacity()));
+        this.outNetByteBufferView = new ByteBufferView(allocateDirect(writeBuffer.capacity()));
     }
 
     @Override
@@ -151,26 +202,15 @@ public final class ServerStreamFactory implements StreamFactory
         final long networkRef = begin.sourceRef();
         final String acceptName = begin.source().asString();
 
-        final MessagePredicate filter = (t, b, o, l) ->
-        {
-            final RouteFW route = routeRO.wrap(b, o, l);
-            return networkRef == route.sourceRef() &&
-                    acceptName.equals(route.source().asString());
-        };
-
-        final RouteFW route = router.resolve(filter, this::wrapRoute);
+        final RouteFW route = routeMatcher.source(acceptName, networkRef).resolve(router, wrapRoute);
 
         MessageConsumer newStream = null;
 
         if (route != null)
         {
             final long networkId = begin.streamId();
-            final SSLEngine tlsEngine = context.createSSLEngine();
-
-            tlsEngine.setUseClientMode(false);
-//            tlsEngine.setNeedClientAuth(true);
 
-            newStream = new ServerAcceptStream(tlsEngine, networkThrottle, networkId, networkRef)::handleStream;
+            newStream = new ServerAcceptStream(networkThrottle, networkId, networkRef)::handleStream;
         }
 
         return newStream;
@@ -194,13 +234,32 @@ public final class ServerStreamFactory implements StreamFactory
         return routeRO.wrap(buffer, index, index + length);
     }
 
-    private final class ServerAcceptStream
+    private RecordSizing resolveRecordSizing(
+        RouteFW route,
+        TlsRouteExFW tlsRouteEx)
     {
-        private final SSLEngine tlsEngine;
+        final OctetsFW extension = route.extension();
+        RecordSizing routeRecordSizing = recordSizing;
+
+        // record sizing trails the route extension only when set for the route
+        if (tlsRouteEx.limit() < extension.limit())
+        {
+            final TlsRecordSizingExFW recordSizingEx =
+                    tlsRecordSizingExRO.wrap(extension.buffer(), tlsRouteEx.limit(), extension.limit());
+            routeRecordSizing = recordSizing.route(recordSizingEx.initialLength(), recordSizingEx.rampBytes(),
+                                                   recordSizingEx.idleMillis());
+        }
 
+        return routeRecordSizing;
+    }
+
+    private final class ServerAcceptStream
+    {
         private final MessageConsumer networkThrottle;
         private final long networkId;
         private final long networkRef;
+        private final long handshakeBeganAt;
+        private final Runnable flushNetworkWindow;
 
         private String networkReplyName;
         private MessageConsumer networkReply;
@@ -208,20 +267,54 @@ public final class ServerStreamFactory implements StreamFactory
 
         private MessageConsumer applicationTarget;
         private long applicationId;
+        private long applicationCorrelationId;
+        private boolean applicationClosed;
 
         private MessageConsumer streamState;
         private ServerHandshake handshake;
+        private TlsRouteCounters routeCounters;
+        private SSLEngine tlsEngine;
+        private int recordOverhead;
+        private int recordOverheadMin;
+
+        private int window;
+        private boolean windowScheduled;
+        private int networkBytes;
+        private int networkFrames;
+        private int applicationBytes;
+        private int applicationBytesMax;
+        private int applicationFrames;
+        private boolean applicationBlocked;
+
+        private String applicationName;
+        private long applicationRef;
+        private String tlsHostname;
+        private String tlsApplicationProtocol;
+
+        private int clientHelloStatus = INCOMPLETE;
+        private int serverHelloStatus = ServerHello.INCOMPLETE;
+
+        private boolean awaitingTask;
+        private boolean pendingEnd;
+        private boolean aborted;
+        private int networkSlot = NO_SLOT;
+
+        private long helloReceivedAt;
+        private long taskStartedAt;
+        private long taskNanos;
 
         private ServerAcceptStream(
-            SSLEngine tlsEngine,
             MessageConsumer networkThrottle,
             long networkId,
             long networkRef)
         {
-            this.tlsEngine = tlsEngine;
             this.networkThrottle = networkThrottle;
             this.networkId = networkId;
             this.networkRef = networkRef;
+            this.handshakeBeganAt = System.nanoTime();
+            this.window = windowBudget.initialWindow();
+            this.flushNetworkWindow = this::flushNetworkWindow;
+            this.routeCounters = unroutedCounters;
             this.streamState = this::beforeBegin;
         }
 
@@ -254,35 +347,27 @@ public final class ServerStreamFactory implements StreamFactory
         private void handleBegin(
             BeginFW begin)
         {
-            try
-            {
-                final String networkReplyName = begin.source().asString();
-                final long networkCorrelationId = begin.correlationId();
-
-                final MessageConsumer networkReply = router.supplyTarget(networkReplyName);
-                final long newNetworkReplyId = supplyStreamId.getAsLong();
+            final String networkReplyName = begin.source().asString();
+            final long networkCorrelationId = begin.correlationId();
 
-                final ServerHandshake newHandshake = new ServerHandshake(tlsEngine, networkThrottle, networkId,
-                        networkReplyName, newNetworkReplyId, this::handleStatus, this::handleFlush, this::handleEnd);
+            final MessageConsumer networkReply = router.supplyTarget(networkReplyName);
+            final long newNetworkReplyId = supplyStreamId.getAsLong();
 
-                doWindow(networkThrottle, networkId, 8192, 8192);
+            final ServerHandshake newHandshake = new ServerHandshake(networkThrottle, networkId, networkReplyName,
+                    networkReply, newNetworkReplyId, this::handleNetworkReplyStatus, this::handleNetworkReplyWindow,
+                    this::handleData, this::handleEnd, this::handleHandshakeFailure);
+            newHandshake.setRouteCounters(routeCounters);
 
-                doBegin(networkReply, newNetworkReplyId, 0L, networkCorrelationId);
-                router.setThrottle(networkReplyName, newNetworkReplyId, newHandshake::handleThrottle);
+            updateNetworkWindow();
 
-                tlsEngine.beginHandshake();
+            doBegin(networkReply, newNetworkReplyId, 0L, networkCorrelationId);
+            router.setThrottle(networkReplyName, newNetworkReplyId, newHandshake::handleThrottle);
 
-                this.streamState = newHandshake::afterBegin;
-                this.networkReplyName = networkReplyName;
-                this.networkReply = networkReply;
-                this.networkReplyId = newNetworkReplyId;
-                this.handshake = newHandshake;
-            }
-            catch (SSLException ex)
-            {
-                doReset(networkThrottle, networkId);
-                LangUtil.rethrowUnchecked(ex);
-            }
+            this.streamState = newHandshake::afterBegin;
+            this.networkReplyName = networkReplyName;
+            this.networkReply = networkReply;
+            this.networkReplyId = newNetworkReplyId;
+            this.handshake = newHandshake;
         }
 
         private void afterHandshake(
@@ -302,11 +387,20 @@ public final class ServerStreamFactory implements StreamFactory
                 handleEnd(end);
                 break;
             default:
-                doReset(networkThrottle, networkId);
+                handleFailure();
                 break;
             }
         }
 
+        private void afterReject(
+            int msgTypeId,
+            DirectBuffer buffer,
+            int index,
+            int length)
+        {
+            // ignore frames in flight before reset
+        }
+
         private void handleData(
             DataFW data)
         {
@@ -314,50 +408,412 @@ public final class ServerStreamFactory implements StreamFactory
             {
                 final OctetsFW payload = data.payload();
 
-                // Note: inNetByteBuffer is emptied by SslEngine.unwrap(...)
-                //       so should be able to eliminate copy (stateless)
-                inNetByteBuffer.clear();
-                payload.buffer().getBytes(payload.offset(), inNetByteBuffer, payload.sizeof());
-                inNetByteBuffer.flip();
+                networkBytes -= data.length();
+                networkFrames--;
 
-                while (inNetByteBuffer.hasRemaining())
+                if (networkBytes <= 0)
                 {
-                    outAppByteBuffer.rewind();
-                    SSLEngineResult result = tlsEngine.unwrap(inNetByteBuffer, outAppByteBuffer);
-
-                    handleFlush(result.bytesProduced());
-                    handleStatus(result.getHandshakeStatus());
+                    // peer sends faster than credit returns
+                    window = windowBudget.grow(window);
                 }
 
-                if (tlsEngine.isInboundDone())
+                if (awaitingTask)
+                {
+                    // engine stays locked while the delegated task runs, unwrapped once the task completes
+                    holdNetwork(inNetByteBufferView.wrap(payload.buffer(), payload.offset(), payload.sizeof()));
+                    updateNetworkWindow();
+                }
+                else
                 {
-                    doEnd(applicationTarget, applicationId);
+                    final ByteBuffer netByteBuffer;
+
+                    if (networkSlot == NO_SLOT)
+                    {
+                        netByteBuffer = inNetByteBufferView.wrap(payload.buffer(), payload.offset(), payload.sizeof());
+                    }
+                    else
+                    {
+                        netByteBuffer = bufferPool.byteBuffer(networkSlot);
+
+                        if (payload.sizeof() > netByteBuffer.remaining())
+                        {
+                            throw new SSLException("partial network data exceeds buffer slot capacity");
+                        }
+
+                        payload.buffer().getBytes(payload.offset(), netByteBuffer, payload.sizeof());
+                        netByteBuffer.flip();
+                    }
+
+                    handleUnwrap(netByteBuffer);
                 }
             }
             catch (SSLException ex)
             {
-                doReset(networkThrottle, networkId);
+                handleFailure();
                 LangUtil.rethrowUnchecked(ex);
             }
         }
 
+        private void handleUnwrap(
+            ByteBuffer netByteBuffer) throws SSLException
+        {
+            if (clientHelloStatus == INCOMPLETE)
+            {
+                clientHelloStatus = clientHello.parse(netByteBuffer);
+
+                if (clientHelloStatus == INCOMPLETE)
+                {
+                    holdNetwork(netByteBuffer);
+                    updateNetworkWindow();
+                    return;
+                }
+
+                if (!handleClientHello(netByteBuffer))
+                {
+                    releaseNetworkSlot();
+                    return;
+                }
+            }
+
+            applicationBlocked = false;
+
+            // plaintext of all records unwrapped here goes out together in a single application frame
+            final int flushLimit = writeBuffer.capacity() - DataFW.FIELD_OFFSET_PAYLOAD - handshake.applicationBufferSize;
+            int flushBytes = 0;
+
+            loop:
+            while (netByteBuffer.hasRemaining() && !awaitingTask && !aborted)
+            {
+                if (applicationTarget != null && !isApplicationWritable(netByteBuffer, flushBytes))
+                {
+                    // hold remaining records as ciphertext until the application grants more credit
+                    applicationBlocked = true;
+                    break;
+                }
+
+                if (flushBytes > flushLimit)
+                {
+                    handleFlush(flushBytes);
+                    flushBytes = 0;
+                }
+
+                final ByteBuffer appByteBuffer = reserveData(outAppByteBufferView, flushBytes);
+                SSLEngineResult result = tlsEngine.unwrap(netByteBuffer, appByteBuffer);
+                outAppByteBufferView.commit(result.bytesProduced());
+                flushBytes += result.bytesProduced();
+
+                if (result.bytesConsumed() > 0)
+                {
+                    routeCounters.recordsIn.orderedIncrement();
+                    routeCounters.ciphertextBytesIn.addOrdered(result.bytesConsumed());
+                    routeCounters.plaintextBytesIn.addOrdered(result.bytesProduced());
+                }
+
+                switch (result.getStatus())
+                {
+                case BUFFER_UNDERFLOW:
+                    break loop;
+                case CLOSED:
+                    handleFlush(flushBytes);
+                    flushBytes = 0;
+                    handleStatus(result.getHandshakeStatus());
+                    netByteBuffer.position(netByteBuffer.limit());
+                    break loop;
+                default:
+                    if (result.getHandshakeStatus() != NOT_HANDSHAKING)
+                    {
+                        // handshake records are written through the same buffer as the pending plaintext
+                        handleFlush(flushBytes);
+                        flushBytes = 0;
+                    }
+
+                    if (handleStatus(result.getHandshakeStatus()) == NEED_WRAP)
+                    {
+                        // engine unwraps no further until the pending wrap gets network reply credit
+                        break loop;
+                    }
+                    break;
+                }
+            }
+
+            handleFlush(flushBytes);
+
+            if (aborted)
+            {
+                releaseNetworkSlot();
+                return;
+            }
+
+            if (netByteBuffer.hasRemaining())
+            {
+                holdNetwork(netByteBuffer);
+            }
+            else
+            {
+                releaseNetworkSlot();
+            }
+
+            if (!awaitingTask && applicationTarget != null && tlsEngine.isInboundDone())
+            {
+                releaseWindow();
+                doEnd(applicationTarget, applicationId);
+                closeApplication();
+            }
+            else
+            {
+                updateNetworkWindow();
+            }
+        }
+
+        private boolean isApplicationWritable(
+            ByteBuffer netByteBuffer,
+            int flushBytes)
+        {
+            final int recordLength = TlsRecord.length(netByteBuffer);
+            final int writableBytes = applicationBytes - flushBytes;
+
+            // incomplete records are left to the engine to report underflow,
+            // records larger than the application window are delivered once all of it is available
+            return recordLength == 0 || recordLength > netByteBuffer.remaining() ||
+                    applicationFrames > 0 && writableBytes > 0 &&
+                    writableBytes >= Math.min(recordLength - recordOverheadMin, applicationBytesMax);
+        }
+
+        private boolean handleClientHello(
+            ByteBuffer netByteBuffer) throws SSLException
+        {
+            helloReceivedAt = System.nanoTime();
+
+            if (clientHelloStatus == COMPLETE)
+            {
+                final RouteMatcher matcher = clientHello.hasServerName()
+                        ? routeMatcher.source(networkReplyName, networkRef)
+                                      .hostnameOrDefault(netByteBuffer, clientHello.serverNameOffset(),
+                                                         clientHello.serverNameLength())
+                        : routeMatcher.source(networkReplyName, networkRef).hostnameOrDefault((String) null);
+
+                matcher.applicationProtocols(clientHello, netByteBuffer);
+
+                if (resolveRoute(matcher) && isWildcard(tlsHostname))
+                {
+                    tlsHostname = clientHello.serverName(netByteBuffer);
+                }
+
+                if (applicationName == null)
+                {
+                    routeCounters.handshakesStarted.orderedIncrement();
+                    routeCounters.handshakesFailed.orderedIncrement();
+
+                    // reject before creating the engine, no crypto spent on unroutable connections
+                    releaseWindow();
+                    this.streamState = this::afterReject;
+                    handshake.reject();
+                    return false;
+                }
+            }
+
+            routeCounters.handshakesStarted.orderedIncrement();
+
+            final SSLEngine tlsEngine = supplyContext.get().createSSLEngine();
+            tlsEngine.setUseClientMode(false);
+//            tlsEngine.setNeedClientAuth(true);
+
+            if (tlsApplicationProtocol != null)
+            {
+                // route already chosen for an offered protocol, so that is the only one to negotiate
+                final SSLParameters tlsParameters = tlsEngine.getSSLParameters();
+                tlsParameters.setApplicationProtocols(new String[] { tlsApplicationProtocol });
+                tlsEngine.setSSLParameters(tlsParameters);
+            }
+
+            tlsEngine.beginHandshake();
+
+            handshake.setTlsEngine(tlsEngine);
+            this.tlsEngine = tlsEngine;
+
+            return true;
+        }
+
+        private boolean resolveRoute(
+            RouteMatcher matcher)
+        {
+            final RouteFW route = matcher.resolve(router, wrapRoute);
+
+            if (route != null)
+            {
+                final TlsRouteExFW tlsRouteEx = route.extension().get(tlsRouteExRO::wrap);
+
+                this.applicationName = route.target().asString();
+                this.applicationRef = route.targetRef();
+                this.tlsHostname = asString(tlsRouteEx.hostname());
+                this.tlsApplicationProtocol = asString(tlsRouteEx.applicationProtocol());
+                this.routeCounters = counters.routeCounters("server", route, router);
+
+                handshake.setRouteCounters(routeCounters);
+                handshake.setRecordSizing(resolveRecordSizing(route, tlsRouteEx));
+            }
+
+            return route != null;
+        }
+
         private void handleEnd(
             EndFW end)
+        {
+            if (tlsEngine == null)
+            {
+                releaseNetworkSlot();
+                releaseWindow();
+                doEnd(networkReply, networkReplyId);
+            }
+            else if (awaitingTask || applicationBlocked)
+            {
+                pendingEnd = true;
+            }
+            else
+            {
+                try
+                {
+                    releaseNetworkSlot();
+                    releaseWindow();
+                    tlsEngine.closeInbound();
+                    handleStatus(tlsEngine.getHandshakeStatus());
+                }
+                catch (SSLException ex)
+                {
+                    handleFailure();
+                    LangUtil.rethrowUnchecked(ex);
+                }
+            }
+        }
+
+        private void holdNetwork(
+            ByteBuffer netByteBuffer) throws SSLException
+        {
+            if (networkSlot == NO_SLOT)
+            {
+                networkSlot = bufferPool.acquire();
+
+                if (networkSlot == NO_SLOT)
+                {
+                    throw new SSLException("no buffer slot available for partial network data");
+                }
+            }
+
+            final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(networkSlot);
+
+            if (netByteBuffer == slotByteBuffer)
+            {
+                slotByteBuffer.compact();
+            }
+            else if (netByteBuffer.remaining() > slotByteBuffer.remaining())
+            {
+                throw new SSLException("partial network data exceeds buffer slot capacity");
+            }
+            else
+            {
+                slotByteBuffer.put(netByteBuffer);
+            }
+        }
+
+        private void releaseNetworkSlot()
+        {
+            if (networkSlot != NO_SLOT)
+            {
+                bufferPool.release(networkSlot);
+                networkSlot = NO_SLOT;
+            }
+        }
+
+        private void handleTaskComplete(
+            RuntimeException failure)
+        {
+            taskNanos += System.nanoTime() - taskStartedAt;
+            awaitingTask = false;
+
+            // stream may have been reset while the task was running
+            if (!aborted && !handshake.reset)
+            {
+                if (failure != null)
+                {
+                    handleFailure();
+                    return;
+                }
+
+                try
+                {
+                    // network reply credit granted while the task was running
+                    handshake.flushNetworkReplySlot();
+                    handleStatus(tlsEngine.getHandshakeStatus());
+                }
+                catch (SSLException ex)
+                {
+                    handleFailure();
+                    LangUtil.rethrowUnchecked(ex);
+                }
+
+                handleNetworkSlot();
+            }
+        }
+
+        private void handleNetworkSlot()
+        {
+            if (!awaitingTask && networkSlot != NO_SLOT)
+            {
+                try
+                {
+                    final ByteBuffer netByteBuffer = bufferPool.byteBuffer(networkSlot);
+                    netByteBuffer.flip();
+
+                    handleUnwrap(netByteBuffer);
+                }
+                catch (SSLException ex)
+                {
+                    handleFailure();
+                    LangUtil.rethrowUnchecked(ex);
+                }
+            }
+
+            if (!awaitingTask && !applicationBlocked && pendingEnd)
+            {
+                pendingEnd = false;
+                handleEnd(null);
+            }
+        }
+
+        private void handleNetworkReplyWindow()
+        {
+            // engine stays locked while a delegated task runs, so the new credit is used once the task completes
+            if (!awaitingTask)
+            {
+                handshake.flushNetworkReplySlot();
+
+                if (tlsEngine != null)
+                {
+                    handleNetworkReplyStatus(tlsEngine.getHandshakeStatus());
+                }
+            }
+        }
+
+        private void handleNetworkReplyStatus(
+            HandshakeStatus status)
         {
             try
             {
-                tlsEngine.closeInbound();
-                handleStatus(tlsEngine.getHandshakeStatus());
+                if (handleStatus(status) != NEED_WRAP)
+                {
+                    // records held back while the wrap awaited network reply credit
+                    handleNetworkSlot();
+                }
             }
             catch (SSLException ex)
             {
-                doReset(networkThrottle, networkId);
+                handleFailure();
                 LangUtil.rethrowUnchecked(ex);
             }
         }
 
         private HandshakeStatus handleStatus(
-            HandshakeStatus status)
+            HandshakeStatus status) throws SSLException
         {
             loop:
             for (;;)
@@ -365,29 +821,46 @@ public final class ServerStreamFactory implements StreamFactory
                 switch (status)
                 {
                 case NEED_TASK:
-                    for (Runnable runnable = tlsEngine.getDelegatedTask();
-                            runnable != null;
-                            runnable = tlsEngine.getDelegatedTask())
+                    if (!awaitingTask)
                     {
-                        runnable.run();
+                        awaitingTask = true;
+                        taskStartedAt = System.nanoTime();
+                        executor.execute(tlsEngine, this::handleTaskComplete);
                     }
-
-                    status = tlsEngine.getHandshakeStatus();
-                    break;
+                    break loop;
                 case NEED_WRAP:
-                    try
+                    if (!handshake.isNetworkReplyWritable())
                     {
-                        // TODO: limit outNetByteBuffer by networkBytes and networkFrames
-                        outNetByteBuffer.clear();
-                        SSLEngineResult result = tlsEngine.wrap(EMPTY_BYTE_BUFFER, outNetByteBuffer);
-                        outNetByteBuffer.flip();
-                        flushNetwork(tlsEngine, networkReply, networkReplyId);
-                        status = result.getHandshakeStatus();
+                        // resumed by the network reply window
+                        break loop;
                     }
-                    catch (SSLException ex)
+
+                    // records of one handshake flight go out together in a single network frame
+                    final int flightLimit = Math.min(handshake.networkReplyLimit(), writeBuffer.capacity() -
+                            DataFW.FIELD_OFFSET_PAYLOAD - handshake.packetBufferSize);
+                    int flightBytes = 0;
+
+                    do
                     {
-                        LangUtil.rethrowUnchecked(ex);
+                        final ByteBuffer netByteBuffer = reserveData(outNetByteBufferView, flightBytes);
+                        SSLEngineResult result = tlsEngine.wrap(EMPTY_BYTE_BUFFER, netByteBuffer);
+                        outNetByteBufferView.commit(result.bytesProduced());
+                        flightBytes += result.bytesProduced();
+                        status = result.getHandshakeStatus();
+
+                        if (result.bytesProduced() > 0)
+                        {
+                            routeCounters.recordsOut.orderedIncrement();
+                            routeCounters.ciphertextBytesOut.addOrdered(result.bytesProduced());
+
+                            final int recordsLimit = netByteBuffer.position();
+                            serverHelloStatus = serverHello.parse(netByteBuffer, recordsLimit - result.bytesProduced(),
+                                    recordsLimit, serverHelloStatus);
+                        }
                     }
+                    while (status == NEED_WRAP && flightBytes < flightLimit);
+
+                    handshake.flushNetworkReply(flightBytes);
                     break;
                 case FINISHED:
                     handleFinished();
@@ -404,64 +877,87 @@ public final class ServerStreamFactory implements StreamFactory
         private void handleFinished()
         {
             ExtendedSSLSession tlsSession = (ExtendedSSLSession) tlsEngine.getSession();
-            List<SNIServerName> sniServerNames = tlsSession.getRequestedServerNames();
+            final boolean resumed = serverHelloStatus == ServerHello.RESUMED;
+            sessionCache.onHandshakeFinished(resumed);
 
-            String peerHost0 = null;
-            if (sniServerNames.size() > 0)
+            if (applicationName == null)
             {
-                SNIHostName sniHostName = (SNIHostName) sniServerNames.get(0);
-                peerHost0 = sniHostName.getAsciiName();
-            }
-            String peerHost = peerHost0;
+                // client hello not parsed up front, route on negotiated server name instead
+                List<SNIServerName> sniServerNames = tlsSession.getRequestedServerNames();
 
-            final MessagePredicate filter = (t, b, o, l) ->
-            {
-                final RouteFW route = routeRO.wrap(b, o, l);
-                final TlsRouteExFW routeEx = route.extension().get(tlsRouteExRO::wrap);
-                final String hostname = routeEx.hostname().asString();
+                String peerHost = null;
+                if (sniServerNames.size() > 0)
+                {
+                    SNIHostName sniHostName = (SNIHostName) sniServerNames.get(0);
+                    peerHost = sniHostName.getAsciiName();
+                }
+
+                final RouteMatcher matcher = routeMatcher.source(networkReplyName, networkRef)
+                                                         .hostnameOrDefault(peerHost)
+                                                         .applicationProtocols(null, null);
 
-                return networkRef == route.sourceRef() &&
-                        networkReplyName.equals(route.source().asString()) &&
-                        (hostname == null || Objects.equals(peerHost, hostname));
-            };
+                if (resolveRoute(matcher) && isWildcard(tlsHostname))
+                {
+                    tlsHostname = peerHost;
+                }
+            }
 
-            final RouteFW route = router.resolve(filter, wrapRoute);
+            // counted against the route finally chosen, resolved from the negotiated server name if need be
+            routeCounters.handshakesFinished.orderedIncrement();
+            (resumed ? routeCounters.handshakesResumed : routeCounters.handshakesFull).orderedIncrement();
+            recordHandshakeTimes();
 
-            if (route != null)
+            if (applicationName != null)
             {
-                final String applicationName = route.target().asString();
                 final MessageConsumer applicationTarget = router.supplyTarget(applicationName);
 
-                final TlsRouteExFW tlsRouteEx = route.extension().get(tlsRouteExRO::wrap);
-                final String tlsHostname = tlsRouteEx.hostname().asString();
-
                 final long newCorrelationId = supplyCorrelationId.getAsLong();
                 correlations.put(newCorrelationId, handshake);
 
                 final long newApplicationId = supplyStreamId.getAsLong();
-                final long applicationRef = route.targetRef();
 
-                doTlsBegin(applicationTarget, newApplicationId, applicationRef, newCorrelationId, tlsHostname);
+                doTlsBegin(applicationTarget, newApplicationId, applicationRef, newCorrelationId, tlsHostname,
+                        tlsApplicationProtocol);
                 router.setThrottle(applicationName, newApplicationId, this::handleThrottle);
 
                 this.applicationTarget = applicationTarget;
                 this.applicationId = newApplicationId;
+                this.applicationCorrelationId = newCorrelationId;
+                this.recordOverhead = TlsRecord.overhead(tlsSession);
+                this.recordOverheadMin = TlsRecord.minimumOverhead(tlsSession);
                 this.streamState = this::afterHandshake;
+
+                routeCounters.streamsActive.orderedIncrement();
             }
             else
             {
+                releaseWindow();
+                aborted = true;
                 doReset(networkThrottle, networkId);
             }
         }
 
+        private void recordHandshakeTimes()
+        {
+            // whatever the handshake did not spend in delegated tasks was spent waiting on the peer
+            final long handshakeNanos = System.nanoTime() - handshakeBeganAt;
+            final TlsHandshakeHistograms handshakeHistograms = counters.handshakeHistograms("server", routeCounters);
+
+            handshakeHistograms.handshakeMicros.record(NANOSECONDS.toMicros(handshakeNanos));
+            handshakeHistograms.handshakeHelloMicros.record(NANOSECONDS.toMicros(helloReceivedAt - handshakeBeganAt));
+            handshakeHistograms.handshakeNetworkMicros.record(NANOSECONDS.toMicros(handshakeNanos - taskNanos));
+            handshakeHistograms.handshakeTasksMicros.record(NANOSECONDS.toMicros(taskNanos));
+        }
+
         private void handleFlush(
             int bytesProduced)
         {
             if (bytesProduced > 0)
             {
-                final OctetsFW outAppOctets = outAppOctetsRO.wrap(outAppBuffer, 0, bytesProduced);
+                doData(applicationTarget, applicationId, bytesProduced);
 
-                doData(applicationTarget, applicationId, outAppOctets);
+                applicationBytes -= bytesProduced;
+                applicationFrames--;
             }
         }
 
@@ -490,55 +986,200 @@ public final class ServerStreamFactory implements StreamFactory
         private void handleWindow(
             WindowFW window)
         {
-            // TODO: this is post handshake
-            final int writableBytes = window.update();
-            final int writableFrames = window.frames();
-            final int newWritableBytes = writableBytes; // TODO: consider TLS Record padding
+            applicationBytes += window.update();
+            applicationBytesMax = Math.max(applicationBytesMax, applicationBytes);
+            applicationFrames += window.frames();
 
-            doWindow(networkThrottle, networkId, newWritableBytes, writableFrames);
+            if (applicationBlocked)
+            {
+                handleNetworkSlot();
+            }
+
+            updateNetworkWindow();
         }
 
-        private void handleReset(
+        private void updateNetworkWindow()
+        {
+            updateNetworkWindow(true);
+        }
+
+        private void updateNetworkWindow(
+            boolean deferrable)
+        {
+            if (networkSlot == NO_SLOT && bufferPool.availableSlots() == 0)
+            {
+                // partial records could not be held, so no more credit until a slot is free again
+                if (!windowScheduled)
+                {
+                    windowCoalescer.schedule(flushNetworkWindow);
+                    windowScheduled = true;
+                }
+                return;
+            }
+
+            int networkBytesMax = window;
+            int networkFramesMax = window;
+
+            if (applicationTarget != null)
+            {
+                // full size records deliver exactly the plaintext credit, smaller records deliver less,
+                // anything beyond that is read ahead into the network slot up to the window
+                int heldBytes = 0;
+                networkBytesMax = ciphertextLength(applicationBytes, recordOverhead) + window;
+
+                if (networkSlot != NO_SLOT)
+                {
+                    // held ciphertext has already used up credit, but the held record must still be able to complete
+                    final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(networkSlot);
+                    heldBytes = slotByteBuffer.position();
+                    final int heldRecordLength = TlsRecord.length(slotByteBuffer, 0, heldBytes);
+                    networkBytesMax = Math.max(networkBytesMax, heldRecordLength) - heldBytes;
+                }
+
+                // anything received may need to be held, so never grant beyond the network slot
+                networkBytesMax = Math.min(networkBytesMax, bufferPool.slotCapacity() - heldBytes);
+                networkFramesMax = applicationFrames + window;
+            }
+
+            final int networkBytesDelta = Math.max(networkBytesMax - networkBytes, 0);
+            final int networkFramesDelta = Math.max(networkFramesMax - networkFrames, 0);
+
+            if (networkBytesDelta > 0 || networkFramesDelta > 0)
+            {
+                if (deferrable && networkBytes > 0 && networkFrames > 0 &&
+                        windowCoalescer.deferred(networkBytesDelta, networkBytesMax))
+                {
+                    // small updates wait for the end of the duty cycle while the peer still has credit
+                    if (!windowScheduled)
+                    {
+                        windowCoalescer.schedule(flushNetworkWindow);
+                        windowScheduled = true;
+                    }
+                }
+                else
+                {
+                    windowScheduled = false;
+                    networkBytes += networkBytesDelta;
+                    networkFrames += networkFramesDelta;
+
+                    doWindow(networkThrottle, networkId, networkBytesDelta, networkFramesDelta);
+                }
+            }
+        }
+
+        private void flushNetworkWindow()
+        {
+            if (windowScheduled)
+            {
+                windowScheduled = false;
+                updateNetworkWindow(false);
+            }
+        }
+
+        private void releaseWindow()
+        {
+            // deferred window updates are dropped once the stream is done
+            windowScheduled = false;
+            window = windowBudget.release(window);
+        }
+
+        private void handleHandshakeFailure()
+        {
+            // handshake cannot complete once the network reply is reset, and neither can the application
+            // stream while the application reply has yet to take over the network reply
+            if (!aborted && (applicationTarget == null || correlations.remove(applicationCorrelationId) != null))
+            {
+                handleFailure();
+            }
+        }
+
+        private void handleFailure()
+        {
+            releaseNetworkSlot();
+            releaseWindow();
+
+            if (applicationTarget == null)
+            {
+                routeCounters.handshakesFailed.orderedIncrement();
+            }
+            else if (!applicationClosed)
+            {
+                doEnd(applicationTarget, applicationId);
+                closeApplication();
+            }
+
+            aborted = true;
+            doReset(networkThrottle, networkId);
+        }
+
+        private void closeApplication()
+        {
+            if (!applicationClosed)
+            {
+                applicationClosed = true;
+                routeCounters.streamsActive.addOrdered(-1L);
+            }
+        }
+
+        private void handleReset(
             ResetFW reset)
         {
+            releaseNetworkSlot();
+            releaseWindow();
+            closeApplication();
+            routeCounters.resets.orderedIncrement();
+            aborted = true;
             doReset(networkThrottle, networkId);
         }
     }
 
     public final class ServerHandshake
     {
-        private final SSLEngine tlsEngine;
         private final Consumer<HandshakeStatus> statusHandler;
-        private final IntConsumer flushHandler;
+        private final Runnable windowHandler;
+        private final Consumer<DataFW> dataHandler;
         private final Consumer<EndFW> endHandler;
+        private final Runnable failureHandler;
 
         private final MessageConsumer networkThrottle;
         private final long networkId;
         private final String networkReplyName;
+        private final MessageConsumer networkReply;
         private final long networkReplyId;
 
+        private SSLEngine tlsEngine;
+        private int packetBufferSize;
+        private int applicationBufferSize;
+        private TlsRouteCounters routeCounters;
+        private RecordSizing recordSizing = ServerStreamFactory.this.recordSizing;
         private int networkBytes;
         private int networkFrames;
+        private int networkReplySlot = NO_SLOT;
+        private boolean rejected;
         private boolean reset;
 
         private ServerHandshake(
-            SSLEngine tlsEngine,
             MessageConsumer networkThrottle,
             long networkId,
             String networkReplyName,
+            MessageConsumer networkReply,
             long networkReplyId,
             Consumer<HandshakeStatus> statusHandler,
-            IntConsumer flushHandler,
-            Consumer<EndFW> endHandler)
+            Runnable windowHandler,
+            Consumer<DataFW> dataHandler,
+            Consumer<EndFW> endHandler,
+            Runnable failureHandler)
         {
-            this.tlsEngine = tlsEngine;
             this.statusHandler = statusHandler;
-            this.flushHandler = flushHandler;
+            this.windowHandler = windowHandler;
+            this.dataHandler = dataHandler;
             this.endHandler = endHandler;
+            this.failureHandler = failureHandler;
 
             this.networkThrottle = networkThrottle;
             this.networkId = networkId;
             this.networkReplyName = networkReplyName;
+            this.networkReply = networkReply;
             this.networkReplyId = networkReplyId;
         }
 
@@ -559,7 +1200,7 @@ public final class ServerStreamFactory implements StreamFactory
                 handleEnd(end);
                 break;
             default:
-                doReset(networkThrottle, networkId);
+                failureHandler.run();
                 break;
             }
         }
@@ -567,38 +1208,36 @@ public final class ServerStreamFactory implements StreamFactory
         private void handleData(
             DataFW data)
         {
-            try
-            {
-                final OctetsFW payload = data.payload();
+            dataHandler.accept(data);
+        }
 
-                // Note: inNetByteBuffer is emptied by SslEngine.unwrap(...)
-                //       so should be able to eliminate copy (stateless)
-                inNetByteBuffer.clear();
-                payload.buffer().getBytes(payload.offset(), inNetByteBuffer, payload.sizeof());
-                inNetByteBuffer.flip();
+        private void handleEnd(
+            EndFW end)
+        {
+            endHandler.accept(end);
+        }
 
-                while (inNetByteBuffer.hasRemaining())
-                {
-                    outAppByteBuffer.rewind();
-                    SSLEngineResult result = tlsEngine.unwrap(inNetByteBuffer, outAppByteBuffer);
+        private void setTlsEngine(
+            SSLEngine tlsEngine)
+        {
+            // sizes of a new engine are the maximum, read once since the engine is locked while tasks run
+            final SSLSession tlsSession = tlsEngine.getSession();
 
-                    flushHandler.accept(result.bytesProduced());
-                    statusHandler.accept(result.getHandshakeStatus());
-                }
-            }
-            catch (SSLException ex)
-            {
-                doReset(networkThrottle, networkId);
-                LangUtil.rethrowUnchecked(ex);
-            }
+            this.tlsEngine = tlsEngine;
+            this.packetBufferSize = tlsSession.getPacketBufferSize();
+            this.applicationBufferSize = tlsSession.getApplicationBufferSize();
+        }
 
-            doWindow(networkThrottle, networkId, data.length(), 1);
+        private void setRouteCounters(
+            TlsRouteCounters routeCounters)
+        {
+            this.routeCounters = routeCounters;
         }
 
-        private void handleEnd(
-            EndFW end)
+        private void setRecordSizing(
+            RecordSizing recordSizing)
         {
-            endHandler.accept(end);
+            this.recordSizing = recordSizing;
         }
 
         private void setNetworkThrottle(
@@ -610,8 +1249,133 @@ public final class ServerStreamFactory implements StreamFactory
             }
             else
             {
+                // network reply credit stays with the handshake, shared with the application reply stream
                 router.setThrottle(networkReplyName, networkReplyId, networkThrottle);
-                doWindow(networkThrottle, networkReplyId, networkBytes, networkFrames);
+            }
+        }
+
+        private boolean isNetworkReplyWritable()
+        {
+            return networkReplySlot == NO_SLOT && networkReplyLimit() > 0 && networkFrames > 0;
+        }
+
+        private int networkReplyLimit()
+        {
+            // without a free slot to hold any excess, wrap only while another whole record is sure to fit
+            return bufferPool.availableSlots() > 0
+                    ? networkBytes
+                    : networkBytes - packetBufferSize + 1;
+        }
+
+        private void reject() throws SSLException
+        {
+            // the alert takes the network reply credit like any handshake flight, the network is reset once it is written
+            this.rejected = true;
+            writeBuffer.putBytes(DataFW.FIELD_OFFSET_PAYLOAD, UNRECOGNIZED_NAME_ALERT);
+            flushNetworkReply(UNRECOGNIZED_NAME_ALERT.length);
+        }
+
+        private boolean isOutboundDone()
+        {
+            return rejected || tlsEngine.isOutboundDone();
+        }
+
+        private void doNetworkReplyEnd()
+        {
+            doEnd(networkReply, networkReplyId);
+
+            if (rejected)
+            {
+                doReset(networkThrottle, networkId);
+            }
+        }
+
+        private void flushNetworkReply(
+            int bytesProduced) throws SSLException
+        {
+            if (bytesProduced > 0)
+            {
+                if (networkReplySlot == NO_SLOT && bytesProduced <= networkBytes && networkFrames > 0)
+                {
+                    doData(networkReply, networkReplyId, bytesProduced);
+
+                    networkBytes -= bytesProduced;
+                    networkFrames--;
+                }
+                else
+                {
+                    holdNetworkReply(bytesProduced);
+                    flushNetworkReplySlot();
+                }
+            }
+
+            if (networkReplySlot == NO_SLOT && isOutboundDone())
+            {
+                doNetworkReplyEnd();
+            }
+        }
+
+        private void holdNetworkReply(
+            int length) throws SSLException
+        {
+            if (networkReplySlot == NO_SLOT)
+            {
+                networkReplySlot = bufferPool.acquire();
+
+                if (networkReplySlot == NO_SLOT)
+                {
+                    throw new SSLException("no buffer slot available for pending network data");
+                }
+            }
+
+            final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(networkReplySlot);
+
+            if (length > slotByteBuffer.remaining())
+            {
+                throw new SSLException("pending network data exceeds buffer slot capacity");
+            }
+
+            writeBuffer.getBytes(DataFW.FIELD_OFFSET_PAYLOAD, slotByteBuffer, length);
+        }
+
+        private void flushNetworkReplySlot()
+        {
+            if (networkReplySlot != NO_SLOT)
+            {
+                final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(networkReplySlot);
+                final int length = Math.min(slotByteBuffer.position(), networkBytes);
+
+                if (length > 0 && networkFrames > 0)
+                {
+                    writeBuffer.putBytes(DataFW.FIELD_OFFSET_PAYLOAD, slotByteBuffer, 0, length);
+                    doData(networkReply, networkReplyId, length);
+
+                    networkBytes -= length;
+                    networkFrames--;
+
+                    slotByteBuffer.flip();
+                    slotByteBuffer.position(length);
+                    slotByteBuffer.compact();
+                }
+
+                if (slotByteBuffer.position() == 0)
+                {
+                    releaseNetworkReplySlot();
+
+                    if (isOutboundDone())
+                    {
+                        doNetworkReplyEnd();
+                    }
+                }
+            }
+        }
+
+        private void releaseNetworkReplySlot()
+        {
+            if (networkReplySlot != NO_SLOT)
+            {
+                bufferPool.release(networkReplySlot);
+                networkReplySlot = NO_SLOT;
             }
         }
 
@@ -649,13 +1413,25 @@ public final class ServerStreamFactory implements StreamFactory
             this.networkBytes += window.update();
             this.networkFrames += window.frames();
 
-            statusHandler.accept(tlsEngine.getHandshakeStatus());
+            windowHandler.run();
         }
 
         private void handleReset(
             ResetFW reset)
         {
             this.reset = true;
+            releaseNetworkReplySlot();
+            routeCounters.resets.orderedIncrement();
+
+            if (rejected)
+            {
+                // alert no longer deliverable, the rejected stream is already done apart from the network
+                doReset(networkThrottle, networkId);
+            }
+            else
+            {
+                failureHandler.run();
+            }
         }
     }
 
@@ -663,13 +1439,23 @@ public final class ServerStreamFactory implements StreamFactory
     {
         private final MessageConsumer applicationReplyThrottle;
         private final long applicationReplyId;
-
-        private MessageConsumer networkReply;
-        private long networkReplyId;
+        private final Runnable flushApplicationReply;
 
         private MessageConsumer streamState;
+        private ServerHandshake handshake;
         private SSLEngine tlsEngine;
         private Consumer<HandshakeStatus> statusHandler;
+        private TlsRouteCounters routeCounters;
+        private RecordSizing recordSizing;
+        private int recordOverhead;
+
+        private int applicationBytes;
+        private int applicationFrames;
+        private int applicationFrameLength = MAX_PLAINTEXT_LENGTH;
+        private int applicationReplySlot = NO_SLOT;
+        private boolean flushScheduled;
+        private long recordBytes;
+        private long recordWrittenAt;
 
         private ServerConnectReplyStream(
             MessageConsumer applicationReplyThrottle,
@@ -677,6 +1463,7 @@ public final class ServerStreamFactory implements StreamFactory
         {
             this.applicationReplyThrottle = applicationReplyThrottle;
             this.applicationReplyId = applicationReplyId;
+            this.flushApplicationReply = this::flushApplicationReply;
             this.streamState = this::beforeBegin;
         }
 
@@ -738,12 +1525,19 @@ public final class ServerStreamFactory implements StreamFactory
             if (handshake != null)
             {
                 this.streamState = this::afterBegin;
+                this.handshake = handshake;
                 this.tlsEngine = handshake.tlsEngine;
-                this.networkReply = router.supplyTarget(handshake.networkReplyName);
-                this.networkReplyId = handshake.networkReplyId;
                 this.statusHandler = handshake.statusHandler;
+                this.routeCounters = handshake.routeCounters;
+                this.recordSizing = handshake.recordSizing;
+                this.recordOverhead = TlsRecord.overhead(tlsEngine.getSession());
 
                 handshake.setNetworkThrottle(this::handleThrottle);
+
+                if (!handshake.reset)
+                {
+                    updateApplicationWindow();
+                }
             }
             else
             {
@@ -751,6 +1545,15 @@ public final class ServerStreamFactory implements StreamFactory
             }
         }
 
+        private void afterReject(
+            int msgTypeId,
+            DirectBuffer buffer,
+            int index,
+            int length)
+        {
+            // ignore frames in flight before reset
+        }
+
         private void handleData(
             DataFW data)
         {
@@ -758,33 +1561,175 @@ public final class ServerStreamFactory implements StreamFactory
             {
                 final OctetsFW payload = data.payload();
 
-                // Note: inAppBuffer is emptied by SslEngine.wrap(...)
-                //       so should be able to eliminate allocation+copy (stateless)
-                inAppByteBuffer.clear();
-                payload.buffer().getBytes(payload.offset(), inAppByteBuffer, payload.sizeof());
-                inAppByteBuffer.flip();
+                applicationBytes -= data.length();
+                applicationFrames--;
+                applicationFrameLength = (applicationFrameLength * 7 + Math.max(data.length(), 1)) >> 3;
 
-                while (inAppByteBuffer.hasRemaining())
+                if (!holdApplicationReply(payload))
                 {
-                    outNetByteBuffer.clear();
-                    SSLEngineResult result = tlsEngine.wrap(inAppByteBuffer, outNetByteBuffer);
-                    outNetByteBuffer.flip();
-                    flushNetwork(tlsEngine, networkReply, networkReplyId);
-                    statusHandler.accept(result.getHandshakeStatus());
+                    // Note: inAppBuffer is emptied by SslEngine.wrap(...)
+                    //       so should be able to eliminate allocation+copy (stateless)
+                    inAppByteBuffer.clear();
+                    payload.buffer().getBytes(payload.offset(), inAppByteBuffer, payload.sizeof());
+                    inAppByteBuffer.flip();
+
+                    wrapApplicationReply(inAppByteBuffer);
                 }
 
-                // TODO: delta between windows
+                updateApplicationWindow();
             }
             catch (SSLException ex)
             {
+                releaseApplicationReplySlot();
                 doReset(applicationReplyThrottle, applicationReplyId);
                 LangUtil.rethrowUnchecked(ex);
             }
         }
 
+        private boolean holdApplicationReply(
+            OctetsFW payload) throws SSLException
+        {
+            final int length = payload.sizeof();
+
+            if (applicationReplySlot == NO_SLOT && writeCoalescer.enabled() && length < MAX_PLAINTEXT_LENGTH)
+            {
+                applicationReplySlot = bufferPool.acquire();
+            }
+
+            if (applicationReplySlot != NO_SLOT)
+            {
+                final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(applicationReplySlot);
+
+                if (length > slotByteBuffer.remaining())
+                {
+                    // held plaintext goes first, to keep the order
+                    slotByteBuffer.flip();
+                    wrapApplicationReply(slotByteBuffer);
+                    slotByteBuffer.clear();
+                }
+
+                if (length > slotByteBuffer.remaining())
+                {
+                    releaseApplicationReplySlot();
+                }
+                else
+                {
+                    payload.buffer().getBytes(payload.offset(), slotByteBuffer, length);
+                    wrapApplicationReplyRecords(slotByteBuffer);
+
+                    if (!flushScheduled)
+                    {
+                        writeCoalescer.schedule(flushApplicationReply);
+                        flushScheduled = true;
+                    }
+                }
+            }
+
+            return applicationReplySlot != NO_SLOT;
+        }
+
+        private void wrapApplicationReplyRecords(
+            ByteBuffer slotByteBuffer) throws SSLException
+        {
+            final int heldBytes = slotByteBuffer.position() % MAX_PLAINTEXT_LENGTH;
+
+            if (slotByteBuffer.position() != heldBytes)
+            {
+                // full records gain nothing from waiting, only the remainder is held
+                slotByteBuffer.flip();
+                slotByteBuffer.limit(slotByteBuffer.limit() - heldBytes);
+                wrapApplicationReply(slotByteBuffer);
+                slotByteBuffer.limit(slotByteBuffer.limit() + heldBytes);
+                slotByteBuffer.compact();
+            }
+        }
+
+        private void wrapApplicationReply(
+            ByteBuffer inAppByteBuffer) throws SSLException
+        {
+            if (recordSizing.dynamic())
+            {
+                final long now = System.nanoTime();
+                if (recordSizing.idle(recordWrittenAt, now))
+                {
+                    recordBytes = 0L;
+                }
+                recordWrittenAt = now;
+            }
+
+            final int limit = inAppByteBuffer.limit();
+            final int recordsLimit = writeBuffer.capacity() - DataFW.FIELD_OFFSET_PAYLOAD - handshake.packetBufferSize;
+
+            while (inAppByteBuffer.hasRemaining())
+            {
+                // records wrapped together go out in a single network frame
+                SSLEngineResult result;
+                int recordsBytes = 0;
+
+                do
+                {
+                    final int recordLength = recordSizing.recordLength(recordBytes);
+                    inAppByteBuffer.limit(Math.min(inAppByteBuffer.position() + recordLength, limit));
+
+                    final ByteBuffer netByteBuffer = reserveData(outNetByteBufferView, recordsBytes);
+                    result = tlsEngine.wrap(inAppByteBuffer, netByteBuffer);
+                    inAppByteBuffer.limit(limit);
+                    outNetByteBufferView.commit(result.bytesProduced());
+                    recordsBytes += result.bytesProduced();
+                    recordBytes += result.bytesConsumed();
+
+                    if (result.bytesProduced() > 0)
+                    {
+                        routeCounters.recordsOut.orderedIncrement();
+                        routeCounters.plaintextBytesOut.addOrdered(result.bytesConsumed());
+                        routeCounters.ciphertextBytesOut.addOrdered(result.bytesProduced());
+                    }
+                }
+                while (inAppByteBuffer.hasRemaining() && recordsBytes < recordsLimit &&
+                        result.getHandshakeStatus() == NOT_HANDSHAKING);
+
+                handshake.flushNetworkReply(recordsBytes);
+                statusHandler.accept(result.getHandshakeStatus());
+            }
+        }
+
+        private void flushApplicationReply()
+        {
+            flushScheduled = false;
+
+            if (applicationReplySlot != NO_SLOT)
+            {
+                try
+                {
+                    final ByteBuffer slotByteBuffer = bufferPool.byteBuffer(applicationReplySlot);
+                    slotByteBuffer.flip();
+                    wrapApplicationReply(slotByteBuffer);
+                    releaseApplicationReplySlot();
+
+                    updateApplicationWindow();
+                }
+                catch (SSLException ex)
+                {
+                    releaseApplicationReplySlot();
+                    doReset(applicationReplyThrottle, applicationReplyId);
+                    LangUtil.rethrowUnchecked(ex);
+                }
+            }
+        }
+
+        private void releaseApplicationReplySlot()
+        {
+            if (applicationReplySlot != NO_SLOT)
+            {
+                bufferPool.release(applicationReplySlot);
+                applicationReplySlot = NO_SLOT;
+            }
+        }
+
         private void handleEnd(
             EndFW end)
         {
+            flushApplicationReply();
             tlsEngine.closeOutbound();
             statusHandler.accept(tlsEngine.getHandshakeStatus());
         }
@@ -814,35 +1759,68 @@ public final class ServerStreamFactory implements StreamFactory
         private void handleWindow(
             final WindowFW window)
         {
-            final int writableBytes = window.update();
-            final int writableFrames = window.frames();
-            final int newWritableBytes = writableBytes; // TODO: consider TLS Record padding
+            handshake.handleWindow(window);
+
+            updateApplicationWindow();
+        }
+
+        private void updateApplicationWindow()
+        {
+            // credit assumes the smallest records, so it holds however far the record size has ramped
+            final int recordLength = recordSizing.minimumLength();
 
-            doWindow(applicationReplyThrottle, applicationReplyId, newWritableBytes, writableFrames);
+            // plaintext held for coalescing still takes the network credit of its records
+            final int heldBytes = applicationReplySlot != NO_SLOT ? bufferPool.byteBuffer(applicationReplySlot).position() : 0;
+            final int networkBytes = handshake.networkBytes - ciphertextLength(heldBytes, recordLength, recordOverhead);
+            final int networkFrames = handshake.networkFrames - (heldBytes != 0 ? 1 : 0);
+
+            // records split at the plaintext limit must still fit the network frames
+            final int networkFramesMax = networkFrames - networkBytes / MAX_PLAINTEXT_LENGTH;
+
+            // each frame costs at least one record overhead, so only plan for the frames likely to be used
+            final int framesWanted = Math.min(networkBytes / (applicationFrameLength + recordOverhead) + 1, networkFramesMax);
+            final int framesPlanned = Math.max(framesWanted, applicationFrames);
+
+            final int applicationBytesMax = Math.max(plaintextLength(networkBytes, framesPlanned, recordLength, recordOverhead),
+                                                     applicationBytes);
+            final int applicationFramesMax = Math.max(Math.min(framesWanted,
+                                                               frames(networkBytes, applicationBytesMax, recordLength,
+                                                                      recordOverhead)),
+                                                      applicationFrames);
+
+            final int applicationBytesDelta = applicationBytesMax - applicationBytes;
+            final int applicationFramesDelta = applicationFramesMax - applicationFrames;
+
+            if (applicationBytesDelta > 0 || applicationFramesDelta > 0)
+            {
+                applicationBytes = applicationBytesMax;
+                applicationFrames = applicationFramesMax;
+
+                doWindow(applicationReplyThrottle, applicationReplyId, applicationBytesDelta, applicationFramesDelta);
+            }
         }
 
         private void handleReset(
             ResetFW reset)
         {
+            releaseApplicationReplySlot();
+            handshake.handleReset(reset);
             doReset(applicationReplyThrottle, applicationReplyId);
         }
     }
 
-    private void flushNetwork(
-        SSLEngine tlsEngine,
-        MessageConsumer networkReply,
-        long networkReplyId)
+    private ByteBuffer reserveData(
+        ByteBufferView view)
     {
-        if (outNetByteBuffer.hasRemaining())
-        {
-            final OctetsFW outNetOctets = outNetOctetsRO.wrap(outNetBuffer, 0, outNetByteBuffer.remaining());
-            doData(networkReply, networkReplyId, outNetOctets);
-        }
+        return reserveData(view, 0);
+    }
 
-        if (tlsEngine.isOutboundDone())
-        {
-            doEnd(networkReply, networkReplyId);
-        }
+    private ByteBuffer reserveData(
+        ByteBufferView view,
+        int offset)
+    {
+        final int payloadOffset = DataFW.FIELD_OFFSET_PAYLOAD + offset;
+        return view.reserve(writeBuffer, payloadOffset, writeBuffer.capacity() - payloadOffset);
     }
 
     private void doTlsBegin(
@@ -850,27 +1828,41 @@ public final class ServerStreamFactory implements StreamFactory
         long connectId,
         long connectRef,
         long correlationId,
-        String hostname)
+        String hostname,
+        String applicationProtocol)
     {
         final BeginFW begin = beginRW.wrap(writeBuffer, 0, writeBuffer.capacity())
                                      .streamId(connectId)
                                      .source("tls")
                                      .sourceRef(connectRef)
                                      .correlationId(correlationId)
-                                     .extension(e -> e.set(visitTlsBeginEx(hostname)))
+                                     .extension(e -> e.set(visitTlsBeginEx(hostname, applicationProtocol)))
                                      .build();
 
         connect.accept(begin.typeId(), begin.buffer(), begin.offset(), begin.sizeof());
     }
 
     private Flyweight.Builder.Visitor visitTlsBeginEx(
-        String hostname)
+        String hostname,
+        String applicationProtocol)
     {
         return (buffer, offset, limit) ->
-            tlsBeginExRW.wrap(buffer, offset, limit)
-                       .hostname(hostname)
-                       .build()
-                       .sizeof();
+        {
+            final TlsBeginExFW.Builder tlsBeginEx = tlsBeginExRW.wrap(buffer, offset, limit);
+
+            if (applicationProtocol != null)
+            {
+                // hostname written empty when absent, only a trailing string may be omitted
+                tlsBeginEx.hostname(hostname != null ? hostname : "")
+                          .applicationProtocol(applicationProtocol);
+            }
+            else
+            {
+                tlsBeginEx.hostname(hostname);
+            }
+
+            return tlsBeginEx.build().sizeof();
+        };
     }
 
     private void doBegin(
@@ -893,11 +1885,12 @@ public final class ServerStreamFactory implements StreamFactory
     private void doData(
         final MessageConsumer target,
         final long targetId,
-        final OctetsFW payload)
+        final int payloadSize)
     {
+        // payload already written in place by SSLEngine, see reserveData
         final DataFW data = dataRW.wrap(writeBuffer, 0, writeBuffer.capacity())
                 .streamId(targetId)
-                .payload(p -> p.set(payload.buffer(), payload.offset(), payload.sizeof()))
+                .payload(p -> p.set((b, o, l) -> payloadSize))
                 .extension(e -> e.reset())
                 .build();
 
@@ -16,6 +16,7 @@
 package org.reaktivity.nukleus.tls.internal.stream;
 
 import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 import javax.net.ssl.SSLContext;
 
@@ -24,11 +25,26 @@ import org.agrona.collections.Long2ObjectHashMap;
 import org.reaktivity.nukleus.route.RouteHandler;
 import org.reaktivity.nukleus.stream.StreamFactory;
 import org.reaktivity.nukleus.stream.StreamFactoryBuilder;
+import org.reaktivity.nukleus.tls.internal.TlsCounters;
 import org.reaktivity.nukleus.tls.internal.stream.ServerStreamFactory.ServerHandshake;
+import org.reaktivity.nukleus.tls.internal.util.BufferPool;
+import org.reaktivity.nukleus.tls.internal.util.DelegatedTaskExecutor;
+import org.reaktivity.nukleus.tls.internal.util.RecordSizing;
+import org.reaktivity.nukleus.tls.internal.util.WindowBudget;
+import org.reaktivity.nukleus.tls.internal.util.WindowCoalescer;
+import org.reaktivity.nukleus.tls.internal.util.WriteCoalescer;
 
 public final class ServerStreamFactoryBuilder implements StreamFactoryBuilder
 {
-    private final SSLContext context;
+    private final Supplier<SSLContext> supplyContext;
+    private final DelegatedTaskExecutor executor;
+    private final BufferPool bufferPool;
+    private final WindowBudget windowBudget;
+    private final WindowCoalescer windowCoalescer;
+    private final WriteCoalescer writeCoalescer;
+    private final RecordSizing recordSizing;
+    private final ServerSessionCache sessionCache;
+    private final TlsCounters counters;
     private final Long2ObjectHashMap<ServerHandshake> correlations;
 
     private RouteHandler router;
@@ -37,9 +53,25 @@ public final class ServerStreamFactoryBuilder implements StreamFactoryBuilder
     private LongSupplier supplyCorrelationId;
 
     public ServerStreamFactoryBuilder(
-        SSLContext context)
+        Supplier<SSLContext> supplyContext,
+        DelegatedTaskExecutor executor,
+        BufferPool bufferPool,
+        WindowBudget windowBudget,
+        WindowCoalescer windowCoalescer,
+        WriteCoalescer writeCoalescer,
+        RecordSizing recordSizing,
+        ServerSessionCache sessionCache,
+        TlsCounters counters)
     {
-        this.context = context;
+        this.supplyContext = supplyContext;
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+        this.windowBudget = windowBudget;
+        this.windowCoalescer = windowCoalescer;
+        this.writeCoalescer = writeCoalescer;
+        this.recordSizing = recordSizing;
+        this.sessionCache = sessionCache;
+        this.counters = counters;
         this.correlations = new Long2ObjectHashMap<>();
     }
 
@@ -78,6 +110,7 @@ public final class ServerStreamFactoryBuilder implements StreamFactoryBuilder
     @Override
     public StreamFactory build()
     {
-        return new ServerStreamFactory(context, router, writeBuffer, supplyStreamId, supplyCorrelationId, correlations);
+        return new ServerStreamFactory(supplyContext, executor, bufferPool, windowBudget, windowCoalescer, writeCoalescer,
+                recordSizing, sessionCache, counters, router, writeBuffer, supplyStreamId, supplyCorrelationId, correlations);
     }
 }
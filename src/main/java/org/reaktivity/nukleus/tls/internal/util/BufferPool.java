@@ -0,0 +1,93 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import static java.nio.ByteBuffer.allocateDirect;
+
+import java.nio.ByteBuffer;
+
+public final class BufferPool
+{
+    public static final int NO_SLOT = -1;
+
+    private final int slotCapacity;
+    private final ByteBuffer[] slotByteBuffers;
+    private final int[] availableSlots;
+
+    private int availableCount;
+
+    public BufferPool(
+        int slotCapacity,
+        int slotCount)
+    {
+        final ByteBuffer memory = allocateDirect(slotCapacity * slotCount);
+
+        this.slotCapacity = slotCapacity;
+        this.slotByteBuffers = new ByteBuffer[slotCount];
+        this.availableSlots = new int[slotCount];
+
+        for (int slot = 0; slot < slotCount; slot++)
+        {
+            memory.limit(slotCapacity * (slot + 1));
+            memory.position(slotCapacity * slot);
+            slotByteBuffers[slot] = memory.slice();
+            availableSlots[slot] = slotCount - 1 - slot;
+        }
+
+        this.availableCount = slotCount;
+    }
+
+    public int slotCapacity()
+    {
+        return slotCapacity;
+    }
+
+    public int acquiredSlots()
+    {
+        return slotByteBuffers.length - availableCount;
+    }
+
+    public int availableSlots()
+    {
+        return availableCount;
+    }
+
+    public int acquire()
+    {
+        int slot = NO_SLOT;
+
+        if (availableCount > 0)
+        {
+            slot = availableSlots[--availableCount];
+            slotByteBuffers[slot].clear();
+        }
+
+        return slot;
+    }
+
+    public ByteBuffer byteBuffer(
+        int slot)
+    {
+        return slotByteBuffers[slot];
+    }
+
+    public void release(
+        int slot)
+    {
+        assert slot != NO_SLOT;
+        availableSlots[availableCount++] = slot;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import static org.agrona.BufferUtil.ARRAY_BASE_OFFSET;
+
+import java.nio.ByteBuffer;
+
+import org.agrona.BufferUtil;
+import org.agrona.DirectBuffer;
+import org.agrona.MutableDirectBuffer;
+
+public final class ByteBufferView
+{
+    private final ByteBuffer copyBuffer;
+
+    private byte[] array;
+    private ByteBuffer arrayView;
+
+    private ByteBuffer direct;
+    private ByteBuffer directView;
+
+    private MutableDirectBuffer reserved;
+    private int reservedOffset;
+    private boolean reservedCopy;
+
+    public ByteBufferView(
+        ByteBuffer copyBuffer)
+    {
+        this.copyBuffer = copyBuffer;
+    }
+
+    public ByteBuffer wrap(
+        DirectBuffer buffer,
+        int offset,
+        int length)
+    {
+        ByteBuffer view = view(buffer, offset, length);
+
+        if (view == null)
+        {
+            view = copyBuffer;
+            view.clear();
+            buffer.getBytes(offset, view, length);
+            view.flip();
+        }
+
+        return view;
+    }
+
+    public ByteBuffer reserve(
+        MutableDirectBuffer buffer,
+        int offset,
+        int length)
+    {
+        ByteBuffer view = view(buffer, offset, length);
+
+        this.reserved = buffer;
+        this.reservedOffset = offset;
+        this.reservedCopy = view == null;
+
+        if (view == null)
+        {
+            view = copyBuffer;
+            view.clear();
+            view.limit(Math.min(length, view.capacity()));
+        }
+
+        return view;
+    }
+
+    public void commit(
+        int length)
+    {
+        if (reservedCopy && length > 0)
+        {
+            reserved.putBytes(reservedOffset, copyBuffer, 0, length);
+        }
+    }
+
+    private ByteBuffer view(
+        DirectBuffer buffer,
+        int offset,
+        int length)
+    {
+        final byte[] byteArray = buffer.byteArray();
+        final ByteBuffer byteBuffer = buffer.byteBuffer();
+
+        ByteBuffer view = null;
+        long base = -1L;
+
+        if (byteArray != null)
+        {
+            if (byteArray != array)
+            {
+                array = byteArray;
+                arrayView = ByteBuffer.wrap(byteArray);
+            }
+
+            view = arrayView;
+            base = buffer.addressOffset() - ARRAY_BASE_OFFSET;
+        }
+        else if (byteBuffer != null && byteBuffer.isDirect())
+        {
+            if (byteBuffer != direct)
+            {
+                direct = byteBuffer;
+                directView = byteBuffer.duplicate();
+            }
+
+            view = directView;
+            base = buffer.addressOffset() - BufferUtil.address(byteBuffer);
+        }
+
+        final long position = base + offset;
+        if (view != null && position >= 0L && position + length <= view.capacity())
+        {
+            view.clear();
+            view.position((int) position);
+            view.limit((int) position + length);
+        }
+        else
+        {
+            // memory not reachable via a ByteBuffer
+            view = null;
+        }
+
+        return view;
+    }
+}
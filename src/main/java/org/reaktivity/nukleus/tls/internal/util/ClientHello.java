@@ -0,0 +1,307 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import java.nio.ByteBuffer;
+
+import org.agrona.DirectBuffer;
+
+public final class ClientHello
+{
+    public static final int MALFORMED = -1;
+    public static final int INCOMPLETE = 0;
+    public static final int COMPLETE = 1;
+
+    private static final int RECORD_HEADER_SIZE = 5;
+    private static final int CONTENT_TYPE_HANDSHAKE = 22;
+    private static final int HANDSHAKE_TYPE_CLIENT_HELLO = 1;
+    private static final int RANDOM_SIZE = 32;
+
+    private static final int EXTENSION_SERVER_NAME = 0;
+    private static final int EXTENSION_ALPN = 16;
+
+    private static final int SERVER_NAME_TYPE_HOST_NAME = 0;
+
+    private int serverNameOffset;
+    private int serverNameLength;
+    private int protocolsOffset;
+    private int protocolsLength;
+
+    public int parse(
+        ByteBuffer buffer)
+    {
+        serverNameOffset = -1;
+        serverNameLength = 0;
+        protocolsOffset = -1;
+        protocolsLength = 0;
+
+        final int offset = buffer.position();
+        final int limit = buffer.limit();
+
+        if (limit - offset < RECORD_HEADER_SIZE)
+        {
+            return INCOMPLETE;
+        }
+
+        if (uint8(buffer, offset) != CONTENT_TYPE_HANDSHAKE)
+        {
+            return MALFORMED;
+        }
+
+        final int recordLimit = offset + RECORD_HEADER_SIZE + uint16(buffer, offset + 3);
+        if (recordLimit > limit)
+        {
+            return INCOMPLETE;
+        }
+
+        int progress = offset + RECORD_HEADER_SIZE;
+        if (progress + 4 > recordLimit || uint8(buffer, progress) != HANDSHAKE_TYPE_CLIENT_HELLO)
+        {
+            return MALFORMED;
+        }
+
+        final int helloLimit = progress + 4 + uint24(buffer, progress + 1);
+        if (helloLimit > recordLimit)
+        {
+            // client hello spans multiple records
+            return MALFORMED;
+        }
+
+        progress += 4 + 2 + RANDOM_SIZE;
+        if (progress + 1 > helloLimit)
+        {
+            return MALFORMED;
+        }
+        progress += 1 + uint8(buffer, progress);
+
+        if (progress + 2 > helloLimit)
+        {
+            return MALFORMED;
+        }
+        progress += 2 + uint16(buffer, progress);
+
+        if (progress + 1 > helloLimit)
+        {
+            return MALFORMED;
+        }
+        progress += 1 + uint8(buffer, progress);
+
+        if (progress + 2 <= helloLimit)
+        {
+            final int extensionsLimit = progress + 2 + uint16(buffer, progress);
+            if (extensionsLimit > helloLimit)
+            {
+                return MALFORMED;
+            }
+
+            progress += 2;
+            while (progress + 4 <= extensionsLimit)
+            {
+                final int type = uint16(buffer, progress);
+                final int length = uint16(buffer, progress + 2);
+                progress += 4;
+
+                if (progress + length > extensionsLimit)
+                {
+                    return MALFORMED;
+                }
+
+                switch (type)
+                {
+                case EXTENSION_SERVER_NAME:
+                    if (!parseServerName(buffer, progress, progress + length))
+                    {
+                        return MALFORMED;
+                    }
+                    break;
+                case EXTENSION_ALPN:
+                    if (length < 2 || 2 + uint16(buffer, progress) != length)
+                    {
+                        return MALFORMED;
+                    }
+                    protocolsOffset = progress + 2;
+                    protocolsLength = length - 2;
+                    break;
+                default:
+                    break;
+                }
+
+                progress += length;
+            }
+        }
+
+        return COMPLETE;
+    }
+
+    public boolean hasServerName()
+    {
+        return serverNameOffset != -1;
+    }
+
+    public int serverNameOffset()
+    {
+        return serverNameOffset;
+    }
+
+    public int serverNameLength()
+    {
+        return serverNameLength;
+    }
+
+    public String serverName(
+        ByteBuffer buffer)
+    {
+        String serverName = null;
+
+        if (serverNameOffset != -1)
+        {
+            final char[] chars = new char[serverNameLength];
+            for (int i = 0; i < serverNameLength; i++)
+            {
+                chars[i] = (char) uint8(buffer, serverNameOffset + i);
+            }
+            serverName = new String(chars);
+        }
+
+        return serverName;
+    }
+
+    public boolean hasProtocols()
+    {
+        return protocolsOffset != -1;
+    }
+
+    public boolean protocolOffered(
+        ByteBuffer buffer,
+        String protocol)
+    {
+        final int protocolsLimit = protocolsOffset + protocolsLength;
+
+        for (int progress = protocolsOffset; protocolsOffset != -1 && progress < protocolsLimit;)
+        {
+            final int length = uint8(buffer, progress++);
+
+            if (length == protocol.length() && progress + length <= protocolsLimit)
+            {
+                int i = 0;
+                while (i < length && uint8(buffer, progress + i) == protocol.charAt(i))
+                {
+                    i++;
+                }
+
+                if (i == length)
+                {
+                    return true;
+                }
+            }
+
+            progress += length;
+        }
+
+        return false;
+    }
+
+    public boolean protocolOffered(
+        ByteBuffer buffer,
+        DirectBuffer protocol,
+        int protocolOffset,
+        int protocolLength)
+    {
+        final int protocolsLimit = protocolsOffset + protocolsLength;
+
+        for (int progress = protocolsOffset; protocolsOffset != -1 && progress < protocolsLimit;)
+        {
+            final int length = uint8(buffer, progress++);
+
+            if (length == protocolLength && progress + length <= protocolsLimit)
+            {
+                int i = 0;
+                while (i < length && buffer.get(progress + i) == protocol.getByte(protocolOffset + i))
+                {
+                    i++;
+                }
+
+                if (i == length)
+                {
+                    return true;
+                }
+            }
+
+            progress += length;
+        }
+
+        return false;
+    }
+
+    private boolean parseServerName(
+        ByteBuffer buffer,
+        int offset,
+        int limit)
+    {
+        if (offset + 2 > limit || offset + 2 + uint16(buffer, offset) != limit)
+        {
+            return false;
+        }
+
+        for (int progress = offset + 2; progress < limit;)
+        {
+            if (progress + 3 > limit)
+            {
+                return false;
+            }
+
+            final int type = uint8(buffer, progress);
+            final int length = uint16(buffer, progress + 1);
+            progress += 3;
+
+            if (progress + length > limit)
+            {
+                return false;
+            }
+
+            if (type == SERVER_NAME_TYPE_HOST_NAME && serverNameOffset == -1)
+            {
+                serverNameOffset = progress;
+                serverNameLength = length;
+            }
+
+            progress += length;
+        }
+
+        return true;
+    }
+
+    private static int uint8(
+        ByteBuffer buffer,
+        int index)
+    {
+        return buffer.get(index) & 0xff;
+    }
+
+    private static int uint16(
+        ByteBuffer buffer,
+        int index)
+    {
+        return (uint8(buffer, index) << 8) | uint8(buffer, index + 1);
+    }
+
+    private static int uint24(
+        ByteBuffer buffer,
+        int index)
+    {
+        return (uint8(buffer, index) << 16) | uint16(buffer, index + 1);
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLEngine;
+
+import org.agrona.concurrent.ManyToOneConcurrentLinkedQueue;
+import org.reaktivity.nukleus.Nukleus;
+
+public final class DelegatedTaskExecutor implements Nukleus
+{
+    private final ExecutorService workers;
+    private final Queue<Runnable> completions;
+
+    public DelegatedTaskExecutor(
+        int parallelism)
+    {
+        this.workers = parallelism > 0 ? Executors.newFixedThreadPool(parallelism, new WorkerThreadFactory()) : null;
+        this.completions = new ManyToOneConcurrentLinkedQueue<>();
+    }
+
+    public void execute(
+        SSLEngine tlsEngine,
+        Consumer<RuntimeException> completion)
+    {
+        final Runnable task = () ->
+        {
+            RuntimeException failure = null;
+
+            try
+            {
+                runDelegatedTasks(tlsEngine);
+            }
+            catch (RuntimeException ex)
+            {
+                // handed to the completion so the handshake fails instead of waiting on the task
+                failure = ex;
+            }
+
+            final RuntimeException taskFailure = failure;
+            completions.offer(() -> completion.accept(taskFailure));
+        };
+
+        if (workers == null)
+        {
+            // completion still deferred to process(), avoids reentrant unwrap
+            task.run();
+        }
+        else
+        {
+            workers.execute(task);
+        }
+    }
+
+    @Override
+    public int process()
+    {
+        int workCount = 0;
+
+        for (Runnable completion = completions.poll();
+                completion != null;
+                completion = completions.poll())
+        {
+            completion.run();
+            workCount++;
+        }
+
+        return workCount;
+    }
+
+    @Override
+    public void close() throws Exception
+    {
+        if (workers != null)
+        {
+            workers.shutdownNow();
+        }
+    }
+
+    private static void runDelegatedTasks(
+        SSLEngine tlsEngine)
+    {
+        for (Runnable runnable = tlsEngine.getDelegatedTask();
+                runnable != null;
+                runnable = tlsEngine.getDelegatedTask())
+        {
+            runnable.run();
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threadIndex = new AtomicInteger();
+
+        @Override
+        public Thread newThread(
+            Runnable runnable)
+        {
+            final Thread thread = new Thread(runnable, String.format("tls-handshake-%d", threadIndex.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.MAX_PLAINTEXT_LENGTH;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public final class RecordSizing
+{
+    // distinct route settings kept for sharing, beyond that the settings of removed routes are dropped
+    private static final int ROUTES_MAX = 64;
+
+    private final int initialLength;
+    private final int routeInitialLength;
+    private final long rampBytes;
+    private final long idleNanos;
+    private final Map<RouteKey, RecordSizing> routes;
+    private final RouteKey routeKey;
+
+    public RecordSizing(
+        boolean dynamic,
+        int initialLength,
+        long rampBytes,
+        long idleMillis)
+    {
+        this.routeInitialLength = Math.max(Math.min(initialLength, MAX_PLAINTEXT_LENGTH), 1);
+        this.initialLength = dynamic ? routeInitialLength : MAX_PLAINTEXT_LENGTH;
+        this.rampBytes = rampBytes;
+        this.idleNanos = MILLISECONDS.toNanos(idleMillis);
+        this.routes = new HashMap<>();
+        this.routeKey = new RouteKey();
+    }
+
+    public RecordSizing route(
+        int initialLength,
+        long rampBytes,
+        long idleMillis)
+    {
+        // shared by every stream on routes with the same sizing, so stream setup does not allocate
+        RecordSizing recordSizing = routes.get(routeKey.wrap(initialLength, rampBytes, idleMillis));
+        if (recordSizing == null)
+        {
+            if (routes.size() >= ROUTES_MAX)
+            {
+                // routes are not announced to the nukleus when removed, so start over rather than grow,
+                // streams keep the sizing they already resolved
+                routes.clear();
+            }
+
+            // a route setting any of them always sizes records dynamically, whatever tls.record.dynamic says,
+            // and zero takes the nukleus-wide value, so tls.record.initial for the initial length
+            recordSizing = new RecordSizing(
+                    true,
+                    initialLength != 0 ? initialLength : routeInitialLength,
+                    rampBytes != 0L ? rampBytes : this.rampBytes,
+                    idleMillis != 0L ? idleMillis : NANOSECONDS.toMillis(idleNanos));
+            routes.put(new RouteKey().wrap(initialLength, rampBytes, idleMillis), recordSizing);
+        }
+
+        return recordSizing;
+    }
+
+    public boolean dynamic()
+    {
+        return initialLength < MAX_PLAINTEXT_LENGTH;
+    }
+
+    public int minimumLength()
+    {
+        return initialLength;
+    }
+
+    public int recordLength(
+        long bytesWritten)
+    {
+        // small records until the stream is clearly moving bulk data
+        return bytesWritten < rampBytes ? initialLength : MAX_PLAINTEXT_LENGTH;
+    }
+
+    public boolean idle(
+        long writtenAt,
+        long now)
+    {
+        return now - writtenAt > idleNanos;
+    }
+
+    private static final class RouteKey
+    {
+        private int initialLength;
+        private long rampBytes;
+        private long idleMillis;
+
+        private RouteKey wrap(
+            int initialLength,
+            long rampBytes,
+            long idleMillis)
+        {
+            this.initialLength = initialLength;
+            this.rampBytes = rampBytes;
+            this.idleMillis = idleMillis;
+            return this;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = initialLength;
+            result = 31 * result + Long.hashCode(rampBytes);
+            result = 31 * result + Long.hashCode(idleMillis);
+            return result;
+        }
+
+        @Override
+        public boolean equals(
+            Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+
+            if (!(obj instanceof RouteKey))
+            {
+                return false;
+            }
+
+            final RouteKey that = (RouteKey) obj;
+            return this.initialLength == that.initialLength &&
+                    this.rampBytes == that.rampBytes &&
+                    this.idleMillis == that.idleMillis;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import java.nio.ByteBuffer;
+
+public final class ServerHello
+{
+    public static final int INCOMPLETE = 0;
+    public static final int FULL = 1;
+    public static final int RESUMED = 2;
+
+    // server hello of TLS 1.2 or earlier, the messages that follow tell a resumption apart
+    public static final int LEGACY = 3;
+
+    private static final int RECORD_HEADER_SIZE = 5;
+    private static final int CONTENT_TYPE_CHANGE_CIPHER_SPEC = 20;
+    private static final int CONTENT_TYPE_HANDSHAKE = 22;
+    private static final int HANDSHAKE_TYPE_SERVER_HELLO = 2;
+    private static final int HANDSHAKE_TYPE_NEW_SESSION_TICKET = 4;
+    private static final int RANDOM_SIZE = 32;
+
+    private static final int EXTENSION_PRE_SHARED_KEY = 41;
+    private static final int EXTENSION_SUPPORTED_VERSIONS = 43;
+
+    // leading bytes of the fixed random that marks a hello retry request
+    private static final int HELLO_RETRY_REQUEST_RANDOM_0 = 0xcf21ad74;
+    private static final int HELLO_RETRY_REQUEST_RANDOM_1 = 0xe59a6111;
+
+    public int parse(
+        ByteBuffer buffer,
+        int offset,
+        int limit,
+        int status)
+    {
+        int progress = offset;
+        while ((status == INCOMPLETE || status == LEGACY) && progress + RECORD_HEADER_SIZE <= limit)
+        {
+            final int type = uint8(buffer, progress);
+            final int recordLimit = progress + RECORD_HEADER_SIZE + uint16(buffer, progress + 3);
+
+            if (recordLimit > limit)
+            {
+                break;
+            }
+
+            if (type == CONTENT_TYPE_HANDSHAKE)
+            {
+                status = parseHandshake(buffer, progress + RECORD_HEADER_SIZE, recordLimit, status);
+            }
+            else if (type == CONTENT_TYPE_CHANGE_CIPHER_SPEC && status == LEGACY)
+            {
+                // an abbreviated handshake changes cipher spec right after the server hello
+                status = RESUMED;
+            }
+
+            progress = recordLimit;
+        }
+
+        return status;
+    }
+
+    private int parseHandshake(
+        ByteBuffer buffer,
+        int offset,
+        int limit,
+        int status)
+    {
+        int progress = offset;
+        while ((status == INCOMPLETE || status == LEGACY) && progress + 4 <= limit)
+        {
+            final int type = uint8(buffer, progress);
+            final int messageLimit = progress + 4 + uint24(buffer, progress + 1);
+
+            if (status == LEGACY)
+            {
+                // a full handshake continues with the server certificate, an abbreviated one may issue a ticket
+                status = type == HANDSHAKE_TYPE_NEW_SESSION_TICKET ? RESUMED : FULL;
+            }
+            else if (type == HANDSHAKE_TYPE_SERVER_HELLO && messageLimit <= limit)
+            {
+                status = parseServerHello(buffer, progress + 4, messageLimit);
+            }
+
+            progress = messageLimit;
+        }
+
+        return status;
+    }
+
+    private int parseServerHello(
+        ByteBuffer buffer,
+        int offset,
+        int limit)
+    {
+        int progress = offset + 2;
+        if (progress + RANDOM_SIZE + 1 > limit)
+        {
+            return INCOMPLETE;
+        }
+
+        if (int32(buffer, progress) == HELLO_RETRY_REQUEST_RANDOM_0 &&
+            int32(buffer, progress + 4) == HELLO_RETRY_REQUEST_RANDOM_1)
+        {
+            // the server hello follows the second client hello
+            return INCOMPLETE;
+        }
+
+        // skips session id, cipher suite and compression method
+        progress += RANDOM_SIZE;
+        progress += 1 + uint8(buffer, progress) + 2 + 1;
+
+        boolean negotiatedTls13 = false;
+        boolean acceptedPreSharedKey = false;
+
+        if (progress + 2 <= limit)
+        {
+            final int extensionsLimit = Math.min(progress + 2 + uint16(buffer, progress), limit);
+
+            progress += 2;
+            while (progress + 4 <= extensionsLimit)
+            {
+                final int type = uint16(buffer, progress);
+                final int length = uint16(buffer, progress + 2);
+
+                negotiatedTls13 |= type == EXTENSION_SUPPORTED_VERSIONS;
+                acceptedPreSharedKey |= type == EXTENSION_PRE_SHARED_KEY;
+
+                progress += 4 + length;
+            }
+        }
+
+        return negotiatedTls13 ? (acceptedPreSharedKey ? RESUMED : FULL) : LEGACY;
+    }
+
+    private static int uint8(
+        ByteBuffer buffer,
+        int index)
+    {
+        return buffer.get(index) & 0xff;
+    }
+
+    private static int uint16(
+        ByteBuffer buffer,
+        int index)
+    {
+        return (uint8(buffer, index) << 8) | uint8(buffer, index + 1);
+    }
+
+    private static int uint24(
+        ByteBuffer buffer,
+        int index)
+    {
+        return (uint8(buffer, index) << 16) | uint16(buffer, index + 1);
+    }
+
+    private static int int32(
+        ByteBuffer buffer,
+        int index)
+    {
+        return (uint16(buffer, index) << 16) | uint16(buffer, index + 2);
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+public final class SniKeyManager extends X509ExtendedKeyManager
+{
+    private static final int SUBJECT_ALT_NAME_DNS = 2;
+
+    private final X509ExtendedKeyManager delegate;
+    private final Map<String, Map<String, String>> exactAliases;
+    private final Map<String, Map<String, String>> wildcardAliases;
+
+    public SniKeyManager(
+        KeyStore keyStore,
+        X509ExtendedKeyManager delegate) throws KeyStoreException
+    {
+        this.delegate = delegate;
+        this.exactAliases = new HashMap<>();
+        this.wildcardAliases = new HashMap<>();
+
+        for (Enumeration<String> aliases = keyStore.aliases(); aliases.hasMoreElements();)
+        {
+            final String alias = aliases.nextElement();
+            final Certificate certificate = keyStore.getCertificate(alias);
+
+            if (keyStore.isKeyEntry(alias) && certificate instanceof X509Certificate)
+            {
+                index((X509Certificate) certificate, alias);
+            }
+        }
+    }
+
+    @Override
+    public String chooseEngineServerAlias(
+        String keyType,
+        Principal[] issuers,
+        SSLEngine engine)
+    {
+        final String hostname = requestedHostname(engine);
+
+        Map<String, String> aliasesByKeyAlgorithm = null;
+        if (hostname != null)
+        {
+            aliasesByKeyAlgorithm = exactAliases.get(hostname);
+
+            final int dot = hostname.indexOf('.');
+            if (aliasesByKeyAlgorithm == null && dot != -1)
+            {
+                aliasesByKeyAlgorithm = wildcardAliases.get(hostname.substring(dot + 1));
+            }
+        }
+
+        // indexed hostnames only ever select their own key entries, null lets the engine try the next key type
+        return aliasesByKeyAlgorithm != null ? aliasesByKeyAlgorithm.get(keyAlgorithm(keyType))
+                                             : delegate.chooseEngineServerAlias(keyType, issuers, engine);
+    }
+
+    @Override
+    public String chooseEngineClientAlias(
+        String[] keyTypes,
+        Principal[] issuers,
+        SSLEngine engine)
+    {
+        return delegate.chooseEngineClientAlias(keyTypes, issuers, engine);
+    }
+
+    @Override
+    public String[] getClientAliases(
+        String keyType,
+        Principal[] issuers)
+    {
+        return delegate.getClientAliases(keyType, issuers);
+    }
+
+    @Override
+    public String chooseClientAlias(
+        String[] keyTypes,
+        Principal[] issuers,
+        Socket socket)
+    {
+        return delegate.chooseClientAlias(keyTypes, issuers, socket);
+    }
+
+    @Override
+    public String[] getServerAliases(
+        String keyType,
+        Principal[] issuers)
+    {
+        return delegate.getServerAliases(keyType, issuers);
+    }
+
+    @Override
+    public String chooseServerAlias(
+        String keyType,
+        Principal[] issuers,
+        Socket socket)
+    {
+        return delegate.chooseServerAlias(keyType, issuers, socket);
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(
+        String alias)
+    {
+        return delegate.getCertificateChain(alias);
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(
+        String alias)
+    {
+        return delegate.getPrivateKey(alias);
+    }
+
+    private void index(
+        X509Certificate certificate,
+        String alias)
+    {
+        final String keyAlgorithm = certificate.getPublicKey().getAlgorithm();
+
+        boolean indexed = false;
+        try
+        {
+            final Collection<List<?>> subjectAltNames = certificate.getSubjectAlternativeNames();
+            if (subjectAltNames != null)
+            {
+                for (List<?> subjectAltName : subjectAltNames)
+                {
+                    if (((Integer) subjectAltName.get(0)) == SUBJECT_ALT_NAME_DNS)
+                    {
+                        index((String) subjectAltName.get(1), keyAlgorithm, alias);
+                        indexed = true;
+                    }
+                }
+            }
+        }
+        catch (CertificateParsingException ex)
+        {
+            // fall back to common name
+        }
+
+        if (!indexed)
+        {
+            try
+            {
+                final LdapName subject = new LdapName(certificate.getSubjectX500Principal().getName());
+                for (Rdn rdn : subject.getRdns())
+                {
+                    if ("CN".equalsIgnoreCase(rdn.getType()))
+                    {
+                        index(rdn.getValue().toString(), keyAlgorithm, alias);
+                    }
+                }
+            }
+            catch (InvalidNameException ex)
+            {
+                // not indexed, only reachable via delegate
+            }
+        }
+    }
+
+    private void index(
+        String name,
+        String keyAlgorithm,
+        String alias)
+    {
+        final String hostname = name.toLowerCase(Locale.ROOT);
+
+        final Map<String, Map<String, String>> aliases;
+        final String key;
+        if (hostname.startsWith("*."))
+        {
+            aliases = wildcardAliases;
+            key = hostname.substring(2);
+        }
+        else
+        {
+            aliases = exactAliases;
+            key = hostname;
+        }
+
+        // first key entry for a given hostname and key algorithm wins
+        aliases.computeIfAbsent(key, k -> new HashMap<>()).putIfAbsent(keyAlgorithm, alias);
+    }
+
+    private static String keyAlgorithm(
+        String keyType)
+    {
+        // key types such as EC_RSA name the certificate key algorithm first
+        final int separator = keyType.indexOf('_');
+        return separator != -1 ? keyType.substring(0, separator) : keyType;
+    }
+
+    private static String requestedHostname(
+        SSLEngine engine)
+    {
+        final SSLSession handshakeSession = engine != null ? engine.getHandshakeSession() : null;
+
+        String hostname = null;
+        if (handshakeSession instanceof ExtendedSSLSession)
+        {
+            final List<SNIServerName> serverNames = ((ExtendedSSLSession) handshakeSession).getRequestedServerNames();
+            for (SNIServerName serverName : serverNames)
+            {
+                if (serverName instanceof SNIHostName)
+                {
+                    hostname = ((SNIHostName) serverName).getAsciiName().toLowerCase(Locale.ROOT);
+                    break;
+                }
+            }
+        }
+
+        return hostname;
+    }
+}
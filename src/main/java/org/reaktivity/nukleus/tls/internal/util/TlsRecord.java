@@ -0,0 +1,195 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLSession;
+
+public final class TlsRecord
+{
+    public static final int MAX_PLAINTEXT_LENGTH = 16384;
+    public static final int MAX_RECORD_LENGTH = 5 + MAX_PLAINTEXT_LENGTH + 2048;
+
+    private static final int HEADER_LENGTH = 5;
+    private static final int CONTENT_TYPE_LENGTH = 1;
+    private static final int EXPLICIT_NONCE_LENGTH = 8;
+    private static final int AEAD_TAG_LENGTH = 16;
+    private static final int AEAD_SHORT_TAG_LENGTH = 8;
+    private static final int TLS13_PADDING_LENGTH = 16;
+
+    private TlsRecord()
+    {
+        // utility class
+    }
+
+    public static int overhead(
+        SSLSession session)
+    {
+        return overhead(session, true);
+    }
+
+    public static int minimumOverhead(
+        SSLSession session)
+    {
+        return overhead(session, false);
+    }
+
+    public static int length(
+        ByteBuffer buffer)
+    {
+        return length(buffer, buffer.position(), buffer.limit());
+    }
+
+    public static int length(
+        ByteBuffer buffer,
+        int offset,
+        int limit)
+    {
+        return limit - offset >= HEADER_LENGTH ? HEADER_LENGTH + (buffer.getShort(offset + 3) & 0xffff) : 0;
+    }
+
+    public static int ciphertextLength(
+        int plaintextLength,
+        int overhead)
+    {
+        return ciphertextLength(plaintextLength, MAX_PLAINTEXT_LENGTH, overhead);
+    }
+
+    public static int ciphertextLength(
+        int plaintextLength,
+        int recordLength,
+        int overhead)
+    {
+        final int records = (plaintextLength + recordLength - 1) / recordLength;
+        return plaintextLength + records * overhead;
+    }
+
+    public static int plaintextLength(
+        int ciphertextLength,
+        int frames,
+        int overhead)
+    {
+        return plaintextLength(ciphertextLength, frames, MAX_PLAINTEXT_LENGTH, overhead);
+    }
+
+    public static int plaintextLength(
+        int ciphertextLength,
+        int frames,
+        int recordLength,
+        int overhead)
+    {
+        // every frame starts a new record, and every full record adds one more
+        final long plaintextLength = (ciphertextLength - (long) frames * overhead) * recordLength /
+                (recordLength + overhead);
+
+        return (int) Math.max(plaintextLength, 0L);
+    }
+
+    public static int frames(
+        int ciphertextLength,
+        int plaintextLength,
+        int overhead)
+    {
+        return frames(ciphertextLength, plaintextLength, MAX_PLAINTEXT_LENGTH, overhead);
+    }
+
+    public static int frames(
+        int ciphertextLength,
+        int plaintextLength,
+        int recordLength,
+        int overhead)
+    {
+        // frames that can each start a new record once the plaintext and its full records are paid for
+        final int records = plaintextLength / recordLength;
+        return Math.max((ciphertextLength - plaintextLength - records * overhead) / overhead, 0);
+    }
+
+    private static int overhead(
+        SSLSession session,
+        boolean maxPadding)
+    {
+        final String protocol = session.getProtocol();
+        final String cipherSuite = session.getCipherSuite();
+
+        final int tagLength = cipherSuite.endsWith("_CCM_8") || cipherSuite.contains("_CCM_8_")
+                ? AEAD_SHORT_TAG_LENGTH : AEAD_TAG_LENGTH;
+
+        int overhead;
+        if ("TLSv1.3".equals(protocol))
+        {
+            // SunJSSE pads TLSv1.3 records below the plaintext limit by up to one block
+            overhead = HEADER_LENGTH + CONTENT_TYPE_LENGTH + tagLength + (maxPadding ? TLS13_PADDING_LENGTH : 0);
+        }
+        else if (cipherSuite.contains("_CHACHA20_POLY1305_"))
+        {
+            overhead = HEADER_LENGTH + tagLength;
+        }
+        else if (cipherSuite.contains("_GCM_") || cipherSuite.contains("_CCM"))
+        {
+            overhead = HEADER_LENGTH + EXPLICIT_NONCE_LENGTH + tagLength;
+        }
+        else if (cipherSuite.contains("_CBC_"))
+        {
+            final int blockLength = cipherSuite.contains("_3DES_") || cipherSuite.contains("_DES_") ? 8 : 16;
+            final boolean implicitIv = "TLSv1".equals(protocol) || "SSLv3".equals(protocol);
+            final int ivLength = implicitIv ? 0 : blockLength;
+
+            // padding fills up to one whole block, including the padding length byte
+            overhead = HEADER_LENGTH + ivLength + macLength(cipherSuite) + (maxPadding ? blockLength : 1);
+
+            if (implicitIv && maxPadding)
+            {
+                // 1/n-1 record splitting sends the first plaintext byte in a record of its own
+                overhead <<= 1;
+            }
+        }
+        else if (cipherSuite.contains("_WITH_"))
+        {
+            // stream and NULL ciphers
+            overhead = HEADER_LENGTH + macLength(cipherSuite);
+        }
+        else
+        {
+            overhead = maxPadding ? session.getPacketBufferSize() - session.getApplicationBufferSize() : HEADER_LENGTH;
+        }
+
+        return overhead;
+    }
+
+    private static int macLength(
+        String cipherSuite)
+    {
+        int macLength;
+        if (cipherSuite.endsWith("_SHA384"))
+        {
+            macLength = 48;
+        }
+        else if (cipherSuite.endsWith("_SHA256"))
+        {
+            macLength = 32;
+        }
+        else if (cipherSuite.endsWith("_MD5"))
+        {
+            macLength = 16;
+        }
+        else
+        {
+            macLength = 20;
+        }
+        return macLength;
+    }
+}
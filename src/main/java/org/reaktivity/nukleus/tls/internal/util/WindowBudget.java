@@ -0,0 +1,60 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+public final class WindowBudget
+{
+    private final int initialWindow;
+    private final int maxWindow;
+
+    private long available;
+
+    public WindowBudget(
+        int initialWindow,
+        int maxWindow,
+        long budget)
+    {
+        this.initialWindow = initialWindow;
+        this.maxWindow = Math.max(maxWindow, initialWindow);
+        this.available = budget;
+    }
+
+    public int initialWindow()
+    {
+        return initialWindow;
+    }
+
+    public int grow(
+        int window)
+    {
+        // double the window, at most up to the per stream maximum and the remaining shared budget
+        final int growth = (int) Math.min(Math.min(window, maxWindow - window), available);
+
+        if (growth > 0)
+        {
+            available -= growth;
+        }
+
+        return window + Math.max(growth, 0);
+    }
+
+    public int release(
+        int window)
+    {
+        available += window - initialWindow;
+        return initialWindow;
+    }
+}
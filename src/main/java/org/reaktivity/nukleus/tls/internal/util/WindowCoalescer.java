@@ -0,0 +1,80 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import org.reaktivity.nukleus.Nukleus;
+
+public final class WindowCoalescer implements Nukleus
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int thresholdPercent;
+
+    private Runnable[] flushes;
+    private Runnable[] flushing;
+    private int size;
+
+    public WindowCoalescer(
+        int thresholdPercent)
+    {
+        this.thresholdPercent = thresholdPercent;
+        this.flushes = new Runnable[INITIAL_CAPACITY];
+        this.flushing = new Runnable[INITIAL_CAPACITY];
+    }
+
+    public boolean deferred(
+        int update,
+        int window)
+    {
+        return update * 100L < (long) window * thresholdPercent;
+    }
+
+    public void schedule(
+        Runnable flush)
+    {
+        if (size == flushes.length)
+        {
+            final Runnable[] newFlushes = new Runnable[size << 1];
+            System.arraycopy(flushes, 0, newFlushes, 0, size);
+            flushes = newFlushes;
+        }
+
+        flushes[size++] = flush;
+    }
+
+    @Override
+    public int process()
+    {
+        final int workCount = size;
+
+        if (workCount > 0)
+        {
+            // flushes scheduled while flushing wait for the next duty cycle
+            final Runnable[] flushing = flushes;
+            flushes = this.flushing.length >= flushing.length ? this.flushing : new Runnable[flushing.length];
+            this.flushing = flushing;
+            size = 0;
+
+            for (int i = 0; i < workCount; i++)
+            {
+                flushing[i].run();
+                flushing[i] = null;
+            }
+        }
+
+        return workCount;
+    }
+}
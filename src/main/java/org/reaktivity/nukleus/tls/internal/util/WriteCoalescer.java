@@ -0,0 +1,103 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import org.reaktivity.nukleus.Nukleus;
+
+public final class WriteCoalescer implements Nukleus
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final boolean enabled;
+    private final long delayNanos;
+
+    private Runnable[] flushes;
+    private long[] deadlines;
+    private int head;
+    private int size;
+
+    public WriteCoalescer(
+        boolean enabled,
+        long delayMicros)
+    {
+        this.enabled = enabled;
+        this.delayNanos = MICROSECONDS.toNanos(delayMicros);
+        this.flushes = new Runnable[INITIAL_CAPACITY];
+        this.deadlines = new long[INITIAL_CAPACITY];
+    }
+
+    public boolean enabled()
+    {
+        return enabled;
+    }
+
+    public void schedule(
+        Runnable flush)
+    {
+        if (size == flushes.length)
+        {
+            grow();
+        }
+
+        // without a delay, writes are flushed at the end of the current duty cycle
+        final int index = (head + size) & (flushes.length - 1);
+        flushes[index] = flush;
+        deadlines[index] = delayNanos != 0L ? System.nanoTime() + delayNanos : 0L;
+        size++;
+    }
+
+    @Override
+    public int process()
+    {
+        final long now = delayNanos != 0L ? System.nanoTime() : 0L;
+
+        int workCount = 0;
+
+        // same delay for every write, so deadlines are already in order
+        while (size > 0 && deadlines[head] - now <= 0L)
+        {
+            final Runnable flush = flushes[head];
+            flushes[head] = null;
+            head = (head + 1) & (flushes.length - 1);
+            size--;
+
+            flush.run();
+            workCount++;
+        }
+
+        return workCount;
+    }
+
+    private void grow()
+    {
+        final int capacity = flushes.length;
+        final Runnable[] newFlushes = new Runnable[capacity << 1];
+        final long[] newDeadlines = new long[capacity << 1];
+
+        for (int i = 0; i < size; i++)
+        {
+            final int index = (head + i) & (capacity - 1);
+            newFlushes[i] = flushes[index];
+            newDeadlines[i] = deadlines[index];
+        }
+
+        this.flushes = newFlushes;
+        this.deadlines = newDeadlines;
+        this.head = 0;
+    }
+}
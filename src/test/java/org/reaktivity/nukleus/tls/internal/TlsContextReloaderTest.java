@@ -0,0 +1,184 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal;
+
+import static java.util.Collections.singleton;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import javax.net.ssl.SSLContext;
+
+import org.agrona.LangUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TlsContextReloaderTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<SSLContext> reloaded = new ArrayList<>();
+
+    private TlsCounters counters;
+    private TlsContextReloader reloader;
+    private SSLContext initial;
+    private Path keys;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        counters = new TlsCounters(folder.newFile("counters").toPath(), 4, 4);
+        initial = newContext();
+        keys = folder.newFile("keys").toPath();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (reloader != null)
+        {
+            reloader.close();
+        }
+        counters.close();
+    }
+
+    @Test
+    public void shouldReloadContextWhenWatchedFileChanges() throws Exception
+    {
+        reloader = new TlsContextReloader(initial, TlsContextReloaderTest::newContext, reloaded::add, singleton(keys),
+                true, counters);
+
+        assertSame(initial, reloader.context());
+
+        Files.write(keys, new byte[] { 1 });
+
+        assertEquals(1, awaitProcess(() -> reloaded.size()));
+        assertNotSame(initial, reloader.context());
+        assertSame(reloaded.get(0), reloader.context());
+        assertEquals(1L, counters.counter("context.reloads").get());
+        assertEquals(0L, counters.counter("context.reload.failures").get());
+    }
+
+    @Test
+    public void shouldCoalesceBurstOfChangesIntoOneReload() throws Exception
+    {
+        reloader = new TlsContextReloader(initial, TlsContextReloaderTest::newContext, reloaded::add, singleton(keys),
+                true, counters);
+
+        // a keystore rewrite usually lands as several modify events
+        for (int i = 0; i < 4; i++)
+        {
+            Files.write(keys, new byte[] { (byte) i });
+        }
+
+        assertEquals(1, awaitProcess(() -> reloaded.size()));
+        LockSupport.parkNanos(MILLISECONDS.toNanos(500L));
+        assertEquals(0, reloader.process());
+        assertEquals(1L, counters.counter("context.reloads").get());
+    }
+
+    @Test
+    public void shouldIgnoreChangesToUnwatchedFiles() throws Exception
+    {
+        reloader = new TlsContextReloader(initial, TlsContextReloaderTest::newContext, reloaded::add, singleton(keys),
+                true, counters);
+
+        Files.write(folder.newFile("other").toPath(), new byte[] { 1 });
+        LockSupport.parkNanos(MILLISECONDS.toNanos(500L));
+
+        assertEquals(0, reloader.process());
+        assertSame(initial, reloader.context());
+
+        Files.write(keys, new byte[] { 1 });
+
+        assertEquals(1, awaitProcess(() -> reloaded.size()));
+    }
+
+    @Test
+    public void shouldKeepContextWhenReloadFails() throws Exception
+    {
+        reloader = new TlsContextReloader(initial,
+            () ->
+            {
+                throw new IllegalStateException("keystore incomplete");
+            },
+            reloaded::add, singleton(keys), true, counters);
+
+        Files.write(keys, new byte[] { 1 });
+
+        assertEquals(1L, awaitProcess(() -> counters.counter("context.reload.failures").get()));
+        assertSame(initial, reloader.context());
+        assertEquals(0L, counters.counter("context.reloads").get());
+        assertEquals(0, reloaded.size());
+    }
+
+    @Test
+    public void shouldNotReloadWhenWatchDisabled() throws Exception
+    {
+        reloader = new TlsContextReloader(initial, TlsContextReloaderTest::newContext, reloaded::add, singleton(keys),
+                false, counters);
+
+        Files.write(keys, new byte[] { 1 });
+        LockSupport.parkNanos(MILLISECONDS.toNanos(500L));
+
+        assertEquals(0, reloader.process());
+        assertSame(initial, reloader.context());
+    }
+
+    private long awaitProcess(
+        LongSupplier condition)
+    {
+        final long deadline = System.nanoTime() + SECONDS.toNanos(10L);
+
+        while (condition.getAsLong() == 0L && System.nanoTime() < deadline)
+        {
+            reloader.process();
+            LockSupport.parkNanos(MILLISECONDS.toNanos(10L));
+        }
+
+        return condition.getAsLong();
+    }
+
+    private static SSLContext newContext()
+    {
+        SSLContext context = null;
+
+        try
+        {
+            context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+        }
+        catch (Exception ex)
+        {
+            LangUtil.rethrowUnchecked(ex);
+        }
+
+        return context;
+    }
+}
@@ -0,0 +1,410 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static org.agrona.concurrent.status.CountersReader.COUNTER_LENGTH;
+import static org.agrona.concurrent.status.CountersReader.MAX_LABEL_LENGTH;
+import static org.agrona.concurrent.status.CountersReader.METADATA_LENGTH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.agrona.DirectBuffer;
+import org.agrona.IoUtil;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.agrona.concurrent.status.CountersReader;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.reaktivity.nukleus.function.MessageConsumer;
+import org.reaktivity.nukleus.function.MessageFunction;
+import org.reaktivity.nukleus.function.MessagePredicate;
+import org.reaktivity.nukleus.route.RouteHandler;
+import org.reaktivity.nukleus.tls.internal.types.control.Role;
+import org.reaktivity.nukleus.tls.internal.types.control.RouteFW;
+import org.reaktivity.nukleus.tls.internal.types.control.TlsRouteExFW;
+
+public class TlsCountersTest
+{
+    private final RouteFW.Builder routeRW = new RouteFW.Builder();
+    private final TlsRouteExFW.Builder tlsRouteExRW = new TlsRouteExFW.Builder();
+    private final List<DirectBuffer> routes = new ArrayList<>();
+    private final RouteHandler router = new TestRouteHandler();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private TlsCounters counters;
+    private Path path;
+
+    @After
+    public void tearDown()
+    {
+        counters.close();
+    }
+
+    @Test
+    public void shouldReuseRouteCountersForSameRoute() throws Exception
+    {
+        counters = newCounters(4);
+
+        final TlsRouteCounters routeCounters = counters.routeCounters("server", route(1L, 0, "example.com"), router);
+
+        assertSame(routeCounters, counters.routeCounters("server", route(2L, 64, "example.com"), router));
+        assertNotSame(routeCounters, counters.routeCounters("server", route(3L, 0, "other.example.com"), router));
+        assertNotSame(routeCounters, counters.routeCounters("client", route(Role.CLIENT, 4L, 0, "example.com"), router));
+    }
+
+    @Test
+    public void shouldShareOverflowCountersBeyondRoutes() throws Exception
+    {
+        counters = newCounters(2);
+
+        final List<TlsRouteCounters> routeCounters = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+        {
+            routeCounters.add(counters.routeCounters("server", route(i, 0, "host" + i + ".example.com"), router));
+        }
+
+        // two routes and the unused unrouted reservation get their own counters
+        assertNotSame(routeCounters.get(0), routeCounters.get(1));
+        assertNotSame(routeCounters.get(1), routeCounters.get(2));
+        for (int i = 4; i < routeCounters.size(); i++)
+        {
+            assertSame(routeCounters.get(3), routeCounters.get(i));
+        }
+
+        routeCounters.get(7).handshakesStarted.orderedIncrement();
+        assertEquals(1L, routeCounters.get(3).handshakesStarted.get());
+    }
+
+    @Test
+    public void shouldShareHandshakeHistogramsPerRole() throws Exception
+    {
+        counters = newCounters(2);
+
+        final TlsHandshakeHistograms server = counters.handshakeHistograms("server");
+        final TlsHandshakeHistograms client = counters.handshakeHistograms("client");
+
+        assertSame(server, counters.handshakeHistograms("server"));
+        assertNotSame(server, client);
+
+        // histograms for both roles leave every sized route its own counters
+        final TlsRouteCounters unrouted = counters.routeCounters("server.unrouted");
+        final TlsRouteCounters first = counters.routeCounters("server", route(1L, 0, "a.example.com"), router);
+        final TlsRouteCounters second = counters.routeCounters("client", route(Role.CLIENT, 2L, 0, "b.example.com"), router);
+
+        assertNotSame(unrouted, first);
+        assertNotSame(first, second);
+
+        first.handshakesStarted.orderedIncrement();
+        assertEquals(0L, unrouted.handshakesStarted.get());
+        assertEquals(0L, second.handshakesStarted.get());
+    }
+
+    @Test
+    public void shouldAllocateHandshakeHistogramsPerRouteWhileRoomAllows() throws Exception
+    {
+        counters = newCounters(4, 1);
+
+        final TlsHandshakeHistograms server = counters.handshakeHistograms("server");
+        final TlsRouteCounters unrouted = counters.routeCounters("server.unrouted");
+        final TlsRouteCounters first = counters.routeCounters("server", route(1L, 0, "a.example.com"), router);
+        final TlsRouteCounters second = counters.routeCounters("server", route(2L, 0, "b.example.com"), router);
+
+        final TlsHandshakeHistograms firstHistograms = counters.handshakeHistograms("server", first);
+
+        assertNotSame(server, firstHistograms);
+        assertSame(firstHistograms, counters.handshakeHistograms("server", first));
+        assertSame(server, counters.handshakeHistograms("server", second));
+        assertSame(server, counters.handshakeHistograms("server", unrouted));
+
+        // histograms of a removed route are freed with its counters
+        counters.routeCounters("server", route(3L, 0, "c.example.com"), router);
+        counters.routeCounters("server", route(4L, 0, "d.example.com"), router);
+        routes.remove(0);
+        counters.routeCounters("server", route(5L, 0, "e.example.com"), router);
+
+        final TlsHandshakeHistograms secondHistograms = counters.handshakeHistograms("server", second);
+
+        assertNotSame(server, secondHistograms);
+        assertNotSame(firstHistograms, secondHistograms);
+    }
+
+    @Test
+    public void shouldTruncateLongHostnameLabels() throws Exception
+    {
+        counters = newCounters(4);
+
+        final StringBuilder hostname = new StringBuilder();
+        while (hostname.length() < 250)
+        {
+            hostname.append("label.");
+        }
+        hostname.append("example.com");
+
+        final TlsRouteCounters routeCounters = counters.routeCounters("server", route(1L, 0, hostname.toString()), router);
+        routeCounters.handshakesStarted.orderedIncrement();
+
+        final List<String> labels = labels();
+
+        assertTrue(labels.stream().anyMatch(l -> l.startsWith("server.net.1.app.2.label.") && l.endsWith(".handshakes.started")));
+        assertTrue(labels.stream().allMatch(l -> l.length() <= MAX_LABEL_LENGTH));
+    }
+
+    @Test
+    public void shouldTellTruncatedLabelsApart() throws Exception
+    {
+        counters = newCounters(4);
+
+        final StringBuilder hostname = new StringBuilder();
+        while (hostname.length() < 250)
+        {
+            hostname.append("\u00fcber.");
+        }
+
+        counters.routeCounters("server", route(1L, 0, hostname + "a.example.com"), router);
+        counters.routeCounters("server", route(2L, 0, hostname + "b.example.com"), router);
+
+        final List<String> started = new ArrayList<>();
+        for (String label : labels())
+        {
+            if (label.startsWith("server.net.1.app.2.") && label.endsWith(".handshakes.started"))
+            {
+                started.add(label);
+            }
+        }
+
+        // cut at a character boundary, with a suffix telling the routes apart
+        assertEquals(2, started.size());
+        assertNotEquals(started.get(0), started.get(1));
+        assertTrue(started.stream().noneMatch(l -> l.indexOf('\ufffd') != -1));
+        assertTrue(started.stream().allMatch(l -> l.getBytes(UTF_8).length <= MAX_LABEL_LENGTH));
+    }
+
+    @Test
+    public void shouldNotShareRouteCountersBetweenRoutesOfSameLabel() throws Exception
+    {
+        counters = newCounters(4);
+
+        final StringBuilder hostname = new StringBuilder();
+        while (hostname.length() < 250)
+        {
+            hostname.append("label.");
+        }
+
+        // both hostnames are truncated to the same label, but remain different routes
+        final TlsRouteCounters first = counters.routeCounters("server", route(1L, 0, hostname + "a.example.com"), router);
+        final TlsRouteCounters second = counters.routeCounters("server", route(2L, 0, hostname + "b.example.com"), router);
+
+        assertNotSame(first, second);
+
+        first.handshakesStarted.orderedIncrement();
+        assertEquals(0L, second.handshakesStarted.get());
+    }
+
+    @Test
+    public void shouldReclaimRouteCountersOfRemovedRoutes() throws Exception
+    {
+        counters = newCounters(2);
+
+        final RouteFW removed = route(1L, 0, "a.example.com");
+        final TlsRouteCounters reclaimed = counters.routeCounters("server", removed, router);
+        final TlsRouteCounters active = counters.routeCounters("server", route(2L, 0, "b.example.com"), router);
+        final TlsRouteCounters kept = counters.routeCounters("server", route(3L, 0, "c.example.com"), router);
+        final TlsRouteCounters overflow = counters.routeCounters("server", route(4L, 0, "d.example.com"), router);
+
+        reclaimed.handshakesStarted.orderedIncrement();
+        reclaimed.handshakesFinished.orderedIncrement();
+        active.streamsActive.orderedIncrement();
+
+        // removing routes frees their counters once no stream counts against them
+        routes.remove(0);
+        routes.remove(0);
+
+        final TlsRouteCounters routeCounters = counters.routeCounters("server", route(5L, 0, "e.example.com"), router);
+
+        assertNotSame(overflow, routeCounters);
+        assertNotSame(active, routeCounters);
+        assertNotSame(kept, routeCounters);
+        assertEquals(0L, routeCounters.handshakesStarted.get());
+        assertSame(active, counters.routeCounters("server", route(6L, 0, "b.example.com"), router));
+
+        // the removed route keeps its counters until its last stream is done
+        routes.remove(routes.size() - 1);
+        active.streamsActive.addOrdered(-1L);
+
+        assertNotSame(overflow, counters.routeCounters("server", route(7L, 0, "d.example.com"), router));
+    }
+
+    @Test
+    public void shouldReplaceRatherThanTruncateCountersFile() throws Exception
+    {
+        counters = newCounters(2);
+        counters.counter("server.sessions.hits").set(7L);
+
+        final MappedByteBuffer previous;
+        try (FileChannel channel = FileChannel.open(path, READ))
+        {
+            previous = channel.map(READ_ONLY, 0, channel.size());
+        }
+
+        counters.close();
+        counters = new TlsCounters(path, 2, 2);
+
+        try
+        {
+            assertEquals(7L, counterValue(new UnsafeBuffer(previous), "server.sessions.hits"));
+            assertEquals(0L, counters.counter("server.sessions.hits").get());
+        }
+        finally
+        {
+            IoUtil.unmap(previous);
+        }
+    }
+
+    private TlsCounters newCounters(
+        int routes) throws Exception
+    {
+        return newCounters(routes, routes);
+    }
+
+    private TlsCounters newCounters(
+        int routes,
+        int histogramRoutes) throws Exception
+    {
+        path = folder.newFile("counters").toPath();
+        return new TlsCounters(path, routes, histogramRoutes);
+    }
+
+    private List<String> labels() throws Exception
+    {
+        final int capacity = (int) (Files.size(path) / (METADATA_LENGTH + COUNTER_LENGTH));
+        final UnsafeBuffer mapped = new UnsafeBuffer(Files.readAllBytes(path));
+        final CountersReader reader = new CountersReader(
+                new UnsafeBuffer(mapped, 0, capacity * METADATA_LENGTH),
+                new UnsafeBuffer(mapped, capacity * METADATA_LENGTH, capacity * COUNTER_LENGTH));
+
+        final List<String> labels = new ArrayList<>();
+        reader.forEach((id, label) -> labels.add(label));
+
+        return labels;
+    }
+
+    private static long counterValue(
+        UnsafeBuffer mapped,
+        String name)
+    {
+        final int capacity = mapped.capacity() / (METADATA_LENGTH + COUNTER_LENGTH);
+        final CountersReader reader = new CountersReader(
+                new UnsafeBuffer(mapped, 0, capacity * METADATA_LENGTH),
+                new UnsafeBuffer(mapped, capacity * METADATA_LENGTH, capacity * COUNTER_LENGTH));
+
+        final long[] value = { -1L };
+        reader.forEach((id, label) ->
+        {
+            if (label.equals(name))
+            {
+                value[0] = reader.getCounterValue(id);
+            }
+        });
+
+        return value[0];
+    }
+
+    private RouteFW route(
+        long correlationId,
+        int offset,
+        String hostname)
+    {
+        return route(Role.SERVER, correlationId, offset, hostname);
+    }
+
+    private RouteFW route(
+        Role role,
+        long correlationId,
+        int offset,
+        String hostname)
+    {
+        final MutableDirectBuffer buffer = new UnsafeBuffer(new byte[1024]);
+
+        final RouteFW route = routeRW.wrap(buffer, offset, buffer.capacity())
+                .correlationId(correlationId)
+                .role(b -> b.set(role))
+                .source("net")
+                .sourceRef(1L)
+                .target("app")
+                .targetRef(2L)
+                .extension(e -> e.set((b, o, l) -> tlsRouteExRW.wrap(b, o, l)
+                                                               .hostname(hostname)
+                                                               .build()
+                                                               .sizeof()))
+                .build();
+
+        routes.add(new UnsafeBuffer(buffer, offset, route.sizeof()));
+
+        return route;
+    }
+
+    private final class TestRouteHandler implements RouteHandler
+    {
+        @Override
+        public <R> R resolve(
+            MessagePredicate filter,
+            MessageFunction<R> mapper)
+        {
+            for (DirectBuffer route : routes)
+            {
+                if (filter.test(RouteFW.TYPE_ID, route, 0, route.capacity()))
+                {
+                    return mapper.apply(RouteFW.TYPE_ID, route, 0, route.capacity());
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public MessageConsumer supplyTarget(
+            String targetName)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setThrottle(
+            String targetName,
+            long streamId,
+            MessageConsumer throttle)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,537 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.bench;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.agrona.DirectBuffer;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.reaktivity.nukleus.function.MessageConsumer;
+import org.reaktivity.nukleus.function.MessageFunction;
+import org.reaktivity.nukleus.function.MessagePredicate;
+import org.reaktivity.nukleus.route.RouteHandler;
+import org.reaktivity.nukleus.stream.StreamFactory;
+import org.reaktivity.nukleus.tls.internal.TlsCounters;
+import org.reaktivity.nukleus.tls.internal.stream.ServerSessionCache;
+import org.reaktivity.nukleus.tls.internal.stream.ServerStreamFactoryBuilder;
+import org.reaktivity.nukleus.tls.internal.types.OctetsFW;
+import org.reaktivity.nukleus.tls.internal.types.control.Role;
+import org.reaktivity.nukleus.tls.internal.types.control.RouteFW;
+import org.reaktivity.nukleus.tls.internal.types.control.TlsRecordSizingExFW;
+import org.reaktivity.nukleus.tls.internal.types.control.TlsRouteExFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.BeginFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.DataFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.WindowFW;
+import org.reaktivity.nukleus.tls.internal.util.BufferPool;
+import org.reaktivity.nukleus.tls.internal.util.DelegatedTaskExecutor;
+import org.reaktivity.nukleus.tls.internal.util.RecordSizing;
+import org.reaktivity.nukleus.tls.internal.util.WindowBudget;
+import org.reaktivity.nukleus.tls.internal.util.WindowCoalescer;
+import org.reaktivity.nukleus.tls.internal.util.WriteCoalescer;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@Fork(3)
+@Warmup(iterations = 5, time = 1, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = SECONDS)
+@OutputTimeUnit(MICROSECONDS)
+public class TlsRecordSizingBM
+{
+    private static final int SEGMENT_LENGTH = 1460;
+    private static final int NETWORK_WINDOW = 1 << 18;
+    private static final int NETWORK_FRAMES = 1 << 10;
+
+    private final RouteFW.Builder routeRW = new RouteFW.Builder();
+    private final TlsRouteExFW.Builder tlsRouteExRW = new TlsRouteExFW.Builder();
+    private final TlsRecordSizingExFW.Builder tlsRecordSizingExRW = new TlsRecordSizingExFW.Builder();
+
+    private final BeginFW beginRO = new BeginFW();
+    private final DataFW dataRO = new DataFW();
+
+    private final BeginFW.Builder beginRW = new BeginFW.Builder();
+    private final DataFW.Builder dataRW = new DataFW.Builder();
+    private final WindowFW.Builder windowRW = new WindowFW.Builder();
+
+    private final MutableDirectBuffer writeBuffer = new UnsafeBuffer(new byte[1 << 16]);
+    private final ByteBuffer ciphertext = ByteBuffer.allocate(1 << 20);
+    private final ByteBuffer plaintext = ByteBuffer.allocate(1 << 17);
+
+    @Param({ "16384", "1400" })
+    public int recordInitialLength;
+
+    @Param({ "8192", "16384" })
+    public int responseLength;
+
+    @Param({ "100", "1000" })
+    public int linkMbps;
+
+    private Router router;
+    private DelegatedTaskExecutor executor;
+    private WindowCoalescer windowCoalescer;
+    private WriteCoalescer writeCoalescer;
+    private TlsCounters counters;
+    private StreamFactory factory;
+    private SSLEngine peer;
+
+    private MessageConsumer applicationReply;
+    private long applicationReplyId;
+    private long applicationCorrelationId;
+    private MessageConsumer networkReplyThrottle;
+    private long networkReplyId;
+    private int networkReplyBytes;
+    private int networkReplyFrames;
+    private DirectBuffer response;
+    private long segmentNanos;
+    private long streamId;
+
+    @Setup(Level.Trial)
+    public void reinit() throws Exception
+    {
+        final KeyStore keys = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream("src/test/democa/keys"))
+        {
+            keys.load(in, "generated".toCharArray());
+        }
+
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keys, "generated".toCharArray());
+
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+
+        router = new Router();
+        executor = new DelegatedTaskExecutor(0);
+        windowCoalescer = new WindowCoalescer(0);
+        writeCoalescer = new WriteCoalescer(false, 0L);
+        counters = new TlsCounters(Paths.get("target/nukleus-benchmarks/tls/counters"), 16, 16);
+
+        factory = new ServerStreamFactoryBuilder(
+                () -> context,
+                executor,
+                new BufferPool(0x8000, 16),
+                new WindowBudget(NETWORK_WINDOW, NETWORK_WINDOW, 0L),
+                windowCoalescer,
+                writeCoalescer,
+                new RecordSizing(false, 0, 0L, 0L),
+                new ServerSessionCache(context.getServerSessionContext(), 16, 60, counters),
+                counters)
+            .setRouteHandler(router)
+            .setWriteBuffer(new UnsafeBuffer(new byte[1 << 16]))
+            .setStreamIdSupplier(() -> ++streamId)
+            .setCorrelationIdSupplier(() -> ++streamId)
+            .build();
+
+        // each response starts a burst, records grow only within one
+        router.route("localhost", recordInitialLength, 1L << 20, 1L);
+
+        response = new UnsafeBuffer(new byte[responseLength]);
+        segmentNanos = SEGMENT_LENGTH * 8L * 1000L / linkMbps;
+
+        handshake();
+    }
+
+    @TearDown(Level.Trial)
+    public void reset() throws Exception
+    {
+        executor.close();
+        counters.close();
+    }
+
+    @TearDown(Level.Invocation)
+    public void drain() throws Exception
+    {
+        // remaining records of the response, then idle long enough for the next response to start small again
+        while (ciphertext.hasRemaining())
+        {
+            plaintext.clear();
+            final SSLEngineResult result = peer.unwrap(ciphertext, plaintext);
+            if (result.getStatus() != Status.OK)
+            {
+                break;
+            }
+        }
+        ciphertext.clear();
+
+        doWindow(networkReplyThrottle, networkReplyId, NETWORK_WINDOW - networkReplyBytes, networkReplyFrames);
+        networkReplyBytes = NETWORK_WINDOW;
+        networkReplyFrames = 0;
+        process();
+
+        LockSupport.parkNanos(MILLISECONDS.toNanos(2L));
+    }
+
+    @Benchmark
+    public int timeToFirstByte() throws Exception
+    {
+        doData(applicationReply, applicationReplyId, response, responseLength);
+        process();
+
+        ciphertext.flip();
+        final int ciphertextLimit = ciphertext.limit();
+
+        // segments arrive at the link rate, plaintext is available once a whole record has arrived
+        long arrivedAt = System.nanoTime();
+        int segmentLimit = 0;
+        int plaintextBytes = 0;
+
+        while (plaintextBytes == 0 && segmentLimit < ciphertextLimit)
+        {
+            segmentLimit = Math.min(segmentLimit + SEGMENT_LENGTH, ciphertextLimit);
+            arrivedAt += segmentNanos;
+            while (System.nanoTime() < arrivedAt)
+            {
+                // link delay
+            }
+
+            ciphertext.limit(segmentLimit);
+            plaintext.clear();
+            final SSLEngineResult result = peer.unwrap(ciphertext, plaintext);
+            plaintextBytes += result.bytesProduced();
+        }
+
+        ciphertext.limit(ciphertextLimit);
+
+        return plaintextBytes;
+    }
+
+    private void handshake() throws Exception
+    {
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] { new TrustAllManager() }, null);
+
+        peer = context.createSSLEngine("localhost", 443);
+        peer.setUseClientMode(true);
+
+        final SSLParameters parameters = peer.getSSLParameters();
+        parameters.setServerNames(Collections.singletonList(new SNIHostName("localhost")));
+        peer.setSSLParameters(parameters);
+        peer.beginHandshake();
+
+        final long networkId = ++streamId;
+        final MessageConsumer network = doBegin(router.supplyTarget("net.throttle"), networkId, "net", 1L, ++streamId);
+
+        final ByteBuffer records = ByteBuffer.allocate(peer.getSession().getPacketBufferSize());
+        for (int i = 0; i < 32 && applicationCorrelationId == 0L; i++)
+        {
+            for (Runnable task = peer.getDelegatedTask(); task != null; task = peer.getDelegatedTask())
+            {
+                task.run();
+            }
+
+            if (peer.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+            {
+                records.clear();
+                peer.wrap(ByteBuffer.allocate(0), records);
+                doData(network, networkId, new UnsafeBuffer(records.array()), records.position());
+            }
+
+            process();
+
+            ciphertext.flip();
+            while (ciphertext.hasRemaining())
+            {
+                plaintext.clear();
+                final SSLEngineResult result = peer.unwrap(ciphertext, plaintext);
+                for (Runnable task = peer.getDelegatedTask(); task != null; task = peer.getDelegatedTask())
+                {
+                    task.run();
+                }
+
+                if (result.getStatus() != Status.OK || result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+                {
+                    break;
+                }
+            }
+            ciphertext.compact();
+        }
+
+        if (applicationCorrelationId == 0L)
+        {
+            throw new IllegalStateException("handshake incomplete");
+        }
+
+        applicationReplyId = ++streamId;
+        applicationReply = doBegin(router.supplyTarget("app.reply.throttle"), applicationReplyId, "app", 0L,
+                applicationCorrelationId);
+        process();
+    }
+
+    private void process()
+    {
+        executor.process();
+        windowCoalescer.process();
+        writeCoalescer.process();
+
+        if (networkReplyThrottle == null && networkReplyId != 0L)
+        {
+            // throttle is only known once the network reply has begun
+            networkReplyThrottle = router.throttles.get(networkReplyId);
+            networkReplyBytes = NETWORK_WINDOW;
+            doWindow(networkReplyThrottle, networkReplyId, NETWORK_WINDOW, NETWORK_FRAMES);
+        }
+    }
+
+    private MessageConsumer doBegin(
+        MessageConsumer throttle,
+        long streamId,
+        String source,
+        long sourceRef,
+        long correlationId)
+    {
+        final BeginFW begin = beginRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(streamId)
+                .source(source)
+                .sourceRef(sourceRef)
+                .correlationId(correlationId)
+                .extension(e -> e.reset())
+                .build();
+
+        final MessageConsumer stream = factory.newStream(begin.typeId(), begin.buffer(), begin.offset(), begin.sizeof(),
+                throttle);
+        stream.accept(begin.typeId(), begin.buffer(), begin.offset(), begin.sizeof());
+        return stream;
+    }
+
+    private void doData(
+        MessageConsumer stream,
+        long streamId,
+        DirectBuffer payload,
+        int length)
+    {
+        final DataFW data = dataRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(streamId)
+                .payload(p -> p.set(payload, 0, length))
+                .extension(e -> e.reset())
+                .build();
+
+        stream.accept(data.typeId(), data.buffer(), data.offset(), data.sizeof());
+    }
+
+    private void doWindow(
+        MessageConsumer throttle,
+        long streamId,
+        int update,
+        int frames)
+    {
+        final WindowFW window = windowRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(streamId)
+                .update(update)
+                .frames(frames)
+                .build();
+
+        throttle.accept(window.typeId(), window.buffer(), window.offset(), window.sizeof());
+    }
+
+    private void handleNetworkReply(
+        int msgTypeId,
+        DirectBuffer buffer,
+        int index,
+        int length)
+    {
+        switch (msgTypeId)
+        {
+        case BeginFW.TYPE_ID:
+            final BeginFW begin = beginRO.wrap(buffer, index, index + length);
+            networkReplyId = begin.streamId();
+            break;
+        case DataFW.TYPE_ID:
+            final DataFW data = dataRO.wrap(buffer, index, index + length);
+            final OctetsFW payload = data.payload();
+            payload.buffer().getBytes(payload.offset(), ciphertext, payload.sizeof());
+            networkReplyBytes -= payload.sizeof();
+            networkReplyFrames++;
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void handleApplication(
+        int msgTypeId,
+        DirectBuffer buffer,
+        int index,
+        int length)
+    {
+        if (msgTypeId == BeginFW.TYPE_ID)
+        {
+            final BeginFW begin = beginRO.wrap(buffer, index, index + length);
+            applicationCorrelationId = begin.correlationId();
+        }
+    }
+
+    private final class Router implements RouteHandler
+    {
+        private final MutableDirectBuffer route = new UnsafeBuffer(new byte[1024]);
+        private final Map<Long, MessageConsumer> throttles = new HashMap<>();
+
+        private int routeLength;
+
+        @Override
+        public <R> R resolve(
+            MessagePredicate filter,
+            MessageFunction<R> mapper)
+        {
+            R result = null;
+
+            if (filter.test(RouteFW.TYPE_ID, route, 0, routeLength))
+            {
+                result = mapper.apply(RouteFW.TYPE_ID, route, 0, routeLength);
+            }
+
+            return result;
+        }
+
+        @Override
+        public MessageConsumer supplyTarget(
+            String targetName)
+        {
+            MessageConsumer target;
+
+            switch (targetName)
+            {
+            case "net":
+                target = TlsRecordSizingBM.this::handleNetworkReply;
+                break;
+            case "app":
+                target = TlsRecordSizingBM.this::handleApplication;
+                break;
+            default:
+                target = (t, b, i, l) -> {};
+                break;
+            }
+
+            return target;
+        }
+
+        @Override
+        public void setThrottle(
+            String targetName,
+            long streamId,
+            MessageConsumer throttle)
+        {
+            throttles.put(streamId, throttle);
+        }
+
+        private void route(
+            String hostname,
+            int recordInitialLength,
+            long recordRampBytes,
+            long recordIdleMillis)
+        {
+            final RouteFW routeFW = routeRW.wrap(route, 0, route.capacity())
+                    .correlationId(1L)
+                    .role(b -> b.set(Role.SERVER))
+                    .source("net")
+                    .sourceRef(1L)
+                    .target("app")
+                    .targetRef(2L)
+                    .extension(e -> e.set((b, o, l) ->
+                    {
+                        final int sizeof = tlsRouteExRW.wrap(b, o, l)
+                                                       .hostname(hostname)
+                                                       .applicationProtocol("")
+                                                       .build()
+                                                       .sizeof();
+
+                        return sizeof + tlsRecordSizingExRW.wrap(b, o + sizeof, l)
+                                                           .initialLength(recordInitialLength)
+                                                           .rampBytes(recordRampBytes)
+                                                           .idleMillis(recordIdleMillis)
+                                                           .build()
+                                                           .sizeof();
+                    }))
+                    .build();
+
+            routeLength = routeFW.sizeof();
+        }
+    }
+
+    private static final class TrustAllManager implements X509TrustManager
+    {
+        @Override
+        public void checkClientTrusted(
+            X509Certificate[] chain,
+            String authType)
+        {
+        }
+
+        @Override
+        public void checkServerTrusted(
+            X509Certificate[] chain,
+            String authType)
+        {
+            // benchmark certificates have expired
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers()
+        {
+            return new X509Certificate[0];
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        Options opt = new OptionsBuilder()
+                .include(TlsRecordSizingBM.class.getSimpleName())
+                .forks(0)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
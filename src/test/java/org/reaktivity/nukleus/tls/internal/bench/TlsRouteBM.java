@@ -0,0 +1,166 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.bench;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.agrona.DirectBuffer;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.reaktivity.nukleus.function.MessagePredicate;
+import org.reaktivity.nukleus.tls.internal.stream.RouteMatcher;
+import org.reaktivity.nukleus.tls.internal.types.control.Role;
+import org.reaktivity.nukleus.tls.internal.types.control.RouteFW;
+import org.reaktivity.nukleus.tls.internal.types.control.TlsRouteExFW;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Fork(3)
+@Warmup(iterations = 5, time = 1, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = SECONDS)
+@OutputTimeUnit(SECONDS)
+public class TlsRouteBM
+{
+    private final RouteFW.Builder routeRW = new RouteFW.Builder();
+    private final TlsRouteExFW.Builder routeExRW = new TlsRouteExFW.Builder();
+
+    private final RouteFW routeRO = new RouteFW();
+    private final TlsRouteExFW tlsRouteExRO = new TlsRouteExFW();
+
+    private final RouteMatcher routeMatcher = new RouteMatcher();
+
+    @Param({ "10000" })
+    private int routeCount;
+
+    private List<DirectBuffer> routes;
+    private ByteBuffer[] serverNames;
+    private String[] hostnames;
+    private int lookup;
+
+    @Setup(Level.Trial)
+    public void init()
+    {
+        this.routes = new ArrayList<>(routeCount);
+        this.serverNames = new ByteBuffer[routeCount];
+        this.hostnames = new String[routeCount];
+
+        for (int i = 0; i < routeCount; i++)
+        {
+            final String hostname = String.format("tenant%d.example.com", i);
+            final MutableDirectBuffer buffer = new UnsafeBuffer(new byte[256]);
+
+            final RouteFW route = routeRW.wrap(buffer, 0, buffer.capacity())
+                    .correlationId(i)
+                    .role(b -> b.set(Role.SERVER))
+                    .source("source")
+                    .sourceRef(0L)
+                    .target("target")
+                    .targetRef(i)
+                    .extension(b -> b.set((eb, eo, el) -> routeExRW.wrap(eb, eo, el).hostname(hostname).build().sizeof()))
+                    .build();
+
+            routes.add(new UnsafeBuffer(buffer, 0, route.sizeof()));
+            serverNames[i] = ByteBuffer.wrap(hostname.getBytes(US_ASCII));
+            hostnames[i] = hostname;
+        }
+    }
+
+    @Benchmark
+    public RouteFW resolveServerName()
+    {
+        final ByteBuffer serverName = serverNames[nextLookup()];
+        final MessagePredicate filter = routeMatcher.source("source", 0L)
+                                                    .hostnameOrDefault(serverName, 0, serverName.limit());
+        return resolve(filter);
+    }
+
+    @Benchmark
+    public RouteFW resolveHostname()
+    {
+        final String hostname = hostnames[nextLookup()];
+        return resolve(routeMatcher.source("source", 0L).hostname(hostname));
+    }
+
+    @Benchmark
+    public RouteFW resolveHostnameDecoded()
+    {
+        final String hostname = hostnames[nextLookup()];
+        final MessagePredicate filter = (t, b, o, l) ->
+        {
+            final RouteFW route = routeRO.wrap(b, o, l);
+            final TlsRouteExFW routeEx = route.extension().get(tlsRouteExRO::wrap);
+
+            return 0L == route.sourceRef() &&
+                    "source".equals(route.source().asString()) &&
+                    Objects.equals(hostname, routeEx.hostname().asString());
+        };
+
+        return resolve(filter);
+    }
+
+    private int nextLookup()
+    {
+        lookup = (lookup + 1) % routeCount;
+        return lookup;
+    }
+
+    private RouteFW resolve(
+        MessagePredicate filter)
+    {
+        for (int i = 0; i < routes.size(); i++)
+        {
+            final DirectBuffer route = routes.get(i);
+            if (filter.test(RouteFW.TYPE_ID, route, 0, route.capacity()))
+            {
+                return routeRO.wrap(route, 0, route.capacity());
+            }
+        }
+
+        return null;
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        Options opt = new OptionsBuilder()
+                .include(TlsRouteBM.class.getSimpleName())
+                .forks(0)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
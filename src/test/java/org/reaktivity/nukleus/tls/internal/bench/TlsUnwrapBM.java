@@ -0,0 +1,234 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.bench;
+
+import static java.nio.ByteBuffer.allocateDirect;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.agrona.concurrent.UnsafeBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.reaktivity.nukleus.tls.internal.util.ByteBufferView;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(3)
+@Warmup(iterations = 5, time = 1, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = SECONDS)
+@OutputTimeUnit(MICROSECONDS)
+public class TlsUnwrapBM
+{
+    // "copy" is the unwrap path before ByteBufferView, "view" unwraps from the frame in place
+    @Param({ "copy", "view" })
+    public String unwrap;
+
+    @Param({ "1024", "16384" })
+    public int recordLength;
+
+    private final ByteBuffer frameByteBuffer = allocateDirect(1 << 16);
+    private final UnsafeBuffer frame = new UnsafeBuffer(frameByteBuffer);
+    private final ByteBuffer inNetByteBuffer = allocateDirect(1 << 16);
+    private final ByteBufferView inNetByteBufferView = new ByteBufferView(inNetByteBuffer);
+    private final ByteBuffer outAppByteBuffer = allocateDirect(1 << 16);
+
+    private SSLEngine client;
+    private SSLEngine server;
+    private ByteBuffer plaintext;
+    private boolean view;
+
+    @Setup(Level.Trial)
+    public void reinit() throws Exception
+    {
+        final KeyStore keys = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream("src/test/democa/keys"))
+        {
+            keys.load(in, "generated".toCharArray());
+        }
+
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keys, "generated".toCharArray());
+
+        final SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+
+        final SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[] { new TrustAllManager() }, null);
+
+        server = serverContext.createSSLEngine();
+        server.setUseClientMode(false);
+
+        client = clientContext.createSSLEngine("localhost", 443);
+        client.setUseClientMode(true);
+
+        handshake();
+
+        plaintext = ByteBuffer.allocate(recordLength);
+        view = "view".equals(unwrap);
+    }
+
+    @Benchmark
+    public int unwrap() throws Exception
+    {
+        // the peer writes one record into the frame, common to both variants
+        plaintext.clear();
+        final ByteBuffer payload = frameByteBuffer.duplicate();
+        client.wrap(plaintext, payload);
+        final int length = payload.position();
+
+        ByteBuffer netByteBuffer;
+
+        if (view)
+        {
+            netByteBuffer = inNetByteBufferView.wrap(frame, 0, length);
+        }
+        else
+        {
+            inNetByteBuffer.clear();
+            frame.getBytes(0, inNetByteBuffer, length);
+            inNetByteBuffer.flip();
+            netByteBuffer = inNetByteBuffer;
+        }
+
+        outAppByteBuffer.clear();
+        final SSLEngineResult result = server.unwrap(netByteBuffer, outAppByteBuffer);
+
+        return result.bytesProduced();
+    }
+
+    private void handshake() throws SSLException
+    {
+        final ByteBuffer clientToServer = ByteBuffer.allocate(1 << 16);
+        final ByteBuffer serverToClient = ByteBuffer.allocate(1 << 16);
+        final ByteBuffer empty = ByteBuffer.allocate(0);
+
+        client.beginHandshake();
+        server.beginHandshake();
+
+        for (int i = 0; i < 64 && !(isFinished(client) && isFinished(server)); i++)
+        {
+            step(client, empty, clientToServer, serverToClient);
+            step(server, empty, serverToClient, clientToServer);
+        }
+
+        if (!isFinished(client) || !isFinished(server))
+        {
+            throw new IllegalStateException("handshake incomplete");
+        }
+    }
+
+    private void step(
+        SSLEngine engine,
+        ByteBuffer empty,
+        ByteBuffer outbound,
+        ByteBuffer inbound) throws SSLException
+    {
+        for (Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask())
+        {
+            task.run();
+        }
+
+        if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+        {
+            engine.wrap(empty, outbound);
+        }
+
+        inbound.flip();
+        while (inbound.hasRemaining() && engine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP)
+        {
+            outAppByteBuffer.clear();
+            if (engine.unwrap(inbound, outAppByteBuffer).bytesConsumed() == 0)
+            {
+                break;
+            }
+
+            for (Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask())
+            {
+                task.run();
+            }
+        }
+        inbound.compact();
+    }
+
+    private static boolean isFinished(
+        SSLEngine engine)
+    {
+        final HandshakeStatus status = engine.getHandshakeStatus();
+        return status == HandshakeStatus.NOT_HANDSHAKING || status == HandshakeStatus.FINISHED;
+    }
+
+    private static final class TrustAllManager implements X509TrustManager
+    {
+        @Override
+        public void checkClientTrusted(
+            X509Certificate[] chain,
+            String authType)
+        {
+        }
+
+        @Override
+        public void checkServerTrusted(
+            X509Certificate[] chain,
+            String authType)
+        {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers()
+        {
+            return new X509Certificate[0];
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        Options opt = new OptionsBuilder()
+                .include(TlsUnwrapBM.class.getSimpleName())
+                .forks(0)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
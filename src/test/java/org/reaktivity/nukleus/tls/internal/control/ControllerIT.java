@@ -34,7 +34,8 @@ public class ControllerIT
 {
     private final K3poRule k3po = new K3poRule()
         .addScriptRoot("route", "org/reaktivity/specification/nukleus/tls/control/route")
-        .addScriptRoot("unroute", "org/reaktivity/specification/nukleus/tls/control/unroute");
+        .addScriptRoot("unroute", "org/reaktivity/specification/nukleus/tls/control/unroute")
+        .addScriptRoot("routeExt", "org/reaktivity/nukleus/tls/internal/control/route.ext");
 
     private final TestRule timeout = new DisableOnDebug(new Timeout(5, SECONDS));
 
@@ -82,6 +83,40 @@ public class ControllerIT
         k3po.finish();
     }
 
+    @Test
+    @Specification({
+        "${routeExt}/server/nukleus"
+    })
+    public void shouldRouteServerWithApplicationProtocolAndRecordSizing() throws Exception
+    {
+        long targetRef = new Random().nextLong();
+
+        k3po.start();
+
+        reaktor.controller(TlsController.class)
+                  .routeServer("source", 0L, "target", targetRef, "localhost", "h2", 1200, 1024L, 500L)
+                  .get();
+
+        k3po.finish();
+    }
+
+    @Test
+    @Specification({
+        "${routeExt}/client/nukleus"
+    })
+    public void shouldRouteClientWithApplicationProtocol() throws Exception
+    {
+        long targetRef = new Random().nextLong();
+
+        k3po.start();
+
+        reaktor.controller(TlsController.class)
+                  .routeClient("source", 0L, "target", targetRef, "localhost", "h2")
+                  .get();
+
+        k3po.finish();
+    }
+
     @Test
     @Specification({
         "${route}/server/nukleus",
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.reaktivity.nukleus.tls.internal.TlsCounters;
+import org.reaktivity.nukleus.tls.internal.stream.ClientSessionCache.PeerSession;
+
+public class ClientSessionCacheTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private SSLContext context;
+    private TlsCounters counters;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+
+        counters = new TlsCounters(folder.newFile("counters").toPath(), 0, 0);
+    }
+
+    @After
+    public void tearDown()
+    {
+        counters.close();
+    }
+
+    @Test
+    public void shouldSupplySamePeerSessionForSameTarget()
+    {
+        final ClientSessionCache sessionCache = newSessionCache(16);
+
+        final PeerSession peerSession = sessionCache.supplyPeerSession("net", 1L, "example.com");
+
+        assertSame(peerSession, sessionCache.supplyPeerSession("net", 1L, "example.com"));
+        assertNotSame(peerSession, sessionCache.supplyPeerSession("net", 2L, "example.com"));
+        assertNotSame(peerSession, sessionCache.supplyPeerSession("net2", 1L, "example.com"));
+        assertNotSame(peerSession, sessionCache.supplyPeerSession("net", 1L, "other.example.com"));
+        assertNotSame(peerSession, sessionCache.supplyPeerSession("net", 1L, null));
+        assertSame(sessionCache.supplyPeerSession("net", 1L, null), sessionCache.supplyPeerSession("net", 1L, null));
+        assertEquals(0L, counters.counter("client.sessions.evictions").get());
+    }
+
+    @Test
+    public void shouldReusePortOfEvictedPeerSessionOnly()
+    {
+        final ClientSessionCache sessionCache = newSessionCache(2);
+
+        final PeerSession first = sessionCache.supplyPeerSession("net", 1L, "one.example.com");
+        final PeerSession second = sessionCache.supplyPeerSession("net", 1L, "two.example.com");
+        assertNotEquals(first.peerPort(), second.peerPort());
+
+        // touching the first leaves the second least recently used
+        sessionCache.supplyPeerSession("net", 1L, "one.example.com");
+        final PeerSession third = sessionCache.supplyPeerSession("net", 1L, "three.example.com");
+
+        assertEquals(second.peerPort(), third.peerPort());
+        assertSame(first, sessionCache.supplyPeerSession("net", 1L, "one.example.com"));
+        assertEquals(1L, counters.counter("client.sessions.evictions").get());
+    }
+
+    @Test
+    public void shouldNeverShareOnePortBetweenLivePeerSessions()
+    {
+        final ClientSessionCache sessionCache = newSessionCache(4);
+
+        for (int i = 0; i < 64; i++)
+        {
+            sessionCache.supplyPeerSession("net", 1L, "host" + (i * 7 % 10) + ".example.com");
+        }
+
+        // each new target evicts one of the previous ones, leaving only the new targets live
+        final Set<Integer> peerPorts = new HashSet<>();
+        for (int i = 0; i < 4; i++)
+        {
+            final int peerPort = sessionCache.supplyPeerSession("net", 2L, "host" + i + ".example.com").peerPort();
+            assertTrue(peerPort >= 1 && peerPort <= 4);
+            peerPorts.add(peerPort);
+        }
+
+        assertEquals(4, peerPorts.size());
+    }
+
+    @Test
+    public void shouldCountResumedAndFullHandshakes()
+    {
+        final ClientSessionCache sessionCache = newSessionCache(16);
+        final PeerSession peerSession = sessionCache.supplyPeerSession("net", 1L, "example.com");
+
+        sessionCache.onHandshakeFinished(peerSession, context.createSSLEngine().getSession(), false);
+        sessionCache.onHandshakeFinished(peerSession, context.createSSLEngine().getSession(), true);
+        sessionCache.onHandshakeFinished(peerSession, context.createSSLEngine().getSession(), true);
+
+        assertEquals(2L, counters.counter("client.sessions.hits").get());
+        assertEquals(1L, counters.counter("client.sessions.misses").get());
+    }
+
+    private ClientSessionCache newSessionCache(
+        int capacity)
+    {
+        return new ClientSessionCache(context.getClientSessionContext(), capacity, 60, counters);
+    }
+}
@@ -0,0 +1,834 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.stream;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.agrona.concurrent.UnsafeBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.reaktivity.nukleus.function.MessageConsumer;
+import org.reaktivity.nukleus.stream.StreamFactory;
+import org.reaktivity.nukleus.tls.internal.TlsCounters;
+import org.reaktivity.nukleus.tls.internal.TlsRouteCounters;
+import org.reaktivity.nukleus.tls.internal.stream.TestRouter.Frame;
+import org.reaktivity.nukleus.tls.internal.types.control.Role;
+import org.reaktivity.nukleus.tls.internal.types.control.RouteFW;
+import org.reaktivity.nukleus.tls.internal.util.BufferPool;
+import org.reaktivity.nukleus.tls.internal.util.DelegatedTaskExecutor;
+import org.reaktivity.nukleus.tls.internal.util.RecordSizing;
+import org.reaktivity.nukleus.tls.internal.util.TestEngine;
+import org.reaktivity.nukleus.tls.internal.util.TlsRecord;
+import org.reaktivity.nukleus.tls.internal.util.WindowBudget;
+import org.reaktivity.nukleus.tls.internal.util.WindowCoalescer;
+import org.reaktivity.nukleus.tls.internal.util.WriteCoalescer;
+
+public class ClientStreamFactoryTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream peerPlaintext = new ByteArrayOutputStream();
+    private final ByteBuffer peerCiphertext = ByteBuffer.allocate(1 << 20);
+    private final List<Integer> peerRecordLengths = new ArrayList<>();
+
+    private TestRouter router;
+    private DelegatedTaskExecutor executor;
+    private BufferPool bufferPool;
+    private WindowCoalescer windowCoalescer;
+    private WriteCoalescer writeCoalescer;
+    private TlsCounters counters;
+    private SSLContext context;
+    private SSLContext peerContext;
+    private StreamFactory factory;
+    private long streamId;
+
+    private MessageConsumer application;
+    private long applicationId;
+    private long networkId;
+    private int networkBytes;
+    private int networkFrames;
+    private MessageConsumer networkReply;
+    private long networkReplyId;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] { new TrustAllManager() }, null);
+
+        peerContext = SSLContext.getInstance("TLS");
+        peerContext.init(keyManagers(), null, null);
+
+        router = new TestRouter();
+        executor = new DelegatedTaskExecutor(0);
+        bufferPool = new BufferPool(0x8000, 4);
+        windowCoalescer = new WindowCoalescer(0);
+        writeCoalescer = new WriteCoalescer(false, 0L);
+        counters = new TlsCounters(folder.newFile("counters").toPath(), 16, 16);
+        factory = newFactory(new WindowBudget(8192, 8192, 1L << 24));
+    }
+
+    private StreamFactory newFactory(
+        WindowBudget windowBudget)
+    {
+        return new ClientStreamFactoryBuilder(
+                () -> context,
+                executor,
+                bufferPool,
+                windowBudget,
+                windowCoalescer,
+                writeCoalescer,
+                new RecordSizing(false, 0, 0L, 0L),
+                new ClientSessionCache(context.getClientSessionContext(), 16, 60, counters),
+                counters)
+            .setRouteHandler(router)
+            .setWriteBuffer(new UnsafeBuffer(new byte[1 << 16]))
+            .setStreamIdSupplier(() -> ++streamId)
+            .setCorrelationIdSupplier(() -> ++streamId)
+            .build();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.close();
+        counters.close();
+    }
+
+    @Test
+    public void shouldFailHandshakeWhenDelegatedTaskFails() throws Exception
+    {
+        final RouteFW route = router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", null);
+        final TlsRouteCounters routeCounters = counters.routeCounters("client", route, router);
+
+        context = TestEngine.failingTasks(context);
+
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        assertNull(handshake(peer, 65536, 64));
+
+        assertTrue(router.frames("net.reply.throttle").peekLast().isReset());
+        assertTrue(router.frames("app.throttle").peekLast().isReset());
+        assertTrue(router.frames("app").isEmpty());
+        assertEquals(0, bufferPool.acquiredSlots());
+        assertEquals(1L, routeCounters.handshakesStarted.get());
+        assertEquals(1L, routeCounters.handshakesFailed.get());
+    }
+
+    @Test
+    public void shouldHoldNetworkReplyDataWhileDelegatedTaskRuns() throws Exception
+    {
+        router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", null);
+
+        final List<TestEngine> engines = new ArrayList<>();
+        context = TestEngine.newContext(context, engines::add);
+
+        executor.close();
+        executor = new DelegatedTaskExecutor(1);
+        factory = newFactory(new WindowBudget(8192, 8192, 1L << 24));
+
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        applicationId = 1000L;
+        application = router.doBegin(factory, router.supplyTarget("app.throttle"), applicationId, "app", 1L,
+                applicationId + 1, null, null);
+
+        // the client hello reaches the peer once the network reply begins
+        peer.beginHandshake();
+        process(peer, 65536, 64);
+        assertEquals(HandshakeStatus.NEED_WRAP, peer.getHandshakeStatus());
+
+        final CountDownLatch taskStarted = new CountDownLatch(1);
+        final CountDownLatch taskReleased = new CountDownLatch(1);
+        engines.get(0).blockTasks(taskStarted, taskReleased);
+
+        final List<byte[]> serverFlight = peerWrap(peer, ByteBuffer.allocate(0));
+        assertTrue(serverFlight.size() > 1);
+
+        // the server hello starts a delegated task, the rest of the flight and more credit arrive while it runs
+        final ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        for (byte[] record : serverFlight)
+        {
+            ciphertext.write(record);
+        }
+        final byte[] records = ciphertext.toByteArray();
+        router.doData(networkReply, networkReplyId, records, 0, records.length);
+        assertTrue(taskStarted.await(10, SECONDS));
+
+        router.doWindow(router.throttle(networkId), networkId, 8192, 8);
+
+        assertEquals(1, bufferPool.acquiredSlots());
+        assertTrue(router.frames("net").isEmpty());
+        assertTrue(router.frames("app").isEmpty());
+
+        taskReleased.countDown();
+
+        Frame applicationReplyBegin = null;
+        for (int i = 0; i < 1000 && applicationReplyBegin == null; i++)
+        {
+            LockSupport.parkNanos(1_000_000L);
+            process(peer, 65536, 64);
+            for (byte[] record : peerWrap(peer, ByteBuffer.allocate(0)))
+            {
+                router.doData(networkReply, networkReplyId, record, 0, record.length);
+            }
+            applicationReplyBegin = router.frames("app").poll();
+        }
+
+        assertNotNull(applicationReplyBegin);
+        assertTrue(applicationReplyBegin.isBegin());
+        assertEquals(HandshakeStatus.NOT_HANDSHAKING, peer.getHandshakeStatus());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldWrapIntoNetworkFrameAndUnwrapIntoApplicationFrame() throws Exception
+    {
+        router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", null);
+
+        final SSLEngine peer = beginApplication();
+
+        // records are wrapped in place as the payload of a single network frame
+        final byte[] plaintext = plaintext(4000);
+        router.doData(application, applicationId, plaintext, 0, plaintext.length);
+
+        final Deque<Frame> network = router.frames("net");
+        assertEquals(1, network.size());
+        assertEquals(1, recordCount(network.peek().payload()));
+
+        process(peer, 65536, 64);
+        assertArrayEquals(plaintext, peerPlaintext.toByteArray());
+
+        // and unwrapped in place as the payload of a single application frame
+        final byte[] record = peerWrap(peer, plaintext, plaintext.length).get(0);
+        router.doData(networkReply, networkReplyId, record, 0, record.length);
+
+        final List<Frame> applicationReplyData = applicationReplyData();
+        assertEquals(1, applicationReplyData.size());
+        assertArrayEquals(plaintext, applicationReplyData.get(0).payload());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldUnwrapRecordSpanningFrames() throws Exception
+    {
+        router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", null);
+
+        final SSLEngine peer = beginApplication();
+        final byte[] plaintext = plaintext(4000);
+        final byte[] record = peerWrap(peer, plaintext, plaintext.length).get(0);
+        final int split = record.length / 3;
+
+        router.doData(networkReply, networkReplyId, record, 0, split);
+        router.doData(networkReply, networkReplyId, record, split, split);
+        process(peer, 65536, 64);
+
+        assertTrue(applicationReplyData().isEmpty());
+        assertEquals(1, bufferPool.acquiredSlots());
+
+        router.doData(networkReply, networkReplyId, record, 2 * split, record.length - 2 * split);
+        process(peer, 65536, 64);
+
+        final List<Frame> applicationReplyData = applicationReplyData();
+        assertEquals(1, applicationReplyData.size());
+        assertArrayEquals(plaintext, applicationReplyData.get(0).payload());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldResumeSessionsWithSamePeer() throws Exception
+    {
+        final RouteFW route = router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", null);
+        final TlsRouteCounters routeCounters = counters.routeCounters("client", route, router);
+
+        for (int i = 0; i < 3; i++)
+        {
+            final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+            final Frame applicationReplyBegin = handshake(peer, 65536, 64);
+            assertTrue(applicationReplyBegin.isBegin());
+
+            // the last client flight completes the handshake of the peer
+            process(peer, 65536, 64);
+            assertEquals(HandshakeStatus.NOT_HANDSHAKING, peer.getHandshakeStatus());
+        }
+
+        assertEquals(1L, routeCounters.handshakesFull.get());
+        assertEquals(2L, routeCounters.handshakesResumed.get());
+        assertEquals(1L, counters.counter("client.sessions.misses").get());
+        assertEquals(2L, counters.counter("client.sessions.hits").get());
+    }
+
+    @Test
+    public void shouldWrapHandshakeWithinNetworkWindow() throws Exception
+    {
+        router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", null);
+
+        // the client hello alone is well beyond this window
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        assertNull(handshake(peer, 64, 64));
+        assertEquals(0, networkBytes);
+        assertEquals(1, bufferPool.acquiredSlots());
+
+        router.doWindow(router.throttle(networkId), networkId, 65536, 64);
+        networkBytes += 65536;
+        networkFrames += 64;
+
+        Frame applicationReplyBegin = null;
+        for (int i = 0; i < 32 && applicationReplyBegin == null; i++)
+        {
+            process(peer, 65536, 64);
+            for (byte[] record : peerWrap(peer, ByteBuffer.allocate(0)))
+            {
+                router.doData(networkReply, networkReplyId, record, 0, record.length);
+            }
+            applicationReplyBegin = router.frames("app").poll();
+        }
+
+        assertNotNull(applicationReplyBegin);
+        assertTrue(applicationReplyBegin.isBegin());
+        assertTrue(networkBytes >= 0);
+        assertTrue(networkFrames >= 0);
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldCoalesceSmallApplicationWritesIntoOneRecord() throws Exception
+    {
+        writeCoalescer = new WriteCoalescer(true, 0L);
+        factory = newFactory(new WindowBudget(8192, 8192, 1L << 24));
+
+        final RouteFW route = router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", null);
+        final TlsRouteCounters routeCounters = counters.routeCounters("client", route, router);
+
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        final Frame applicationReplyBegin = handshake(peer, 65536, 64);
+        assertTrue(applicationReplyBegin.isBegin());
+
+        peerRecordLengths.clear();
+        final long recordsOut = routeCounters.recordsOut.get();
+        final byte[] plaintext = plaintext(1000);
+        for (int offset = 0; offset < plaintext.length; offset += 100)
+        {
+            router.doData(application, applicationId, plaintext, offset, 100);
+        }
+
+        // held until the end of the duty cycle
+        assertTrue(router.frames("net").isEmpty());
+        assertEquals(1, bufferPool.acquiredSlots());
+
+        process(peer, 65536, 64);
+
+        assertEquals(Collections.singletonList(plaintext.length), peerRecordLengths);
+        assertArrayEquals(plaintext, peerPlaintext.toByteArray());
+        assertEquals(1L, routeCounters.recordsOut.get() - recordsOut);
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldWrapSmallRecordsWithRouteRecordSizing() throws Exception
+    {
+        final RouteFW route = router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", null, 1400, 1L << 20, 1000L);
+        final TlsRouteCounters routeCounters = counters.routeCounters("client", route, router);
+
+        final List<Integer> recordLengths = writeApplication(routeCounters, 8192);
+
+        assertEquals(6, recordLengths.size());
+        for (int recordLength : recordLengths)
+        {
+            assertTrue(recordLength <= 1400);
+        }
+    }
+
+    @Test
+    public void shouldWrapFullRecordsWithoutRouteRecordSizing() throws Exception
+    {
+        final RouteFW route = router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", null);
+        final TlsRouteCounters routeCounters = counters.routeCounters("client", route, router);
+
+        final List<Integer> recordLengths = writeApplication(routeCounters, 8192);
+
+        assertEquals(Collections.singletonList(8192), recordLengths);
+    }
+
+    private List<Integer> writeApplication(
+        TlsRouteCounters routeCounters,
+        int length) throws Exception
+    {
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        final Frame applicationReplyBegin = handshake(peer, 65536, 64);
+        assertTrue(applicationReplyBegin.isBegin());
+
+        int applicationBytes = 0;
+        for (Frame window : router.frames("app.throttle"))
+        {
+            applicationBytes += window.update();
+        }
+        assertTrue(applicationBytes >= length);
+
+        peerRecordLengths.clear();
+        final long recordsOut = routeCounters.recordsOut.get();
+        router.doData(application, applicationId, new byte[length], 0, length);
+        process(peer, 65536, 64);
+
+        assertEquals(length, peerPlaintext.size());
+        assertEquals(peerRecordLengths.size(), routeCounters.recordsOut.get() - recordsOut);
+        return peerRecordLengths;
+    }
+
+    @Test
+    public void shouldUnwrapRecordsOfOneFrameIntoOneApplicationFrame() throws Exception
+    {
+        router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", null);
+
+        final SSLEngine peer = beginApplication();
+        final byte[] plaintext = plaintext(1000 + 2000 + 3000);
+        final ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        for (byte[] record : peerWrap(peer, plaintext, 1000, 2000, 3000))
+        {
+            ciphertext.write(record);
+        }
+
+        final byte[] records = ciphertext.toByteArray();
+        router.doData(networkReply, networkReplyId, records, 0, records.length);
+        process(peer, 65536, 64);
+
+        final List<Frame> applicationReplyData = applicationReplyData();
+        assertEquals(1, applicationReplyData.size());
+        assertArrayEquals(plaintext, applicationReplyData.get(0).payload());
+    }
+
+    @Test
+    public void shouldUnwrapRecordsOfOneFrameIntoOneApplicationFramePerWindow() throws Exception
+    {
+        router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", null);
+
+        final SSLEngine peer = beginApplication(3000);
+        final byte[] plaintext = plaintext(1000 + 2000 + 3000);
+        final ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        for (byte[] record : peerWrap(peer, plaintext, 1000, 2000, 3000))
+        {
+            ciphertext.write(record);
+        }
+
+        final byte[] records = ciphertext.toByteArray();
+        router.doData(networkReply, networkReplyId, records, 0, records.length);
+        process(peer, 65536, 64);
+
+        // the window takes the first two records, the last is held as ciphertext
+        List<Frame> applicationReplyData = applicationReplyData();
+        assertEquals(1, applicationReplyData.size());
+        assertArrayEquals(Arrays.copyOfRange(plaintext, 0, 3000), applicationReplyData.get(0).payload());
+        assertEquals(1, bufferPool.acquiredSlots());
+
+        final long applicationReplyId = applicationReplyData.get(0).streamId();
+        router.doWindow(router.throttle(applicationReplyId), applicationReplyId, 3000, 1);
+        process(peer, 65536, 64);
+
+        applicationReplyData = applicationReplyData();
+        assertEquals(1, applicationReplyData.size());
+        assertArrayEquals(Arrays.copyOfRange(plaintext, 3000, plaintext.length), applicationReplyData.get(0).payload());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldBatchNetworkReplyWindowUpdatesBelowThreshold() throws Exception
+    {
+        windowCoalescer = new WindowCoalescer(25);
+        factory = newFactory(new WindowBudget(8192, 8192, 1L << 24));
+
+        router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", null);
+
+        final SSLEngine peer = beginApplication();
+        final Deque<Frame> networkReplyThrottle = router.frames("net.reply.throttle");
+        networkReplyThrottle.clear();
+
+        final int[] recordLengths = new int[10];
+        Arrays.fill(recordLengths, 100);
+
+        int ciphertextLength = 0;
+        for (byte[] record : peerWrap(peer, plaintext(1000), recordLengths))
+        {
+            router.doData(networkReply, networkReplyId, record, 0, record.length);
+            ciphertextLength += record.length;
+        }
+
+        // each update is well below a quarter of the window while the peer still has credit
+        assertEquals(recordLengths.length, applicationReplyData().size());
+        assertTrue(networkReplyThrottle.isEmpty());
+
+        windowCoalescer.process();
+
+        final Frame window = networkReplyThrottle.poll();
+        assertNotNull(window);
+        assertTrue(window.isWindow());
+        assertEquals(ciphertextLength, window.update());
+        assertTrue(networkReplyThrottle.isEmpty());
+    }
+
+    @Test
+    public void shouldOfferRouteApplicationProtocol() throws Exception
+    {
+        router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", "h2");
+
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "http/1.1", "h2");
+        final Frame applicationReplyBegin = handshake(peer, 65536, 64);
+
+        assertTrue(applicationReplyBegin.isBegin());
+        assertEquals("h2", peer.getApplicationProtocol());
+        assertEquals("h2", applicationReplyBegin.applicationProtocol());
+    }
+
+    @Test
+    public void shouldOfferApplicationProtocolOfBeginOverRoute() throws Exception
+    {
+        router.route(Role.CLIENT, "app", 1L, "net", 2L, "localhost", "h2");
+
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "h2", "http/1.1");
+        final Frame applicationReplyBegin = handshake(peer, "http/1.1", 65536, 64);
+
+        assertTrue(applicationReplyBegin.isBegin());
+        assertEquals("http/1.1", peer.getApplicationProtocol());
+        assertEquals("http/1.1", applicationReplyBegin.applicationProtocol());
+    }
+
+    private SSLEngine beginApplication() throws Exception
+    {
+        return beginApplication(1 << 17);
+    }
+
+    private SSLEngine beginApplication(
+        int applicationReplyWindow) throws Exception
+    {
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        final Frame applicationReplyBegin = handshake(peer, 65536, 64);
+        assertTrue(applicationReplyBegin.isBegin());
+
+        final long applicationReplyId = applicationReplyBegin.streamId();
+        router.doWindow(router.throttle(applicationReplyId), applicationReplyId, applicationReplyWindow, 64);
+        process(peer, 65536, 64);
+        router.frames("app").clear();
+
+        return peer;
+    }
+
+    private List<Frame> applicationReplyData()
+    {
+        final List<Frame> applicationReplyData = new ArrayList<>();
+        for (Frame frame : router.frames("app"))
+        {
+            assertTrue(frame.isData());
+            applicationReplyData.add(frame);
+        }
+        router.frames("app").clear();
+
+        return applicationReplyData;
+    }
+
+    private static int recordCount(
+        byte[] ciphertext)
+    {
+        final ByteBuffer records = ByteBuffer.wrap(ciphertext);
+
+        int count = 0;
+        for (int length = TlsRecord.length(records); length != 0; length = TlsRecord.length(records))
+        {
+            records.position(records.position() + length);
+            count++;
+        }
+
+        return count;
+    }
+
+    private static byte[] plaintext(
+        int length)
+    {
+        final byte[] plaintext = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            plaintext[i] = (byte) i;
+        }
+        return plaintext;
+    }
+
+    private static List<byte[]> peerWrap(
+        SSLEngine peer,
+        byte[] plaintext,
+        int... recordLengths) throws Exception
+    {
+        final List<byte[]> records = new ArrayList<>();
+        final ByteBuffer ciphertext = ByteBuffer.allocate(peer.getSession().getPacketBufferSize());
+
+        int offset = 0;
+        for (int recordLength : recordLengths)
+        {
+            ciphertext.clear();
+            final SSLEngineResult result = peer.wrap(ByteBuffer.wrap(plaintext, offset, recordLength), ciphertext);
+            assertEquals(recordLength, result.bytesConsumed());
+            records.add(Arrays.copyOf(ciphertext.array(), ciphertext.position()));
+            offset += recordLength;
+        }
+
+        return records;
+    }
+
+    private SSLEngine newPeer(
+        String protocol,
+        String cipherSuite) throws Exception
+    {
+        final SSLEngine peer = peerContext.createSSLEngine();
+        peer.setUseClientMode(false);
+
+        final SSLParameters parameters = peer.getSSLParameters();
+        parameters.setProtocols(new String[] { protocol });
+        parameters.setCipherSuites(new String[] { cipherSuite });
+        peer.setSSLParameters(parameters);
+
+        return peer;
+    }
+
+    private SSLEngine newPeer(
+        String protocol,
+        String cipherSuite,
+        String... applicationProtocols) throws Exception
+    {
+        final SSLEngine peer = newPeer(protocol, cipherSuite);
+
+        final SSLParameters parameters = peer.getSSLParameters();
+        parameters.setApplicationProtocols(applicationProtocols);
+        peer.setSSLParameters(parameters);
+
+        return peer;
+    }
+
+    private Frame handshake(
+        SSLEngine peer,
+        int networkWindow,
+        int networkWindowFrames) throws Exception
+    {
+        return handshake(peer, null, networkWindow, networkWindowFrames);
+    }
+
+    private Frame handshake(
+        SSLEngine peer,
+        String applicationProtocol,
+        int networkWindow,
+        int networkWindowFrames) throws Exception
+    {
+        applicationId = 1000L + streamId;
+        networkReply = null;
+        networkReplyId = 0L;
+        networkBytes = networkWindow;
+        networkFrames = networkWindowFrames;
+        peerCiphertext.clear();
+        peerPlaintext.reset();
+        router.frames("app").clear();
+        router.frames("app.throttle").clear();
+
+        final Deque<Frame> applicationReply = router.frames("app");
+        application = router.doBegin(factory, router.supplyTarget("app.throttle"), applicationId, "app", 1L,
+                applicationId + 1, null, applicationProtocol);
+
+        Frame applicationReplyBegin = null;
+        try
+        {
+            peer.beginHandshake();
+            for (int i = 0; i < 32 && applicationReplyBegin == null; i++)
+            {
+                process(peer, networkWindow, networkWindowFrames);
+                for (byte[] record : peerWrap(peer, ByteBuffer.allocate(0)))
+                {
+                    router.doData(networkReply, networkReplyId, record, 0, record.length);
+                }
+                applicationReplyBegin = applicationReply.poll();
+            }
+        }
+        catch (SSLException ex)
+        {
+            // protocol or cipher suite disabled by this JDK
+        }
+
+        return applicationReplyBegin;
+    }
+
+    private void process(
+        SSLEngine peer,
+        int networkWindow,
+        int networkWindowFrames) throws Exception
+    {
+        executor.process();
+        windowCoalescer.process();
+        writeCoalescer.process();
+
+        final Deque<Frame> network = router.frames("net");
+        for (Frame frame = network.poll(); frame != null; frame = network.poll())
+        {
+            if (frame.isBegin())
+            {
+                // the peer accepts the connection and replies on the correlated stream
+                networkId = frame.streamId();
+                router.doWindow(router.throttle(networkId), networkId, networkWindow, networkWindowFrames);
+
+                networkReplyId = 2000L + networkId;
+                networkReply = router.doBegin(factory, router.supplyTarget("net.reply.throttle"), networkReplyId, "net",
+                        0L, frame.correlationId());
+            }
+            else if (frame.isData())
+            {
+                final byte[] ciphertext = frame.payload();
+                networkBytes -= ciphertext.length;
+                networkFrames--;
+                peerUnwrap(peer, ciphertext);
+            }
+        }
+    }
+
+    private void peerUnwrap(
+        SSLEngine peer,
+        byte[] ciphertext) throws Exception
+    {
+        peerCiphertext.put(ciphertext);
+        peerCiphertext.flip();
+
+        final ByteBuffer plaintext = ByteBuffer.allocate(1 << 17);
+        while (peerCiphertext.hasRemaining())
+        {
+            plaintext.clear();
+            final SSLEngineResult result = peer.unwrap(peerCiphertext, plaintext);
+            runDelegatedTasks(peer);
+            peerPlaintext.write(plaintext.array(), 0, plaintext.position());
+
+            if (result.bytesProduced() > 0)
+            {
+                peerRecordLengths.add(result.bytesProduced());
+            }
+
+            if (result.getStatus() != Status.OK || result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+            {
+                break;
+            }
+        }
+
+        peerCiphertext.compact();
+    }
+
+    private static List<byte[]> peerWrap(
+        SSLEngine peer,
+        ByteBuffer plaintext) throws Exception
+    {
+        final List<byte[]> records = new ArrayList<>();
+        final ByteBuffer ciphertext = ByteBuffer.allocate(peer.getSession().getPacketBufferSize());
+
+        for (;;)
+        {
+            runDelegatedTasks(peer);
+
+            ciphertext.clear();
+            final SSLEngineResult result = peer.wrap(plaintext, ciphertext);
+            if (ciphertext.position() == 0)
+            {
+                break;
+            }
+
+            records.add(Arrays.copyOf(ciphertext.array(), ciphertext.position()));
+
+            if (result.getStatus() == Status.CLOSED)
+            {
+                break;
+            }
+        }
+
+        return records;
+    }
+
+    private static void runDelegatedTasks(
+        SSLEngine engine)
+    {
+        for (Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask())
+        {
+            task.run();
+        }
+    }
+
+    private static KeyManager[] keyManagers() throws Exception
+    {
+        final KeyStore keys = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream("src/test/democa/keys"))
+        {
+            keys.load(in, "generated".toCharArray());
+        }
+
+        final KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keys, "generated".toCharArray());
+        return factory.getKeyManagers();
+    }
+
+    private static final class TrustAllManager implements X509TrustManager
+    {
+        @Override
+        public void checkClientTrusted(
+            X509Certificate[] chain,
+            String authType)
+        {
+        }
+
+        @Override
+        public void checkServerTrusted(
+            X509Certificate[] chain,
+            String authType)
+        {
+            // test certificates have expired
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers()
+        {
+            return new X509Certificate[0];
+        }
+    }
+}
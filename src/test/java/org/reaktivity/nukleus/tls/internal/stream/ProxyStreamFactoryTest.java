@@ -0,0 +1,306 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import org.agrona.concurrent.UnsafeBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.reaktivity.nukleus.function.MessageConsumer;
+import org.reaktivity.nukleus.stream.StreamFactory;
+import org.reaktivity.nukleus.tls.internal.stream.TestRouter.Frame;
+import org.reaktivity.nukleus.tls.internal.types.control.Role;
+import org.reaktivity.nukleus.tls.internal.util.BufferPool;
+import org.reaktivity.nukleus.tls.internal.util.WindowBudget;
+
+public class ProxyStreamFactoryTest
+{
+    private static final byte[] UNRECOGNIZED_NAME_ALERT = { 0x15, 0x03, 0x03, 0x00, 0x02, 0x02, 0x70 };
+
+    private TestRouter router;
+    private BufferPool bufferPool;
+    private StreamFactory factory;
+    private long streamId;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        router = new TestRouter();
+        bufferPool = new BufferPool(0x8000, 4);
+        factory = newFactory(new WindowBudget(8192, 8192, 1L << 24));
+
+        router.route(Role.PROXY, "net", 1L, "backend.a", 1L, "a.example", null);
+    }
+
+    private StreamFactory newFactory(
+        WindowBudget windowBudget)
+    {
+        return new ProxyStreamFactoryBuilder(bufferPool, windowBudget)
+            .setRouteHandler(router)
+            .setWriteBuffer(new UnsafeBuffer(new byte[1 << 16]))
+            .setStreamIdSupplier(() -> ++streamId)
+            .setCorrelationIdSupplier(() -> ++streamId)
+            .build();
+    }
+
+    @Test
+    public void shouldRouteByServerName() throws Exception
+    {
+        router.route(Role.PROXY, "net", 1L, "backend.b", 2L, "b.example", null);
+
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final byte[] clientHello = clientHello("b.example");
+        router.doData(network, 10L, clientHello, 0, clientHello.length);
+
+        assertTrue(router.frames("backend.a").isEmpty());
+
+        final Deque<Frame> target = router.frames("backend.b");
+        final Frame begin = target.poll();
+        assertTrue(begin.isBegin());
+        assertEquals(2L, begin.sourceRef());
+        assertTrue(target.isEmpty());
+
+        router.doWindow(router.throttle(begin.streamId()), begin.streamId(), 8192, 8);
+
+        final Frame data = target.poll();
+        assertTrue(data.isData());
+        assertArrayEquals(clientHello, data.payload());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldHoldClientHelloSplitAcrossFrames() throws Exception
+    {
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final byte[] clientHello = clientHello("a.example");
+        final int split = clientHello.length / 2;
+        router.doData(network, 10L, clientHello, 0, split);
+
+        assertTrue(router.frames("backend.a").isEmpty());
+
+        router.doData(network, 10L, clientHello, split, clientHello.length - split);
+
+        final Deque<Frame> target = router.frames("backend.a");
+        final Frame begin = target.poll();
+        assertTrue(begin.isBegin());
+        assertTrue(target.isEmpty());
+
+        // relayed only as far as the target grants credit
+        router.doWindow(router.throttle(begin.streamId()), begin.streamId(), split, 1);
+        assertArrayEquals(Arrays.copyOfRange(clientHello, 0, split), target.poll().payload());
+        assertTrue(target.isEmpty());
+
+        router.doWindow(router.throttle(begin.streamId()), begin.streamId(), 8192, 8);
+        assertArrayEquals(Arrays.copyOfRange(clientHello, split, clientHello.length), target.poll().payload());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldRelayTargetReplyToNetworkReply() throws Exception
+    {
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final byte[] clientHello = clientHello("a.example");
+        router.doData(network, 10L, clientHello, 0, clientHello.length);
+
+        final Deque<Frame> networkReply = router.frames("net");
+        final Frame networkReplyBegin = networkReply.poll();
+        assertTrue(networkReplyBegin.isBegin());
+        assertEquals(11L, networkReplyBegin.correlationId());
+
+        final long networkReplyId = networkReplyBegin.streamId();
+        router.doWindow(router.throttle(networkReplyId), networkReplyId, 8192, 8);
+
+        final Frame begin = router.frames("backend.a").poll();
+        final MessageConsumer targetReply = router.doBegin(factory, router.supplyTarget("backend.a.throttle"), 20L,
+                "backend.a", 0L, begin.correlationId());
+
+        // network reply credit granted before the target reply began is passed on
+        final Frame targetReplyWindow = router.frames("backend.a.throttle").poll();
+        assertTrue(targetReplyWindow.isWindow());
+        assertEquals(8192, targetReplyWindow.update());
+        assertEquals(8, targetReplyWindow.frames());
+
+        final byte[] serverHello = "server hello".getBytes(UTF_8);
+        router.doData(targetReply, 20L, serverHello, 0, serverHello.length);
+        router.doEnd(targetReply, 20L);
+
+        final Frame data = networkReply.poll();
+        assertTrue(data.isData());
+        assertArrayEquals(serverHello, data.payload());
+        assertTrue(networkReply.poll().isEnd());
+        assertTrue(networkReply.isEmpty());
+    }
+
+    @Test
+    public void shouldEndNetworkReplyWhenTargetReset() throws Exception
+    {
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final byte[] clientHello = clientHello("a.example");
+        router.doData(network, 10L, clientHello, 0, clientHello.length);
+
+        final Frame begin = router.frames("backend.a").poll();
+        router.doReset(router.throttle(begin.streamId()), begin.streamId());
+
+        assertTrue(router.frames("net.throttle").peekLast().isReset());
+
+        final Deque<Frame> networkReply = router.frames("net");
+        assertTrue(networkReply.poll().isBegin());
+        assertTrue(networkReply.poll().isEnd());
+        assertTrue(networkReply.isEmpty());
+        assertEquals(0, bufferPool.acquiredSlots());
+
+        // a target reply arriving after the reset no longer correlates
+        router.doBegin(factory, router.supplyTarget("backend.a.throttle"), 20L, "backend.a", 0L, begin.correlationId());
+        assertTrue(router.frames("backend.a.throttle").peekLast().isReset());
+    }
+
+    @Test
+    public void shouldResetTargetReplyWhenTargetReset() throws Exception
+    {
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final byte[] clientHello = clientHello("a.example");
+        router.doData(network, 10L, clientHello, 0, clientHello.length);
+
+        final Frame begin = router.frames("backend.a").poll();
+        final MessageConsumer targetReply = router.doBegin(factory, router.supplyTarget("backend.a.throttle"), 20L,
+                "backend.a", 0L, begin.correlationId());
+
+        router.doReset(router.throttle(begin.streamId()), begin.streamId());
+
+        assertTrue(router.frames("backend.a.throttle").peekLast().isReset());
+        assertTrue(router.frames("net.throttle").peekLast().isReset());
+
+        final Deque<Frame> networkReply = router.frames("net");
+        assertTrue(networkReply.poll().isBegin());
+        assertTrue(networkReply.poll().isEnd());
+
+        // frames in flight from the target reply are dropped
+        final byte[] serverHello = "server hello".getBytes(UTF_8);
+        router.doData(targetReply, 20L, serverHello, 0, serverHello.length);
+        router.doEnd(targetReply, 20L);
+        assertTrue(networkReply.isEmpty());
+    }
+
+    @Test
+    public void shouldRejectUnrecognizedName() throws Exception
+    {
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final Deque<Frame> networkReply = router.frames("net");
+        final Frame networkReplyBegin = networkReply.poll();
+        assertTrue(networkReplyBegin.isBegin());
+        router.doWindow(router.throttle(networkReplyBegin.streamId()), networkReplyBegin.streamId(), 8192, 8);
+
+        final byte[] clientHello = clientHello("c.example");
+        router.doData(network, 10L, clientHello, 0, clientHello.length);
+
+        final Frame alert = networkReply.poll();
+        assertTrue(alert.isData());
+        assertArrayEquals(UNRECOGNIZED_NAME_ALERT, alert.payload());
+        assertTrue(networkReply.poll().isEnd());
+        assertTrue(networkReply.isEmpty());
+
+        assertTrue(router.frames("backend.a").isEmpty());
+        assertTrue(router.frames("net.throttle").peekLast().isReset());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldHoldAlertUntilNetworkReplyWindow() throws Exception
+    {
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final byte[] clientHello = clientHello("c.example");
+        router.doData(network, 10L, clientHello, 0, clientHello.length);
+
+        final Deque<Frame> networkReply = router.frames("net");
+        final Frame networkReplyBegin = networkReply.poll();
+        assertTrue(networkReplyBegin.isBegin());
+        assertTrue(networkReply.isEmpty());
+        assertTrue(router.frames("net.throttle").peekLast().isWindow());
+
+        final long networkReplyId = networkReplyBegin.streamId();
+        router.doWindow(router.throttle(networkReplyId), networkReplyId, 8192, 8);
+
+        assertArrayEquals(UNRECOGNIZED_NAME_ALERT, networkReply.poll().payload());
+        assertTrue(networkReply.poll().isEnd());
+        assertTrue(networkReply.isEmpty());
+        assertTrue(router.frames("net.throttle").peekLast().isReset());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldResetNetworkWhenNetworkReplyResetBeforeAlert() throws Exception
+    {
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final byte[] clientHello = clientHello("c.example");
+        router.doData(network, 10L, clientHello, 0, clientHello.length);
+
+        final Deque<Frame> networkReply = router.frames("net");
+        final long networkReplyId = networkReply.poll().streamId();
+        router.doReset(router.throttle(networkReplyId), networkReplyId);
+
+        assertTrue(networkReply.isEmpty());
+        assertTrue(router.frames("net.throttle").peekLast().isReset());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldCapInitialNetworkWindowBySlotCapacity() throws Exception
+    {
+        final StreamFactory factory = newFactory(new WindowBudget(0x10000, 0x10000, 1L << 24));
+
+        router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+
+        final Frame window = router.frames("net.throttle").poll();
+        assertTrue(window.isWindow());
+        assertEquals(bufferPool.slotCapacity(), window.update());
+    }
+
+    private static byte[] clientHello(
+        String hostname) throws Exception
+    {
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+
+        final SSLEngine engine = context.createSSLEngine(hostname, 443);
+        engine.setUseClientMode(true);
+
+        final SSLParameters parameters = engine.getSSLParameters();
+        parameters.setServerNames(Collections.singletonList(new SNIHostName(hostname)));
+        engine.setSSLParameters(parameters);
+
+        final ByteBuffer packet = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        engine.wrap(ByteBuffer.allocate(0), packet);
+        packet.flip();
+
+        final byte[] bytes = new byte[packet.remaining()];
+        packet.get(bytes);
+        return bytes;
+    }
+}
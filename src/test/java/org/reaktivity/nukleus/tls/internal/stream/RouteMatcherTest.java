@@ -0,0 +1,229 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.reaktivity.nukleus.tls.internal.util.ClientHello.COMPLETE;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.reaktivity.nukleus.function.MessageFunction;
+import org.reaktivity.nukleus.tls.internal.types.control.Role;
+import org.reaktivity.nukleus.tls.internal.types.control.RouteFW;
+import org.reaktivity.nukleus.tls.internal.util.ClientHello;
+
+public class RouteMatcherTest
+{
+    private final RouteFW routeRO = new RouteFW();
+    private final MessageFunction<RouteFW> wrapRoute = (t, b, i, l) -> routeRO.wrap(b, i, i + l);
+
+    private final RouteMatcher matcher = new RouteMatcher();
+    private final ClientHello clientHello = new ClientHello();
+
+    private TestRouter router;
+
+    @Before
+    public void setUp()
+    {
+        router = new TestRouter();
+    }
+
+    @Test
+    public void shouldPreferExactOverWildcardAndDefault()
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 1L, null, null);
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "*.example.com", null);
+        router.route(Role.SERVER, "net", 1L, "app", 3L, "www.example.com", null);
+
+        assertEquals(3L, resolveTargetRef("www.example.com"));
+    }
+
+    @Test
+    public void shouldPreferWildcardOverDefault()
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 1L, null, null);
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "*.example.com", null);
+
+        assertEquals(2L, resolveTargetRef("www.example.com"));
+    }
+
+    @Test
+    public void shouldFallBackToDefault()
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 1L, "*.example.com", null);
+        router.route(Role.SERVER, "net", 1L, "app", 2L, null, null);
+
+        assertEquals(2L, resolveTargetRef("www.example.net"));
+        assertEquals(2L, resolveTargetRef(null));
+    }
+
+    @Test
+    public void shouldPreferFirstRouteOnTie()
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 1L, null, null);
+        router.route(Role.SERVER, "net", 1L, "app", 2L, null, null);
+        router.route(Role.SERVER, "net", 1L, "app", 3L, "*.example.com", null);
+        router.route(Role.SERVER, "net", 1L, "app", 4L, "*.EXAMPLE.com", null);
+
+        assertEquals(3L, resolveTargetRef("www.example.com"));
+        assertEquals(1L, resolveTargetRef("www.example.net"));
+    }
+
+    @Test
+    public void shouldMatchWildcardForSingleLabelOnly()
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 1L, "*.example.com", null);
+
+        assertEquals(1L, resolveTargetRef("WWW.Example.COM"));
+        assertNull(resolve("example.com"));
+        assertNull(resolve(".example.com"));
+        assertNull(resolve("a.b.example.com"));
+        assertNull(resolve("wwwexample.com"));
+    }
+
+    @Test
+    public void shouldNotFallBackToDefaultForExactHostname()
+    {
+        router.route(Role.CLIENT, "app", 1L, "net", 1L, null, null);
+        router.route(Role.CLIENT, "app", 1L, "net", 2L, "*.example.com", null);
+
+        assertEquals(2L, matcher.source("app", 1L).hostname("www.example.com").resolve(router, wrapRoute).targetRef());
+        assertNull(matcher.source("app", 1L).hostname("www.example.net").resolve(router, wrapRoute));
+    }
+
+    @Test
+    public void shouldMatchAnyHostnameBySourceOnly()
+    {
+        router.route(Role.SERVER, "net", 2L, "app", 1L, "www.example.com", null);
+        router.route(Role.SERVER, "other", 1L, "app", 2L, "www.example.com", null);
+        router.route(Role.SERVER, "net", 1L, "app", 3L, "www.example.com", null);
+
+        assertEquals(3L, matcher.source("net", 1L).resolve(router, wrapRoute).targetRef());
+    }
+
+    @Test
+    public void shouldClearCandidateBetweenResolves()
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 1L, "*.example.com", null);
+
+        assertEquals(1L, resolveTargetRef("www.example.com"));
+        assertNull(resolve("www.example.net"));
+    }
+
+    @Test
+    public void shouldPreferOfferedProtocolAtSameHostnamePrecedence() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 1L, "www.example.com", null);
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "www.example.com", "h2");
+        router.route(Role.SERVER, "net", 1L, "app", 3L, "*.example.com", null);
+        router.route(Role.SERVER, "net", 1L, "app", 4L, "*.example.com", "h2");
+
+        assertEquals(2L, resolveHelloTargetRef("www.example.com", "h2", "http/1.1"));
+        assertEquals(1L, resolveHelloTargetRef("www.example.com", "http/1.1"));
+        assertEquals(4L, resolveHelloTargetRef("api.example.com", "h2"));
+        assertEquals(3L, resolveHelloTargetRef("api.example.com", "http/1.1"));
+        assertEquals(1L, resolveHelloTargetRef("www.example.com"));
+    }
+
+    @Test
+    public void shouldPreferHostnamePrecedenceOverProtocol() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 1L, null, "h2");
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "*.example.com", "h2");
+        router.route(Role.SERVER, "net", 1L, "app", 3L, "www.example.com", null);
+
+        assertEquals(3L, resolveHelloTargetRef("www.example.com", "h2"));
+        assertEquals(2L, resolveHelloTargetRef("api.example.com", "h2"));
+        assertEquals(1L, resolveHelloTargetRef("www.example.net", "h2"));
+    }
+
+    @Test
+    public void shouldNotMatchProtocolRouteUnlessOffered() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 1L, "www.example.com", "h2");
+        router.route(Role.SERVER, "net", 1L, "app", 2L, null, null);
+
+        assertEquals(2L, resolveHelloTargetRef("www.example.com", "http/1.1"));
+        assertEquals(2L, resolveHelloTargetRef("www.example.com"));
+    }
+
+    @Test
+    public void shouldMatchDefaultProtocolRouteWithoutHostname() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 1L, null, null);
+        router.route(Role.SERVER, "net", 1L, "app", 2L, null, "h2");
+
+        assertEquals(2L, resolveHelloTargetRef("www.example.com", "h2"));
+        assertEquals(1L, resolveHelloTargetRef("www.example.com", "http/1.1"));
+    }
+
+    private long resolveTargetRef(
+        String hostname)
+    {
+        return resolve(hostname).targetRef();
+    }
+
+    private RouteFW resolve(
+        String hostname)
+    {
+        return matcher.source("net", 1L).hostnameOrDefault(hostname).resolve(router, wrapRoute);
+    }
+
+    private long resolveHelloTargetRef(
+        String hostname,
+        String... protocols) throws Exception
+    {
+        final ByteBuffer buffer = clientHello(hostname, protocols);
+        assertEquals(COMPLETE, clientHello.parse(buffer));
+
+        final RouteFW route = matcher.source("net", 1L)
+                .hostnameOrDefault(buffer, clientHello.serverNameOffset(), clientHello.serverNameLength())
+                .applicationProtocols(clientHello, buffer)
+                .resolve(router, wrapRoute);
+
+        return route.targetRef();
+    }
+
+    private static ByteBuffer clientHello(
+        String hostname,
+        String... protocols) throws Exception
+    {
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+
+        final SSLEngine engine = context.createSSLEngine(hostname, 443);
+        engine.setUseClientMode(true);
+
+        final SSLParameters parameters = engine.getSSLParameters();
+        parameters.setServerNames(Collections.singletonList(new SNIHostName(hostname)));
+        parameters.setApplicationProtocols(protocols);
+        engine.setSSLParameters(parameters);
+
+        final ByteBuffer packet = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        engine.wrap(ByteBuffer.allocate(0), packet);
+        packet.flip();
+        return packet;
+    }
+}
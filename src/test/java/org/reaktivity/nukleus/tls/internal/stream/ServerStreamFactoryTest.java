@@ -0,0 +1,1199 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.stream;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.MAX_PLAINTEXT_LENGTH;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.agrona.concurrent.UnsafeBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.reaktivity.nukleus.function.MessageConsumer;
+import org.reaktivity.nukleus.stream.StreamFactory;
+import org.reaktivity.nukleus.tls.internal.TlsCounters;
+import org.reaktivity.nukleus.tls.internal.TlsRouteCounters;
+import org.reaktivity.nukleus.tls.internal.stream.TestRouter.Frame;
+import org.reaktivity.nukleus.tls.internal.types.control.Role;
+import org.reaktivity.nukleus.tls.internal.types.control.RouteFW;
+import org.reaktivity.nukleus.tls.internal.util.BufferPool;
+import org.reaktivity.nukleus.tls.internal.util.DelegatedTaskExecutor;
+import org.reaktivity.nukleus.tls.internal.util.RecordSizing;
+import org.reaktivity.nukleus.tls.internal.util.TestEngine;
+import org.reaktivity.nukleus.tls.internal.util.TlsRecord;
+import org.reaktivity.nukleus.tls.internal.util.WindowBudget;
+import org.reaktivity.nukleus.tls.internal.util.WindowCoalescer;
+import org.reaktivity.nukleus.tls.internal.util.WriteCoalescer;
+
+public class ServerStreamFactoryTest
+{
+    private static final byte[] UNRECOGNIZED_NAME_ALERT = { 0x15, 0x03, 0x03, 0x00, 0x02, 0x02, 0x70 };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream peerPlaintext = new ByteArrayOutputStream();
+    private final ByteBuffer peerCiphertext = ByteBuffer.allocate(1 << 20);
+    private final List<Integer> peerRecordLengths = new ArrayList<>();
+
+    private TestRouter router;
+    private DelegatedTaskExecutor executor;
+    private BufferPool bufferPool;
+    private WindowCoalescer windowCoalescer;
+    private WriteCoalescer writeCoalescer;
+    private TlsCounters counters;
+    private SSLContext context;
+    private StreamFactory factory;
+    private long streamId;
+
+    private MessageConsumer network;
+    private long networkId;
+    private long networkReplyId;
+    private int networkReplyBytes;
+    private int networkReplyFrames;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        context = SSLContext.getInstance("TLS");
+        context.init(keyManagers(), null, null);
+
+        router = new TestRouter();
+        executor = new DelegatedTaskExecutor(0);
+        bufferPool = new BufferPool(0x8000, 4);
+        windowCoalescer = new WindowCoalescer(0);
+        writeCoalescer = new WriteCoalescer(false, 0L);
+        counters = new TlsCounters(folder.newFile("counters").toPath(), 16, 16);
+        factory = newFactory(new WindowBudget(8192, 8192, 1L << 24));
+    }
+
+    private StreamFactory newFactory(
+        WindowBudget windowBudget)
+    {
+        return new ServerStreamFactoryBuilder(
+                () -> context,
+                executor,
+                bufferPool,
+                windowBudget,
+                windowCoalescer,
+                writeCoalescer,
+                new RecordSizing(false, 0, 0L, 0L),
+                new ServerSessionCache(context.getServerSessionContext(), 16, 60, counters),
+                counters)
+            .setRouteHandler(router)
+            .setWriteBuffer(new UnsafeBuffer(new byte[1 << 16]))
+            .setStreamIdSupplier(() -> ++streamId)
+            .setCorrelationIdSupplier(() -> ++streamId)
+            .build();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.close();
+        counters.close();
+    }
+
+    @Test
+    public void shouldRejectUnrecognizedNameWithAlert() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final Deque<Frame> networkReply = router.frames("net");
+        final Frame networkReplyBegin = networkReply.poll();
+        assertTrue(networkReplyBegin.isBegin());
+        router.doWindow(router.throttle(networkReplyBegin.streamId()), networkReplyBegin.streamId(), 8192, 8);
+
+        final byte[] clientHello = clientHello("other.example");
+        router.doData(network, 10L, clientHello, 0, clientHello.length);
+        executor.process();
+
+        final Frame alert = networkReply.poll();
+        assertTrue(alert.isData());
+        assertArrayEquals(UNRECOGNIZED_NAME_ALERT, alert.payload());
+        assertTrue(networkReply.poll().isEnd());
+        assertTrue(networkReply.isEmpty());
+
+        assertTrue(router.frames("app").isEmpty());
+        assertTrue(router.frames("net.throttle").peekLast().isReset());
+        assertEquals(0, bufferPool.acquiredSlots());
+
+        final TlsRouteCounters unrouted = counters.routeCounters("server.unrouted");
+        assertEquals(1L, unrouted.handshakesStarted.get());
+        assertEquals(1L, unrouted.handshakesFailed.get());
+    }
+
+    @Test
+    public void shouldHoldAlertUntilNetworkReplyWindow() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final byte[] clientHello = clientHello("other.example");
+        router.doData(network, 10L, clientHello, 0, clientHello.length);
+        executor.process();
+
+        final Deque<Frame> networkReply = router.frames("net");
+        final Frame networkReplyBegin = networkReply.poll();
+        assertTrue(networkReplyBegin.isBegin());
+        assertTrue(networkReply.isEmpty());
+        assertTrue(router.frames("net.throttle").peekLast().isWindow());
+        assertEquals(1, bufferPool.acquiredSlots());
+
+        final long networkReplyId = networkReplyBegin.streamId();
+        router.doWindow(router.throttle(networkReplyId), networkReplyId, 8192, 8);
+
+        assertArrayEquals(UNRECOGNIZED_NAME_ALERT, networkReply.poll().payload());
+        assertTrue(networkReply.poll().isEnd());
+        assertTrue(networkReply.isEmpty());
+        assertTrue(router.frames("net.throttle").peekLast().isReset());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldResetNetworkWhenNetworkReplyResetBeforeAlert() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final byte[] clientHello = clientHello("other.example");
+        router.doData(network, 10L, clientHello, 0, clientHello.length);
+        executor.process();
+
+        final Deque<Frame> networkReply = router.frames("net");
+        final long networkReplyId = networkReply.poll().streamId();
+        router.doReset(router.throttle(networkReplyId), networkReplyId);
+
+        assertTrue(networkReply.isEmpty());
+        assertTrue(router.frames("net.throttle").peekLast().isReset());
+        assertEquals(0, bufferPool.acquiredSlots());
+        assertEquals(1L, counters.routeCounters("server.unrouted").handshakesFailed.get());
+    }
+
+    @Test
+    public void shouldRejectUnrecognizedNameSplitAcrossFrames() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final Deque<Frame> networkReply = router.frames("net");
+        final Frame networkReplyBegin = networkReply.poll();
+        assertTrue(networkReplyBegin.isBegin());
+        router.doWindow(router.throttle(networkReplyBegin.streamId()), networkReplyBegin.streamId(), 8192, 8);
+
+        final byte[] clientHello = clientHello("other.example");
+        router.doData(network, 10L, clientHello, 0, 3);
+        router.doData(network, 10L, clientHello, 3, clientHello.length - 3);
+        executor.process();
+
+        assertArrayEquals(UNRECOGNIZED_NAME_ALERT, networkReply.poll().payload());
+        assertTrue(networkReply.poll().isEnd());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldReleaseWindowBudgetOnReject() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final WindowBudget windowBudget = new WindowBudget(64, 128, 64L);
+        final StreamFactory factory = newFactory(windowBudget);
+
+        for (long networkId = 10L; networkId < 40L; networkId += 10L)
+        {
+            // each client hello overruns the initial window, so the stream draws on the shared budget
+            final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), networkId,
+                    "net", 1L, networkId + 1);
+            final long networkReplyId = router.frames("net").peekLast().streamId();
+            router.doWindow(router.throttle(networkReplyId), networkReplyId, 8192, 8);
+
+            final byte[] clientHello = clientHello("other.example");
+            router.doData(network, networkId, clientHello, 0, clientHello.length);
+            executor.process();
+
+            assertTrue(router.frames("net.throttle").peekLast().isReset());
+        }
+
+        assertEquals(128, windowBudget.grow(64));
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldWithholdNetworkWindowWithoutFreeSlot() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final int[] slots = new int[bufferPool.availableSlots()];
+        for (int i = 0; i < slots.length; i++)
+        {
+            slots[i] = bufferPool.acquire();
+        }
+
+        router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        windowCoalescer.process();
+
+        final Deque<Frame> networkThrottle = router.frames("net.throttle");
+        assertTrue(networkThrottle.isEmpty());
+
+        bufferPool.release(slots[0]);
+        windowCoalescer.process();
+
+        final Frame window = networkThrottle.poll();
+        assertNotNull(window);
+        assertTrue(window.isWindow());
+        assertTrue(window.update() > 0);
+
+        for (int i = 1; i < slots.length; i++)
+        {
+            bufferPool.release(slots[i]);
+        }
+    }
+
+    @Test
+    public void shouldFailHandshakeWhenDelegatedTaskFails() throws Exception
+    {
+        final RouteFW route = router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+        final TlsRouteCounters routeCounters = counters.routeCounters("server", route, router);
+
+        context = TestEngine.failingTasks(context);
+
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final byte[] clientHello = clientHello("localhost");
+        router.doData(network, 10L, clientHello, 0, clientHello.length);
+        executor.process();
+
+        assertTrue(router.frames("net.throttle").peekLast().isReset());
+        assertTrue(router.frames("app").isEmpty());
+        assertEquals(0, bufferPool.acquiredSlots());
+        assertEquals(1L, routeCounters.handshakesStarted.get());
+        assertEquals(1L, routeCounters.handshakesFailed.get());
+    }
+
+    @Test
+    public void shouldHoldNetworkDataWhileDelegatedTaskRuns() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final List<TestEngine> engines = new ArrayList<>();
+        context = TestEngine.newContext(context, engines::add);
+
+        executor.close();
+        executor = new DelegatedTaskExecutor(1);
+        factory = newFactory(new WindowBudget(8192, 8192, 1L << 24));
+
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        networkId = 1000L;
+        network = router.doBegin(factory, router.supplyTarget("net.throttle"), networkId, "net", 1L, networkId + 1);
+
+        peer.beginHandshake();
+        for (byte[] record : peerWrap(peer, ByteBuffer.allocate(0)))
+        {
+            router.doData(network, networkId, record, 0, record.length);
+        }
+
+        // server flight follows once the client hello task completes on the worker
+        for (int i = 0; i < 1000 && peer.getHandshakeStatus() != HandshakeStatus.NEED_WRAP; i++)
+        {
+            LockSupport.parkNanos(1_000_000L);
+            process(peer, 65536, 64);
+        }
+        assertEquals(HandshakeStatus.NEED_WRAP, peer.getHandshakeStatus());
+
+        final CountDownLatch taskStarted = new CountDownLatch(1);
+        final CountDownLatch taskReleased = new CountDownLatch(1);
+        engines.get(0).blockTasks(taskStarted, taskReleased);
+
+        final List<byte[]> clientFlight = peerWrap(peer, ByteBuffer.allocate(0));
+        assertTrue(clientFlight.size() > 1);
+
+        // client key exchange starts a delegated task, the rest of the flight and more credit arrive while it runs
+        final byte[] clientKeyExchange = clientFlight.get(0);
+        router.doData(network, networkId, clientKeyExchange, 0, clientKeyExchange.length);
+        assertTrue(taskStarted.await(10, SECONDS));
+
+        final ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        for (byte[] record : clientFlight.subList(1, clientFlight.size()))
+        {
+            ciphertext.write(record);
+        }
+        final byte[] records = ciphertext.toByteArray();
+        router.doData(network, networkId, records, 0, records.length);
+        router.doWindow(router.throttle(networkReplyId), networkReplyId, 8192, 8);
+
+        assertEquals(1, bufferPool.acquiredSlots());
+        assertTrue(router.frames("app").isEmpty());
+
+        taskReleased.countDown();
+
+        Frame applicationBegin = null;
+        for (int i = 0; i < 1000 && applicationBegin == null; i++)
+        {
+            LockSupport.parkNanos(1_000_000L);
+            process(peer, 65536, 64);
+            applicationBegin = router.frames("app").poll();
+        }
+
+        assertNotNull(applicationBegin);
+        assertTrue(applicationBegin.isBegin());
+        assertEquals(HandshakeStatus.NOT_HANDSHAKING, peer.getHandshakeStatus());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldHandshakeWithClientHelloSplitAcrossFrames() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final byte[] clientHello = clientHello("localhost");
+        final int split = clientHello.length / 2;
+
+        router.doData(network, 10L, clientHello, 0, split);
+        executor.process();
+
+        final Deque<Frame> networkReply = router.frames("net");
+        final Frame begin = networkReply.poll();
+        assertTrue(begin.isBegin());
+        assertTrue(networkReply.isEmpty());
+        assertEquals(1, bufferPool.acquiredSlots());
+
+        router.doWindow(router.throttle(begin.streamId()), begin.streamId(), 1 << 16, 16);
+        router.doData(network, 10L, clientHello, split, clientHello.length - split);
+        executor.process();
+
+        final Frame serverHello = networkReply.poll();
+        assertNotNull(serverHello);
+        assertTrue(serverHello.isData());
+        assertEquals(0x16, serverHello.payload()[0]);
+        assertEquals(0, bufferPool.acquiredSlots());
+        assertTrue(router.frames("app").isEmpty());
+
+        final TlsRouteCounters unrouted = counters.routeCounters("server.unrouted");
+        assertEquals(0L, unrouted.handshakesStarted.get());
+    }
+
+    @Test
+    public void shouldWrapHandshakeWithinNetworkWindow() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        // the server flight carries the certificate chain, well beyond this window
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        assertNull(handshake(peer, 512, 64));
+        assertEquals(0, networkReplyBytes);
+        assertEquals(1, bufferPool.acquiredSlots());
+
+        router.doWindow(router.throttle(networkReplyId), networkReplyId, 65536, 64);
+        networkReplyBytes += 65536;
+        networkReplyFrames += 64;
+
+        Frame applicationBegin = null;
+        for (int i = 0; i < 32 && applicationBegin == null; i++)
+        {
+            process(peer, 65536, 64);
+            for (byte[] record : peerWrap(peer, ByteBuffer.allocate(0)))
+            {
+                router.doData(network, networkId, record, 0, record.length);
+            }
+            applicationBegin = router.frames("app").poll();
+        }
+
+        assertNotNull(applicationBegin);
+        assertTrue(applicationBegin.isBegin());
+        assertTrue(networkReplyBytes >= 0);
+        assertTrue(networkReplyFrames >= 0);
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldWriteHandshakeFlightInOneNetworkFrame() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final MessageConsumer network = router.doBegin(factory, router.supplyTarget("net.throttle"), 10L, "net", 1L, 11L);
+        final Deque<Frame> networkReply = router.frames("net");
+        final Frame begin = networkReply.poll();
+        assertTrue(begin.isBegin());
+        router.doWindow(router.throttle(begin.streamId()), begin.streamId(), 65536, 64);
+
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        peer.beginHandshake();
+        for (byte[] record : peerWrap(peer, ByteBuffer.allocate(0)))
+        {
+            router.doData(network, 10L, record, 0, record.length);
+        }
+        executor.process();
+
+        // server hello through server hello done
+        final Frame flight = networkReply.poll();
+        assertNotNull(flight);
+        assertTrue(flight.isData());
+        assertTrue(networkReply.isEmpty());
+        assertTrue(recordCount(flight.payload()) > 1);
+
+        peerUnwrap(peer, flight.payload());
+        assertEquals(HandshakeStatus.NEED_WRAP, peer.getHandshakeStatus());
+    }
+
+    @Test
+    public void shouldCloseApplicationWhenNetworkReplyResetBeforeApplicationReply() throws Exception
+    {
+        final RouteFW route = router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+        final TlsRouteCounters routeCounters = counters.routeCounters("server", route, router);
+
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        final Frame applicationBegin = handshake(peer, 65536, 64);
+        assertTrue(applicationBegin.isBegin());
+        assertEquals(1L, routeCounters.streamsActive.get());
+
+        router.doReset(router.throttle(networkReplyId), networkReplyId);
+
+        assertEquals(0L, routeCounters.streamsActive.get());
+        assertTrue(router.frames("app").peekLast().isEnd());
+        assertTrue(router.frames("net.throttle").peekLast().isReset());
+        assertEquals(0, bufferPool.acquiredSlots());
+
+        // an application reply arriving after the reset no longer correlates
+        router.doBegin(factory, router.supplyTarget("app.reply.throttle"), 2000L, "app", 0L, applicationBegin.correlationId());
+        assertTrue(router.frames("app.reply.throttle").peekLast().isReset());
+    }
+
+    @Test
+    public void shouldCountResumedHandshakesForTls12() throws Exception
+    {
+        assertHandshakesResumed("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+    }
+
+    @Test
+    public void shouldCountResumedHandshakesForTls13() throws Exception
+    {
+        assertHandshakesResumed("TLSv1.3", "TLS_AES_128_GCM_SHA256");
+    }
+
+    @Test
+    public void shouldWrapSmallRecordsWithRouteRecordSizing() throws Exception
+    {
+        final RouteFW route = router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null, 1400, 1L << 20, 1000L);
+        final TlsRouteCounters routeCounters = counters.routeCounters("server", route, router);
+
+        final List<Integer> recordLengths = writeApplicationReply(routeCounters, 8192);
+
+        assertEquals(6, recordLengths.size());
+        for (int recordLength : recordLengths)
+        {
+            assertTrue(recordLength <= 1400);
+        }
+    }
+
+    @Test
+    public void shouldWrapFullRecordsWithoutRouteRecordSizing() throws Exception
+    {
+        final RouteFW route = router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+        final TlsRouteCounters routeCounters = counters.routeCounters("server", route, router);
+
+        final List<Integer> recordLengths = writeApplicationReply(routeCounters, 8192);
+
+        assertEquals(Collections.singletonList(8192), recordLengths);
+    }
+
+    @Test
+    public void shouldCoalesceSmallApplicationWritesIntoOneRecord() throws Exception
+    {
+        writeCoalescer = new WriteCoalescer(true, 0L);
+        factory = newFactory(new WindowBudget(8192, 8192, 1L << 24));
+
+        final RouteFW route = router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+        final TlsRouteCounters routeCounters = counters.routeCounters("server", route, router);
+
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        final Frame applicationBegin = handshake(peer, 65536, 64);
+        assertTrue(applicationBegin.isBegin());
+
+        final long applicationReplyId = 2000L + streamId;
+        final MessageConsumer applicationReply = router.doBegin(factory, router.supplyTarget("app.reply.throttle"),
+                applicationReplyId, "app", 0L, applicationBegin.correlationId());
+        process(peer, 65536, 64);
+
+        peerRecordLengths.clear();
+        final long recordsOut = routeCounters.recordsOut.get();
+        final byte[] plaintext = plaintext(1000);
+        for (int offset = 0; offset < plaintext.length; offset += 100)
+        {
+            router.doData(applicationReply, applicationReplyId, plaintext, offset, 100);
+        }
+
+        // held until the end of the duty cycle
+        assertTrue(router.frames("net").isEmpty());
+        assertEquals(1, bufferPool.acquiredSlots());
+
+        process(peer, 65536, 64);
+
+        assertEquals(Collections.singletonList(plaintext.length), peerRecordLengths);
+        assertArrayEquals(plaintext, peerPlaintext.toByteArray());
+        assertEquals(1L, routeCounters.recordsOut.get() - recordsOut);
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldUnwrapRecordsOfOneFrameIntoOneApplicationFrame() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final SSLEngine peer = beginApplication();
+        final byte[] plaintext = plaintext(1000 + 2000 + 3000);
+        final ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        for (byte[] record : peerWrap(peer, plaintext, 1000, 2000, 3000))
+        {
+            ciphertext.write(record);
+        }
+
+        final byte[] records = ciphertext.toByteArray();
+        router.doData(network, networkId, records, 0, records.length);
+        process(peer, 65536, 64);
+
+        final List<Frame> applicationData = applicationData();
+        assertEquals(1, applicationData.size());
+        assertArrayEquals(plaintext, applicationData.get(0).payload());
+    }
+
+    @Test
+    public void shouldUnwrapRecordsOfOneFrameIntoOneApplicationFramePerWindow() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final SSLEngine peer = beginApplication(3000);
+        final byte[] plaintext = plaintext(1000 + 2000 + 3000);
+        final ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        for (byte[] record : peerWrap(peer, plaintext, 1000, 2000, 3000))
+        {
+            ciphertext.write(record);
+        }
+
+        final byte[] records = ciphertext.toByteArray();
+        router.doData(network, networkId, records, 0, records.length);
+        process(peer, 65536, 64);
+
+        // the window takes the first two records, the last is held as ciphertext
+        List<Frame> applicationData = applicationData();
+        assertEquals(1, applicationData.size());
+        assertArrayEquals(Arrays.copyOfRange(plaintext, 0, 3000), applicationData.get(0).payload());
+        assertEquals(1, bufferPool.acquiredSlots());
+
+        final long applicationId = applicationData.get(0).streamId();
+        router.doWindow(router.throttle(applicationId), applicationId, 3000, 1);
+        process(peer, 65536, 64);
+
+        applicationData = applicationData();
+        assertEquals(1, applicationData.size());
+        assertArrayEquals(Arrays.copyOfRange(plaintext, 3000, plaintext.length), applicationData.get(0).payload());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldUnwrapRecordSpanningFrames() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final SSLEngine peer = beginApplication();
+        final byte[] plaintext = plaintext(4000);
+        final byte[] record = peerWrap(peer, plaintext, plaintext.length).get(0);
+        final int split = record.length / 3;
+
+        router.doData(network, networkId, record, 0, split);
+        router.doData(network, networkId, record, split, split);
+        process(peer, 65536, 64);
+
+        assertTrue(applicationData().isEmpty());
+        assertEquals(1, bufferPool.acquiredSlots());
+
+        router.doData(network, networkId, record, 2 * split, record.length - 2 * split);
+        process(peer, 65536, 64);
+
+        final List<Frame> applicationData = applicationData();
+        assertEquals(1, applicationData.size());
+        assertArrayEquals(plaintext, applicationData.get(0).payload());
+        assertEquals(0, bufferPool.acquiredSlots());
+    }
+
+    @Test
+    public void shouldRouteByOfferedApplicationProtocol() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 3L, "localhost", null);
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", "h2");
+
+        final SSLEngine h2Peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "h2", "http/1.1");
+        final Frame h2Begin = handshake(h2Peer, 65536, 64);
+        assertTrue(h2Begin.isBegin());
+        assertEquals(2L, h2Begin.sourceRef());
+        assertEquals("h2", h2Peer.getApplicationProtocol());
+
+        final SSLEngine httpPeer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "http/1.1");
+        final Frame httpBegin = handshake(httpPeer, 65536, 64);
+        assertTrue(httpBegin.isBegin());
+        assertEquals(3L, httpBegin.sourceRef());
+    }
+
+    @Test
+    public void shouldBatchNetworkWindowUpdatesBelowThreshold() throws Exception
+    {
+        windowCoalescer = new WindowCoalescer(25);
+        factory = newFactory(new WindowBudget(8192, 8192, 1L << 24));
+
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final SSLEngine peer = beginApplication();
+        final Deque<Frame> networkThrottle = router.frames("net.throttle");
+        networkThrottle.clear();
+
+        final int[] recordLengths = new int[10];
+        Arrays.fill(recordLengths, 100);
+
+        int ciphertextLength = 0;
+        for (byte[] record : peerWrap(peer, plaintext(1000), recordLengths))
+        {
+            router.doData(network, networkId, record, 0, record.length);
+            ciphertextLength += record.length;
+        }
+
+        // each update is well below a quarter of the window while the peer still has credit
+        assertEquals(recordLengths.length, applicationData().size());
+        assertTrue(networkThrottle.isEmpty());
+
+        windowCoalescer.process();
+
+        final Frame window = networkThrottle.poll();
+        assertNotNull(window);
+        assertTrue(window.isWindow());
+        assertEquals(ciphertextLength, window.update());
+        assertTrue(networkThrottle.isEmpty());
+    }
+
+    @Test
+    public void shouldSplitApplicationFrameAtFlushLimit() throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        // three full records reach the flush limit of the 64k write buffer, the fourth goes out in a second frame
+        final SSLEngine peer = beginApplication();
+        final byte[] plaintext = plaintext(3 * MAX_PLAINTEXT_LENGTH + 8000);
+        final ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        for (byte[] record : peerWrap(peer, plaintext, MAX_PLAINTEXT_LENGTH, MAX_PLAINTEXT_LENGTH, MAX_PLAINTEXT_LENGTH, 8000))
+        {
+            ciphertext.write(record);
+        }
+
+        final byte[] records = ciphertext.toByteArray();
+        router.doData(network, networkId, records, 0, records.length);
+        process(peer, 65536, 64);
+
+        final List<Frame> applicationData = applicationData();
+        assertEquals(2, applicationData.size());
+        assertArrayEquals(Arrays.copyOfRange(plaintext, 0, 3 * MAX_PLAINTEXT_LENGTH), applicationData.get(0).payload());
+        assertArrayEquals(Arrays.copyOfRange(plaintext, 3 * MAX_PLAINTEXT_LENGTH, plaintext.length),
+                applicationData.get(1).payload());
+    }
+
+    @Test
+    public void shouldFitApplicationWindowForTls13() throws Exception
+    {
+        assertApplicationWindowFits("TLSv1.3", "TLS_AES_128_GCM_SHA256");
+        assertApplicationWindowFits("TLSv1.3", "TLS_CHACHA20_POLY1305_SHA256");
+    }
+
+    @Test
+    public void shouldFitApplicationWindowForTls12Aead() throws Exception
+    {
+        assertApplicationWindowFits("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        assertApplicationWindowFits("TLSv1.2", "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256");
+    }
+
+    @Test
+    public void shouldFitApplicationWindowForTls12Cbc() throws Exception
+    {
+        assertApplicationWindowFits("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA");
+        assertApplicationWindowFits("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_256_CBC_SHA384");
+    }
+
+    @Test
+    public void shouldFitApplicationWindowForTls10Cbc() throws Exception
+    {
+        // 1/n-1 record splitting, skipped where the JDK disables TLSv1
+        assertApplicationWindowFits("TLSv1", "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA");
+        assertApplicationWindowFits("TLSv1", "TLS_RSA_WITH_AES_256_CBC_SHA");
+    }
+
+    private void assertApplicationWindowFits(
+        String protocol,
+        String cipherSuite) throws Exception
+    {
+        final int[][] networkWindows = { { 65536, 64 }, { 20000, 8 }, { 8192, 64 }, { 8192, 4 } };
+
+        for (int[] networkWindow : networkWindows)
+        {
+            assertApplicationWindowFits(protocol, cipherSuite, networkWindow[0], networkWindow[1]);
+        }
+    }
+
+    private void assertApplicationWindowFits(
+        String protocol,
+        String cipherSuite,
+        int networkWindow,
+        int networkFrames) throws Exception
+    {
+        router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+
+        final SSLEngine peer = newPeer(protocol, cipherSuite);
+        final Frame applicationBegin = handshake(peer, networkWindow, networkFrames);
+
+        assumeTrue(protocol + " " + cipherSuite, applicationBegin != null && applicationBegin.isBegin());
+        assertEquals(cipherSuite, peer.getSession().getCipherSuite());
+
+        final long applicationReplyId = 2000L + streamId;
+        final MessageConsumer applicationReply = router.doBegin(factory, router.supplyTarget("app.reply.throttle"),
+                applicationReplyId, "app", 0L, applicationBegin.correlationId());
+        process(peer, networkWindow, networkFrames);
+
+        int applicationBytes = 0;
+        int applicationFrames = 0;
+        for (Frame window : router.frames("app.reply.throttle"))
+        {
+            assertTrue(window.isWindow());
+            applicationBytes += window.update();
+            applicationFrames += window.frames();
+        }
+
+        final String description = String.format("%s %s window %d bytes %d frames, application %d bytes %d frames",
+                protocol, cipherSuite, networkWindow, networkFrames, applicationBytes, applicationFrames);
+        assertTrue(description, applicationBytes > 0 && applicationFrames > 0);
+
+        final byte[] payload = new byte[applicationBytes];
+        final int frameLength = (applicationBytes + applicationFrames - 1) / applicationFrames;
+        for (int offset = 0; offset < applicationBytes; offset += frameLength)
+        {
+            router.doData(applicationReply, applicationReplyId, payload, offset,
+                    Math.min(frameLength, applicationBytes - offset));
+            process(peer, networkWindow, networkFrames);
+        }
+
+        assertTrue(description + ", overran network bytes by " + -networkReplyBytes, networkReplyBytes >= 0);
+        assertTrue(description + ", overran network frames by " + -networkReplyFrames, networkReplyFrames >= 0);
+        assertEquals(description, applicationBytes, peerPlaintext.size());
+    }
+
+    private void assertHandshakesResumed(
+        String protocol,
+        String cipherSuite) throws Exception
+    {
+        final RouteFW route = router.route(Role.SERVER, "net", 1L, "app", 2L, "localhost", null);
+        final TlsRouteCounters routeCounters = counters.routeCounters("server", route, router);
+        final SSLContext peerContext = newPeerContext();
+
+        for (int i = 0; i < 3; i++)
+        {
+            final Frame applicationBegin = handshake(newPeer(peerContext, protocol, cipherSuite), 65536, 64);
+            assertTrue(applicationBegin.isBegin());
+        }
+
+        assertEquals(1L, routeCounters.handshakesFull.get());
+        assertEquals(2L, routeCounters.handshakesResumed.get());
+        assertEquals(1L, counters.counter("server.sessions.misses").get());
+        assertEquals(2L, counters.counter("server.sessions.hits").get());
+    }
+
+    private List<Integer> writeApplicationReply(
+        TlsRouteCounters routeCounters,
+        int length) throws Exception
+    {
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        final Frame applicationBegin = handshake(peer, 65536, 64);
+        assertTrue(applicationBegin.isBegin());
+
+        final long applicationReplyId = 2000L + streamId;
+        final MessageConsumer applicationReply = router.doBegin(factory, router.supplyTarget("app.reply.throttle"),
+                applicationReplyId, "app", 0L, applicationBegin.correlationId());
+        process(peer, 65536, 64);
+
+        int applicationBytes = 0;
+        for (Frame window : router.frames("app.reply.throttle"))
+        {
+            applicationBytes += window.update();
+        }
+        assertTrue(applicationBytes >= length);
+
+        peerRecordLengths.clear();
+        final long recordsOut = routeCounters.recordsOut.get();
+        router.doData(applicationReply, applicationReplyId, new byte[length], 0, length);
+        process(peer, 65536, 64);
+
+        assertEquals(length, peerPlaintext.size());
+        assertEquals(peerRecordLengths.size(), routeCounters.recordsOut.get() - recordsOut);
+        return peerRecordLengths;
+    }
+
+    private SSLEngine beginApplication() throws Exception
+    {
+        return beginApplication(1 << 17);
+    }
+
+    private SSLEngine beginApplication(
+        int applicationWindow) throws Exception
+    {
+        final SSLEngine peer = newPeer("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        final Frame applicationBegin = handshake(peer, 65536, 64);
+        assertTrue(applicationBegin.isBegin());
+
+        final long applicationId = applicationBegin.streamId();
+        router.doWindow(router.throttle(applicationId), applicationId, applicationWindow, 64);
+        process(peer, 65536, 64);
+        router.frames("app").clear();
+
+        return peer;
+    }
+
+    private List<Frame> applicationData()
+    {
+        final List<Frame> applicationData = new ArrayList<>();
+        for (Frame frame : router.frames("app"))
+        {
+            assertTrue(frame.isData());
+            applicationData.add(frame);
+        }
+        router.frames("app").clear();
+
+        return applicationData;
+    }
+
+    private static int recordCount(
+        byte[] ciphertext)
+    {
+        final ByteBuffer records = ByteBuffer.wrap(ciphertext);
+
+        int count = 0;
+        for (int length = TlsRecord.length(records); length != 0; length = TlsRecord.length(records))
+        {
+            records.position(records.position() + length);
+            count++;
+        }
+
+        return count;
+    }
+
+    private static byte[] plaintext(
+        int length)
+    {
+        final byte[] plaintext = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            plaintext[i] = (byte) i;
+        }
+        return plaintext;
+    }
+
+    private static List<byte[]> peerWrap(
+        SSLEngine peer,
+        byte[] plaintext,
+        int... recordLengths) throws Exception
+    {
+        final List<byte[]> records = new ArrayList<>();
+        final ByteBuffer ciphertext = ByteBuffer.allocate(peer.getSession().getPacketBufferSize());
+
+        int offset = 0;
+        for (int recordLength : recordLengths)
+        {
+            ciphertext.clear();
+            final SSLEngineResult result = peer.wrap(ByteBuffer.wrap(plaintext, offset, recordLength), ciphertext);
+            assertEquals(recordLength, result.bytesConsumed());
+            records.add(Arrays.copyOf(ciphertext.array(), ciphertext.position()));
+            offset += recordLength;
+        }
+
+        return records;
+    }
+
+    private SSLEngine newPeer(
+        String protocol,
+        String cipherSuite) throws Exception
+    {
+        return newPeer(newPeerContext(), protocol, cipherSuite);
+    }
+
+    private SSLEngine newPeer(
+        SSLContext context,
+        String protocol,
+        String cipherSuite) throws Exception
+    {
+        final SSLEngine peer = context.createSSLEngine("localhost", 443);
+        peer.setUseClientMode(true);
+
+        final SSLParameters parameters = peer.getSSLParameters();
+        parameters.setServerNames(Collections.singletonList(new SNIHostName("localhost")));
+        parameters.setProtocols(new String[] { protocol });
+        parameters.setCipherSuites(new String[] { cipherSuite });
+        peer.setSSLParameters(parameters);
+
+        return peer;
+    }
+
+    private SSLEngine newPeer(
+        String protocol,
+        String cipherSuite,
+        String... applicationProtocols) throws Exception
+    {
+        final SSLEngine peer = newPeer(protocol, cipherSuite);
+
+        final SSLParameters parameters = peer.getSSLParameters();
+        parameters.setApplicationProtocols(applicationProtocols);
+        peer.setSSLParameters(parameters);
+
+        return peer;
+    }
+
+    private static SSLContext newPeerContext() throws Exception
+    {
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] { new TrustAllManager() }, null);
+        return context;
+    }
+
+    private Frame handshake(
+        SSLEngine peer,
+        int networkWindow,
+        int networkFrames) throws Exception
+    {
+        networkId = 1000L + streamId;
+        network = router.doBegin(factory, router.supplyTarget("net.throttle"), networkId, "net", 1L, networkId + 1);
+        final Deque<Frame> application = router.frames("app");
+
+        networkReplyId = 0L;
+        networkReplyBytes = networkWindow;
+        networkReplyFrames = networkFrames;
+        peerCiphertext.clear();
+        peerPlaintext.reset();
+        application.clear();
+        router.frames("app.reply.throttle").clear();
+
+        Frame applicationBegin = null;
+        try
+        {
+            peer.beginHandshake();
+            for (int i = 0; i < 32 && applicationBegin == null; i++)
+            {
+                for (byte[] record : peerWrap(peer, ByteBuffer.allocate(0)))
+                {
+                    router.doData(network, networkId, record, 0, record.length);
+                }
+                process(peer, networkWindow, networkFrames);
+                peerUnwrap(peer, new byte[0]);
+                applicationBegin = application.poll();
+            }
+        }
+        catch (SSLException ex)
+        {
+            // protocol or cipher suite disabled by this JDK
+        }
+
+        return applicationBegin;
+    }
+
+    private void process(
+        SSLEngine peer,
+        int networkWindow,
+        int networkFrames) throws Exception
+    {
+        executor.process();
+        windowCoalescer.process();
+        writeCoalescer.process();
+
+        final Deque<Frame> networkReply = router.frames("net");
+        for (Frame frame = networkReply.poll(); frame != null; frame = networkReply.poll())
+        {
+            if (frame.isBegin())
+            {
+                networkReplyId = frame.streamId();
+                router.doWindow(router.throttle(networkReplyId), networkReplyId, networkWindow, networkFrames);
+            }
+            else if (frame.isData())
+            {
+                final byte[] ciphertext = frame.payload();
+                networkReplyBytes -= ciphertext.length;
+                networkReplyFrames--;
+                peerUnwrap(peer, ciphertext);
+            }
+        }
+    }
+
+    private void peerUnwrap(
+        SSLEngine peer,
+        byte[] ciphertext) throws Exception
+    {
+        peerCiphertext.put(ciphertext);
+        peerCiphertext.flip();
+
+        final ByteBuffer plaintext = ByteBuffer.allocate(1 << 17);
+        while (peerCiphertext.hasRemaining())
+        {
+            plaintext.clear();
+            final SSLEngineResult result = peer.unwrap(peerCiphertext, plaintext);
+            runDelegatedTasks(peer);
+            peerPlaintext.write(plaintext.array(), 0, plaintext.position());
+
+            if (result.bytesProduced() > 0)
+            {
+                peerRecordLengths.add(result.bytesProduced());
+            }
+
+            if (result.getStatus() != Status.OK || result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+            {
+                break;
+            }
+        }
+
+        peerCiphertext.compact();
+    }
+
+    private static List<byte[]> peerWrap(
+        SSLEngine peer,
+        ByteBuffer plaintext) throws Exception
+    {
+        final List<byte[]> records = new ArrayList<>();
+        final ByteBuffer ciphertext = ByteBuffer.allocate(peer.getSession().getPacketBufferSize());
+
+        for (;;)
+        {
+            runDelegatedTasks(peer);
+
+            ciphertext.clear();
+            final SSLEngineResult result = peer.wrap(plaintext, ciphertext);
+            if (ciphertext.position() == 0)
+            {
+                break;
+            }
+
+            records.add(Arrays.copyOf(ciphertext.array(), ciphertext.position()));
+
+            if (result.getStatus() == Status.CLOSED)
+            {
+                break;
+            }
+        }
+
+        return records;
+    }
+
+    private static void runDelegatedTasks(
+        SSLEngine engine)
+    {
+        for (Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask())
+        {
+            task.run();
+        }
+    }
+
+    private static byte[] clientHello(
+        String hostname) throws Exception
+    {
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+
+        final SSLEngine engine = context.createSSLEngine(hostname, 443);
+        engine.setUseClientMode(true);
+
+        final SSLParameters parameters = engine.getSSLParameters();
+        parameters.setServerNames(Collections.singletonList(new SNIHostName(hostname)));
+        engine.setSSLParameters(parameters);
+
+        final ByteBuffer packet = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        engine.wrap(ByteBuffer.allocate(0), packet);
+        packet.flip();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(packet.array(), 0, packet.limit());
+        return bytes.toByteArray();
+    }
+
+    private static KeyManager[] keyManagers() throws Exception
+    {
+        final KeyStore keys = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream("src/test/democa/keys"))
+        {
+            keys.load(in, "generated".toCharArray());
+        }
+
+        final KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keys, "generated".toCharArray());
+        return factory.getKeyManagers();
+    }
+
+    private static final class TrustAllManager implements X509TrustManager
+    {
+        @Override
+        public void checkClientTrusted(
+            X509Certificate[] chain,
+            String authType)
+        {
+        }
+
+        @Override
+        public void checkServerTrusted(
+            X509Certificate[] chain,
+            String authType)
+        {
+            // test certificates have expired
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers()
+        {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.stream;
+
+import static org.reaktivity.nukleus.tls.internal.stream.RouteMatcher.asString;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.agrona.DirectBuffer;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.reaktivity.nukleus.function.MessageConsumer;
+import org.reaktivity.nukleus.function.MessageFunction;
+import org.reaktivity.nukleus.function.MessagePredicate;
+import org.reaktivity.nukleus.route.RouteHandler;
+import org.reaktivity.nukleus.stream.StreamFactory;
+import org.reaktivity.nukleus.tls.internal.types.OctetsFW;
+import org.reaktivity.nukleus.tls.internal.types.control.Role;
+import org.reaktivity.nukleus.tls.internal.types.control.RouteFW;
+import org.reaktivity.nukleus.tls.internal.types.control.TlsRecordSizingExFW;
+import org.reaktivity.nukleus.tls.internal.types.control.TlsRouteExFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.BeginFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.DataFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.EndFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.ResetFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.TlsBeginExFW;
+import org.reaktivity.nukleus.tls.internal.types.stream.WindowFW;
+
+final class TestRouter implements RouteHandler
+{
+    private final RouteFW.Builder routeRW = new RouteFW.Builder();
+    private final TlsRouteExFW.Builder tlsRouteExRW = new TlsRouteExFW.Builder();
+    private final TlsRecordSizingExFW.Builder tlsRecordSizingExRW = new TlsRecordSizingExFW.Builder();
+
+    private final BeginFW.Builder beginRW = new BeginFW.Builder();
+    private final DataFW.Builder dataRW = new DataFW.Builder();
+    private final EndFW.Builder endRW = new EndFW.Builder();
+    private final WindowFW.Builder windowRW = new WindowFW.Builder();
+    private final ResetFW.Builder resetRW = new ResetFW.Builder();
+    private final TlsBeginExFW.Builder tlsBeginExRW = new TlsBeginExFW.Builder();
+
+    private final BeginFW beginRO = new BeginFW();
+    private final DataFW dataRO = new DataFW();
+    private final WindowFW windowRO = new WindowFW();
+    private final TlsBeginExFW tlsBeginExRO = new TlsBeginExFW();
+
+    private final MutableDirectBuffer writeBuffer = new UnsafeBuffer(new byte[1 << 16]);
+
+    private final List<DirectBuffer> routes = new ArrayList<>();
+    private final Map<String, Deque<Frame>> frames = new HashMap<>();
+    private final Map<Long, MessageConsumer> throttles = new HashMap<>();
+
+    private long correlationId;
+
+    @Override
+    public <R> R resolve(
+        MessagePredicate filter,
+        MessageFunction<R> mapper)
+    {
+        for (DirectBuffer route : routes)
+        {
+            if (filter.test(RouteFW.TYPE_ID, route, 0, route.capacity()))
+            {
+                return mapper.apply(RouteFW.TYPE_ID, route, 0, route.capacity());
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public MessageConsumer supplyTarget(
+        String targetName)
+    {
+        final Deque<Frame> targetFrames = frames(targetName);
+        return (t, b, i, l) -> targetFrames.add(new Frame(t, b, i, l));
+    }
+
+    @Override
+    public void setThrottle(
+        String targetName,
+        long streamId,
+        MessageConsumer throttle)
+    {
+        throttles.put(streamId, throttle);
+    }
+
+    RouteFW route(
+        Role role,
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname,
+        String applicationProtocol)
+    {
+        return route(role, source, sourceRef, target, targetRef, hostname, applicationProtocol, 0, 0L, 0L);
+    }
+
+    RouteFW route(
+        Role role,
+        String source,
+        long sourceRef,
+        String target,
+        long targetRef,
+        String hostname,
+        String applicationProtocol,
+        int recordInitialLength,
+        long recordRampBytes,
+        long recordIdleMillis)
+    {
+        final boolean recordSizing = recordInitialLength != 0 || recordRampBytes != 0L || recordIdleMillis != 0L;
+        final MutableDirectBuffer buffer = new UnsafeBuffer(new byte[1024]);
+        final RouteFW route = routeRW.wrap(buffer, 0, buffer.capacity())
+                .correlationId(++correlationId)
+                .role(b -> b.set(role))
+                .source(source)
+                .sourceRef(sourceRef)
+                .target(target)
+                .targetRef(targetRef)
+                .extension(e -> e.set((b, o, l) ->
+                {
+                    final TlsRouteExFW.Builder routeEx = tlsRouteExRW.wrap(b, o, l);
+
+                    if (recordSizing)
+                    {
+                        routeEx.hostname(hostname != null ? hostname : "")
+                               .applicationProtocol(applicationProtocol != null ? applicationProtocol : "");
+                    }
+                    else if (applicationProtocol != null)
+                    {
+                        routeEx.hostname(hostname != null ? hostname : "")
+                               .applicationProtocol(applicationProtocol);
+                    }
+                    else
+                    {
+                        routeEx.hostname(hostname);
+                    }
+
+                    int sizeof = routeEx.build().sizeof();
+
+                    if (recordSizing)
+                    {
+                        sizeof += tlsRecordSizingExRW.wrap(b, o + sizeof, l)
+                                                     .initialLength(recordInitialLength)
+                                                     .rampBytes(recordRampBytes)
+                                                     .idleMillis(recordIdleMillis)
+                                                     .build()
+                                                     .sizeof();
+                    }
+
+                    return sizeof;
+                }))
+                .build();
+
+        routes.add(new UnsafeBuffer(buffer, 0, route.sizeof()));
+
+        return route;
+    }
+
+    Deque<Frame> frames(
+        String targetName)
+    {
+        return frames.computeIfAbsent(targetName, n -> new ArrayDeque<>());
+    }
+
+    MessageConsumer throttle(
+        long streamId)
+    {
+        return throttles.get(streamId);
+    }
+
+    MessageConsumer doBegin(
+        StreamFactory factory,
+        MessageConsumer throttle,
+        long streamId,
+        String source,
+        long sourceRef,
+        long correlationId)
+    {
+        final BeginFW begin = beginRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(streamId)
+                .source(source)
+                .sourceRef(sourceRef)
+                .correlationId(correlationId)
+                .extension(e -> e.reset())
+                .build();
+
+        final MessageConsumer stream = factory.newStream(begin.typeId(), begin.buffer(), begin.offset(), begin.sizeof(),
+                throttle);
+        stream.accept(begin.typeId(), begin.buffer(), begin.offset(), begin.sizeof());
+        return stream;
+    }
+
+    MessageConsumer doBegin(
+        StreamFactory factory,
+        MessageConsumer throttle,
+        long streamId,
+        String source,
+        long sourceRef,
+        long correlationId,
+        String hostname,
+        String applicationProtocol)
+    {
+        final BeginFW begin = beginRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(streamId)
+                .source(source)
+                .sourceRef(sourceRef)
+                .correlationId(correlationId)
+                .extension(e -> e.set((b, o, l) ->
+                {
+                    final TlsBeginExFW.Builder beginEx = tlsBeginExRW.wrap(b, o, l)
+                            .hostname(hostname != null ? hostname : "");
+
+                    if (applicationProtocol != null)
+                    {
+                        beginEx.applicationProtocol(applicationProtocol);
+                    }
+
+                    return beginEx.build().sizeof();
+                }))
+                .build();
+
+        final MessageConsumer stream = factory.newStream(begin.typeId(), begin.buffer(), begin.offset(), begin.sizeof(),
+                throttle);
+        stream.accept(begin.typeId(), begin.buffer(), begin.offset(), begin.sizeof());
+        return stream;
+    }
+
+    void doData(
+        MessageConsumer stream,
+        long streamId,
+        byte[] payload,
+        int offset,
+        int length)
+    {
+        final DataFW data = dataRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(streamId)
+                .payload(p -> p.set(new UnsafeBuffer(payload), offset, length))
+                .extension(e -> e.reset())
+                .build();
+
+        stream.accept(data.typeId(), data.buffer(), data.offset(), data.sizeof());
+    }
+
+    void doEnd(
+        MessageConsumer stream,
+        long streamId)
+    {
+        final EndFW end = endRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(streamId)
+                .extension(e -> e.reset())
+                .build();
+
+        stream.accept(end.typeId(), end.buffer(), end.offset(), end.sizeof());
+    }
+
+    void doWindow(
+        MessageConsumer throttle,
+        long streamId,
+        int update,
+        int frames)
+    {
+        final WindowFW window = windowRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(streamId)
+                .update(update)
+                .frames(frames)
+                .build();
+
+        throttle.accept(window.typeId(), window.buffer(), window.offset(), window.sizeof());
+    }
+
+    void doReset(
+        MessageConsumer throttle,
+        long streamId)
+    {
+        final ResetFW reset = resetRW.wrap(writeBuffer, 0, writeBuffer.capacity())
+                .streamId(streamId)
+                .build();
+
+        throttle.accept(reset.typeId(), reset.buffer(), reset.offset(), reset.sizeof());
+    }
+
+    final class Frame
+    {
+        final int typeId;
+        final DirectBuffer buffer;
+
+        private Frame(
+            int typeId,
+            DirectBuffer buffer,
+            int index,
+            int length)
+        {
+            final byte[] bytes = new byte[length];
+            buffer.getBytes(index, bytes);
+
+            this.typeId = typeId;
+            this.buffer = new UnsafeBuffer(bytes);
+        }
+
+        boolean isBegin()
+        {
+            return typeId == BeginFW.TYPE_ID;
+        }
+
+        boolean isData()
+        {
+            return typeId == DataFW.TYPE_ID;
+        }
+
+        boolean isEnd()
+        {
+            return typeId == EndFW.TYPE_ID;
+        }
+
+        boolean isWindow()
+        {
+            return typeId == WindowFW.TYPE_ID;
+        }
+
+        boolean isReset()
+        {
+            return typeId == ResetFW.TYPE_ID;
+        }
+
+        long streamId()
+        {
+            return beginRO.wrap(buffer, 0, buffer.capacity()).streamId();
+        }
+
+        long sourceRef()
+        {
+            return beginRO.wrap(buffer, 0, buffer.capacity()).sourceRef();
+        }
+
+        long correlationId()
+        {
+            return beginRO.wrap(buffer, 0, buffer.capacity()).correlationId();
+        }
+
+        String applicationProtocol()
+        {
+            final OctetsFW extension = beginRO.wrap(buffer, 0, buffer.capacity()).extension();
+            return asString(extension.get(tlsBeginExRO::wrap).applicationProtocol());
+        }
+
+        int update()
+        {
+            return windowRO.wrap(buffer, 0, buffer.capacity()).update();
+        }
+
+        int frames()
+        {
+            return windowRO.wrap(buffer, 0, buffer.capacity()).frames();
+        }
+
+        byte[] payload()
+        {
+            final OctetsFW payload = dataRO.wrap(buffer, 0, buffer.capacity()).payload();
+            final byte[] bytes = new byte[payload.sizeof()];
+            payload.buffer().getBytes(payload.offset(), bytes);
+            return bytes;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("[typeId=%d, length=%d]", typeId, buffer.capacity());
+        }
+    }
+}
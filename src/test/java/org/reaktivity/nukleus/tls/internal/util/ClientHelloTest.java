@@ -0,0 +1,378 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.reaktivity.nukleus.tls.internal.util.ClientHello.COMPLETE;
+import static org.reaktivity.nukleus.tls.internal.util.ClientHello.INCOMPLETE;
+import static org.reaktivity.nukleus.tls.internal.util.ClientHello.MALFORMED;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.agrona.concurrent.UnsafeBuffer;
+import org.junit.Test;
+
+public class ClientHelloTest
+{
+    private static final int EXTENSION_SERVER_NAME = 0;
+    private static final int EXTENSION_ALPN = 16;
+
+    private final ClientHello clientHello = new ClientHello();
+
+    @Test
+    public void shouldParseServerNameAndProtocols()
+    {
+        final ByteBuffer buffer = ByteBuffer.wrap(record(hello(serverName("example.com"), alpn("h2", "http/1.1"))));
+
+        assertEquals(COMPLETE, clientHello.parse(buffer));
+        assertTrue(clientHello.hasServerName());
+        assertEquals("example.com", clientHello.serverName(buffer));
+        assertTrue(clientHello.hasProtocols());
+        assertTrue(clientHello.protocolOffered(buffer, "h2"));
+        assertTrue(clientHello.protocolOffered(buffer, "http/1.1"));
+        assertFalse(clientHello.protocolOffered(buffer, "h2c"));
+
+        final UnsafeBuffer protocol = new UnsafeBuffer("xh2".getBytes(StandardCharsets.US_ASCII));
+        assertTrue(clientHello.protocolOffered(buffer, protocol, 1, 2));
+        assertFalse(clientHello.protocolOffered(buffer, protocol, 0, 2));
+    }
+
+    @Test
+    public void shouldParseFromBufferPosition()
+    {
+        final byte[] record = record(hello(serverName("example.com")));
+        final ByteBuffer buffer = ByteBuffer.allocate(record.length + 16);
+        buffer.position(16);
+        buffer.put(record);
+        buffer.position(16);
+
+        assertEquals(COMPLETE, clientHello.parse(buffer));
+        assertEquals("example.com", clientHello.serverName(buffer));
+        assertEquals(16, buffer.position());
+    }
+
+    @Test
+    public void shouldParseHelloWithoutExtensions()
+    {
+        final ByteBuffer buffer = ByteBuffer.wrap(record(helloWithoutExtensions()));
+
+        assertEquals(COMPLETE, clientHello.parse(buffer));
+        assertFalse(clientHello.hasServerName());
+        assertNull(clientHello.serverName(buffer));
+        assertFalse(clientHello.hasProtocols());
+        assertFalse(clientHello.protocolOffered(buffer, "h2"));
+    }
+
+    @Test
+    public void shouldReportIncompleteUntilSplitHelloArrives()
+    {
+        final byte[] record = record(hello(serverName("example.com"), alpn("h2")));
+
+        for (int split = 0; split < record.length; split++)
+        {
+            final ByteBuffer buffer = ByteBuffer.wrap(record, 0, split);
+            assertEquals("split at " + split, INCOMPLETE, clientHello.parse(buffer));
+            assertFalse(clientHello.hasServerName());
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        assertEquals(COMPLETE, clientHello.parse(buffer));
+        assertEquals("example.com", clientHello.serverName(buffer));
+    }
+
+    @Test
+    public void shouldRejectNonHandshakeRecord()
+    {
+        final byte[] record = record(hello(serverName("example.com")));
+        record[0] = 23;
+
+        assertEquals(MALFORMED, clientHello.parse(ByteBuffer.wrap(record)));
+    }
+
+    @Test
+    public void shouldRejectNonClientHelloMessage()
+    {
+        final byte[] record = record(hello(serverName("example.com")));
+        record[5] = 2;
+
+        assertEquals(MALFORMED, clientHello.parse(ByteBuffer.wrap(record)));
+    }
+
+    @Test
+    public void shouldRejectHelloLongerThanRecord()
+    {
+        final byte[] record = record(hello(serverName("example.com")));
+        record[7]++;
+
+        assertEquals(MALFORMED, clientHello.parse(ByteBuffer.wrap(record)));
+    }
+
+    @Test
+    public void shouldRejectTruncatedHello()
+    {
+        final byte[] hello = hello(serverName("example.com"));
+        final byte[] truncated = new byte[4 + 2 + 32];
+        System.arraycopy(hello, 0, truncated, 0, truncated.length);
+        setUint24(truncated, 1, truncated.length - 4);
+
+        assertEquals(MALFORMED, clientHello.parse(ByteBuffer.wrap(record(truncated))));
+    }
+
+    @Test
+    public void shouldRejectSessionIdLongerThanHello()
+    {
+        final byte[] hello = helloWithoutExtensions();
+        hello[4 + 2 + 32] = (byte) 0xff;
+
+        assertEquals(MALFORMED, clientHello.parse(ByteBuffer.wrap(record(hello))));
+    }
+
+    @Test
+    public void shouldRejectExtensionsLongerThanHello()
+    {
+        final byte[] hello = hello(serverName("example.com"));
+        final int extensionsOffset = extensionsOffset(hello);
+        setUint16(hello, extensionsOffset, uint16(hello, extensionsOffset) + 1);
+
+        assertEquals(MALFORMED, clientHello.parse(ByteBuffer.wrap(record(hello))));
+    }
+
+    @Test
+    public void shouldRejectExtensionLongerThanExtensions()
+    {
+        final byte[] hello = hello(serverName("example.com"));
+        final int extensionOffset = extensionsOffset(hello) + 2;
+        setUint16(hello, extensionOffset + 2, 0xffff);
+
+        assertEquals(MALFORMED, clientHello.parse(ByteBuffer.wrap(record(hello))));
+    }
+
+    @Test
+    public void shouldRejectServerNameListLengthMismatch()
+    {
+        final byte[] extension = serverName("example.com");
+        setUint16(extension, 4, uint16(extension, 4) - 1);
+
+        assertEquals(MALFORMED, clientHello.parse(ByteBuffer.wrap(record(hello(extension)))));
+    }
+
+    @Test
+    public void shouldRejectServerNameLongerThanList()
+    {
+        final byte[] extension = serverName("example.com");
+        setUint16(extension, 7, uint16(extension, 7) + 1);
+
+        assertEquals(MALFORMED, clientHello.parse(ByteBuffer.wrap(record(hello(extension)))));
+    }
+
+    @Test
+    public void shouldRejectEmptyServerNameExtension()
+    {
+        assertEquals(MALFORMED, clientHello.parse(ByteBuffer.wrap(record(hello(extension(EXTENSION_SERVER_NAME))))));
+    }
+
+    @Test
+    public void shouldRejectProtocolListLengthMismatch()
+    {
+        final byte[] extension = alpn("h2");
+        setUint16(extension, 4, uint16(extension, 4) + 1);
+
+        assertEquals(MALFORMED, clientHello.parse(ByteBuffer.wrap(record(hello(extension)))));
+    }
+
+    @Test
+    public void shouldIgnoreProtocolOverrunningList()
+    {
+        final byte[] extension = alpn("h2", "spdy");
+        extension[6 + 3] = 0x7f;
+
+        final ByteBuffer buffer = ByteBuffer.wrap(record(hello(extension)));
+
+        assertEquals(COMPLETE, clientHello.parse(buffer));
+        assertTrue(clientHello.protocolOffered(buffer, "h2"));
+        assertFalse(clientHello.protocolOffered(buffer, "spdy"));
+    }
+
+    @Test
+    public void shouldResetStateBetweenParses()
+    {
+        assertEquals(COMPLETE, clientHello.parse(ByteBuffer.wrap(record(hello(serverName("example.com"), alpn("h2"))))));
+
+        final ByteBuffer buffer = ByteBuffer.wrap(record(helloWithoutExtensions()));
+        assertEquals(COMPLETE, clientHello.parse(buffer));
+        assertFalse(clientHello.hasServerName());
+        assertFalse(clientHello.hasProtocols());
+    }
+
+    private static byte[] record(
+        byte[] hello)
+    {
+        final byte[] record = new byte[5 + hello.length];
+        record[0] = 22;
+        record[1] = 3;
+        record[2] = 1;
+        setUint16(record, 3, hello.length);
+        System.arraycopy(hello, 0, record, 5, hello.length);
+        return record;
+    }
+
+    private static byte[] helloWithoutExtensions()
+    {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeHelloBody(body);
+        return handshake(body.toByteArray());
+    }
+
+    private static byte[] hello(
+        byte[]... extensions)
+    {
+        final ByteArrayOutputStream list = new ByteArrayOutputStream();
+        for (byte[] extension : extensions)
+        {
+            list.write(extension, 0, extension.length);
+        }
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeHelloBody(body);
+        writeUint16(body, list.size());
+        body.write(list.toByteArray(), 0, list.size());
+        return handshake(body.toByteArray());
+    }
+
+    private static void writeHelloBody(
+        ByteArrayOutputStream body)
+    {
+        body.write(3);
+        body.write(3);
+        body.write(new byte[32], 0, 32);
+        body.write(0);
+        writeUint16(body, 2);
+        body.write(0x13);
+        body.write(0x01);
+        body.write(1);
+        body.write(0);
+    }
+
+    private static byte[] handshake(
+        byte[] body)
+    {
+        final byte[] handshake = new byte[4 + body.length];
+        handshake[0] = 1;
+        setUint24(handshake, 1, body.length);
+        System.arraycopy(body, 0, handshake, 4, body.length);
+        return handshake;
+    }
+
+    private static int extensionsOffset(
+        byte[] hello)
+    {
+        int offset = 4 + 2 + 32;
+        offset += 1 + (hello[offset] & 0xff);
+        offset += 2 + uint16(hello, offset);
+        offset += 1 + (hello[offset] & 0xff);
+        return offset;
+    }
+
+    private static byte[] serverName(
+        String hostname)
+    {
+        final byte[] name = hostname.getBytes(StandardCharsets.US_ASCII);
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        writeUint16(data, 3 + name.length);
+        data.write(0);
+        writeUint16(data, name.length);
+        data.write(name, 0, name.length);
+        return extension(EXTENSION_SERVER_NAME, data.toByteArray());
+    }
+
+    private static byte[] alpn(
+        String... protocols)
+    {
+        final ByteArrayOutputStream list = new ByteArrayOutputStream();
+        for (String protocol : protocols)
+        {
+            final byte[] name = protocol.getBytes(StandardCharsets.US_ASCII);
+            list.write(name.length);
+            list.write(name, 0, name.length);
+        }
+
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        writeUint16(data, list.size());
+        data.write(list.toByteArray(), 0, list.size());
+        return extension(EXTENSION_ALPN, data.toByteArray());
+    }
+
+    private static byte[] extension(
+        int type,
+        int... data)
+    {
+        final byte[] bytes = new byte[data.length];
+        for (int i = 0; i < data.length; i++)
+        {
+            bytes[i] = (byte) data[i];
+        }
+        return extension(type, bytes);
+    }
+
+    private static byte[] extension(
+        int type,
+        byte[] data)
+    {
+        final byte[] extension = new byte[4 + data.length];
+        setUint16(extension, 0, type);
+        setUint16(extension, 2, data.length);
+        System.arraycopy(data, 0, extension, 4, data.length);
+        return extension;
+    }
+
+    private static void writeUint16(
+        ByteArrayOutputStream out,
+        int value)
+    {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static int uint16(
+        byte[] bytes,
+        int index)
+    {
+        return (bytes[index] & 0xff) << 8 | bytes[index + 1] & 0xff;
+    }
+
+    private static void setUint16(
+        byte[] bytes,
+        int index,
+        int value)
+    {
+        bytes[index] = (byte) (value >> 8);
+        bytes[index + 1] = (byte) value;
+    }
+
+    private static void setUint24(
+        byte[] bytes,
+        int index,
+        int value)
+    {
+        bytes[index] = (byte) (value >> 16);
+        setUint16(bytes, index + 1, value);
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DelegatedTaskExecutorTest
+{
+    private final List<RuntimeException> completions = new ArrayList<>();
+
+    private DelegatedTaskExecutor executor;
+    private TestEngine engine;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+
+        engine = new TestEngine(context.createSSLEngine());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (executor != null)
+        {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void shouldDeferCompletionToProcess() throws Exception
+    {
+        executor = new DelegatedTaskExecutor(1);
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        final AtomicReference<Thread> taskThread = new AtomicReference<>();
+        engine.addTask(() ->
+        {
+            taskThread.set(Thread.currentThread());
+            ran.countDown();
+        });
+
+        executor.execute(engine, completions::add);
+        ran.await();
+
+        assertNotSame(Thread.currentThread(), taskThread.get());
+        assertTrue(completions.isEmpty());
+
+        int workCount = 0;
+        while (workCount == 0)
+        {
+            workCount = executor.process();
+            LockSupport.parkNanos(1_000_000L);
+        }
+
+        assertEquals(1, workCount);
+        assertEquals(1, completions.size());
+        assertNull(completions.get(0));
+    }
+
+    @Test
+    public void shouldRunTasksInlineWithoutParallelism() throws Exception
+    {
+        executor = new DelegatedTaskExecutor(0);
+
+        final AtomicReference<Thread> taskThread = new AtomicReference<>();
+        engine.addTask(() -> taskThread.set(Thread.currentThread()));
+        engine.addTask(() -> assertSame(taskThread.get(), Thread.currentThread()));
+
+        executor.execute(engine, completions::add);
+
+        // tasks already ran, but the completion still waits for process() to avoid reentrant unwrap
+        assertSame(Thread.currentThread(), taskThread.get());
+        assertNull(engine.getDelegatedTask());
+        assertTrue(completions.isEmpty());
+
+        assertEquals(1, executor.process());
+        assertEquals(1, completions.size());
+        assertNull(completions.get(0));
+        assertEquals(0, executor.process());
+    }
+
+    @Test
+    public void shouldCompleteWithTaskFailure() throws Exception
+    {
+        executor = new DelegatedTaskExecutor(0);
+
+        final IllegalStateException failure = new IllegalStateException("task failed");
+        final boolean[] skipped = { true };
+        engine.addTask(() ->
+        {
+            throw failure;
+        });
+        engine.addTask(() -> skipped[0] = false);
+
+        executor.execute(engine, completions::add);
+
+        assertEquals(1, executor.process());
+        assertEquals(1, completions.size());
+        assertSame(failure, completions.get(0));
+        assertTrue(skipped[0]);
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.MAX_PLAINTEXT_LENGTH;
+
+import org.junit.Test;
+
+public class RecordSizingTest
+{
+    @Test
+    public void shouldUseConfiguredInitialLengthForRoutesWhenNotDynamic()
+    {
+        final RecordSizing recordSizing = new RecordSizing(false, 1400, 1024L, 1000L);
+
+        assertFalse(recordSizing.dynamic());
+        assertEquals(MAX_PLAINTEXT_LENGTH, recordSizing.recordLength(0L));
+
+        final RecordSizing routeSizing = recordSizing.route(0, 4096L, 0L);
+
+        assertTrue(routeSizing.dynamic());
+        assertEquals(1400, routeSizing.recordLength(0L));
+        assertEquals(1400, routeSizing.recordLength(4095L));
+        assertEquals(MAX_PLAINTEXT_LENGTH, routeSizing.recordLength(4096L));
+    }
+
+    @Test
+    public void shouldShareRouteSizingForSameSettings()
+    {
+        final RecordSizing recordSizing = new RecordSizing(true, 1400, 1024L, 1000L);
+
+        final RecordSizing routeSizing = recordSizing.route(1200, 0L, 0L);
+
+        assertSame(routeSizing, recordSizing.route(1200, 0L, 0L));
+        assertNotSame(routeSizing, recordSizing.route(1200, 2048L, 0L));
+        assertEquals(1200, routeSizing.minimumLength());
+    }
+
+    @Test
+    public void shouldNotGrowBeyondRouteSettingsLimit()
+    {
+        final RecordSizing recordSizing = new RecordSizing(true, 1400, 1024L, 1000L);
+
+        final RecordSizing routeSizing = recordSizing.route(1200, 0L, 0L);
+
+        // settings of routes since removed are dropped, the sizing already resolved stays valid
+        for (int initialLength = 1; initialLength <= 64; initialLength++)
+        {
+            recordSizing.route(initialLength, 0L, 0L);
+        }
+
+        final RecordSizing newRouteSizing = recordSizing.route(1200, 0L, 0L);
+
+        assertNotSame(routeSizing, newRouteSizing);
+        assertEquals(routeSizing.minimumLength(), newRouteSizing.minimumLength());
+        assertSame(newRouteSizing, recordSizing.route(1200, 0L, 0L));
+    }
+}
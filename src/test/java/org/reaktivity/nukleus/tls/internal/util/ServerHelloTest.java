@@ -0,0 +1,228 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.reaktivity.nukleus.tls.internal.util.ServerHello.FULL;
+import static org.reaktivity.nukleus.tls.internal.util.ServerHello.INCOMPLETE;
+import static org.reaktivity.nukleus.tls.internal.util.ServerHello.LEGACY;
+import static org.reaktivity.nukleus.tls.internal.util.ServerHello.RESUMED;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ServerHelloTest
+{
+    private static final int CONTENT_TYPE_CHANGE_CIPHER_SPEC = 20;
+    private static final int CONTENT_TYPE_HANDSHAKE = 22;
+    private static final int CONTENT_TYPE_APPLICATION_DATA = 23;
+
+    private static final int HANDSHAKE_TYPE_NEW_SESSION_TICKET = 4;
+    private static final int HANDSHAKE_TYPE_CERTIFICATE = 11;
+
+    private static final int EXTENSION_PRE_SHARED_KEY = 41;
+    private static final int EXTENSION_SUPPORTED_VERSIONS = 43;
+
+    private static final byte[] HELLO_RETRY_REQUEST_RANDOM =
+    {
+        (byte) 0xcf, 0x21, (byte) 0xad, 0x74, (byte) 0xe5, (byte) 0x9a, 0x61, 0x11,
+        (byte) 0xbe, 0x1d, (byte) 0x8c, 0x02, 0x1e, 0x65, (byte) 0xb8, (byte) 0x91,
+        (byte) 0xc2, (byte) 0xa2, 0x11, 0x16, 0x7a, (byte) 0xbb, (byte) 0x8c, 0x5e,
+        0x07, (byte) 0x9e, 0x09, (byte) 0xe2, (byte) 0xc8, (byte) 0xa8, 0x33, (byte) 0x9c
+    };
+
+    private final ServerHello serverHello = new ServerHello();
+
+    @Test
+    public void shouldDetectFullHandshakeForTls13()
+    {
+        final byte[] flight = concat(
+                record(CONTENT_TYPE_HANDSHAKE, hello(new byte[32], extension(EXTENSION_SUPPORTED_VERSIONS, 0x03, 0x04))),
+                record(CONTENT_TYPE_CHANGE_CIPHER_SPEC, new byte[] { 1 }));
+
+        assertEquals(FULL, parse(flight, INCOMPLETE));
+    }
+
+    @Test
+    public void shouldDetectResumedHandshakeForTls13()
+    {
+        final byte[] flight = record(CONTENT_TYPE_HANDSHAKE, hello(new byte[32],
+                extension(EXTENSION_SUPPORTED_VERSIONS, 0x03, 0x04),
+                extension(EXTENSION_PRE_SHARED_KEY, 0x00, 0x00)));
+
+        assertEquals(RESUMED, parse(flight, INCOMPLETE));
+    }
+
+    @Test
+    public void shouldAwaitServerHelloAfterHelloRetryRequest()
+    {
+        final byte[] retry = record(CONTENT_TYPE_HANDSHAKE, hello(HELLO_RETRY_REQUEST_RANDOM,
+                extension(EXTENSION_SUPPORTED_VERSIONS, 0x03, 0x04)));
+
+        assertEquals(INCOMPLETE, parse(retry, INCOMPLETE));
+
+        final byte[] flight = record(CONTENT_TYPE_HANDSHAKE, hello(new byte[32],
+                extension(EXTENSION_SUPPORTED_VERSIONS, 0x03, 0x04),
+                extension(EXTENSION_PRE_SHARED_KEY, 0x00, 0x00)));
+
+        assertEquals(RESUMED, parse(flight, INCOMPLETE));
+    }
+
+    @Test
+    public void shouldDetectFullHandshakeForTls12()
+    {
+        final byte[] flight = record(CONTENT_TYPE_HANDSHAKE, concat(hello(new byte[32]),
+                handshake(HANDSHAKE_TYPE_CERTIFICATE, new byte[16])));
+
+        assertEquals(FULL, parse(flight, INCOMPLETE));
+    }
+
+    @Test
+    public void shouldDetectResumedHandshakeWithTicketForTls12()
+    {
+        final byte[] flight = record(CONTENT_TYPE_HANDSHAKE, concat(hello(new byte[32]),
+                handshake(HANDSHAKE_TYPE_NEW_SESSION_TICKET, new byte[16])));
+
+        assertEquals(RESUMED, parse(flight, INCOMPLETE));
+    }
+
+    @Test
+    public void shouldDetectResumedHandshakeAcrossParsesForTls12()
+    {
+        final byte[] hello = record(CONTENT_TYPE_HANDSHAKE, hello(new byte[32]));
+        assertEquals(LEGACY, parse(hello, INCOMPLETE));
+
+        final byte[] changeCipherSpec = record(CONTENT_TYPE_CHANGE_CIPHER_SPEC, new byte[] { 1 });
+        assertEquals(RESUMED, parse(changeCipherSpec, LEGACY));
+    }
+
+    @Test
+    public void shouldIgnoreRecordsOnceDetected()
+    {
+        final byte[] records = concat(
+                record(CONTENT_TYPE_CHANGE_CIPHER_SPEC, new byte[] { 1 }),
+                record(CONTENT_TYPE_APPLICATION_DATA, new byte[16]));
+
+        assertEquals(FULL, parse(records, FULL));
+    }
+
+    @Test
+    public void shouldReportIncompleteForPartialRecord()
+    {
+        final byte[] flight = record(CONTENT_TYPE_HANDSHAKE, hello(new byte[32],
+                extension(EXTENSION_SUPPORTED_VERSIONS, 0x03, 0x04)));
+
+        for (int split = 0; split < flight.length; split++)
+        {
+            assertEquals("split at " + split, INCOMPLETE, serverHello.parse(ByteBuffer.wrap(flight), 0, split, INCOMPLETE));
+        }
+    }
+
+    private int parse(
+        byte[] records,
+        int status)
+    {
+        final byte[] buffer = new byte[records.length + 16];
+        System.arraycopy(records, 0, buffer, 8, records.length);
+        return serverHello.parse(ByteBuffer.wrap(buffer), 8, 8 + records.length, status);
+    }
+
+    private static byte[] record(
+        int type,
+        byte[] fragment)
+    {
+        final byte[] record = new byte[5 + fragment.length];
+        record[0] = (byte) type;
+        record[1] = 3;
+        record[2] = 3;
+        setUint16(record, 3, fragment.length);
+        System.arraycopy(fragment, 0, record, 5, fragment.length);
+        return record;
+    }
+
+    private static byte[] hello(
+        byte[] random,
+        byte[]... extensions)
+    {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(3);
+        body.write(3);
+        body.write(random, 0, random.length);
+        body.write(32);
+        body.write(new byte[32], 0, 32);
+        body.write(0x13);
+        body.write(0x01);
+        body.write(0);
+
+        if (extensions.length != 0)
+        {
+            final byte[] list = concat(extensions);
+            body.write(list.length >> 8);
+            body.write(list.length);
+            body.write(list, 0, list.length);
+        }
+
+        return handshake(2, body.toByteArray());
+    }
+
+    private static byte[] handshake(
+        int type,
+        byte[] body)
+    {
+        final byte[] handshake = new byte[4 + body.length];
+        handshake[0] = (byte) type;
+        handshake[1] = (byte) (body.length >> 16);
+        setUint16(handshake, 2, body.length);
+        System.arraycopy(body, 0, handshake, 4, body.length);
+        return handshake;
+    }
+
+    private static byte[] extension(
+        int type,
+        int... data)
+    {
+        final byte[] extension = new byte[4 + data.length];
+        setUint16(extension, 0, type);
+        setUint16(extension, 2, data.length);
+        for (int i = 0; i < data.length; i++)
+        {
+            extension[4 + i] = (byte) data[i];
+        }
+        return extension;
+    }
+
+    private static byte[] concat(
+        byte[]... arrays)
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays)
+        {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void setUint16(
+        byte[] bytes,
+        int index,
+        int value)
+    {
+        bytes[index] = (byte) (value >> 8);
+        bytes[index + 1] = (byte) value;
+    }
+}
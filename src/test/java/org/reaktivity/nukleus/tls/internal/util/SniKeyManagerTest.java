@@ -0,0 +1,340 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SniKeyManagerTest
+{
+    private static final String RSA_CIPHER_SUITE = "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256";
+    private static final String EC_CIPHER_SUITE = "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File keyStoreFile;
+    private int delegated;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        keyStoreFile = new File(folder.getRoot(), "keys");
+    }
+
+    @Test
+    public void shouldChooseCertificateForExactServerName() throws Exception
+    {
+        generateKeyPair("a", "CN=a.example", "dns:a.example", "RSA");
+        generateKeyPair("b", "CN=b.example", "dns:b.example", "RSA");
+
+        assertEquals("CN=b.example", handshake("b.example", RSA_CIPHER_SUITE));
+        assertEquals("CN=a.example", handshake("a.example", RSA_CIPHER_SUITE));
+        assertEquals(0, delegated);
+    }
+
+    @Test
+    public void shouldChooseCertificateForWildcardServerName() throws Exception
+    {
+        generateKeyPair("a", "CN=a.example", "dns:a.example", "RSA");
+        generateKeyPair("w", "CN=wildcard", "dns:*.w.example", "RSA");
+
+        assertEquals("CN=wildcard", handshake("x.w.example", RSA_CIPHER_SUITE));
+        assertEquals(0, delegated);
+    }
+
+    @Test
+    public void shouldNotMatchWildcardAcrossLabels() throws Exception
+    {
+        generateKeyPair("w", "CN=wildcard", "dns:*.w.example", "RSA");
+
+        handshake("y.x.w.example", RSA_CIPHER_SUITE);
+        assertTrue(delegated > 0);
+    }
+
+    @Test
+    public void shouldChooseCertificateByCommonNameWithoutSubjectAltNames() throws Exception
+    {
+        generateKeyPair("a", "CN=a.example", null, "RSA");
+        generateKeyPair("c", "CN=c.example", null, "RSA");
+
+        assertEquals("CN=c.example", handshake("c.example", RSA_CIPHER_SUITE));
+        assertEquals(0, delegated);
+    }
+
+    @Test
+    public void shouldChooseCertificateByKeyAlgorithm() throws Exception
+    {
+        generateKeyPair("a.rsa", "CN=a.example, OU=RSA", "dns:a.example", "RSA");
+        generateKeyPair("a.ec", "CN=a.example, OU=EC", "dns:a.example", "EC");
+
+        assertEquals("CN=a.example,OU=RSA", handshake("a.example", RSA_CIPHER_SUITE));
+        assertEquals("CN=a.example,OU=EC", handshake("a.example", EC_CIPHER_SUITE));
+        assertEquals(0, delegated);
+    }
+
+    @Test
+    public void shouldDelegateUnknownServerName() throws Exception
+    {
+        generateKeyPair("a", "CN=a.example", "dns:a.example", "RSA");
+
+        assertEquals("CN=a.example", handshake("other.example", RSA_CIPHER_SUITE));
+        assertTrue(delegated > 0);
+    }
+
+    private void generateKeyPair(
+        String alias,
+        String dname,
+        String subjectAltName,
+        String keyAlgorithm) throws Exception
+    {
+        final String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        final List<String> command = new ArrayList<>(Arrays.asList(keytool, "-genkeypair",
+                "-keystore", keyStoreFile.getPath(), "-storetype", "JKS",
+                "-storepass", "generated", "-keypass", "generated",
+                "-alias", alias, "-dname", dname, "-keyalg", keyAlgorithm, "-validity", "1"));
+
+        if (subjectAltName != null)
+        {
+            command.addAll(Arrays.asList("-ext", "san=" + subjectAltName));
+        }
+
+        final Process keytoolProcess = new ProcessBuilder(command).redirectErrorStream(true).start();
+        while (keytoolProcess.getInputStream().read() != -1)
+        {
+            // drain
+        }
+
+        assertEquals(0, keytoolProcess.waitFor());
+    }
+
+    private String handshake(
+        String hostname,
+        String cipherSuite) throws Exception
+    {
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(keyStoreFile))
+        {
+            keyStore.load(in, "generated".toCharArray());
+        }
+
+        final KeyManagerFactory factory = KeyManagerFactory.getInstance("SunX509");
+        factory.init(keyStore, "generated".toCharArray());
+        final X509ExtendedKeyManager delegate = new CountingKeyManager((X509ExtendedKeyManager) factory.getKeyManagers()[0]);
+
+        final SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(new KeyManager[] { new SniKeyManager(keyStore, delegate) }, null, null);
+
+        final SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[] { new TrustAllManager() }, null);
+
+        final SSLEngine server = serverContext.createSSLEngine();
+        server.setUseClientMode(false);
+
+        // TLS 1.2 with a single cipher suite pins the key type the server is asked for
+        final SSLEngine client = clientContext.createSSLEngine(hostname, 443);
+        client.setUseClientMode(true);
+        client.setEnabledProtocols(new String[] { "TLSv1.2" });
+        client.setEnabledCipherSuites(new String[] { cipherSuite });
+
+        final SSLParameters parameters = client.getSSLParameters();
+        parameters.setServerNames(Collections.singletonList(new SNIHostName(hostname)));
+        client.setSSLParameters(parameters);
+
+        final ByteBuffer clientToServer = ByteBuffer.allocate(1 << 16);
+        final ByteBuffer serverToClient = ByteBuffer.allocate(1 << 16);
+
+        client.beginHandshake();
+        server.beginHandshake();
+
+        for (int i = 0; i < 64 && !(isFinished(client) && isFinished(server)); i++)
+        {
+            step(client, clientToServer, serverToClient);
+            step(server, serverToClient, clientToServer);
+        }
+
+        assertTrue(isFinished(client) && isFinished(server));
+
+        final X509Certificate certificate = (X509Certificate) client.getSession().getPeerCertificates()[0];
+        return certificate.getSubjectX500Principal().getName();
+    }
+
+    private static void step(
+        SSLEngine engine,
+        ByteBuffer outbound,
+        ByteBuffer inbound) throws SSLException
+    {
+        final ByteBuffer empty = ByteBuffer.allocate(0);
+        final ByteBuffer plaintext = ByteBuffer.allocate(1 << 16);
+
+        for (Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask())
+        {
+            task.run();
+        }
+
+        if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+        {
+            engine.wrap(empty, outbound);
+        }
+
+        inbound.flip();
+        while (inbound.hasRemaining() && engine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP)
+        {
+            plaintext.clear();
+            if (engine.unwrap(inbound, plaintext).bytesConsumed() == 0)
+            {
+                break;
+            }
+
+            for (Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask())
+            {
+                task.run();
+            }
+        }
+        inbound.compact();
+    }
+
+    private static boolean isFinished(
+        SSLEngine engine)
+    {
+        final HandshakeStatus status = engine.getHandshakeStatus();
+        return status == HandshakeStatus.NOT_HANDSHAKING || status == HandshakeStatus.FINISHED;
+    }
+
+    private final class CountingKeyManager extends X509ExtendedKeyManager
+    {
+        private final X509ExtendedKeyManager delegate;
+
+        private CountingKeyManager(
+            X509ExtendedKeyManager delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String chooseEngineServerAlias(
+            String keyType,
+            Principal[] issuers,
+            SSLEngine engine)
+        {
+            delegated++;
+            return delegate.chooseEngineServerAlias(keyType, issuers, engine);
+        }
+
+        @Override
+        public String[] getClientAliases(
+            String keyType,
+            Principal[] issuers)
+        {
+            return delegate.getClientAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseClientAlias(
+            String[] keyTypes,
+            Principal[] issuers,
+            Socket socket)
+        {
+            return delegate.chooseClientAlias(keyTypes, issuers, socket);
+        }
+
+        @Override
+        public String[] getServerAliases(
+            String keyType,
+            Principal[] issuers)
+        {
+            return delegate.getServerAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseServerAlias(
+            String keyType,
+            Principal[] issuers,
+            Socket socket)
+        {
+            return delegate.chooseServerAlias(keyType, issuers, socket);
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(
+            String alias)
+        {
+            return delegate.getCertificateChain(alias);
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(
+            String alias)
+        {
+            return delegate.getPrivateKey(alias);
+        }
+    }
+
+    private static final class TrustAllManager implements X509TrustManager
+    {
+        @Override
+        public void checkClientTrusted(
+            X509Certificate[] chain,
+            String authType)
+        {
+        }
+
+        @Override
+        public void checkServerTrusted(
+            X509Certificate[] chain,
+            String authType)
+        {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers()
+        {
+            return new X509Certificate[0];
+        }
+    }
+}
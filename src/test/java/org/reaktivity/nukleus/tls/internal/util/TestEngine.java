@@ -0,0 +1,398 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import java.nio.ByteBuffer;
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+public final class TestEngine extends SSLEngine
+{
+    private final SSLEngine delegate;
+    private final Deque<Runnable> tasks = new ArrayDeque<>();
+
+    private boolean failTasks;
+    private volatile CountDownLatch taskStarted;
+    private volatile CountDownLatch taskReleased;
+    private volatile boolean taskRunning;
+
+    public TestEngine(
+        SSLEngine delegate)
+    {
+        super(delegate.getPeerHost(), delegate.getPeerPort());
+        this.delegate = delegate;
+    }
+
+    public void addTask(
+        Runnable task)
+    {
+        tasks.add(task);
+    }
+
+    public void failTasks()
+    {
+        failTasks = true;
+    }
+
+    public void blockTasks(
+        CountDownLatch taskStarted,
+        CountDownLatch taskReleased)
+    {
+        this.taskStarted = taskStarted;
+        this.taskReleased = taskReleased;
+    }
+
+    public static SSLContext failingTasks(
+        SSLContext context)
+    {
+        return newContext(context, TestEngine::failTasks);
+    }
+
+    public static SSLContext newContext(
+        SSLContext context,
+        Consumer<TestEngine> onEngine)
+    {
+        return new SSLContext(new TestContextSpi(context, onEngine), context.getProvider(), context.getProtocol())
+        {
+        };
+    }
+
+    @Override
+    public Runnable getDelegatedTask()
+    {
+        Runnable task = tasks.poll();
+
+        if (task == null)
+        {
+            task = delegate.getDelegatedTask();
+
+            if (task != null && failTasks)
+            {
+                task = () ->
+                {
+                    throw new IllegalStateException("delegated task failed");
+                };
+            }
+            else if (task != null && taskReleased != null)
+            {
+                final Runnable delegateTask = task;
+                task = () -> runBlocked(delegateTask);
+            }
+        }
+
+        return task;
+    }
+
+    private void runBlocked(
+        Runnable task)
+    {
+        taskRunning = true;
+
+        try
+        {
+            taskStarted.countDown();
+            taskReleased.await();
+            task.run();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            taskRunning = false;
+        }
+    }
+
+    private void checkUnlocked()
+    {
+        // JDK engines hold their lock for the whole delegated task, so this call would stall the caller
+        if (taskRunning)
+        {
+            throw new IllegalStateException("engine called while a delegated task runs");
+        }
+    }
+
+    @Override
+    public SSLEngineResult wrap(
+        ByteBuffer[] srcs,
+        int offset,
+        int length,
+        ByteBuffer dst) throws SSLException
+    {
+        checkUnlocked();
+        return delegate.wrap(srcs, offset, length, dst);
+    }
+
+    @Override
+    public SSLEngineResult unwrap(
+        ByteBuffer src,
+        ByteBuffer[] dsts,
+        int offset,
+        int length) throws SSLException
+    {
+        checkUnlocked();
+        return delegate.unwrap(src, dsts, offset, length);
+    }
+
+    @Override
+    public void closeInbound() throws SSLException
+    {
+        checkUnlocked();
+        delegate.closeInbound();
+    }
+
+    @Override
+    public boolean isInboundDone()
+    {
+        checkUnlocked();
+        return delegate.isInboundDone();
+    }
+
+    @Override
+    public void closeOutbound()
+    {
+        checkUnlocked();
+        delegate.closeOutbound();
+    }
+
+    @Override
+    public boolean isOutboundDone()
+    {
+        checkUnlocked();
+        return delegate.isOutboundDone();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites()
+    {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public String[] getEnabledCipherSuites()
+    {
+        return delegate.getEnabledCipherSuites();
+    }
+
+    @Override
+    public void setEnabledCipherSuites(
+        String[] suites)
+    {
+        delegate.setEnabledCipherSuites(suites);
+    }
+
+    @Override
+    public String[] getSupportedProtocols()
+    {
+        return delegate.getSupportedProtocols();
+    }
+
+    @Override
+    public String[] getEnabledProtocols()
+    {
+        return delegate.getEnabledProtocols();
+    }
+
+    @Override
+    public void setEnabledProtocols(
+        String[] protocols)
+    {
+        delegate.setEnabledProtocols(protocols);
+    }
+
+    @Override
+    public SSLSession getSession()
+    {
+        checkUnlocked();
+        return delegate.getSession();
+    }
+
+    @Override
+    public SSLSession getHandshakeSession()
+    {
+        checkUnlocked();
+        return delegate.getHandshakeSession();
+    }
+
+    @Override
+    public void beginHandshake() throws SSLException
+    {
+        checkUnlocked();
+        delegate.beginHandshake();
+    }
+
+    @Override
+    public HandshakeStatus getHandshakeStatus()
+    {
+        checkUnlocked();
+        return tasks.isEmpty() ? delegate.getHandshakeStatus() : HandshakeStatus.NEED_TASK;
+    }
+
+    @Override
+    public void setUseClientMode(
+        boolean mode)
+    {
+        delegate.setUseClientMode(mode);
+    }
+
+    @Override
+    public boolean getUseClientMode()
+    {
+        return delegate.getUseClientMode();
+    }
+
+    @Override
+    public void setNeedClientAuth(
+        boolean need)
+    {
+        delegate.setNeedClientAuth(need);
+    }
+
+    @Override
+    public boolean getNeedClientAuth()
+    {
+        return delegate.getNeedClientAuth();
+    }
+
+    @Override
+    public void setWantClientAuth(
+        boolean want)
+    {
+        delegate.setWantClientAuth(want);
+    }
+
+    @Override
+    public boolean getWantClientAuth()
+    {
+        return delegate.getWantClientAuth();
+    }
+
+    @Override
+    public void setEnableSessionCreation(
+        boolean flag)
+    {
+        delegate.setEnableSessionCreation(flag);
+    }
+
+    @Override
+    public boolean getEnableSessionCreation()
+    {
+        return delegate.getEnableSessionCreation();
+    }
+
+    @Override
+    public SSLParameters getSSLParameters()
+    {
+        return delegate.getSSLParameters();
+    }
+
+    @Override
+    public void setSSLParameters(
+        SSLParameters parameters)
+    {
+        delegate.setSSLParameters(parameters);
+    }
+
+    @Override
+    public String getApplicationProtocol()
+    {
+        return delegate.getApplicationProtocol();
+    }
+
+    private static final class TestContextSpi extends SSLContextSpi
+    {
+        private final SSLContext context;
+        private final Consumer<TestEngine> onEngine;
+
+        private TestContextSpi(
+            SSLContext context,
+            Consumer<TestEngine> onEngine)
+        {
+            this.context = context;
+            this.onEngine = onEngine;
+        }
+
+        @Override
+        protected void engineInit(
+            KeyManager[] keyManagers,
+            TrustManager[] trustManagers,
+            SecureRandom random) throws KeyManagementException
+        {
+            context.init(keyManagers, trustManagers, random);
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory()
+        {
+            return context.getSocketFactory();
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory()
+        {
+            return context.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine()
+        {
+            final TestEngine engine = new TestEngine(context.createSSLEngine());
+            onEngine.accept(engine);
+            return engine;
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(
+            String host,
+            int port)
+        {
+            final TestEngine engine = new TestEngine(context.createSSLEngine(host, port));
+            onEngine.accept(engine);
+            return engine;
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext()
+        {
+            return context.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext()
+        {
+            return context.getClientSessionContext();
+        }
+    }
+}
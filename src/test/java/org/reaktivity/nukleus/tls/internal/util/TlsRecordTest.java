@@ -0,0 +1,333 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.MAX_PLAINTEXT_LENGTH;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.ciphertextLength;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.frames;
+import static org.reaktivity.nukleus.tls.internal.util.TlsRecord.plaintextLength;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.junit.Test;
+
+public class TlsRecordTest
+{
+    private static final int[] PLAINTEXT_LENGTHS = { 1, 2, 15, 16, 17, 100, 1400, MAX_PLAINTEXT_LENGTH };
+
+    @Test
+    public void shouldComputeOverheadForTls13()
+    {
+        assertOverhead(38, 22, "TLSv1.3", "TLS_AES_128_GCM_SHA256");
+        assertOverhead(38, 22, "TLSv1.3", "TLS_AES_256_GCM_SHA384");
+        assertOverhead(38, 22, "TLSv1.3", "TLS_CHACHA20_POLY1305_SHA256");
+        assertOverhead(30, 14, "TLSv1.3", "TLS_AES_128_CCM_8_SHA256");
+    }
+
+    @Test
+    public void shouldComputeOverheadForAead()
+    {
+        assertOverhead(29, 29, "TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        assertOverhead(29, 29, "TLSv1.2", "TLS_RSA_WITH_AES_256_GCM_SHA384");
+        assertOverhead(29, 29, "TLSv1.2", "TLS_ECDHE_ECDSA_WITH_AES_128_CCM");
+        assertOverhead(21, 21, "TLSv1.2", "TLS_ECDHE_ECDSA_WITH_AES_128_CCM_8");
+        assertOverhead(21, 21, "TLSv1.2", "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256");
+    }
+
+    @Test
+    public void shouldComputeOverheadForCbcWithExplicitIv()
+    {
+        assertOverhead(57, 42, "TLSv1.2", "TLS_RSA_WITH_AES_128_CBC_SHA");
+        assertOverhead(69, 54, "TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256");
+        assertOverhead(85, 70, "TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_256_CBC_SHA384");
+        assertOverhead(57, 42, "TLSv1.1", "TLS_RSA_WITH_AES_256_CBC_SHA");
+        assertOverhead(41, 34, "TLSv1.1", "SSL_RSA_WITH_3DES_EDE_CBC_SHA");
+    }
+
+    @Test
+    public void shouldComputeOverheadForCbcWithRecordSplitting()
+    {
+        assertOverhead(82, 26, "TLSv1", "TLS_RSA_WITH_AES_128_CBC_SHA");
+        assertOverhead(82, 26, "TLSv1", "TLS_ECDHE_RSA_WITH_AES_256_CBC_SHA");
+        assertOverhead(66, 26, "TLSv1", "SSL_RSA_WITH_3DES_EDE_CBC_SHA");
+        assertOverhead(66, 26, "SSLv3", "SSL_RSA_WITH_3DES_EDE_CBC_SHA");
+        assertOverhead(58, 22, "SSLv3", "SSL_RSA_WITH_DES_CBC_MD5");
+    }
+
+    @Test
+    public void shouldComputeOverheadForStreamCiphers()
+    {
+        assertOverhead(25, 25, "TLSv1", "SSL_RSA_WITH_RC4_128_SHA");
+        assertOverhead(21, 21, "TLSv1", "SSL_RSA_WITH_RC4_128_MD5");
+        assertOverhead(37, 37, "TLSv1.2", "TLS_RSA_WITH_NULL_SHA256");
+    }
+
+    @Test
+    public void shouldFallBackToSessionBuffersForUnknownCipherSuite()
+    {
+        assertOverhead(16709 - 16384, 5, "TLSv1.2", "TLS_EMPTY_RENEGOTIATION_INFO_SCSV");
+    }
+
+    @Test
+    public void shouldFitPlaintextLengthInCiphertextLength()
+    {
+        final int[] overheads = { 21, 22, 29, 41, 57, 82, 85 };
+        final int[] recordLengths = { 1400, 4096, MAX_PLAINTEXT_LENGTH };
+
+        for (int overhead : overheads)
+        {
+            for (int recordLength : recordLengths)
+            {
+                for (int ciphertextLength = 0; ciphertextLength < 1 << 17; ciphertextLength += 997)
+                {
+                    for (int frames = 1; frames <= 64; frames <<= 1)
+                    {
+                        final int plaintextLength = plaintextLength(ciphertextLength, frames, recordLength, overhead);
+                        final int perFrame = (plaintextLength + frames - 1) / frames;
+
+                        int required = 0;
+                        for (int remaining = plaintextLength; remaining > 0; remaining -= perFrame)
+                        {
+                            required += ciphertextLength(Math.min(perFrame, remaining), recordLength, overhead);
+                        }
+
+                        assertTrue(String.format("%d plaintext in %d frames exceeds %d ciphertext",
+                                plaintextLength, frames, ciphertextLength), required <= ciphertextLength);
+                    }
+
+                    final int plaintextLength = ciphertextLength / 2;
+                    final int frames = frames(ciphertextLength, plaintextLength, recordLength, overhead);
+                    final int records = (plaintextLength + recordLength - 1) / recordLength;
+                    assertTrue(plaintextLength + (records + frames) * overhead <= ciphertextLength + overhead);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldBoundCiphertextOfNegotiatedSessions() throws Exception
+    {
+        final SSLContext server = SSLContext.getInstance("TLS");
+        server.init(keyManagers(), null, null);
+
+        final SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, new TrustManager[] { new TrustAllManager() }, null);
+
+        final SSLEngine probe = server.createSSLEngine();
+        int negotiated = 0;
+
+        for (String protocol : probe.getEnabledProtocols())
+        {
+            for (String cipherSuite : probe.getEnabledCipherSuites())
+            {
+                final SSLEngine serverEngine = server.createSSLEngine();
+                serverEngine.setUseClientMode(false);
+                serverEngine.setEnabledProtocols(new String[] { protocol });
+                serverEngine.setEnabledCipherSuites(new String[] { cipherSuite });
+
+                final SSLEngine clientEngine = client.createSSLEngine("localhost", 443);
+                clientEngine.setUseClientMode(true);
+                clientEngine.setEnabledProtocols(new String[] { protocol });
+                clientEngine.setEnabledCipherSuites(new String[] { cipherSuite });
+
+                if (handshake(clientEngine, serverEngine))
+                {
+                    assertCiphertextBounded(clientEngine);
+                    assertCiphertextBounded(serverEngine);
+                    negotiated++;
+                }
+            }
+        }
+
+        assertTrue(negotiated > 0);
+    }
+
+    private static void assertOverhead(
+        int overhead,
+        int minimumOverhead,
+        String protocol,
+        String cipherSuite)
+    {
+        final SSLSession session = session(protocol, cipherSuite);
+
+        assertEquals(protocol + " " + cipherSuite, overhead, TlsRecord.overhead(session));
+        assertEquals(protocol + " " + cipherSuite, minimumOverhead, TlsRecord.minimumOverhead(session));
+    }
+
+    private static void assertCiphertextBounded(
+        SSLEngine engine) throws SSLException
+    {
+        final SSLSession session = engine.getSession();
+        final String description = session.getProtocol() + " " + session.getCipherSuite();
+        final int overhead = TlsRecord.overhead(session);
+        final int minimumOverhead = TlsRecord.minimumOverhead(session);
+
+        final ByteBuffer ciphertext = ByteBuffer.allocate(session.getPacketBufferSize() * 2);
+
+        // post-handshake messages such as TLSv1.3 session tickets are not application records
+        do
+        {
+            ciphertext.clear();
+            engine.wrap(ByteBuffer.allocate(0), ciphertext);
+        }
+        while (ciphertext.position() != 0);
+
+        for (int length : PLAINTEXT_LENGTHS)
+        {
+            ciphertext.clear();
+            final int plaintextLength = engine.wrap(ByteBuffer.allocate(length), ciphertext).bytesConsumed();
+            final int ciphertextLength = ciphertext.position();
+            final String message = String.format("%s %d plaintext, %d ciphertext", description, plaintextLength,
+                    ciphertextLength);
+
+            assertTrue(message, plaintextLength > 0);
+            assertTrue(message, ciphertextLength <= ciphertextLength(plaintextLength, overhead));
+            assertTrue(message, ciphertextLength >= plaintextLength + minimumOverhead);
+        }
+    }
+
+    private static boolean handshake(
+        SSLEngine client,
+        SSLEngine server) throws Exception
+    {
+        final ByteBuffer empty = ByteBuffer.allocate(0);
+        final ByteBuffer clientToServer = ByteBuffer.allocate(1 << 16);
+        final ByteBuffer serverToClient = ByteBuffer.allocate(1 << 16);
+        final ByteBuffer plaintext = ByteBuffer.allocate(1 << 16);
+
+        try
+        {
+            client.beginHandshake();
+            server.beginHandshake();
+
+            for (int i = 0; i < 32; i++)
+            {
+                client.wrap(empty, clientToServer);
+                runDelegatedTasks(client);
+                clientToServer.flip();
+                server.unwrap(clientToServer, plaintext);
+                runDelegatedTasks(server);
+                clientToServer.compact();
+
+                server.wrap(empty, serverToClient);
+                runDelegatedTasks(server);
+                serverToClient.flip();
+                client.unwrap(serverToClient, plaintext);
+                runDelegatedTasks(client);
+                serverToClient.compact();
+
+                if (client.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING &&
+                    server.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING)
+                {
+                    return true;
+                }
+            }
+        }
+        catch (SSLException ex)
+        {
+            // cipher suite not usable with the test key
+        }
+
+        return false;
+    }
+
+    private static void runDelegatedTasks(
+        SSLEngine engine)
+    {
+        for (Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask())
+        {
+            task.run();
+        }
+    }
+
+    private static SSLSession session(
+        String protocol,
+        String cipherSuite)
+    {
+        return (SSLSession) Proxy.newProxyInstance(TlsRecordTest.class.getClassLoader(), new Class<?>[] { SSLSession.class },
+            (proxy, method, args) ->
+            {
+                switch (method.getName())
+                {
+                case "getProtocol":
+                    return protocol;
+                case "getCipherSuite":
+                    return cipherSuite;
+                case "getPacketBufferSize":
+                    return 16709;
+                case "getApplicationBufferSize":
+                    return 16384;
+                default:
+                    throw new UnsupportedOperationException(method.getName() + Arrays.toString(args));
+                }
+            });
+    }
+
+    private static KeyManager[] keyManagers() throws Exception
+    {
+        final KeyStore keys = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream("src/test/democa/keys"))
+        {
+            keys.load(in, "generated".toCharArray());
+        }
+
+        final KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keys, "generated".toCharArray());
+        return factory.getKeyManagers();
+    }
+
+    private static final class TrustAllManager implements X509TrustManager
+    {
+        @Override
+        public void checkClientTrusted(
+            X509Certificate[] chain,
+            String authType)
+        {
+        }
+
+        @Override
+        public void checkServerTrusted(
+            X509Certificate[] chain,
+            String authType)
+        {
+            // test certificates have expired
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers()
+        {
+            return new X509Certificate[0];
+        }
+    }
+}
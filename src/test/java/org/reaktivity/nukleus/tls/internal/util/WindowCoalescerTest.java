@@ -0,0 +1,98 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class WindowCoalescerTest
+{
+    private final List<Integer> flushed = new ArrayList<>();
+
+    @Test
+    public void shouldDeferUpdatesBelowThreshold()
+    {
+        final WindowCoalescer coalescer = new WindowCoalescer(25);
+
+        assertTrue(coalescer.deferred(100, 8192));
+        assertTrue(coalescer.deferred(2047, 8192));
+        assertFalse(coalescer.deferred(2048, 8192));
+        assertFalse(coalescer.deferred(8192, 8192));
+    }
+
+    @Test
+    public void shouldNotDeferWithoutThreshold()
+    {
+        final WindowCoalescer coalescer = new WindowCoalescer(0);
+
+        assertFalse(coalescer.deferred(1, 8192));
+    }
+
+    @Test
+    public void shouldFlushOncePerDutyCycle()
+    {
+        final WindowCoalescer coalescer = new WindowCoalescer(25);
+
+        coalescer.schedule(() -> flushed.add(1));
+        coalescer.schedule(() -> flushed.add(2));
+
+        assertEquals(2, coalescer.process());
+        assertEquals(0, coalescer.process());
+        assertEquals(asList(1, 2), flushed);
+    }
+
+    @Test
+    public void shouldFlushScheduledWhileFlushingInNextDutyCycle()
+    {
+        final WindowCoalescer coalescer = new WindowCoalescer(25);
+
+        coalescer.schedule(() ->
+        {
+            flushed.add(1);
+            coalescer.schedule(() -> flushed.add(2));
+        });
+
+        assertEquals(1, coalescer.process());
+        assertEquals(asList(1), flushed);
+
+        assertEquals(1, coalescer.process());
+        assertEquals(asList(1, 2), flushed);
+    }
+
+    @Test
+    public void shouldFlushBeyondInitialCapacity()
+    {
+        final WindowCoalescer coalescer = new WindowCoalescer(25);
+
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+        {
+            final int update = i;
+            coalescer.schedule(() -> flushed.add(update));
+            expected.add(update);
+        }
+
+        assertEquals(200, coalescer.process());
+        assertEquals(expected, flushed);
+    }
+}
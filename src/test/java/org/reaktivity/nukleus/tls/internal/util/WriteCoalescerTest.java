@@ -0,0 +1,85 @@
+/**
+ * Copyright 2016-2017 The Reaktivity Project
+ *
+ * The Reaktivity Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.reaktivity.nukleus.tls.internal.util;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+public class WriteCoalescerTest
+{
+    private final List<Integer> flushed = new ArrayList<>();
+
+    @Test
+    public void shouldFlushAtEndOfDutyCycleWithoutDelay()
+    {
+        final WriteCoalescer coalescer = new WriteCoalescer(true, 0L);
+
+        coalescer.schedule(() -> flushed.add(1));
+        coalescer.schedule(() -> flushed.add(2));
+
+        assertEquals(2, coalescer.process());
+        assertEquals(0, coalescer.process());
+        assertEquals(asList(1, 2), flushed);
+    }
+
+    @Test
+    public void shouldHoldUntilDeadline()
+    {
+        final WriteCoalescer coalescer = new WriteCoalescer(true, MILLISECONDS.toMicros(50L));
+
+        coalescer.schedule(() -> flushed.add(1));
+
+        assertEquals(0, coalescer.process());
+        assertEquals(0, flushed.size());
+
+        LockSupport.parkNanos(MILLISECONDS.toNanos(60L));
+
+        assertEquals(1, coalescer.process());
+        assertEquals(singletonList(1), flushed);
+    }
+
+    @Test
+    public void shouldFlushInScheduleOrderBeyondInitialCapacity()
+    {
+        final WriteCoalescer coalescer = new WriteCoalescer(true, 0L);
+
+        // move the head away from the start before growing
+        for (int i = 0; i < 10; i++)
+        {
+            coalescer.schedule(() -> {});
+        }
+        coalescer.process();
+
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+        {
+            final int write = i;
+            coalescer.schedule(() -> flushed.add(write));
+            expected.add(write);
+        }
+
+        assertEquals(200, coalescer.process());
+        assertEquals(expected, flushed);
+    }
+}